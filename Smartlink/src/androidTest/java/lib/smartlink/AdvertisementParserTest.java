@@ -0,0 +1,201 @@
+package lib.smartlink;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+/**
+ * Matching of services and names in advertisements, and the bounds checks which keep malformed
+ * records from being read past their end.
+ */
+public class AdvertisementParserTest extends TestCase {
+    private static final UUID CUSTOM = UUID.fromString("e97e1a33-0d9c-4f2b-9b8e-14d1e36b8d2a");
+    // 0x180D and 0x1234ABCD on top of the Bluetooth base UUID
+    private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID ALIAS_32 = UUID.fromString("1234abcd-0000-1000-8000-00805f9b34fb");
+    private static final byte[] FLAGS = {2, AdvertisementParser.AD_FLAGS, 6};
+
+    private final AdvertisementParser mParser = new AdvertisementParser(
+            new UUID[]{CUSTOM, HEART_RATE, ALIAS_32}, "SmartPlane");
+
+    /**
+     * @return the structures one after another, zero padded to 62 bytes like Android does
+     */
+    private static byte[] record(byte[]... structures) {
+        final byte[] record = unpadded(structures);
+        return Arrays.copyOf(record, Math.max(62, record.length));
+    }
+
+    /**
+     * @return the structures one after another, without padding
+     */
+    private static byte[] unpadded(byte[]... structures) {
+        int length = 0;
+        for (byte[] s : structures)
+            length += s.length;
+        byte[] record = new byte[length];
+        int offset = 0;
+        for (byte[] s : structures) {
+            System.arraycopy(s, 0, record, offset, s.length);
+            offset += s.length;
+        }
+        return record;
+    }
+
+    private static byte[] structure(int type, byte... data) {
+        byte[] s = new byte[2 + data.length];
+        s[0] = (byte) (1 + data.length);
+        s[1] = (byte) type;
+        System.arraycopy(data, 0, s, 2, data.length);
+        return s;
+    }
+
+    private static byte[] uuid128(UUID uuid) {
+        byte[] b = new byte[16];
+        final long lsb = uuid.getLeastSignificantBits();
+        final long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            b[i] = (byte) (lsb >>> (8 * i));
+            b[8 + i] = (byte) (msb >>> (8 * i));
+        }
+        return b;
+    }
+
+    private static byte[] name(int type, String name) throws Exception {
+        return structure(type, name.getBytes("UTF-8"));
+    }
+
+    public void test16BitList() {
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(FLAGS,
+                structure(AdvertisementParser.AD_16BIT_UUID_ALL, (byte) 0x0f, (byte) 0x18, (byte) 0x0d, (byte) 0x18))));
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(
+                structure(AdvertisementParser.AD_16BIT_UUID_MORE, (byte) 0x0d, (byte) 0x18))));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                structure(AdvertisementParser.AD_16BIT_UUID_ALL, (byte) 0x0f, (byte) 0x18))));
+        // the alias of a 128 bit service which isn't on top of the base UUID never matches
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                structure(AdvertisementParser.AD_16BIT_UUID_ALL, (byte) 0x9c, (byte) 0x0d))));
+    }
+
+    public void test32BitList() {
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(
+                structure(AdvertisementParser.AD_32BIT_UUID_ALL, (byte) 0xcd, (byte) 0xab, (byte) 0x34, (byte) 0x12))));
+        // a 16 bit alias may be sent as a 32 bit one
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(
+                structure(AdvertisementParser.AD_32BIT_UUID_MORE, (byte) 0, (byte) 0, (byte) 0, (byte) 0,
+                        (byte) 0x0d, (byte) 0x18, (byte) 0, (byte) 0))));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                structure(AdvertisementParser.AD_32BIT_UUID_ALL, (byte) 0xcd, (byte) 0xab, (byte) 0x34, (byte) 0x13))));
+    }
+
+    public void test128BitList() {
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(FLAGS,
+                structure(AdvertisementParser.AD_128BIT_UUID_ALL, uuid128(CUSTOM)))));
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(
+                structure(AdvertisementParser.AD_128BIT_UUID_MORE, uuid128(HEART_RATE)))));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                structure(AdvertisementParser.AD_128BIT_UUID_ALL, uuid128(UUID.randomUUID())))));
+    }
+
+    public void testServiceData() {
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(
+                structure(AdvertisementParser.AD_SERVICE_DATA_16BIT, (byte) 0x0d, (byte) 0x18, (byte) 42))));
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(
+                structure(AdvertisementParser.AD_SERVICE_DATA_32BIT, (byte) 0xcd, (byte) 0xab, (byte) 0x34, (byte) 0x12))));
+        byte[] data128 = new byte[17];
+        System.arraycopy(uuid128(CUSTOM), 0, data128, 0, 16);
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(
+                structure(AdvertisementParser.AD_SERVICE_DATA_128BIT, data128))));
+        // too short to hold the UUID
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                structure(AdvertisementParser.AD_SERVICE_DATA_16BIT, (byte) 0x0d))));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                structure(AdvertisementParser.AD_SERVICE_DATA_128BIT, new byte[15]))));
+    }
+
+    public void testNameIgnoresCase() throws Exception {
+        assertEquals(AdvertisementParser.MATCH_NAME, mParser.match(record(FLAGS,
+                name(AdvertisementParser.AD_FULLNAME, "smartplane"))));
+        assertEquals(AdvertisementParser.MATCH_NAME, mParser.match(record(
+                name(AdvertisementParser.AD_SHORTNAME, "SMARTPLANE"))));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                name(AdvertisementParser.AD_FULLNAME, "SmartPlane2"))));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                name(AdvertisementParser.AD_FULLNAME, "SmartPlan"))));
+        // only ASCII letters are folded
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                name(AdvertisementParser.AD_FULLNAME, "SmartPl\u00c4ne"))));
+        // a service after the name is the better match
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(record(
+                name(AdvertisementParser.AD_FULLNAME, "SmartPlane"),
+                structure(AdvertisementParser.AD_16BIT_UUID_ALL, (byte) 0x0d, (byte) 0x18))));
+        // no name to match
+        assertEquals(AdvertisementParser.MATCH_NONE, new AdvertisementParser(new UUID[0], null)
+                .match(record(name(AdvertisementParser.AD_FULLNAME, "SmartPlane"))));
+    }
+
+    public void testTruncatedStructure() {
+        // the list claims 16 bytes of UUID, the record ends after 2
+        byte[] truncated = unpadded(FLAGS, new byte[]{17, AdvertisementParser.AD_128BIT_UUID_ALL, 1, 2});
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(truncated));
+        assertEquals(-1, AdvertisementParser.find(truncated, AdvertisementParser.AD_128BIT_UUID_ALL));
+        // a matching 16 bit list cut in half
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(
+                new byte[]{3, AdvertisementParser.AD_16BIT_UUID_ALL, 0x0d}));
+        // a list whose length leaves an odd byte only reads whole UUIDs
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(record(
+                new byte[]{2, AdvertisementParser.AD_16BIT_UUID_ALL, 0x0d, 0x18})));
+    }
+
+    public void testZeroLengthEndsRecord() {
+        // anything after the first zero length is padding
+        byte[] r = unpadded(FLAGS, new byte[]{0},
+                structure(AdvertisementParser.AD_16BIT_UUID_ALL, (byte) 0x0d, (byte) 0x18));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(r));
+        assertEquals(-1, AdvertisementParser.find(r, AdvertisementParser.AD_16BIT_UUID_ALL));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(new byte[62]));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(new byte[0]));
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(null));
+        assertEquals(-1, AdvertisementParser.find(null, AdvertisementParser.AD_FLAGS));
+    }
+
+    public void testMaximumLength() {
+        // 0xFF must be read as 255, not -1, and then runs past the end of the record
+        byte[] r = record(new byte[]{(byte) 0xff, AdvertisementParser.AD_16BIT_UUID_ALL, 0x0d, 0x18});
+        assertEquals(AdvertisementParser.MATCH_NONE, mParser.match(r));
+        assertEquals(-1, AdvertisementParser.find(r, AdvertisementParser.AD_16BIT_UUID_ALL));
+
+        // a record long enough for it is parsed
+        byte[] data = new byte[254];
+        data[0] = 0x0d;
+        data[1] = 0x18;
+        byte[] whole = unpadded(structure(AdvertisementParser.AD_16BIT_UUID_ALL, data));
+        assertEquals(256, whole.length);
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(whole));
+        assertEquals(254, AdvertisementParser.dataLength(whole,
+                AdvertisementParser.find(whole, AdvertisementParser.AD_16BIT_UUID_ALL)));
+    }
+
+    public void testStructureAtEndOfRecord() throws Exception {
+        // the manufacturer data is the last structure and ends with the array
+        byte[] r = unpadded(FLAGS, name(AdvertisementParser.AD_FULLNAME, "x"),
+                structure(AdvertisementParser.AD_MANUFACTURER_DATA, (byte) 0x0d, (byte) 0x00, (byte) 7));
+        final int data = AdvertisementParser.find(r, AdvertisementParser.AD_MANUFACTURER_DATA);
+        assertEquals(r.length - 3, data);
+        assertEquals(3, AdvertisementParser.dataLength(r, data));
+        assertEquals(0x000d, AdvertisementParser.manufacturerId(r));
+
+        // only room for the company identifier
+        byte[] idOnly = unpadded(FLAGS, structure(AdvertisementParser.AD_MANUFACTURER_DATA, (byte) 0x59, (byte) 0x00));
+        assertEquals(0x0059, AdvertisementParser.manufacturerId(idOnly));
+        // too short for one
+        byte[] shortId = unpadded(FLAGS, structure(AdvertisementParser.AD_MANUFACTURER_DATA, (byte) 0x59));
+        assertEquals(-1, AdvertisementParser.manufacturerId(shortId));
+        assertEquals(-1, AdvertisementParser.manufacturerId(unpadded(FLAGS)));
+
+        // a 128 bit service which ends with the array
+        assertEquals(AdvertisementParser.MATCH_SERVICE, mParser.match(
+                unpadded(FLAGS, structure(AdvertisementParser.AD_128BIT_UUID_ALL, uuid128(CUSTOM)))));
+    }
+}
@@ -0,0 +1,207 @@
+package lib.smartlink;
+
+import java.io.ByteArrayInputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import lib.smartlink.sim.SimulatedPeripheral;
+import lib.smartlink.sim.SimulatedTransport;
+
+/**
+ * Several devices, each connected to its own simulated peripheral: every device has its own
+ * command queue, so one whose stack stops answering holds up nobody else.
+ */
+public class BluetoothDeviceQueueTest extends TestCase {
+    private static final String PLIST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<plist version=\"1.0\"><dict>"
+            + "<key>device name</key><string>queue test</string>"
+            + "<key>rssi high</key><integer>0</integer>"
+            + "<key>rssi low</key><integer>-100</integer>"
+            + "<key>Services</key><dict>"
+            + "<key>battery</key><dict>"
+            + "<key>UUID</key><string>180F</string>"
+            + "<key>Primary</key><true/>"
+            + "<key>DriverClass</key><string>BLEBatteryService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>level</key><string>2A19</string>"
+            + "</dict></dict></dict></dict></plist>";
+    private static final int DEVICES = 3;
+    private static final long TIMEOUT_MS = 500;
+
+    private final ArrayList<SimulatedTransport> mTransports = new ArrayList<SimulatedTransport>();
+    private final ArrayList<BluetoothDevice> mDevices = new ArrayList<BluetoothDevice>();
+    // the delegates are only weakly referenced by the devices
+    private final ArrayList<ConnectDelegate> mDelegates = new ArrayList<ConnectDelegate>();
+
+    @Override
+    protected void setUp() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(DEVICES);
+        for (int i = 0; i < DEVICES; i++) {
+            SimulatedTransport transport = new SimulatedTransport(i);
+            transport.setLatency(2);
+            transport.addPeripheral(new SimulatedPeripheral(config(), "00:00:00:00:00:0" + (i + 1)));
+            mTransports.add(transport);
+
+            BluetoothDevice device = new BluetoothDevice(config(), transport);
+            device.setGattLayoutCache(null);
+            device.setReadCache(null);
+            device.setOperationTimeout(BluetoothDevice.BleCommand.UPDATE_RSSI, TIMEOUT_MS);
+            ConnectDelegate delegate = new ConnectDelegate(connected);
+            mDelegates.add(delegate);
+            device.delegate = new WeakReference<BluetoothDevice.Delegate>(delegate);
+            mDevices.add(device);
+            device.connect();
+        }
+        assertTrue("devices did not connect", connected.await(10, TimeUnit.SECONDS));
+        // let the drivers' first requests finish
+        for (BluetoothDevice device : mDevices) {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (device.isOperationInFlight() || device.getPendingOperationCount() > 0) {
+                assertTrue("device did not settle", System.nanoTime() < deadline);
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (BluetoothDevice device : mDevices)
+            device.disconnect().get(2, TimeUnit.SECONDS);
+        for (SimulatedTransport transport : mTransports)
+            transport.shutdown();
+    }
+
+    private static DeviceConfig config() throws Exception {
+        return DeviceConfig.parse(new ByteArrayInputStream(PLIST.getBytes("UTF-8")));
+    }
+
+    public void testStalledDeviceHoldsUpNobodyElse() throws Exception {
+        // the first device's stack stops answering, its request waits for the watchdog
+        mTransports.get(0).setCallbackLoss(1);
+        final GattFuture stalled = mDevices.get(0).updateSignalStrength();
+
+        final long start = System.nanoTime();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 1; i < DEVICES; i++) {
+                GattResult result = mDevices.get(i).updateSignalStrength().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                assertTrue("device " + i + ": " + result, result.isSuccess());
+            }
+        }
+        assertTrue("the other devices waited for the stalled one",
+                System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS));
+        assertFalse(stalled.isDone());
+        assertTrue(mDevices.get(0).isOperationInFlight());
+
+        GattResult result = stalled.get(4 * TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(GattResult.STATUS_TIMEOUT, result.getStatus());
+        assertFalse(mDevices.get(0).isOperationInFlight());
+
+        // the watchdog gave the stack back, the device works again once its stack does
+        mTransports.get(0).setCallbackLoss(0);
+        result = mDevices.get(0).updateSignalStrength().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(result.toString(), result.isSuccess());
+    }
+
+    public void testQueuesDrainAfterConnecting() throws Exception {
+        for (BluetoothDevice device : mDevices) {
+            // nothing from connecting, e.g. the scan, may keep holding the stack
+            GattResult result = device.updateSignalStrength().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertTrue(result.toString(), result.isSuccess());
+            assertFalse(device.isOperationInFlight());
+            assertEquals(0, device.getPendingOperationCount());
+        }
+    }
+
+    public void testDisconnectTimeoutTearsDownOnce() throws Exception {
+        // the link is too slow for the DISCONNECT to be answered before the watchdog fires
+        final BluetoothDevice device = mDevices.get(0);
+        mTransports.get(0).setLatency(4 * TIMEOUT_MS);
+        device.setOperationTimeout(BluetoothDevice.BleCommand.DISCONNECT, TIMEOUT_MS / 5);
+        GattResult result = device.disconnect().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(GattResult.STATUS_TIMEOUT, result.getStatus());
+
+        // long enough for the late callback, if any
+        Thread.sleep(6 * TIMEOUT_MS);
+        assertEquals(1, mDelegates.get(0).mDisconnects.get());
+        assertFalse(device.isOperationInFlight());
+        result = device.updateSignalStrength().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(GattResult.STATUS_DISCONNECTED, result.getStatus());
+    }
+
+    public void testConnectedBeforeConnectReturns() throws Exception {
+        // the stack reports the connection while BleTransport.connect is still running
+        final SimulatedTransport transport = new SimulatedTransport(DEVICES);
+        transport.setLatency(0);
+        transport.setConnectReturnsLate(true);
+        transport.addPeripheral(new SimulatedPeripheral(config(), "00:00:00:00:00:0" + (DEVICES + 1)));
+        mTransports.add(transport);
+        final BluetoothDevice device = new BluetoothDevice(config(), transport);
+        device.setGattLayoutCache(null);
+        device.setReadCache(null);
+        final ConnectDelegate delegate = new ConnectDelegate(new CountDownLatch(1));
+        mDelegates.add(delegate);
+        device.delegate = new WeakReference<BluetoothDevice.Delegate>(delegate);
+        mDevices.add(device);
+
+        for (int round = 1; round <= 2; round++) {
+            device.connect();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (delegate.mConnects.get() < round) {
+                assertTrue("round " + round + " did not connect", System.nanoTime() < deadline);
+                Thread.sleep(5);
+            }
+            GattResult result = device.updateSignalStrength().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertTrue(result.toString(), result.isSuccess());
+
+            // the link has to be let go of, so the next round can connect again
+            device.disconnect().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            while (delegate.mDisconnects.get() < round) {
+                assertTrue("round " + round + " did not disconnect", System.nanoTime() < deadline);
+                Thread.sleep(5);
+            }
+            result = device.updateSignalStrength().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertEquals(GattResult.STATUS_DISCONNECTED, result.getStatus());
+        }
+    }
+
+    private static class ConnectDelegate implements BluetoothDevice.Delegate {
+        private final CountDownLatch mConnected;
+        final AtomicInteger mConnects = new AtomicInteger();
+        final AtomicInteger mDisconnects = new AtomicInteger();
+
+        ConnectDelegate(CountDownLatch connected) {
+            mConnected = connected;
+        }
+
+        @Override
+        public void didStartService(BluetoothDevice device, String serviceName, BLEService service) {
+            mConnected.countDown();
+        }
+
+        @Override
+        public void didUpdateSignalStrength(BluetoothDevice device, float signalStrength) {
+        }
+
+        @Override
+        public void didStartScanning(BluetoothDevice device) {
+        }
+
+        @Override
+        public void didStartConnectingTo(BluetoothDevice device, float signalStrength) {
+        }
+
+        @Override
+        public void didDisconnect(BluetoothDevice device) {
+            mDisconnects.incrementAndGet();
+        }
+
+        @Override
+        public void didConnect(BluetoothDevice device) {
+            mConnects.incrementAndGet();
+        }
+    }
+}
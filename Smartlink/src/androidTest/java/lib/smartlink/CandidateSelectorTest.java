@@ -0,0 +1,147 @@
+package lib.smartlink;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import lib.smartlink.sim.SimulatedPeripheral;
+import lib.smartlink.sim.SimulatedTransport;
+
+/**
+ * Picking the device to connect to among those advertising during the selection window: the
+ * strongest steady signal wins over a stronger flickering one, and devices with too few
+ * advertisements only count once the deadline forces a choice.
+ */
+public class CandidateSelectorTest extends TestCase {
+    private static final String PLIST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<plist version=\"1.0\"><dict>"
+            + "<key>device name</key><string>selection test</string>"
+            + "<key>rssi high</key><integer>0</integer>"
+            + "<key>rssi low</key><integer>-100</integer>"
+            + "<key>Services</key><dict>"
+            + "<key>battery</key><dict>"
+            + "<key>UUID</key><string>180F</string>"
+            + "<key>Primary</key><true/>"
+            + "<key>DriverClass</key><string>BLEBatteryService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>level</key><string>2A19</string>"
+            + "</dict></dict></dict></dict></plist>";
+    private static final String A = "00:00:00:00:00:01";
+    private static final String B = "00:00:00:00:00:02";
+
+    private final CandidateSelector mSelector = new CandidateSelector();
+
+    private void offer(String address, int... rssi) {
+        for (int sample : rssi)
+            mSelector.offer(address, sample, 0);
+    }
+
+    public void testFirstCandidateOpensWindow() {
+        assertTrue(mSelector.isEmpty());
+        assertTrue(mSelector.offer(A, -60, 5));
+        assertEquals(5, mSelector.openedAt());
+        assertFalse(mSelector.offer(A, -61, 6));
+        assertFalse(mSelector.offer(B, -70, 7));
+        assertEquals(5, mSelector.openedAt());
+        assertFalse(mSelector.isEmpty());
+    }
+
+    public void testStrongestWins() {
+        offer(A, -70, -70, -70);
+        offer(B, -55, -55, -55);
+        CandidateSelector.Candidate best = mSelector.select(false);
+        assertEquals(B, best.address);
+        assertEquals(-55f, best.rssi, 1e-3f);
+        // the window is closed, the next candidate opens a new one
+        assertTrue(mSelector.isEmpty());
+        assertTrue(mSelector.offer(A, -70, 9));
+    }
+
+    public void testSteadyBeatsFlickering() {
+        offer(A, -70, -70, -70, -70);
+        // stronger on average, but all over the place
+        offer(B, -45, -85, -45, -85, -45, -85);
+        CandidateSelector.Candidate steady = mSelector.select(false);
+        assertEquals(A, steady.address);
+        assertEquals(0f, steady.deviation, 1e-3f);
+    }
+
+    public void testUnstableCandidatesWaitForDeadline() {
+        // one advertisement short of stable
+        offer(A, -40, -40);
+        assertNull(mSelector.select(false));
+        assertFalse("the window stays open", mSelector.isEmpty());
+
+        offer(B, -80, -80, -80);
+        assertEquals(B, mSelector.select(false).address);
+
+        // when forced, whatever was seen counts
+        offer(A, -40);
+        assertEquals(A, mSelector.select(true).address);
+        assertNull(mSelector.select(true));
+    }
+
+    public void testMovingAverage() {
+        offer(A, -60, -70);
+        mSelector.offer(B, -90, 0);
+        CandidateSelector.Candidate a = mSelector.select(true);
+        assertEquals(A, a.address);
+        assertEquals(2, a.samples);
+        assertEquals(-60 + CandidateSelector.ALPHA * -10, a.rssi, 1e-3f);
+        assertEquals(CandidateSelector.ALPHA * 10, a.deviation, 1e-3f);
+        assertEquals(a.rssi - a.deviation, a.score(), 1e-3f);
+    }
+
+    public void testClear() {
+        offer(A, -60, -60, -60);
+        mSelector.clear();
+        assertTrue(mSelector.isEmpty());
+        assertNull(mSelector.select(true));
+    }
+
+    public void testDeviceConnectsToStrongest() throws Exception {
+        SimulatedTransport transport = new SimulatedTransport(9);
+        transport.setLatency(2);
+        transport.setAdvertisingInterval(20);
+        SimulatedPeripheral weak = new SimulatedPeripheral(config(), A);
+        SimulatedPeripheral strong = new SimulatedPeripheral(config(), B);
+        weak.setRssi(-85);
+        strong.setRssi(-50);
+        // the weak one is seen first
+        transport.addPeripheral(weak);
+        transport.addPeripheral(strong);
+        BluetoothDevice device = new BluetoothDevice(config(), transport);
+        device.setGattLayoutCache(null);
+        device.setReadCache(null);
+        device.setCandidateSelection(300, 2000);
+        try {
+            device.connect();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (weak.getConnectionCount() + strong.getConnectionCount() == 0) {
+                assertTrue("did not connect", System.nanoTime() < deadline);
+                Thread.sleep(5);
+            }
+            assertEquals(1, strong.getConnectionCount());
+            assertEquals(0, weak.getConnectionCount());
+        } finally {
+            device.disconnect().get(2, TimeUnit.SECONDS);
+            transport.shutdown();
+        }
+    }
+
+    public void testInvalidSelection() throws Exception {
+        SimulatedTransport transport = new SimulatedTransport(10);
+        BluetoothDevice device = new BluetoothDevice(config(), transport);
+        try {
+            device.setCandidateSelection(500, 100);
+            fail("the deadline is before the end of the window");
+        } catch (IllegalArgumentException expected) {
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    private static DeviceConfig config() throws Exception {
+        return DeviceConfig.parse(new ByteArrayInputStream(PLIST.getBytes("UTF-8")));
+    }
+}
@@ -0,0 +1,148 @@
+package lib.smartlink;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link ConcurrentDataPool}s posted to on several threads while another one reads them. Every
+ * window the reader gets has to be one the pool really held: the latest <code>size</code>
+ * values posted, oldest first.
+ */
+public class ConcurrentDataPoolTest extends TestCase {
+    private static final int SIZE = 4;
+    private static final long STRESS_MS = 500;
+    // values are (producer << SEQUENCE_BITS) | sequence, sequences count from 1 per producer
+    private static final int SEQUENCE_BITS = 24;
+    private static final int MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+
+    public void testSingleWriterAverage() {
+        checkAverage(ConcurrentDataPool.singleWriter(SIZE));
+    }
+
+    public void testMultiWriterAverage() {
+        checkAverage(ConcurrentDataPool.multiWriter(SIZE));
+    }
+
+    private static void checkAverage(ConcurrentDataPool pool) {
+        int[] window = new int[SIZE];
+        pool.snapshot(window);
+        assertTrue(Arrays.equals(new int[]{0, 0, 0, 0}, window));
+        for (int i = 1; i <= 6; i++)
+            pool.postData(i * 10);
+        pool.snapshot(window);
+        assertTrue(Arrays.toString(window), Arrays.equals(new int[]{30, 40, 50, 60}, window));
+        assertEquals(45, pool.fetchData());
+        pool.flood(7);
+        pool.snapshot(window);
+        assertTrue(Arrays.toString(window), Arrays.equals(new int[]{7, 7, 7, 7}, window));
+        assertEquals(7, pool.fetchData());
+        pool.postData(-1);
+        assertEquals(5, pool.fetchData());
+        pool.clear();
+        assertEquals(0, pool.fetchData());
+    }
+
+    public void testSingleWriterUnderLoad() throws Exception {
+        stress(ConcurrentDataPool.singleWriter(SIZE), 1);
+    }
+
+    public void testMultiWriterUnderLoad() throws Exception {
+        stress(ConcurrentDataPool.multiWriter(SIZE), 4);
+    }
+
+    /**
+     * Producers post values encoding who posted them and in which order while the test thread
+     * checks every window and average it reads
+     */
+    private static void stress(final ConcurrentDataPool pool, int producers) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.nanoTime() + STRESS_MS * 1000000L;
+        final int[] last = new int[producers]; // last sequence of each producer, once it stopped
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int sequence = 0;
+                        while (sequence < MAX_SEQUENCE && ((sequence & 255) != 0 || System.nanoTime() < deadline))
+                            pool.postData(producer << SEQUENCE_BITS | ++sequence);
+                        last[producer] = sequence;
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            }, "producer-" + p);
+            threads[p].start();
+        }
+
+        final int[] window = new int[SIZE];
+        final int[] newest = new int[producers]; // per producer, newest sequence seen so far
+        long windows = 0;
+        int average = Integer.MIN_VALUE;
+        start.countDown();
+        while (System.nanoTime() < deadline) {
+            pool.snapshot(window);
+            checkWindow(window, newest);
+            windows++;
+            if (producers == 1) {
+                // counting up, so the average never goes down
+                final int next = pool.fetchData();
+                assertTrue(next + " after " + average, next >= average);
+                average = next;
+            }
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertNull(failure.get());
+        assertTrue(windows > 0);
+
+        // at rest, the window ends with the last value of every producer in it
+        pool.snapshot(window);
+        checkWindow(window, newest);
+        long sum = 0;
+        for (int value : window) {
+            final int producer = value >>> SEQUENCE_BITS;
+            assertEquals(Arrays.toString(window), last[producer], newest[producer]);
+            sum += value;
+        }
+        assertEquals(Arrays.toString(window), (int) (sum / SIZE), pool.fetchData());
+    }
+
+    /**
+     * A window is a run of consecutive posts: any zeros left from the start come first, and the
+     * values of each producer follow each other without gaps. Nor can a producer's values be
+     * older than ones seen in an earlier window.
+     *
+     * @param newest per producer, the newest sequence seen in earlier windows, updated
+     */
+    private static void checkWindow(int[] window, int[] newest) {
+        final int[] previous = new int[newest.length];
+        boolean started = false;
+        for (int value : window) {
+            if (value == 0) {
+                assertFalse("zero after posted values " + Arrays.toString(window), started);
+                continue;
+            }
+            started = true;
+            final int producer = value >>> SEQUENCE_BITS;
+            final int sequence = value & MAX_SEQUENCE;
+            assertTrue("unknown producer " + Arrays.toString(window), producer < newest.length);
+            if (previous[producer] != 0)
+                assertEquals("gap " + Arrays.toString(window), previous[producer] + 1, sequence);
+            previous[producer] = sequence;
+        }
+        for (int p = 0; p < newest.length; p++) {
+            if (previous[p] == 0)
+                continue;
+            assertTrue("went back from " + newest[p] + " " + Arrays.toString(window), previous[p] >= newest[p]);
+            newest[p] = previous[p];
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * A config saved in binary form and read back is the config compiled from the plist, down to
+ * the Control entries and their filters.
+ */
+public class DeviceConfigTest extends TestCase {
+    private static final String PLIST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<plist version=\"1.0\"><dict>"
+            + "<key>device name</key><string>config test</string>"
+            + "<key>rssi high</key><integer>-20</integer>"
+            + "<key>rssi low</key><integer>-90</integer>"
+            + "<key>selection window</key><integer>750</integer>"
+            + "<key>Services</key><dict>"
+            + "<key>plane</key><dict>"
+            + "<key>UUID</key><string>75B64E51-F181-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>Primary</key><true/>"
+            + "<key>DriverClass</key><string>BLESmartplaneService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>engine</key><dict>"
+            + "<key>UUID</key><string>75B64E51-F184-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>Control</key><dict>"
+            + "<key>Smoothing</key><integer>4</integer>"
+            + "<key>MaxRate</key><real>25.5</real>"
+            + "<key>Format</key><string>sint16</string>"
+            + "<key>BigEndian</key><true/>"
+            + "<key>Priority</key><string>data</string>"
+            + "<key>WriteType</key><string>no response</string>"
+            + "<key>Filters</key><array>"
+            + "<dict><key>Type</key><string>median</string><key>Samples</key><integer>3</integer></dict>"
+            + "<dict><key>Type</key><string>deadband</string><key>Width</key><integer>2</integer>"
+            + "<key>Center</key><integer>-1</integer></dict>"
+            + "<dict><key>Type</key><string>threshold</string><key>Step</key><integer>5</integer>"
+            + "<key>Settle</key><integer>200</integer></dict>"
+            + "</array>"
+            + "</dict></dict>"
+            + "<key>rudder</key><dict>"
+            + "<key>UUID</key><string>75B64E51-F185-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>Control</key><dict><key>MaxRate</key><integer>10</integer></dict>"
+            + "</dict>"
+            + "<key>charging</key><string>75B64E51-F186-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "</dict></dict>"
+            + "<key>battery</key><dict>"
+            + "<key>UUID</key><string>180F</string>"
+            + "<key>DriverClass</key><string>com.example.BatteryDriver</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>level</key><string>2A19</string>"
+            + "</dict></dict>"
+            + "</dict></dict></plist>";
+
+    @Override
+    protected void setUp() throws Exception {
+        DeviceConfig.clearCache();
+    }
+
+    private static DeviceConfig parse(byte[] content) {
+        return DeviceConfig.parse(new ByteArrayInputStream(content));
+    }
+
+    private static byte[] binary(DeviceConfig config) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        config.writeTo(out);
+        return out.toByteArray();
+    }
+
+    public void testPlist() throws Exception {
+        DeviceConfig config = parse(PLIST.getBytes("UTF-8"));
+        assertEquals("config test", config.getDeviceName());
+        assertEquals(750, config.getSelectionWindowMs());
+        assertEquals(2, config.getServiceCount());
+        assertEquals(4, config.getFieldCount());
+        assertEquals("lib.smartlink.driver.BLESmartplaneService", config.getDriverClassName(0));
+        assertEquals("com.example.BatteryDriver", config.getDriverClassName(1));
+        assertEquals("0000180f-0000-1000-8000-00805f9b34fb", config.getServiceUuid(1).toString());
+        assertEquals(1, config.getPrimaryServices().length);
+
+        final int engine = config.indexOfField("plane/engine");
+        ControlSpec spec = config.getControlSpec(engine, ControlSpec.DEFAULT);
+        assertEquals(4, spec.getSmoothing());
+        assertEquals(25.5f, spec.getMaxRateHz(), 0f);
+        assertEquals(BluetoothGattCharacteristic.FORMAT_SINT16 | FieldHandle.BIG_ENDIAN, spec.getFormat());
+        assertEquals(TrafficClass.DATA, spec.getTrafficClass());
+        assertEquals(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, spec.getWriteType());
+        assertEquals(Arrays.asList(ControlFilter.median(3), ControlFilter.deadband(-1, 2),
+                ControlFilter.changeThreshold(5, 200)), Arrays.asList(spec.getFilters()));
+        assertFalse(config.hasControl(config.indexOfField("plane/charging")));
+    }
+
+    public void testBinaryRoundTrip() throws Exception {
+        DeviceConfig plist = parse(PLIST.getBytes("UTF-8"));
+        final byte[] saved = binary(plist);
+        DeviceConfig.clearCache();
+        DeviceConfig binary = parse(saved);
+        assertNotSame(plist, binary);
+
+        assertEquals(plist.getDeviceName(), binary.getDeviceName());
+        assertEquals(plist.getRssiHigh(), binary.getRssiHigh());
+        assertEquals(plist.getRssiLow(), binary.getRssiLow());
+        assertEquals(plist.getSelectionWindowMs(), binary.getSelectionWindowMs());
+        assertEquals(plist.getServiceCount(), binary.getServiceCount());
+        for (int s = 0; s < plist.getServiceCount(); s++) {
+            assertEquals(plist.getServiceName(s), binary.getServiceName(s));
+            assertEquals(plist.getServiceUuid(s), binary.getServiceUuid(s));
+            assertEquals(plist.isPrimary(s), binary.isPrimary(s));
+            assertEquals(plist.getDriverName(s), binary.getDriverName(s));
+            assertEquals(plist.getFirstField(s), binary.getFirstField(s));
+            assertEquals(plist.getFieldEnd(s), binary.getFieldEnd(s));
+        }
+        // a spec the driver asks for, which the Control entries partly override
+        final ControlSpec defaults = ControlSpec.DEFAULT.withSmoothing(2)
+                .withFilters(ControlFilter.ema(50));
+        assertEquals(plist.getFieldCount(), binary.getFieldCount());
+        for (int f = 0; f < plist.getFieldCount(); f++) {
+            assertEquals(plist.getFieldPath(f), binary.getFieldPath(f));
+            assertEquals(plist.getFieldUuid(f), binary.getFieldUuid(f));
+            assertEquals(plist.getFieldService(f), binary.getFieldService(f));
+            assertEquals(plist.hasControl(f), binary.hasControl(f));
+            assertEquals(plist.getControlSpec(f, defaults), binary.getControlSpec(f, defaults));
+            assertEquals(f, binary.indexOfField(binary.getFieldUuid(f)));
+        }
+        // the rudder only sets its rate, the driver's filters stay
+        final int rudder = binary.indexOfField("plane/rudder");
+        assertEquals(defaults.withMaxRate(10), binary.getControlSpec(rudder, defaults));
+
+        // saving it again gives the same bytes
+        assertTrue(Arrays.equals(saved, binary(binary)));
+    }
+
+    public void testParseIsCached() throws Exception {
+        final byte[] content = PLIST.getBytes("UTF-8");
+        DeviceConfig config = parse(content);
+        assertSame(config, parse(content.clone()));
+        final byte[] saved = binary(config);
+        assertSame(parse(saved), parse(saved.clone()));
+        DeviceConfig.clearCache();
+        assertNotSame(config, parse(content));
+    }
+
+    public void testInvalidBinary() throws Exception {
+        final byte[] saved = binary(parse(PLIST.getBytes("UTF-8")));
+        try {
+            parse(Arrays.copyOf(saved, saved.length - 3));
+            fail("truncated config was read");
+        } catch (IllegalArgumentException expected) {
+        }
+        // a version from the future
+        byte[] future = saved.clone();
+        future[7] = 99;
+        try {
+            parse(future);
+            fail("unknown version was read");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_FLOAT;
+import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_SFLOAT;
+import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_SINT16;
+import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_SINT32;
+import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_SINT8;
+import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT16;
+import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT32;
+import static android.bluetooth.BluetoothGattCharacteristic.FORMAT_UINT8;
+
+/**
+ * Encoding and decoding of typed fields in every format and byte order, and the values a handle
+ * reads through its driver.
+ */
+public class FieldHandleTest extends TestCase {
+    private static final int[] INTEGER_FORMATS = {FORMAT_UINT8, FORMAT_UINT16, FORMAT_UINT32,
+            FORMAT_SINT8, FORMAT_SINT16, FORMAT_SINT32};
+
+    private FieldService mDriver;
+    private BluetoothGattCharacteristic mCharacteristic;
+
+    static class FieldService extends BLEService {
+        @Override
+        protected void attached() {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        HashMap<String, BluetoothGattCharacteristic> fields =
+                new HashMap<String, BluetoothGattCharacteristic>();
+        mCharacteristic = new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
+        fields.put("value", mCharacteristic);
+        mDriver = new FieldService();
+        mDriver.bind(null, fields, null);
+    }
+
+    private static long min(int format) {
+        final int bits = 8 * FieldHandle.sizeOf(format);
+        return (format & 0x20) != 0 ? -(1L << (bits - 1)) : 0;
+    }
+
+    private static long max(int format) {
+        final int bits = 8 * FieldHandle.sizeOf(format);
+        return (format & 0x20) != 0 ? (1L << (bits - 1)) - 1 : (1L << bits) - 1;
+    }
+
+    private void assertRoundTrip(long value, int format) {
+        byte[] b = new byte[4];
+        FieldHandle.encode(value, b, 0, format);
+        assertEquals("format " + format, value, FieldHandle.decode(b, 0, format));
+        FieldHandle.encode(value, b, 0, format | FieldHandle.BIG_ENDIAN);
+        assertEquals("format " + format, value, FieldHandle.decode(b, 0, format | FieldHandle.BIG_ENDIAN));
+    }
+
+    public void testIntegerRoundTrip() {
+        for (int format : INTEGER_FORMATS) {
+            assertRoundTrip(0, format);
+            assertRoundTrip(1, format);
+            assertRoundTrip(min(format), format);
+            assertRoundTrip(max(format), format);
+            assertRoundTrip(max(format) / 3, format);
+            if (min(format) < 0)
+                assertRoundTrip(-1, format);
+        }
+    }
+
+    public void testByteOrder() {
+        byte[] b = new byte[4];
+        FieldHandle.encode(0x01020304, b, 0, FORMAT_UINT32);
+        assertEquals(4, b[0]);
+        assertEquals(1, b[3]);
+        FieldHandle.encode(0x01020304, b, 0, FORMAT_UINT32 | FieldHandle.BIG_ENDIAN);
+        assertEquals(1, b[0]);
+        assertEquals(4, b[3]);
+        // only the low bytes are stored, at the offset
+        b = new byte[3];
+        FieldHandle.encode(0xabcd1234, b, 1, FORMAT_UINT16 | FieldHandle.BIG_ENDIAN);
+        assertEquals(0, b[0]);
+        assertEquals(0x12, b[1]);
+        assertEquals(0x34, b[2]);
+        assertEquals(0x1234, FieldHandle.decode(b, 1, FORMAT_UINT16 | FieldHandle.BIG_ENDIAN));
+    }
+
+    public void testSignExtension() {
+        byte[] ones = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+        assertEquals(-1, FieldHandle.decode(ones, 0, FORMAT_SINT8));
+        assertEquals(-1, FieldHandle.decode(ones, 0, FORMAT_SINT16));
+        assertEquals(-1, FieldHandle.decode(ones, 0, FORMAT_SINT32));
+        assertEquals(0xff, FieldHandle.decode(ones, 0, FORMAT_UINT8));
+        assertEquals(0xffff, FieldHandle.decode(ones, 0, FORMAT_UINT16));
+        assertEquals(0xffffffffL, FieldHandle.decode(ones, 0, FORMAT_UINT32));
+        // the sign is in the last byte of a little endian value and the first of a big endian one
+        byte[] b = {0x00, (byte) 0x80};
+        assertEquals(-32768, FieldHandle.decode(b, 0, FORMAT_SINT16));
+        assertEquals(0x0080, FieldHandle.decode(b, 0, FORMAT_SINT16 | FieldHandle.BIG_ENDIAN));
+    }
+
+    public void testShortValueDecodesToZero() {
+        assertEquals(0, FieldHandle.decode(new byte[]{1}, 0, FORMAT_UINT16));
+        assertEquals(0, FieldHandle.decode(new byte[]{1, 2, 3, 4}, 1, FORMAT_SINT32));
+        assertEquals(0, FieldHandle.decode(null, 0, FORMAT_UINT8));
+        assertEquals(0f, FieldHandle.decodeFloat(new byte[]{1}, 0, FORMAT_SFLOAT));
+        assertEquals(0f, FieldHandle.decodeFloat(null, 0, FORMAT_FLOAT));
+    }
+
+    public void testInvalidFormats() {
+        try {
+            FieldHandle.sizeOf(FORMAT_SFLOAT);
+            fail("SFLOAT is not an integer format");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            FieldHandle.sizeOf(FORMAT_FLOAT);
+            fail("FLOAT is not an integer format");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            FieldHandle.decodeFloat(new byte[4], 0, FORMAT_SINT32);
+            fail("SINT32 is not a decimal float");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mDriver.field("value", FORMAT_SINT16, 16);
+            fail("more fraction bits than the field has");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mDriver.field("value", FORMAT_SFLOAT, 4);
+            fail("decimal floats have no fraction bits");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mDriver.field("value", 0x13);
+            fail("no three byte format");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testSfloat() {
+        // 366 * 10^-1, the exponent in the high nibble
+        byte[] b = new byte[2];
+        FieldHandle.encodeFloat(36.6f, b, 0, FORMAT_SFLOAT);
+        assertEquals(0x6e, b[0] & 0xff);
+        assertEquals(0xf1, b[1] & 0xff);
+        assertEquals(36.6f, FieldHandle.decodeFloat(b, 0, FORMAT_SFLOAT), 1e-4f);
+
+        assertFloatRoundTrip(0f, FORMAT_SFLOAT, 0f);
+        assertFloatRoundTrip(1.5f, FORMAT_SFLOAT, 0f);
+        assertFloatRoundTrip(-1.5f, FORMAT_SFLOAT, 0f);
+        assertFloatRoundTrip(-37.5f, FORMAT_SFLOAT, 0f);
+        // three or four significant digits, as many as the 12 bit mantissa holds
+        assertFloatRoundTrip(98.765f, FORMAT_SFLOAT, 0.05f);
+        assertFloatRoundTrip(2045e7f, FORMAT_SFLOAT, 1e4f);
+        assertFloatRoundTrip(-2045e7f, FORMAT_SFLOAT, 1e4f);
+    }
+
+    public void testFloat() {
+        byte[] b = new byte[4];
+        FieldHandle.encodeFloat(-1.5f, b, 0, FORMAT_FLOAT | FieldHandle.BIG_ENDIAN);
+        // the exponent in the first byte, the mantissa sign extended below it
+        assertTrue(b[0] < 0);
+        assertEquals(-1.5f, FieldHandle.decodeFloat(b, 0, FORMAT_FLOAT | FieldHandle.BIG_ENDIAN), 1e-6f);
+
+        assertFloatRoundTrip(0f, FORMAT_FLOAT, 0f);
+        assertFloatRoundTrip(36.6f, FORMAT_FLOAT, 1e-5f);
+        assertFloatRoundTrip(-36.6f, FORMAT_FLOAT, 1e-5f);
+        assertFloatRoundTrip(123456.7f, FORMAT_FLOAT, 0.1f);
+        assertFloatRoundTrip(1e30f, FORMAT_FLOAT, 1e24f);
+        assertFloatRoundTrip(-2.5e-20f, FORMAT_FLOAT, 1e-26f);
+    }
+
+    private static void assertFloatRoundTrip(float value, int format, float delta) {
+        byte[] b = new byte[format & 0x0f];
+        FieldHandle.encodeFloat(value, b, 0, format);
+        assertEquals(value, FieldHandle.decodeFloat(b, 0, format), delta);
+        FieldHandle.encodeFloat(value, b, 0, format | FieldHandle.BIG_ENDIAN);
+        assertEquals(value, FieldHandle.decodeFloat(b, 0, format | FieldHandle.BIG_ENDIAN), delta);
+    }
+
+    public void testDecimalSpecialValues() {
+        for (int format : new int[]{FORMAT_SFLOAT, FORMAT_FLOAT}) {
+            byte[] b = new byte[format & 0x0f];
+            FieldHandle.encodeFloat(Float.NaN, b, 0, format);
+            assertTrue(Float.isNaN(FieldHandle.decodeFloat(b, 0, format)));
+            FieldHandle.encodeFloat(Float.POSITIVE_INFINITY, b, 0, format);
+            assertEquals(Float.POSITIVE_INFINITY, FieldHandle.decodeFloat(b, 0, format));
+            FieldHandle.encodeFloat(Float.NEGATIVE_INFINITY, b, 0, format);
+            assertEquals(Float.NEGATIVE_INFINITY, FieldHandle.decodeFloat(b, 0, format));
+        }
+        // NRes and the reserved value read as NaN
+        assertTrue(Float.isNaN(FieldHandle.decodeFloat(new byte[]{0x00, 0x08}, 0, FORMAT_SFLOAT)));
+        assertTrue(Float.isNaN(FieldHandle.decodeFloat(new byte[]{0x01, 0x08}, 0, FORMAT_SFLOAT)));
+        assertTrue(Float.isNaN(FieldHandle.decodeFloat(new byte[]{0x00, 0x00, (byte) 0x80, 0x00}, 0, FORMAT_FLOAT)));
+        // the same mantissas with an exponent are plain values
+        assertEquals(-20480f, FieldHandle.decodeFloat(new byte[]{0x00, 0x18}, 0, FORMAT_SFLOAT), 0f);
+    }
+
+    public void testDecimalOverflow() {
+        byte[] b = new byte[2];
+        FieldHandle.encodeFloat(1e11f, b, 0, FORMAT_SFLOAT);
+        assertEquals(Float.POSITIVE_INFINITY, FieldHandle.decodeFloat(b, 0, FORMAT_SFLOAT));
+        FieldHandle.encodeFloat(-1e11f, b, 0, FORMAT_SFLOAT);
+        assertEquals(Float.NEGATIVE_INFINITY, FieldHandle.decodeFloat(b, 0, FORMAT_SFLOAT));
+        // too small for the smallest exponent
+        FieldHandle.encodeFloat(1e-12f, b, 0, FORMAT_SFLOAT);
+        assertEquals(0f, FieldHandle.decodeFloat(b, 0, FORMAT_SFLOAT));
+    }
+
+    public void testHandleReadsDeliveredValue() {
+        final int index = mDriver.fieldIndex("value");
+        FieldHandle sint8 = mDriver.field("value", FORMAT_SINT8);
+        FieldHandle uint8 = mDriver.field("value", FORMAT_UINT8);
+        assertEquals(1, sint8.getSize());
+        assertEquals(0, sint8.getLong());
+
+        // the characteristic's value until the driver got one
+        mCharacteristic.setValue(new byte[]{5});
+        assertEquals(5, sint8.getInt());
+        mDriver.onValue(index, new byte[]{(byte) 0xff});
+        mCharacteristic.setValue(new byte[]{7});
+        assertEquals(-1, sint8.getInt());
+        assertEquals(255, uint8.getInt());
+    }
+
+    public void testFixedPoint() {
+        final int index = mDriver.fieldIndex("value");
+        FieldHandle q8 = mDriver.field("value", FORMAT_SINT16, 8);
+        byte[] b = new byte[2];
+        FieldHandle.encode(-384, b, 0, FORMAT_SINT16);
+        mDriver.onValue(index, b);
+        assertEquals(-384, q8.getLong());
+        assertEquals(-1.5f, q8.getFloat(), 0f);
+
+        FieldHandle q4 = mDriver.field("value", FORMAT_UINT16 | FieldHandle.BIG_ENDIAN, 4);
+        mDriver.onValue(index, new byte[]{0x01, 0x28});
+        assertEquals(0x128 / 16f, q4.getFloat(), 0f);
+    }
+
+    public void testHandleDecimal() {
+        final int index = mDriver.fieldIndex("value");
+        FieldHandle sfloat = mDriver.field("value", FORMAT_SFLOAT);
+        assertEquals(2, sfloat.getSize());
+        mDriver.onValue(index, new byte[]{0x6e, (byte) 0xf1});
+        assertEquals(36.6f, sfloat.getFloat(), 1e-4f);
+        assertEquals(36, sfloat.getLong());
+
+        // the bits a write hands to the device encode as they are sent
+        byte[] b = new byte[2];
+        sfloat.encode(0xf16e, b);
+        assertEquals(0x6e, b[0] & 0xff);
+        assertEquals(0xf1, b[1] & 0xff);
+    }
+}
@@ -0,0 +1,178 @@
+package lib.smartlink;
+
+import junit.framework.TestCase;
+
+/**
+ * Each stage on its own and chained, with made up times: what comes out for a value, where
+ * time based stages move to without new values and when they count as settled.
+ */
+public class FilterPipelineTest extends TestCase {
+    private static final long MS = 1000000L;
+
+    private static FilterPipeline pipeline(ControlFilter... filters) {
+        return new FilterPipeline(filters);
+    }
+
+    public void testTimeAverage() {
+        FilterPipeline p = pipeline(ControlFilter.timeAverage(100));
+        assertEquals(10, p.filter(10, 0));
+        assertEquals(16, p.filter(21, 50 * MS));
+        // the value of time 0 left the window
+        assertEquals(26, p.filter(30, 120 * MS));
+        assertFalse(p.isSettled());
+        // the newest value stays however old it is
+        assertEquals(30, p.update(151 * MS));
+        assertTrue(p.isSettled());
+        assertEquals(30, p.update(10000 * MS));
+    }
+
+    public void testTimeAverageIsBounded() {
+        FilterPipeline p = pipeline(ControlFilter.timeAverage(1000));
+        for (int i = 1; i <= ControlFilter.MAX_AVERAGED + 1; i++)
+            p.filter(i, 0);
+        // the first value made room for the last one
+        assertEquals(34, p.getOutput());
+    }
+
+    public void testEma() {
+        FilterPipeline p = pipeline(ControlFilter.ema(100));
+        assertEquals(0, p.filter(0, 0));
+        assertEquals(0, p.filter(100, 0));
+        assertFalse(p.isSettled());
+        // 1 - 1/e of the way after one time constant
+        assertEquals(63, p.update(100 * MS));
+        assertEquals(100, p.update(1000 * MS));
+        assertTrue(p.isSettled());
+    }
+
+    public void testEmaIgnoresRate() {
+        FilterPipeline p = pipeline(ControlFilter.ema(100));
+        p.filter(0, 0);
+        int out = 0;
+        for (int i = 1; i <= 10; i++)
+            out = p.filter(100, i * 10 * MS);
+        assertEquals(63, out);
+    }
+
+    public void testMedian() {
+        FilterPipeline p = pipeline(ControlFilter.median(3));
+        assertEquals(10, p.filter(10, 0));
+        // a spike never comes through
+        assertEquals(10, p.filter(100, 0));
+        assertEquals(12, p.filter(12, 0));
+        assertEquals(12, p.filter(11, 0));
+        assertEquals(12, p.filter(13, 0));
+        assertEquals(13, p.filter(14, 0));
+        assertTrue(p.isSettled());
+    }
+
+    public void testSlewRate() {
+        FilterPipeline p = pipeline(ControlFilter.slewRate(500));
+        // at rest until the value comes, the move starts then
+        assertEquals(0, p.filter(200, 1000 * MS));
+        assertFalse(p.isSettled());
+        assertEquals(50, p.update(1100 * MS));
+        assertEquals(100, p.update(1200 * MS));
+        assertEquals(200, p.update(1500 * MS));
+        assertTrue(p.isSettled());
+
+        assertEquals(200, p.filter(0, 2000 * MS));
+        assertEquals(150, p.update(2100 * MS));
+        // a new target takes over from where it is
+        assertEquals(175, p.filter(300, 2150 * MS));
+        assertEquals(300, p.update(3000 * MS));
+    }
+
+    public void testDeadband() {
+        FilterPipeline p = pipeline(ControlFilter.deadband(0, 4));
+        assertEquals(0, p.filter(3, 0));
+        assertEquals(0, p.filter(-4, 0));
+        assertEquals(5, p.filter(5, 0));
+        assertEquals(-5, p.filter(-5, 0));
+
+        p = pipeline(ControlFilter.deadband(-1, 2));
+        assertEquals(-1, p.filter(1, 0));
+        assertEquals(2, p.filter(2, 0));
+        assertEquals(Integer.MAX_VALUE, p.filter(Integer.MAX_VALUE, 0));
+    }
+
+    public void testChangeThreshold() {
+        FilterPipeline p = pipeline(ControlFilter.changeThreshold(5, 40));
+        assertEquals(100, p.filter(100, 0));
+        assertTrue(p.isSettled());
+        // jitter is held back until it rests
+        assertEquals(100, p.filter(103, 10 * MS));
+        assertEquals(100, p.filter(102, 20 * MS));
+        assertFalse(p.isSettled());
+        assertEquals(100, p.update(50 * MS));
+        assertEquals(102, p.update(60 * MS));
+        assertTrue(p.isSettled());
+        assertEquals(95, p.filter(95, 70 * MS));
+    }
+
+    public void testChangeThresholdWithoutSettle() {
+        FilterPipeline p = pipeline(ControlFilter.changeThreshold(5, 0));
+        assertEquals(100, p.filter(100, 0));
+        assertEquals(100, p.filter(104, 10 * MS));
+        assertTrue(p.isSettled());
+        assertEquals(100, p.update(10000 * MS));
+    }
+
+    public void testChain() {
+        FilterPipeline p = pipeline(ControlFilter.slewRate(1000), ControlFilter.deadband(0, 10));
+        assertEquals(2, p.getStageCount());
+        assertEquals(0, p.filter(100, 0));
+        // the slew moves inside the deadband
+        assertEquals(0, p.update(5 * MS));
+        // and out of it, the later stage sees the new value
+        assertEquals(50, p.update(50 * MS));
+        assertFalse(p.isSettled());
+        assertEquals(100, p.update(100 * MS));
+        assertTrue(p.isSettled());
+        assertEquals(100, p.getOutput());
+    }
+
+    public void testReset() {
+        FilterPipeline p = pipeline(ControlFilter.median(3), ControlFilter.timeAverage(100));
+        assertEquals(0, p.getOutput());
+        p.filter(10, 0);
+        p.filter(20, 0);
+        p.reset(50, 200 * MS);
+        assertEquals(50, p.getOutput());
+        assertTrue(p.isSettled());
+        // as if 50 had been posted forever
+        assertEquals(50, p.filter(90, 200 * MS));
+    }
+
+    public void testNoStages() {
+        FilterPipeline p = pipeline();
+        assertEquals(7, p.filter(7, 0));
+        assertEquals(7, p.update(100 * MS));
+        assertTrue(p.isSettled());
+    }
+
+    public void testInvalidFilters() {
+        try {
+            ControlFilter.median(ControlFilter.MAX_MEDIAN + 1);
+            fail("median too long");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            ControlFilter.timeAverage(0);
+            fail("empty window");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            ControlFilter.slewRate(0);
+            fail("never moves");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            ControlFilter.changeThreshold(5, -1);
+            fail("negative settle time");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(ControlFilter.deadband(-1, 2),
+                ControlFilter.of(ControlFilter.DEADBAND, -1, 2));
+    }
+}
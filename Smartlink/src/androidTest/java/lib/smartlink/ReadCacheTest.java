@@ -0,0 +1,169 @@
+package lib.smartlink;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Values kept per peripheral: dropped when the firmware changes or the peripheral is
+ * invalidated, and found again by a cache reading the same file after a flush.
+ */
+public class ReadCacheTest extends TestCase {
+    private static final String A = "00:00:00:00:00:01";
+    private static final String B = "00:00:00:00:00:02";
+    private static final String C = "00:00:00:00:00:03";
+    private static final String SERIAL = "devinfo/serialnumber";
+    private static final byte[] VALUE = {'S', 'N', '-', '1'};
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("readcache", ".bin");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    private ReadCache open() {
+        ReadCache cache = new ReadCache(8);
+        cache.setStorage(mFile);
+        return cache;
+    }
+
+    private static byte[] get(ReadCache cache, String address) {
+        return cache.get(address, SERIAL, BLEService.CACHE_UNTIL_FIRMWARE_CHANGE);
+    }
+
+    public void testHitAndMiss() {
+        ReadCache cache = new ReadCache(8);
+        assertNull(get(cache, A));
+        final byte[] value = VALUE.clone();
+        cache.put(A, SERIAL, value);
+        value[0] = 0;
+        byte[] cached = get(cache, A);
+        assertTrue(Arrays.equals(VALUE, cached));
+        // every caller gets a copy of its own
+        cached[0] = 0;
+        assertTrue(Arrays.equals(VALUE, get(cache, A)));
+        assertNull(cache.get(A, "devinfo/systemid", BLEService.CACHE_UNTIL_FIRMWARE_CHANGE));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    public void testMaxAge() throws Exception {
+        ReadCache cache = new ReadCache(8);
+        cache.put(A, SERIAL, VALUE);
+        Thread.sleep(30);
+        assertNull(cache.get(A, SERIAL, 10));
+        assertNotNull(cache.get(A, SERIAL, 10000));
+        // putting it again makes it young
+        cache.put(A, SERIAL, VALUE);
+        assertNotNull(cache.get(A, SERIAL, 10));
+    }
+
+    public void testFirmwareChange() {
+        ReadCache cache = new ReadCache(8);
+        cache.put(A, SERIAL, VALUE);
+        cache.put(B, SERIAL, VALUE);
+        // the values were read from the version reported first
+        assertTrue(cache.setFirmwareVersion(A, "1.0"));
+        assertTrue(cache.setFirmwareVersion(A, "1.0"));
+        assertTrue(cache.setFirmwareVersion(A, null));
+        assertNotNull(get(cache, A));
+        assertEquals(0, cache.getInvalidationCount());
+
+        assertFalse(cache.setFirmwareVersion(A, "1.1"));
+        assertNull(get(cache, A));
+        assertNotNull("another peripheral lost its values", get(cache, B));
+        assertEquals(1, cache.getInvalidationCount());
+
+        // values read from the new version stay
+        cache.put(A, SERIAL, VALUE);
+        assertTrue(cache.setFirmwareVersion(A, "1.1"));
+        assertNotNull(get(cache, A));
+    }
+
+    public void testInvalidate() {
+        ReadCache cache = new ReadCache(8);
+        cache.put(A, SERIAL, VALUE);
+        cache.put(B, SERIAL, VALUE);
+        cache.invalidate(A);
+        assertNull(get(cache, A));
+        assertNotNull(get(cache, B));
+        cache.invalidate(C);
+        assertEquals(1, cache.getInvalidationCount());
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() {
+        ReadCache cache = new ReadCache(2);
+        cache.put(A, SERIAL, VALUE);
+        cache.put(B, SERIAL, VALUE);
+        get(cache, A);
+        cache.put(C, SERIAL, VALUE);
+        assertEquals(2, cache.size());
+        assertNull(get(cache, B));
+        assertNotNull(get(cache, A));
+        assertNotNull(get(cache, C));
+    }
+
+    public void testFlushPersists() {
+        ReadCache cache = open();
+        assertTrue(cache.hasStorage());
+        cache.put(A, SERIAL, VALUE);
+        assertNull("saved before the flush", get(open(), A));
+        cache.flush();
+
+        ReadCache loaded = open();
+        assertTrue(Arrays.equals(VALUE, get(loaded, A)));
+        assertEquals(1, loaded.size());
+    }
+
+    public void testSameValueIsNotSaved() {
+        ReadCache cache = open();
+        cache.put(A, SERIAL, VALUE);
+        cache.flush();
+        assertTrue(mFile.delete());
+        cache.put(A, SERIAL, VALUE.clone());
+        cache.flush();
+        assertFalse(mFile.exists());
+        cache.put(A, SERIAL, new byte[]{'S', 'N', '-', '2'});
+        cache.flush();
+        assertTrue(mFile.exists());
+    }
+
+    public void testInvalidationPersists() {
+        ReadCache cache = open();
+        cache.put(A, SERIAL, VALUE);
+        cache.put(B, SERIAL, VALUE);
+        // the version is saved right away, without a flush
+        cache.setFirmwareVersion(A, "1.0");
+        assertTrue(open().setFirmwareVersion(A, "1.0"));
+
+        cache.invalidate(B);
+        ReadCache loaded = open();
+        assertNull(get(loaded, B));
+        assertFalse(loaded.setFirmwareVersion(A, "2.0"));
+        assertNull(get(open(), A));
+    }
+
+    public void testUnreadableFileIsIgnored() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+        out.close();
+        ReadCache cache = open();
+        assertEquals(0, cache.size());
+        cache.put(A, SERIAL, VALUE);
+        cache.flush();
+        assertTrue(Arrays.equals(VALUE, get(open(), A)));
+    }
+}
@@ -0,0 +1,88 @@
+package lib.smartlink;
+
+import junit.framework.TestCase;
+
+/**
+ * Verdicts remembered per device: answered while the advertisement is unchanged and fresh,
+ * parsed again once it changes or expires, and the least recently seen device forgotten first.
+ */
+public class ScanCacheTest extends TestCase {
+    private static final long MS = 1000000L;
+    private static final String A = "00:00:00:00:00:01";
+    private static final String B = "00:00:00:00:00:02";
+    private static final String C = "00:00:00:00:00:03";
+
+    public void testHitForSameAdvertisement() {
+        ScanCache cache = new ScanCache();
+        assertEquals(ScanCache.UNKNOWN, cache.lookup(A, 42, 0));
+        cache.put(A, 42, AdvertisementParser.MATCH_SERVICE, 0);
+        assertEquals(AdvertisementParser.MATCH_SERVICE, cache.lookup(A, 42, 5 * MS));
+        // a verdict that nothing matched is worth remembering just as much
+        cache.put(B, 42, AdvertisementParser.MATCH_NONE, 0);
+        assertEquals(AdvertisementParser.MATCH_NONE, cache.lookup(B, 42, 5 * MS));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2, cache.size());
+    }
+
+    public void testChangedAdvertisementIsParsedAgain() {
+        ScanCache cache = new ScanCache();
+        cache.put(A, 42, AdvertisementParser.MATCH_NONE, 0);
+        assertEquals(ScanCache.UNKNOWN, cache.lookup(A, 43, MS));
+        // the new verdict replaces the old one
+        cache.put(A, 43, AdvertisementParser.MATCH_NAME, MS);
+        assertEquals(AdvertisementParser.MATCH_NAME, cache.lookup(A, 43, 2 * MS));
+        assertEquals(ScanCache.UNKNOWN, cache.lookup(A, 42, 2 * MS));
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getExpirationCount());
+    }
+
+    public void testVerdictExpires() {
+        ScanCache cache = new ScanCache();
+        cache.setTtl(100);
+        assertEquals(100, cache.getTtl());
+        cache.put(A, 42, AdvertisementParser.MATCH_SERVICE, 0);
+        assertEquals(AdvertisementParser.MATCH_SERVICE, cache.lookup(A, 42, 100 * MS));
+        assertEquals(ScanCache.UNKNOWN, cache.lookup(A, 42, 101 * MS));
+        assertEquals(1, cache.getExpirationCount());
+        assertEquals(1, cache.getMissCount());
+
+        // putting it again restarts its time to live
+        cache.put(A, 42, AdvertisementParser.MATCH_SERVICE, 101 * MS);
+        assertEquals(AdvertisementParser.MATCH_SERVICE, cache.lookup(A, 42, 200 * MS));
+    }
+
+    public void testLeastRecentlySeenIsEvicted() {
+        ScanCache cache = new ScanCache(2);
+        cache.put(A, 1, AdvertisementParser.MATCH_NONE, 0);
+        cache.put(B, 2, AdvertisementParser.MATCH_NONE, 0);
+        // seeing A again makes B the least recently seen
+        assertEquals(AdvertisementParser.MATCH_NONE, cache.lookup(A, 1, MS));
+        cache.put(C, 3, AdvertisementParser.MATCH_SERVICE, MS);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(ScanCache.UNKNOWN, cache.lookup(B, 2, MS));
+        assertEquals(AdvertisementParser.MATCH_NONE, cache.lookup(A, 1, MS));
+        assertEquals(AdvertisementParser.MATCH_SERVICE, cache.lookup(C, 3, MS));
+    }
+
+    public void testClearKeepsCounters() {
+        ScanCache cache = new ScanCache();
+        cache.put(A, 1, AdvertisementParser.MATCH_NONE, 0);
+        cache.lookup(A, 1, 0);
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(ScanCache.UNKNOWN, cache.lookup(A, 1, 0));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testInvalidCapacity() {
+        try {
+            new ScanCache(0);
+            fail("a cache needs room for a device");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(ScanCache.DEFAULT_CAPACITY, new ScanCache().getCapacity());
+    }
+}
@@ -0,0 +1,303 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import lib.smartlink.sim.SimulatedPeripheral;
+import lib.smartlink.sim.SimulatedTransport;
+
+/**
+ * Sessions recorded into a log and read back: every event comes back as it was recorded, a log
+ * cut short ends with its last whole event, and a live session replayed into another device
+ * hands its drivers the values the first one got.
+ */
+public class SessionRecorderTest extends TestCase {
+    private static final String PLIST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<plist version=\"1.0\"><dict>"
+            + "<key>device name</key><string>session test</string>"
+            + "<key>rssi high</key><integer>0</integer>"
+            + "<key>rssi low</key><integer>-100</integer>"
+            + "<key>Services</key><dict>"
+            + "<key>sensor</key><dict>"
+            + "<key>UUID</key><string>3C9E0000-5D2A-4E8B-A1F0-7B6C5D4E3F20</string>"
+            + "<key>Primary</key><true/>"
+            + "<key>DriverClass</key><string>SessionRecorderTestService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>temperature</key><string>3C9E0001-5D2A-4E8B-A1F0-7B6C5D4E3F20</string>"
+            + "<key>humidity</key><string>3C9E0002-5D2A-4E8B-A1F0-7B6C5D4E3F20</string>"
+            + "</dict></dict></dict></dict></plist>";
+    private static final int VALUES = 20;
+
+    private final List<File> mFiles = new ArrayList<File>();
+    private final List<SimulatedTransport> mTransports = new ArrayList<SimulatedTransport>();
+    private final List<BluetoothDevice> mDevices = new ArrayList<BluetoothDevice>();
+
+    public static class SensorService extends BLEService {
+        static volatile SensorService sInstance;
+        static volatile CountDownLatch sStarted;
+        // temperatures as the driver got them
+        final List<Integer> temperatures = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile GattFuture notifications;
+        private int mTemperature;
+
+        @Override
+        protected void attached() {
+            mTemperature = fieldIndex("temperature");
+            notifications = setNotification("temperature", true);
+            sInstance = this;
+            sStarted.countDown();
+        }
+
+        @Override
+        protected void didUpdateValue(int field) {
+            if (field == mTemperature)
+                temperatures.add(valueOf(field)[0] & 0xff);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        DriverRegistry.register("SessionRecorderTestService", new DriverRegistry.Factory() {
+            @Override
+            public BLEService create() {
+                return new SensorService();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (BluetoothDevice device : mDevices)
+            device.disconnect().get(2, TimeUnit.SECONDS);
+        for (SimulatedTransport transport : mTransports)
+            transport.shutdown();
+        for (File file : mFiles)
+            file.delete();
+    }
+
+    private static DeviceConfig config() throws Exception {
+        return DeviceConfig.parse(new ByteArrayInputStream(PLIST.getBytes("UTF-8")));
+    }
+
+    private File newFile() throws IOException {
+        File file = File.createTempFile("session", ".log");
+        mFiles.add(file);
+        return file;
+    }
+
+    private static BluetoothGattCharacteristic characteristic(DeviceConfig config, String path) {
+        return new BluetoothGattCharacteristic(config.getFieldUuid(config.indexOfField(path)),
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY, BluetoothGattCharacteristic.PERMISSION_READ);
+    }
+
+    public void testEventsReadBack() throws Exception {
+        final DeviceConfig config = config();
+        final File file = newFile();
+        final BluetoothGattCharacteristic humidity = characteristic(config, "sensor/humidity");
+        SessionRecorder recorder = new SessionRecorder(file, config);
+        recorder.record(SessionRecorder.NOTIFICATION, -1, humidity, BluetoothGatt.GATT_SUCCESS, 0,
+                new byte[]{1, 2, 3});
+        recorder.record(SessionRecorder.RSSI, GattResult.OPERATION_UPDATE_RSSI, null,
+                BluetoothGatt.GATT_SUCCESS, -67, null);
+        recorder.record(SessionRecorder.COMPLETE, GattResult.OPERATION_WRITE, humidity, 5, 1234567890123L, null);
+        // longer than any ATT value
+        recorder.record(SessionRecorder.SEND, GattResult.OPERATION_WRITE, humidity, 0, 0,
+                new byte[SessionRecorder.MAX_VALUE + 10]);
+        recorder.close();
+        // after closing, events are ignored
+        recorder.record(SessionRecorder.RSSI, -1, null, 0, 0, null);
+        assertTrue(recorder.isClosed());
+        assertEquals(4, recorder.getEventCount());
+        assertEquals(1, recorder.getTruncatedCount());
+        assertEquals(0, recorder.getDroppedCount());
+        assertEquals(file.length(), recorder.getByteCount());
+
+        SessionReplay replay = new SessionReplay(file);
+        assertEquals(config.getFieldCount(), replay.getFieldCount());
+        for (int f = 0; f < config.getFieldCount(); f++) {
+            assertEquals(config.getFieldPath(f), replay.getFieldPath(f));
+            assertEquals(config.getFieldUuid(f), replay.getFieldUuid(f));
+        }
+        final byte[] value = new byte[SessionRecorder.MAX_VALUE];
+        final int field = config.indexOfField("sensor/humidity");
+
+        assertTrue(replay.next());
+        assertEquals(SessionRecorder.NOTIFICATION, replay.getType());
+        assertEquals(-1, replay.getOperationType());
+        assertEquals(field, replay.getField());
+        assertEquals(3, replay.getValue(value));
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3}, Arrays.copyOf(value, 3)));
+        final long first = replay.getTimestampNanos();
+
+        assertTrue(replay.next());
+        assertEquals(SessionRecorder.RSSI, replay.getType());
+        assertEquals(-1, replay.getField());
+        assertEquals(-67, replay.getArgument());
+        assertEquals(0, replay.getValueLength());
+        assertTrue(replay.getTimestampNanos() >= first);
+
+        assertTrue(replay.next());
+        assertEquals(SessionRecorder.COMPLETE, replay.getType());
+        assertEquals(GattResult.OPERATION_WRITE, replay.getOperationType());
+        assertEquals(5, replay.getStatus());
+        assertEquals(1234567890123L, replay.getArgument());
+
+        assertTrue(replay.next());
+        assertEquals(SessionRecorder.SEND, replay.getType());
+        assertEquals(SessionRecorder.MAX_VALUE, replay.getValueLength());
+        assertFalse(replay.next());
+
+        // and once more from the start
+        replay.rewind();
+        assertTrue(replay.next());
+        assertEquals(SessionRecorder.NOTIFICATION, replay.getType());
+    }
+
+    public void testSmallBufferAccountsForEveryEvent() throws Exception {
+        final DeviceConfig config = config();
+        final File file = newFile();
+        final BluetoothGattCharacteristic temperature = characteristic(config, "sensor/temperature");
+        final int events = 5000;
+        // room for a few events per buffer, so it is swapped over and over
+        SessionRecorder recorder = new SessionRecorder(file, config,
+                4 * (SessionRecorder.EVENT_HEADER + SessionRecorder.MAX_VALUE));
+        final byte[] value = new byte[2];
+        for (int i = 0; i < events; i++) {
+            value[0] = (byte) i;
+            value[1] = (byte) (i >> 8);
+            recorder.record(SessionRecorder.NOTIFICATION, -1, temperature, 0, i, value);
+        }
+        recorder.close();
+        // the disk may not keep up, but nothing goes missing unaccounted
+        assertEquals(events, recorder.getEventCount() + recorder.getDroppedCount());
+        assertEquals(file.length(), recorder.getByteCount());
+
+        SessionReplay replay = new SessionReplay(file);
+        long previous = -1;
+        int read = 0;
+        while (replay.next()) {
+            // whole events in the order they were recorded
+            assertTrue(replay.getArgument() > previous);
+            replay.getValue(value);
+            assertEquals(replay.getArgument(), (value[0] & 0xff) | (value[1] & 0xff) << 8);
+            previous = replay.getArgument();
+            read++;
+        }
+        assertEquals(recorder.getEventCount(), read);
+    }
+
+    public void testTruncatedLog() throws Exception {
+        final DeviceConfig config = config();
+        final File file = newFile();
+        final BluetoothGattCharacteristic temperature = characteristic(config, "sensor/temperature");
+        SessionRecorder recorder = new SessionRecorder(file, config);
+        for (int i = 0; i < 3; i++)
+            recorder.record(SessionRecorder.READ, GattResult.OPERATION_READ, temperature, 0, i, new byte[]{(byte) i});
+        recorder.close();
+
+        // the last event loses its value
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(file.length() - 1);
+        raf.close();
+        SessionReplay replay = new SessionReplay(file);
+        assertTrue(replay.next());
+        assertTrue(replay.next());
+        assertEquals(1, replay.getArgument());
+        assertFalse(replay.next());
+        assertFalse(replay.next());
+
+        File other = newFile();
+        raf = new RandomAccessFile(other, "rw");
+        raf.writeInt(0x12345678);
+        raf.close();
+        try {
+            new SessionReplay(other);
+            fail("not a session log");
+        } catch (IOException expected) {
+        }
+    }
+
+    private SensorService connect(SimulatedPeripheral peripheral, File recording) throws Exception {
+        SimulatedTransport transport = new SimulatedTransport(11 + mTransports.size());
+        transport.setLatency(2);
+        transport.addPeripheral(peripheral);
+        mTransports.add(transport);
+        BluetoothDevice device = new BluetoothDevice(config(), transport);
+        device.setGattLayoutCache(null);
+        device.setReadCache(null);
+        mDevices.add(device);
+        if (recording != null)
+            device.startRecording(recording);
+        SensorService.sStarted = new CountDownLatch(1);
+        device.connect();
+        assertTrue("driver did not start", SensorService.sStarted.await(10, TimeUnit.SECONDS));
+        SensorService driver = SensorService.sInstance;
+        assertTrue(driver.notifications.get(2, TimeUnit.SECONDS).isSuccess());
+        return driver;
+    }
+
+    public void testReplayIntoDevice() throws Exception {
+        final File file = newFile();
+        final SimulatedPeripheral live = new SimulatedPeripheral(config(), "00:00:00:00:00:01");
+        final SensorService recorded = connect(live, file);
+        for (int i = 1; i <= VALUES; i++) {
+            live.notify("sensor/temperature", new byte[]{(byte) i});
+            // slow enough for the driver to get every one
+            Thread.sleep(10);
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (recorded.temperatures.size() < VALUES && System.nanoTime() < deadline)
+            Thread.sleep(5);
+        assertEquals(VALUES, recorded.temperatures.size());
+        SessionRecorder recorder = mDevices.get(0).stopRecording();
+        assertTrue(recorder.isClosed());
+        assertNull(mDevices.get(0).getRecorder());
+
+        // the log has the notifications and the queue's work around them
+        SessionReplay replay = new SessionReplay(file);
+        final int[] counts = new int[SessionRecorder.EVENT_NAMES.length];
+        while (replay.next())
+            counts[replay.getType()]++;
+        assertEquals(VALUES, counts[SessionRecorder.NOTIFICATION]);
+        assertTrue(counts[SessionRecorder.CONNECTION_STATE] > 0);
+        assertTrue(counts[SessionRecorder.ENQUEUE] > 0);
+        assertEquals(counts[SessionRecorder.DISPATCH], counts[SessionRecorder.COMPLETE]);
+
+        // a peripheral which notifies nothing, the values come from the log
+        final SensorService replayed = connect(new SimulatedPeripheral(config(), "00:00:00:00:00:02"), null);
+        assertNotSame(recorded, replayed);
+        SessionReplay.Result result = replay.replay(mDevices.get(1), 0);
+        assertEquals(VALUES, result.getDispatchedCount());
+        assertEquals(0, result.getSkippedCount());
+        assertEquals(recorded.temperatures, replayed.temperatures);
+
+        // in the recorded timing
+        replayed.temperatures.clear();
+        result = replay.replay(mDevices.get(1), 4);
+        assertEquals(recorded.temperatures, replayed.temperatures);
+        assertTrue(result.toString(), result.getDurationNanos() >= TimeUnit.MILLISECONDS.toNanos(10 * (VALUES - 1) / 4));
+    }
+
+    public void testInvalidSpeed() throws Exception {
+        final DeviceConfig config = config();
+        final File file = newFile();
+        new SessionRecorder(file, config).close();
+        try {
+            new SessionReplay(file).replay(null, -1);
+            fail("negative speed");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
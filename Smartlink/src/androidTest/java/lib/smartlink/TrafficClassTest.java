@@ -0,0 +1,245 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import lib.smartlink.sim.SimulatedPeripheral;
+import lib.smartlink.sim.SimulatedTransport;
+
+/**
+ * Operations queued behind one the stack is busy with: classes go out in priority order and
+ * first in, first out within a class, and a full class rejects or drops according to its
+ * policy without ever dropping what a driver relies on.
+ */
+public class TrafficClassTest extends TestCase {
+    private static final String PLIST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<plist version=\"1.0\"><dict>"
+            + "<key>device name</key><string>traffic class test</string>"
+            + "<key>rssi high</key><integer>0</integer>"
+            + "<key>rssi low</key><integer>-100</integer>"
+            + "<key>Services</key><dict>"
+            + "<key>sensor</key><dict>"
+            + "<key>UUID</key><string>5A0E0000-39C4-4C1E-8E8E-6F1A7C3D2B10</string>"
+            + "<key>Primary</key><true/>"
+            + "<key>DriverClass</key><string>TrafficClassTestService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>blocker</key><string>5A0E0001-39C4-4C1E-8E8E-6F1A7C3D2B10</string>"
+            + "<key>a</key><string>5A0E0002-39C4-4C1E-8E8E-6F1A7C3D2B10</string>"
+            + "<key>b</key><string>5A0E0003-39C4-4C1E-8E8E-6F1A7C3D2B10</string>"
+            + "<key>c</key><string>5A0E0004-39C4-4C1E-8E8E-6F1A7C3D2B10</string>"
+            + "</dict></dict></dict></dict></plist>";
+    // how long the stack takes to answer the operation everything else queues behind
+    private static final long BLOCK_MS = 300;
+    private static final String[] FIELDS = {"blocker", "a", "b", "c"};
+
+    private SimulatedTransport mTransport;
+    private BluetoothDevice mDevice;
+    // names of the operations in the order they completed
+    private final List<String> mCompleted = Collections.synchronizedList(new ArrayList<String>());
+
+    public static class SensorService extends BLEService {
+        static volatile CountDownLatch sStarted;
+
+        @Override
+        protected void attached() {
+            sStarted.countDown();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        DriverRegistry.register("TrafficClassTestService", new DriverRegistry.Factory() {
+            @Override
+            public BLEService create() {
+                return new SensorService();
+            }
+        });
+        SensorService.sStarted = new CountDownLatch(1);
+        mTransport = new SimulatedTransport(8);
+        mTransport.setLatency(2);
+        mTransport.addPeripheral(new SimulatedPeripheral(config(), "00:00:00:00:00:01"));
+
+        mDevice = new BluetoothDevice(config(), mTransport);
+        mDevice.setGattLayoutCache(null);
+        mDevice.setReadCache(null);
+        mDevice.connect();
+        assertTrue("driver did not start", SensorService.sStarted.await(10, TimeUnit.SECONDS));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mDevice.isOperationInFlight() || mDevice.getPendingOperationCount() > 0) {
+            assertTrue("device did not settle", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDevice.disconnect().get(2, TimeUnit.SECONDS);
+        mTransport.shutdown();
+    }
+
+    private static DeviceConfig config() throws Exception {
+        return DeviceConfig.parse(new ByteArrayInputStream(PLIST.getBytes("UTF-8")));
+    }
+
+    private BluetoothGattCharacteristic field(String name) {
+        final int index = Arrays.asList(FIELDS).indexOf(name);
+        return mDevice.characteristicOf(UUID.fromString(
+                "5A0E000" + (index + 1) + "-39C4-4C1E-8E8E-6F1A7C3D2B10"));
+    }
+
+    /**
+     * Keep the stack busy with a slow read, and the command queue's worker waiting to hand it
+     * the next one, so what is queued from then on stays in the queue
+     *
+     * @return future of the second read, which completes after the first
+     */
+    private GattFuture block() throws Exception {
+        mTransport.setLatency(BLOCK_MS);
+        mDevice.enqueueOperation(BluetoothDevice.BleCommand.READ, field("blocker"));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!mDevice.isOperationInFlight()) {
+            assertTrue("blocker was not dispatched", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        final GattFuture waiting = mDevice.enqueueOperation(BluetoothDevice.BleCommand.READ, field("blocker"));
+        while (mDevice.getPendingOperationCount() > 0) {
+            assertTrue("worker did not take the second read", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+        // only the first read is slow
+        mTransport.setLatency(2);
+        return waiting;
+    }
+
+    private GattFuture track(final String name, GattFuture future) {
+        future.addListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(GattResult result) {
+                mCompleted.add(name);
+            }
+        });
+        return future;
+    }
+
+    private GattFuture read(String name) {
+        return track(name, mDevice.enqueueOperation(BluetoothDevice.BleCommand.READ, field(name)));
+    }
+
+    /**
+     * Assert the tracked operations completed in this order. Listeners run after the futures
+     * are done, so give them a moment.
+     */
+    private void assertCompleted(String... names) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (mCompleted.size() < names.length && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertEquals(Arrays.asList(names), new ArrayList<String>(mCompleted));
+    }
+
+    private static GattResult await(GattFuture future) throws Exception {
+        return future.get(4 * BLOCK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void assertSuccess(GattFuture future) throws Exception {
+        GattResult result = await(future);
+        assertTrue(result.toString(), result.isSuccess());
+    }
+
+    private static void assertStatus(int status, GattFuture future) throws Exception {
+        GattResult result = await(future);
+        assertEquals(result.toString(), status, result.getStatus());
+    }
+
+    public void testPriorityAndFifo() throws Exception {
+        mDevice.setTrafficClass(field("c"), TrafficClass.BULK);
+        final GattFuture blocker = block();
+        final GattFuture bulk = track("c", mDevice.enqueueWrite(field("c"), new byte[]{1}));
+        final GattFuture a = read("a");
+        final GattFuture b = read("b");
+        final GattFuture blockerAgain = read("blocker");
+
+        assertSuccess(blocker);
+        assertSuccess(bulk);
+        assertSuccess(a);
+        assertSuccess(b);
+        assertSuccess(blockerAgain);
+        // the bulk write was queued first but is in a lower class, the reads kept their order
+        assertCompleted("a", "b", "blocker", "c");
+    }
+
+    public void testRejectWhenFull() throws Exception {
+        mDevice.setTrafficClassLimit(TrafficClass.DATA, 2, TrafficClass.OVERFLOW_REJECT);
+        final GattFuture blocker = block();
+        final GattFuture a = read("a");
+        final GattFuture b = read("b");
+        final GattFuture c = read("c");
+        // refused right away, the queued ones are kept
+        assertTrue(c.isDone());
+        assertStatus(GattResult.STATUS_REJECTED, c);
+        assertSuccess(blocker);
+        assertSuccess(a);
+        assertSuccess(b);
+        assertEquals(1, mDevice.getPipelineStats().getRejectedCount(TrafficClass.DATA));
+    }
+
+    public void testDropOldestWhenFull() throws Exception {
+        mDevice.setTrafficClassLimit(TrafficClass.DATA, 2, TrafficClass.OVERFLOW_DROP_OLDEST);
+        final GattFuture blocker = block();
+        final GattFuture a = read("a");
+        final GattFuture b = read("b");
+        final GattFuture c = read("c");
+        assertTrue(a.isDone());
+        assertStatus(GattResult.STATUS_DROPPED, a);
+        assertSuccess(blocker);
+        assertSuccess(b);
+        assertSuccess(c);
+        assertCompleted("a", "b", "c");
+        assertEquals(1, mDevice.getPipelineStats().getDroppedCount(TrafficClass.DATA));
+    }
+
+    public void testSetupSurvivesDropOldest() throws Exception {
+        mDevice.setTrafficClassLimit(TrafficClass.DATA, 1, TrafficClass.OVERFLOW_DROP_OLDEST);
+        final GattFuture blocker = block();
+        final GattFuture notify = track("notify",
+                mDevice.enqueueOperation(BluetoothDevice.BleCommand.ENABLE_NOTIFICATION, field("a")));
+        // only notification setup is queued, there is nothing to drop
+        final GattFuture b = read("b");
+        assertStatus(GattResult.STATUS_REJECTED, b);
+
+        // the oldest read goes instead of the older setup
+        mDevice.setTrafficClassLimit(TrafficClass.DATA, 2, TrafficClass.OVERFLOW_DROP_OLDEST);
+        final GattFuture c = read("c");
+        final GattFuture a = read("a");
+        assertStatus(GattResult.STATUS_DROPPED, c);
+
+        assertSuccess(blocker);
+        assertSuccess(notify);
+        assertSuccess(a);
+        assertCompleted("b", "c", "notify", "a");
+    }
+
+    public void testQueuedWriteSurvivesDropOldest() throws Exception {
+        mDevice.setTrafficClassLimit(TrafficClass.DATA, 1, TrafficClass.OVERFLOW_DROP_OLDEST);
+        final GattFuture blocker = block();
+        // a write carrying the latest value of its characteristic is never dropped
+        final GattFuture write = track("c", mDevice.enqueueWrite(field("c"), new byte[]{7}));
+        final GattFuture a = read("a");
+        assertStatus(GattResult.STATUS_REJECTED, a);
+        // newer values still merge into it
+        assertSame(write, mDevice.enqueueWrite(field("c"), new byte[]{8}));
+
+        assertSuccess(blocker);
+        GattResult result = await(write);
+        assertTrue(result.toString(), result.isSuccess());
+        assertTrue(Arrays.equals(new byte[]{8}, result.getValue()));
+    }
+}
@@ -0,0 +1,224 @@
+package lib.smartlink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.TestCase;
+
+/**
+ * Delivery of published values to subscribers which can't keep up: what each mode keeps, how
+ * many values it loses, and that nothing is delivered beyond what was requested.
+ */
+public class ValueStreamTest extends TestCase {
+    private final ValueStream mStream = new ValueStream("sensor/level");
+    private final ManualExecutor mExecutor = new ManualExecutor();
+
+    /**
+     * Runs what it is handed only when told to, so the subscriber falls behind at will
+     */
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+        }
+    }
+
+    private static class Recorder implements ValueStream.Subscriber {
+        final long initialRequest;
+        final List<Integer> values = new ArrayList<Integer>();
+        final List<byte[]> arrays = new ArrayList<byte[]>();
+        ValueStream.Subscription subscription;
+
+        Recorder(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(ValueStream.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0)
+                subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(byte[] value) {
+            values.add((int) value[0]);
+            arrays.add(value);
+        }
+    }
+
+    private void publish(int from, int to) {
+        for (int i = from; i <= to; i++)
+            mStream.publish(new byte[]{(byte) i});
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = from; i <= to; i++)
+            values.add(i);
+        return values;
+    }
+
+    public void testLatestKeepsNewest() {
+        Recorder recorder = new Recorder(0);
+        mStream.subscribe(recorder, ValueStream.LATEST, 1, mExecutor);
+        publish(1, 5);
+        mExecutor.runAll();
+        assertTrue("delivered without demand", recorder.values.isEmpty());
+
+        recorder.subscription.request(1);
+        mExecutor.runAll();
+        assertEquals(range(5, 5), recorder.values);
+        assertEquals(4, recorder.subscription.getDroppedCount());
+    }
+
+    public void testBufferDropsOldest() {
+        Recorder recorder = new Recorder(0);
+        mStream.subscribe(recorder, ValueStream.BUFFER, 3, mExecutor);
+        publish(1, 5);
+        recorder.subscription.request(Long.MAX_VALUE);
+        mExecutor.runAll();
+        assertEquals(range(3, 5), recorder.values);
+        assertEquals(2, recorder.subscription.getDroppedCount());
+    }
+
+    public void testDropKeepsOldest() {
+        Recorder recorder = new Recorder(0);
+        mStream.subscribe(recorder, ValueStream.DROP, 3, mExecutor);
+        publish(1, 5);
+        recorder.subscription.request(Long.MAX_VALUE);
+        mExecutor.runAll();
+        assertEquals(range(1, 3), recorder.values);
+        assertEquals(2, recorder.subscription.getDroppedCount());
+    }
+
+    public void testDemand() {
+        Recorder recorder = new Recorder(2);
+        mStream.subscribe(recorder, ValueStream.BUFFER, 10, mExecutor);
+        publish(1, 5);
+        mExecutor.runAll();
+        assertEquals(range(1, 2), recorder.values);
+
+        recorder.subscription.request(1);
+        mExecutor.runAll();
+        assertEquals(range(1, 3), recorder.values);
+
+        // demand adds up, without overflowing
+        recorder.subscription.request(Long.MAX_VALUE);
+        recorder.subscription.request(Long.MAX_VALUE);
+        mExecutor.runAll();
+        assertEquals(range(1, 5), recorder.values);
+        publish(6, 8);
+        mExecutor.runAll();
+        assertEquals(range(1, 8), recorder.values);
+        assertEquals(0, recorder.subscription.getDroppedCount());
+
+        try {
+            recorder.subscription.request(0);
+            fail("requested nothing");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testOneDrainAtATime() {
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        mStream.subscribe(recorder, ValueStream.BUFFER, 10, mExecutor);
+        publish(1, 5);
+        // everything published while the drain was pending goes out with it
+        assertEquals(1, mExecutor.tasks.size());
+        mExecutor.runAll();
+        assertEquals(range(1, 5), recorder.values);
+    }
+
+    public void testSubscribersShareCopy() {
+        Recorder first = new Recorder(Long.MAX_VALUE);
+        Recorder second = new Recorder(Long.MAX_VALUE);
+        mStream.subscribe(first, ValueStream.BUFFER, 4, mExecutor);
+        mStream.subscribe(second, ValueStream.DROP, 4, mExecutor);
+        assertEquals(2, mStream.getSubscriberCount());
+
+        final byte[] value = {7};
+        mStream.publish(value);
+        // the stack reuses its array
+        value[0] = 8;
+        mExecutor.runAll();
+        assertEquals(range(7, 7), first.values);
+        assertNotSame(value, first.arrays.get(0));
+        assertSame(first.arrays.get(0), second.arrays.get(0));
+    }
+
+    public void testCancel() {
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        mStream.subscribe(recorder, ValueStream.BUFFER, 4, mExecutor);
+        publish(1, 2);
+        recorder.subscription.cancel();
+        assertEquals(0, mStream.getSubscriberCount());
+        mExecutor.runAll();
+        publish(3, 4);
+        mExecutor.runAll();
+        assertTrue(recorder.values.isEmpty());
+
+        // cancelled before it was even added
+        mStream.subscribe(new Recorder(0) {
+            @Override
+            public void onSubscribe(ValueStream.Subscription subscription) {
+                subscription.cancel();
+            }
+        }, ValueStream.LATEST, 1, mExecutor);
+        assertEquals(0, mStream.getSubscriberCount());
+    }
+
+    public void testFailingSubscriberIsCancelled() {
+        Recorder failing = new Recorder(Long.MAX_VALUE) {
+            @Override
+            public void onNext(byte[] value) {
+                super.onNext(value);
+                throw new IllegalStateException("failing on purpose");
+            }
+        };
+        mStream.subscribe(failing, ValueStream.BUFFER, 4, mExecutor);
+        publish(1, 3);
+        mExecutor.runAll();
+        assertEquals(range(1, 1), failing.values);
+        assertEquals(0, mStream.getSubscriberCount());
+
+        // an executor which is gone cancels too
+        mStream.subscribe(new Recorder(1), ValueStream.LATEST, 1, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        });
+        assertEquals(0, mStream.getSubscriberCount());
+    }
+
+    public void testInvalidSubscriptions() {
+        try {
+            mStream.subscribe(new Recorder(0), ValueStream.LATEST, 2, mExecutor);
+            fail("LATEST keeps one value");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mStream.subscribe(new Recorder(0), ValueStream.BUFFER, 0, mExecutor);
+            fail("no room for a value");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mStream.subscribe(new Recorder(0), 3, 1, mExecutor);
+            fail("no such mode");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, mStream.getSubscriberCount());
+    }
+}
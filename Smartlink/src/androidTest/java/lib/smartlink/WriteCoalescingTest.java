@@ -0,0 +1,190 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import lib.smartlink.sim.SimulatedPeripheral;
+import lib.smartlink.sim.SimulatedTransport;
+
+/**
+ * Writes to a characteristic which is still busy: a newer value replaces the queued one instead
+ * of queueing up behind it, and a value the peripheral already has isn't sent again.
+ */
+public class WriteCoalescingTest extends TestCase {
+    private static final String PLIST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<plist version=\"1.0\"><dict>"
+            + "<key>device name</key><string>coalescing test</string>"
+            + "<key>rssi high</key><integer>0</integer>"
+            + "<key>rssi low</key><integer>-100</integer>"
+            + "<key>Services</key><dict>"
+            + "<key>motor</key><dict>"
+            + "<key>UUID</key><string>86C3810E-F171-40D9-A117-26B300768CD6</string>"
+            + "<key>Primary</key><true/>"
+            + "<key>DriverClass</key><string>WriteCoalescingTestService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>speed</key><string>86C3810E-0010-40D9-A117-26B300768CD6</string>"
+            + "<key>mode</key><string>86C3810E-0020-40D9-A117-26B300768CD6</string>"
+            + "</dict></dict></dict></dict></plist>";
+    private static final int WRITES = 100;
+
+    private SimulatedTransport mTransport;
+    private BluetoothDevice mDevice;
+    private MotorService mDriver;
+    // values as they reached the peripheral, per field
+    private final List<Integer> mSpeeds = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<Integer> mModes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    public static class MotorService extends BLEService {
+        static volatile CountDownLatch sStarted;
+        static volatile MotorService sInstance;
+        FieldHandle speed;
+
+        @Override
+        protected void attached() {
+            speed = field("speed", BluetoothGattCharacteristic.FORMAT_UINT16);
+            sInstance = this;
+            sStarted.countDown();
+        }
+
+        GattFuture write(String field, int value) {
+            return writeBytes(new byte[]{(byte) value, (byte) (value >> 8)}, field);
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        DriverRegistry.register("WriteCoalescingTestService", new DriverRegistry.Factory() {
+            @Override
+            public BLEService create() {
+                return new MotorService();
+            }
+        });
+        MotorService.sStarted = new CountDownLatch(1);
+        mTransport = new SimulatedTransport(7);
+        // slow enough that the writes below pile up behind the one in flight
+        mTransport.setLatency(20);
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(config(), "00:00:00:00:00:01");
+        peripheral.setWriteHandler("motor/speed", new Recorder(mSpeeds));
+        peripheral.setWriteHandler("motor/mode", new Recorder(mModes));
+        mTransport.addPeripheral(peripheral);
+
+        mDevice = new BluetoothDevice(config(), mTransport);
+        mDevice.setGattLayoutCache(null);
+        mDevice.setReadCache(null);
+        mDevice.connect();
+        assertTrue("driver did not start", MotorService.sStarted.await(10, TimeUnit.SECONDS));
+        mDriver = MotorService.sInstance;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDevice.disconnect().get(2, TimeUnit.SECONDS);
+        mTransport.shutdown();
+    }
+
+    private static DeviceConfig config() throws Exception {
+        return DeviceConfig.parse(new ByteArrayInputStream(PLIST.getBytes("UTF-8")));
+    }
+
+    private static class Recorder implements SimulatedPeripheral.WriteHandler {
+        private final List<Integer> mValues;
+
+        Recorder(List<Integer> values) {
+            mValues = values;
+        }
+
+        @Override
+        public void onWrite(SimulatedPeripheral p, String field, byte[] value) {
+            mValues.add((value[0] & 0xff) | (value[1] & 0xff) << 8);
+        }
+    }
+
+    private static void assertWritten(GattFuture future) throws Exception {
+        GattResult result = future.get(2, TimeUnit.SECONDS);
+        assertTrue(result.toString(), result.isSuccess());
+    }
+
+    /**
+     * @return how many different futures there are among <code>futures</code>
+     */
+    private static int distinct(List<GattFuture> futures) {
+        Map<GattFuture, Boolean> seen = new IdentityHashMap<GattFuture, Boolean>();
+        for (GattFuture f : futures)
+            seen.put(f, Boolean.TRUE);
+        return seen.size();
+    }
+
+    public void testQueuedWritesCoalesce() throws Exception {
+        List<GattFuture> futures = new ArrayList<GattFuture>(WRITES);
+        for (int value = 1; value <= WRITES; value++)
+            futures.add(mDriver.write("speed", value));
+        for (GattFuture future : futures)
+            assertWritten(future);
+
+        // one write went out right away, the rest merged into the one queued behind it
+        assertTrue(mSpeeds.toString(), mSpeeds.size() <= 3);
+        assertTrue(futures.toString(), distinct(futures) <= 3);
+        assertEquals(WRITES, (int) mSpeeds.get(mSpeeds.size() - 1));
+    }
+
+    public void testAcknowledgedValueIsNotWrittenAgain() throws Exception {
+        assertWritten(mDriver.write("speed", 5));
+        assertEquals(1, mSpeeds.size());
+
+        // the peripheral confirmed this value, so there is nothing to send
+        GattFuture again = mDriver.write("speed", 5);
+        assertTrue(again.isDone());
+        assertWritten(again);
+        assertEquals(1, mSpeeds.size());
+
+        assertWritten(mDriver.write("speed", 6));
+        assertEquals(2, mSpeeds.size());
+        assertEquals(6, (int) mSpeeds.get(1));
+    }
+
+    public void testFieldsAreNotMerged() throws Exception {
+        List<GattFuture> futures = new ArrayList<GattFuture>(2 * WRITES);
+        for (int value = 1; value <= WRITES; value++) {
+            futures.add(mDriver.write("speed", value));
+            futures.add(mDriver.write("mode", 1000 + value));
+        }
+        for (GattFuture future : futures)
+            assertWritten(future);
+
+        // each field kept its own newest value
+        assertEquals(WRITES, (int) mSpeeds.get(mSpeeds.size() - 1));
+        assertEquals(1000 + WRITES, (int) mModes.get(mModes.size() - 1));
+        assertTrue(mModes.toString(), mModes.size() <= 3);
+    }
+
+    public void testFieldHandleWritesCoalesce() throws Exception {
+        List<GattFuture> futures = new ArrayList<GattFuture>(WRITES);
+        for (int value = 1; value <= WRITES; value++)
+            futures.add(mDriver.speed.setInt(value * 300));
+        for (GattFuture future : futures)
+            assertWritten(future);
+
+        assertTrue(mSpeeds.toString(), mSpeeds.size() <= 3);
+        // the value encoded into the queued write in place is the one which went out
+        assertEquals(WRITES * 300, (int) mSpeeds.get(mSpeeds.size() - 1));
+
+        // raw and typed writes of the field merge into the same queued write
+        mSpeeds.clear();
+        GattFuture typed = mDriver.speed.setInt(1);
+        GattFuture raw = mDriver.write("speed", 2);
+        GattFuture last = mDriver.speed.setInt(3);
+        assertWritten(typed);
+        assertWritten(raw);
+        assertWritten(last);
+        assertEquals(3, (int) mSpeeds.get(mSpeeds.size() - 1));
+    }
+}
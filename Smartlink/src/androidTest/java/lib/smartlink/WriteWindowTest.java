@@ -0,0 +1,160 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import lib.smartlink.sim.SimulatedPeripheral;
+import lib.smartlink.sim.SimulatedTransport;
+
+/**
+ * Writes without response through the credit window, against a simulated stack which only
+ * buffers a few of them: the window settles below what the stack holds instead of running
+ * into it over and over, and opens up again once the stack has room.
+ */
+public class WriteWindowTest extends TestCase {
+    private static final String PLIST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<plist version=\"1.0\"><dict>"
+            + "<key>device name</key><string>window test</string>"
+            + "<key>rssi high</key><integer>0</integer>"
+            + "<key>rssi low</key><integer>-100</integer>"
+            + "<key>Services</key><dict>"
+            + "<key>stream</key><dict>"
+            + "<key>UUID</key><string>75B64E51-F181-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>Primary</key><true/>"
+            + "<key>DriverClass</key><string>WriteWindowTestService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>data</key><string>75B64E51-F184-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "</dict></dict></dict></dict></plist>";
+    private static final int STACK_BUFFER = 2;
+    private static final int MAX_WINDOW = 8;
+    // futures kept outstanding, more than the window so it is always the limit
+    private static final int BACKLOG = 12;
+
+    private SimulatedTransport mTransport;
+    private BluetoothDevice mDevice;
+    private StreamService mDriver;
+    // values as they reached the peripheral
+    private final List<Integer> mReceived = Collections.synchronizedList(new ArrayList<Integer>());
+
+    public static class StreamService extends BLEService {
+        static volatile CountDownLatch sStarted;
+        static volatile StreamService sInstance;
+
+        @Override
+        protected void attached() {
+            setWriteNeedsResponse(false, "data");
+            // bulk writes are neither coalesced nor dropped, every one has to arrive
+            setTrafficClass("data", TrafficClass.BULK);
+            sInstance = this;
+            sStarted.countDown();
+        }
+
+        GattFuture write(int value) {
+            return writeBytes(new byte[]{(byte) value, (byte) (value >> 8)}, "data");
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        DriverRegistry.register("WriteWindowTestService", new DriverRegistry.Factory() {
+            @Override
+            public BLEService create() {
+                return new StreamService();
+            }
+        });
+        StreamService.sStarted = new CountDownLatch(1);
+        mTransport = new SimulatedTransport(6);
+        mTransport.setLatency(2);
+        mTransport.setWriteBufferSize(STACK_BUFFER);
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(config(), "00:00:00:00:00:01");
+        peripheral.setWriteHandler("stream/data", new SimulatedPeripheral.WriteHandler() {
+            @Override
+            public void onWrite(SimulatedPeripheral p, String field, byte[] value) {
+                mReceived.add((value[0] & 0xff) | (value[1] & 0xff) << 8);
+            }
+        });
+        mTransport.addPeripheral(peripheral);
+
+        mDevice = new BluetoothDevice(config(), mTransport);
+        mDevice.setGattLayoutCache(null);
+        mDevice.setReadCache(null);
+        mDevice.getWriteWindow().setMaxWindow(MAX_WINDOW);
+        mDevice.connect();
+        assertTrue("driver did not start", StreamService.sStarted.await(10, TimeUnit.SECONDS));
+        mDriver = StreamService.sInstance;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDevice.disconnect().get(2, TimeUnit.SECONDS);
+        mTransport.shutdown();
+    }
+
+    private static DeviceConfig config() throws Exception {
+        return DeviceConfig.parse(new ByteArrayInputStream(PLIST.getBytes("UTF-8")));
+    }
+
+    /**
+     * Write <code>count</code> values starting at <code>first</code>, keeping the window busy
+     *
+     * @return the largest window seen meanwhile
+     */
+    private int stream(int first, int count) throws Exception {
+        final WriteWindow window = mDevice.getWriteWindow();
+        final ArrayDeque<GattFuture> outstanding = new ArrayDeque<GattFuture>(BACKLOG);
+        int peak = 0;
+        for (int value = first; value < first + count; value++) {
+            if (outstanding.size() == BACKLOG)
+                assertWritten(outstanding.poll());
+            outstanding.add(mDriver.write(value));
+            peak = Math.max(peak, window.getWindow());
+        }
+        while (!outstanding.isEmpty())
+            assertWritten(outstanding.poll());
+        return peak;
+    }
+
+    private static void assertWritten(GattFuture future) throws Exception {
+        GattResult result = future.get(2, TimeUnit.SECONDS);
+        assertEquals(result.toString(), BluetoothGatt.GATT_SUCCESS, result.getStatus());
+    }
+
+    public void testWindowSettlesBelowStackBuffer() throws Exception {
+        final WriteWindow window = mDevice.getWriteWindow();
+        final int writes = 400;
+        stream(0, writes);
+
+        // every value arrived once and in order, nothing was lost to a full stack
+        assertEquals(writes, mReceived.size());
+        for (int i = 0; i < writes; i++)
+            assertEquals(i, (int) mReceived.get(i));
+        assertEquals(0, window.getLostCount());
+        // the stack refused a write now and then to say it was full, the window doesn't keep
+        // running into it
+        assertTrue(window.toString(), window.getCongestionCount() > 0);
+        assertTrue(window.toString(), window.getCongestionCount() < writes / 20);
+        // at most one beyond while probing for more room
+        assertTrue(window.toString(), window.getWindow() <= STACK_BUFFER + 1);
+    }
+
+    public void testWindowGrowsBackWhenStackHasRoom() throws Exception {
+        final WriteWindow window = mDevice.getWriteWindow();
+        stream(0, 200);
+        assertTrue(window.toString(), window.getWindow() <= STACK_BUFFER + 1);
+
+        mTransport.setWriteBufferSize(MAX_WINDOW);
+        final long congestions = window.getCongestionCount();
+        final int peak = stream(200, 400);
+        assertTrue(window.toString(), peak > STACK_BUFFER + 1);
+        assertEquals(600, mReceived.size());
+        assertTrue(window.toString(), window.getCongestionCount() - congestions < 400 / 20);
+    }
+}
@@ -0,0 +1,159 @@
+package lib.smartlink.sim;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lib.smartlink.ConcurrentDataPool;
+import lib.smartlink.DataPool;
+
+/**
+ * Posting to a smoothing pool on producer threads while the command queue fetches the average,
+ * as a {@link lib.smartlink.ControlChannel} does: ns per post and per fetch with producers and
+ * a reader going flat out. Compares the {@link DataPool} on its own, as the drivers used it
+ * before, a DataPool behind a lock and both {@link ConcurrentDataPool}s. Whether the pools
+ * return consistent windows under load is checked by ConcurrentDataPoolTest.
+ * <p/>
+ * Usage: <code>DataPoolBenchmark [size] [measureMs] [producers]</code>
+ */
+public class DataPoolBenchmark {
+    private interface Pool {
+        void postData(int data);
+
+        int fetchData();
+    }
+
+    private static final class Result {
+        long posts;
+        long fetches;
+        long nanos;
+    }
+
+    private final int mSize;
+    private final long mMeasureNanos;
+    private final int mProducers;
+    private final PrintStream mOut;
+    // the averages fetched go here, so fetching them can't be optimized away
+    private volatile int mSink;
+
+    public DataPoolBenchmark(int size, long measureMs, int producers, PrintStream out) {
+        mSize = size;
+        mMeasureNanos = measureMs * 1000000L;
+        mProducers = producers;
+        mOut = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long ms = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        new DataPoolBenchmark(size, ms, producers, System.out).runAll();
+    }
+
+    public void runAll() throws Exception {
+        mOut.println(String.format(Locale.US, "size %d, %d ms, %d producers", mSize,
+                mMeasureNanos / 1000000, mProducers));
+        for (int pass = 0; pass < 2; pass++) {
+            final String suffix = pass == 0 ? " (warmup)" : "";
+            for (String name : new String[]{"unsynchronized", "locked", "single writer", "multi writer"}) {
+                print(name + suffix, 1, run(create(name), 1));
+                if (!name.equals("single writer"))
+                    print(name + suffix, mProducers, run(create(name), mProducers));
+            }
+        }
+    }
+
+    private Pool create(String name) {
+        if (name.equals("unsynchronized")) {
+            final DataPool pool = new DataPool(mSize);
+            return new Pool() {
+                public void postData(int data) {
+                    pool.postData(data);
+                }
+
+                public int fetchData() {
+                    return pool.fetchData();
+                }
+            };
+        } else if (name.equals("locked")) {
+            final DataPool pool = new DataPool(mSize);
+            return new Pool() {
+                public synchronized void postData(int data) {
+                    pool.postData(data);
+                }
+
+                public synchronized int fetchData() {
+                    return pool.fetchData();
+                }
+            };
+        }
+        final ConcurrentDataPool pool = name.equals("single writer")
+                ? ConcurrentDataPool.singleWriter(mSize) : ConcurrentDataPool.multiWriter(mSize);
+        return new Pool() {
+            public void postData(int data) {
+                pool.postData(data);
+            }
+
+            public int fetchData() {
+                return pool.fetchData();
+            }
+        };
+    }
+
+    /**
+     * Producers post and one reader fetches, all as fast as they can
+     */
+    private Result run(final Pool pool, final int producers) throws InterruptedException {
+        final Result result = new Result();
+        final AtomicLong posts = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] deadline = new long[1];
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int seed = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long n = 0;
+                    int value = seed;
+                    while ((n & 255) != 0 || System.nanoTime() < deadline[0]) {
+                        pool.postData(value = value * 1103515245 + 12345);
+                        n++;
+                    }
+                    posts.addAndGet(n);
+                }
+            }, "producer-" + p);
+            threads[p].start();
+        }
+
+        long fetches = 0;
+        int sink = 0;
+        final long t0 = System.nanoTime();
+        deadline[0] = t0 + mMeasureNanos;
+        start.countDown();
+        while (System.nanoTime() < deadline[0]) {
+            for (int i = 0; i < 256; i++)
+                sink += pool.fetchData();
+            fetches += 256;
+        }
+        for (Thread thread : threads)
+            thread.join();
+        result.nanos = System.nanoTime() - t0;
+        result.posts = posts.get();
+        result.fetches = fetches;
+        mSink = sink;
+        return result;
+    }
+
+    private void print(String name, int producers, Result r) {
+        mOut.println(String.format(Locale.US, "%-26s %d producer%s %7.1f ns/post %7.1f ns/fetch",
+                name, producers, producers == 1 ? " " : "s", r.nanos * (double) producers / r.posts,
+                r.nanos / (double) r.fetches));
+    }
+}
@@ -0,0 +1,93 @@
+package lib.smartlink.sim;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Random;
+
+import lib.smartlink.ControlFilter;
+import lib.smartlink.FilterPipeline;
+
+/**
+ * Throughput of each {@link ControlFilter} stage, and what it does to jittery control input:
+ * a stick moved slowly back and forth, sampled at 1 kHz, with a few units of noise and an
+ * occasional spike, like touch or tilt input. Per stage:
+ * <ul>
+ * <li>samples per second through the stage</li>
+ * <li>changes of the output per 1000 samples, each one a write a control channel would
+ * queue</li>
+ * <li>mean distance of the output from the stick without noise, how much the stage costs in
+ * precision and latency</li>
+ * </ul>
+ * Usage: <code>FilterBenchmark [samples]</code>
+ */
+public class FilterBenchmark {
+    private static final long SAMPLE_INTERVAL_NANOS = 1000000L; // 1 kHz
+
+    private final int mSamples;
+    private final PrintStream mOut;
+    private final int[] mClean;
+    private final int[] mInput;
+
+    public FilterBenchmark(int samples, PrintStream out) {
+        mSamples = samples;
+        mOut = out;
+        mClean = new int[samples];
+        mInput = new int[samples];
+        final Random random = new Random(42);
+        for (int i = 0; i < samples; i++) {
+            // full throttle and back every 4 s
+            mClean[i] = (int) Math.round(127.5 - 127.5 * Math.cos(2 * Math.PI * i / 4000.0));
+            int noisy = mClean[i] + random.nextInt(7) - 3;
+            if (random.nextInt(200) == 0)
+                noisy += random.nextBoolean() ? 40 : -40;
+            mInput[i] = Math.max(0, Math.min(255, noisy));
+        }
+    }
+
+    public static void main(String[] args) {
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        new FilterBenchmark(samples, System.out).runAll();
+    }
+
+    public void runAll() {
+        final ControlFilter[][] pipelines = {
+                {},
+                {ControlFilter.timeAverage(20)},
+                {ControlFilter.ema(10)},
+                {ControlFilter.median(5)},
+                {ControlFilter.slewRate(500)},
+                {ControlFilter.deadband(0, 4)},
+                {ControlFilter.changeThreshold(4, 30)},
+                // what a touch driven channel might use
+                {ControlFilter.median(3), ControlFilter.deadband(0, 4), ControlFilter.changeThreshold(4, 30)},
+        };
+        for (int pass = 0; pass < 2; pass++) {
+            for (ControlFilter[] filters : pipelines)
+                run(filters, pass == 0);
+        }
+    }
+
+    private void run(ControlFilter[] filters, boolean warmup) {
+        final FilterPipeline pipeline = new FilterPipeline(filters);
+        long changes = 0;
+        long error = 0;
+        int last = Integer.MIN_VALUE;
+        final long t0 = System.nanoTime();
+        for (int i = 0; i < mSamples; i++) {
+            final int out = pipeline.filter(mInput[i], i * SAMPLE_INTERVAL_NANOS);
+            if (out != last) {
+                changes++;
+                last = out;
+            }
+            error += Math.abs(out - mClean[i]);
+        }
+        final long nanos = System.nanoTime() - t0;
+        if (warmup)
+            return;
+        String name = filters.length == 0 ? "none" : "";
+        for (ControlFilter filter : filters)
+            name += (name.length() == 0 ? "" : " + ") + filter;
+        mOut.println(String.format(Locale.US, "%-52s %6.1f M samples/s %6.1f writes/1000 %5.2f mean error",
+                name, mSamples / (nanos / 1e3), changes * 1000.0 / mSamples, error / (double) mSamples));
+    }
+}
@@ -0,0 +1,469 @@
+package lib.smartlink.sim;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.io.ByteArrayInputStream;
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import lib.smartlink.BLEService;
+import lib.smartlink.BluetoothDevice;
+import lib.smartlink.GattFuture;
+import lib.smartlink.GattResult;
+import lib.smartlink.driver.BLESmartplaneService;
+
+/**
+ * Benchmarks of the command queue against a {@link SimulatedTransport}: the full path from
+ * enqueueOperation through the queue thread, the stack and its callback back to the
+ * semaphore. Every benchmark runs a warmup iteration, then measures for a fixed time.
+ * <ul>
+ * <li><b>read</b>: reads kept <code>window</code> deep, operations per second and enqueue to
+ * dispatch / enqueue to complete latency percentiles</li>
+ * <li><b>write</b>: writes with response from <code>producers</code> threads at once</li>
+ * <li><b>control</b>: <code>producers</code> threads calling
+ * {@link BLESmartplaneService#setMotor(short)} every <code>producerIntervalUs</code>, like
+ * touch events, how many values reach the plane and how old they are when they arrive</li>
+ * <li><b>notify</b>: notifications handed to the device as the stack would, how many a second
+ * it dispatches to the driver, without the simulator's own cost</li>
+ * </ul>
+ * Allocation is measured per operation across all threads where the JVM can count it
+ * (HotSpot), it is reported as n/a otherwise.
+ * <p/>
+ * Usage: <code>QueueBenchmark [latencyMs] [measureSeconds] [producers] [window]
+ * [producerIntervalUs]</code>, all optional, 0 ms latency by default so the library is the
+ * bottleneck.
+ */
+public class QueueBenchmark {
+    private static final String ADDRESS = "00:00:00:00:00:01";
+    private static final String PLIST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<plist version=\"1.0\"><dict>"
+            + "<key>device name</key><string>benchmark</string>"
+            + "<key>rssi high</key><integer>0</integer>"
+            + "<key>rssi low</key><integer>-100</integer>"
+            + "<key>Services</key><dict>"
+            + "<key>smartplane</key><dict>"
+            + "<key>UUID</key><string>75B64E51-F181-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>Primary</key><true/>"
+            + "<key>DriverClass</key><string>BLESmartplaneService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>engine</key><string>75B64E51-F184-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>rudder</key><string>75B64E51-F185-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>chargestatus</key><string>75B64E51-F188-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "</dict></dict></dict></dict></plist>";
+
+    private final long mLatencyMs;
+    private final long mMeasureNanos;
+    private final int mProducers;
+    private final int mWindow;
+    private final long mProducerIntervalNanos;
+    private final PrintStream mOut;
+
+    private SimulatedTransport mTransport;
+    private SimulatedPeripheral mPeripheral;
+    private BluetoothDevice mDevice;
+    private BLESmartplaneService mPlane;
+    private BenchService mBench;
+
+    public QueueBenchmark(long latencyMs, long measureSeconds, int producers, int window,
+                          long producerIntervalUs, PrintStream out) {
+        mLatencyMs = latencyMs;
+        mMeasureNanos = TimeUnit.SECONDS.toNanos(measureSeconds);
+        mProducers = producers;
+        mWindow = window;
+        mProducerIntervalNanos = TimeUnit.MICROSECONDS.toNanos(producerIntervalUs);
+        mOut = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long latencyMs = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+        int producers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        long intervalUs = args.length > 4 ? Long.parseLong(args[4]) : 1000;
+        new QueueBenchmark(latencyMs, seconds, producers, window, intervalUs, System.out).runAll();
+    }
+
+    /**
+     * Connect to a fresh simulated plane and run all benchmarks
+     */
+    public void runAll() throws Exception {
+        setUp();
+        try {
+            mOut.println(String.format(Locale.US, "latency %d ms, %d producers every %d us, window %d",
+                    mLatencyMs, mProducers, mProducerIntervalNanos / 1000, mWindow));
+            read(mMeasureNanos / 5).print("read (warmup)", mOut);
+            read(mMeasureNanos).print("read", mOut);
+            write(mMeasureNanos / 5).print("write (warmup)", mOut);
+            write(mMeasureNanos).print("write", mOut);
+            control(mMeasureNanos / 5).print("control (warmup)", mOut);
+            control(mMeasureNanos).print("control", mOut);
+            notifications(mMeasureNanos / 5).print("notify (warmup)", mOut);
+            notifications(mMeasureNanos).print("notify", mOut);
+            mOut.println("      pacer " + mDevice.getWritePacer());
+            mOut.println("      " + mDevice.getPipelineStats());
+        } finally {
+            mDevice.disconnect().get(5, TimeUnit.SECONDS);
+            mTransport.shutdown();
+        }
+    }
+
+    private void setUp() throws Exception {
+        mTransport = new SimulatedTransport(42);
+        mTransport.setLatency(mLatencyMs);
+        // slow enough that the device is connected before the next advertisement
+        mTransport.setAdvertisingInterval(1000);
+        mPeripheral = new SimulatedPeripheral(new ByteArrayInputStream(PLIST.getBytes("UTF-8")), ADDRESS);
+        mPeripheral.setValue("smartplane/chargestatus", new byte[]{1});
+        mTransport.addPeripheral(mPeripheral);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        mDevice = new BluetoothDevice(new ByteArrayInputStream(PLIST.getBytes("UTF-8")), mTransport);
+        final BluetoothDevice.Delegate delegate = new BluetoothDevice.Delegate() {
+            @Override
+            public void didStartService(BluetoothDevice device, String serviceName, BLEService service) {
+                if (service instanceof BLESmartplaneService) {
+                    mPlane = (BLESmartplaneService) service;
+                    started.countDown();
+                }
+            }
+
+            @Override
+            public void didUpdateSignalStrength(BluetoothDevice device, float signalStrength) {
+            }
+
+            @Override
+            public void didStartScanning(BluetoothDevice device) {
+            }
+
+            @Override
+            public void didStartConnectingTo(BluetoothDevice device, float signalStrength) {
+            }
+
+            @Override
+            public void didDisconnect(BluetoothDevice device) {
+            }
+
+            @Override
+            public void didConnect(BluetoothDevice device) {
+            }
+        };
+        mDevice.delegate = new WeakReference<BluetoothDevice.Delegate>(delegate);
+        mDevice.connect();
+        if (!started.await(10, TimeUnit.SECONDS))
+            throw new IllegalStateException("simulated plane did not connect");
+        mPlane.delegate = new WeakReference<BLESmartplaneService.Delegate>(null);
+
+        // a second driver on the same characteristics, to get at the futures
+        HashMap<String, BluetoothGattCharacteristic> fields = new HashMap<String, BluetoothGattCharacteristic>();
+        for (BluetoothGattService service : mPeripheral.getConnection().getServices()) {
+            for (BluetoothGattCharacteristic c : service.getCharacteristics()) {
+                String name = mPeripheral.nameOf(c.getUuid());
+                fields.put(name.substring(name.indexOf('/') + 1), c);
+            }
+        }
+        mBench = new BenchService();
+        mBench.attach(null, fields, mDevice);
+    }
+
+    /**
+     * Reads, <code>window</code> outstanding at any time
+     */
+    Result read(long durationNanos) throws Exception {
+        Recorder recorder = new Recorder();
+        final long allocated = Allocation.total();
+        final long start = System.nanoTime();
+        ArrayDeque<GattFuture> outstanding = new ArrayDeque<GattFuture>(mWindow);
+        while (System.nanoTime() - start < durationNanos) {
+            while (outstanding.size() < mWindow)
+                outstanding.add(mBench.read());
+            recorder.add(outstanding.poll().get());
+        }
+        while (!outstanding.isEmpty())
+            recorder.add(outstanding.poll().get());
+        return recorder.finish(System.nanoTime() - start, Allocation.since(allocated));
+    }
+
+    /**
+     * Writes with response from several threads, each keeping its share of the window busy
+     */
+    Result write(final long durationNanos) throws Exception {
+        final Recorder recorder = new Recorder();
+        final int perProducer = Math.max(1, mWindow / mProducers);
+        final long allocated = Allocation.total();
+        final long start = System.nanoTime();
+        Thread[] producers = new Thread[mProducers];
+        for (int p = 0; p < mProducers; p++) {
+            final byte id = (byte) p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ArrayDeque<GattFuture> outstanding = new ArrayDeque<GattFuture>(perProducer);
+                    byte[] value = new byte[]{id, 0};
+                    try {
+                        while (System.nanoTime() - start < durationNanos) {
+                            while (outstanding.size() < perProducer) {
+                                value[1]++;
+                                outstanding.add(mBench.write(value));
+                            }
+                            recorder.add(outstanding.poll().get());
+                        }
+                        while (!outstanding.isEmpty())
+                            recorder.add(outstanding.poll().get());
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, "benchmark-producer-" + p);
+            producers[p].start();
+        }
+        for (Thread producer : producers)
+            producer.join();
+        return recorder.finish(System.nanoTime() - start, Allocation.since(allocated));
+    }
+
+    /**
+     * setMotor() from several threads without pause. Every call posts a new value; the result
+     * counts values that reached the plane and how long after they were posted.
+     */
+    Result control(final long durationNanos) throws Exception {
+        final Recorder recorder = new Recorder();
+        // post time of each engine value, values cycle through 1..254
+        final AtomicLongArray postedAt = new AtomicLongArray(256);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong calls = new AtomicLong();
+        mPeripheral.setWriteHandler("smartplane/engine", new SimulatedPeripheral.WriteHandler() {
+            @Override
+            public void onWrite(SimulatedPeripheral peripheral, String field, byte[] value) {
+                final long posted = postedAt.get(value[0] & 0xff);
+                if (posted != 0)
+                    recorder.add(System.nanoTime() - posted);
+            }
+        });
+        final long allocated = Allocation.total();
+        final long start = System.nanoTime();
+        Thread[] producers = new Thread[mProducers];
+        for (int p = 0; p < mProducers; p++) {
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long n = 0;
+                    while (System.nanoTime() - start < durationNanos) {
+                        final int value = 1 + (next.getAndIncrement() & 0x7fffffff) % 254;
+                        postedAt.set(value, System.nanoTime());
+                        synchronized (mPlane) { // like the UI thread, the driver is not thread safe
+                            mPlane.setMotor((short) value);
+                        }
+                        n++;
+                        if (mProducerIntervalNanos > 0)
+                            LockSupport.parkNanos(mProducerIntervalNanos);
+                    }
+                    calls.addAndGet(n);
+                }
+            }, "benchmark-producer-" + p);
+            producers[p].start();
+        }
+        for (Thread producer : producers)
+            producer.join();
+        Thread.sleep(Math.max(100, 10 * mLatencyMs)); // let the last value land
+        mPeripheral.setWriteHandler("smartplane/engine", null);
+        Result result = recorder.finish(System.nanoTime() - start, Allocation.since(allocated));
+        result.calls = calls.get();
+        return result;
+    }
+
+    /**
+     * Notifications of the charge status, dispatched to the plane driver on this thread
+     */
+    Result notifications(long durationNanos) throws Exception {
+        final int batch = 1024;
+        final BluetoothGattCharacteristic c = mBench.chargeStatus();
+        final SimulatedTransport.SimConnection connection = mPeripheral.getConnection();
+        final long allocated = Allocation.total();
+        final long start = System.nanoTime();
+        long n = 0;
+        while (System.nanoTime() - start < durationNanos) {
+            for (int i = 0; i < batch; i++)
+                mDevice.onCharacteristicChanged(connection, c);
+            n += batch;
+        }
+        Result result = new Result();
+        result.elapsedNanos = System.nanoTime() - start;
+        result.allocatedBytes = Allocation.since(allocated);
+        result.ops = n;
+        return result;
+    }
+
+    /**
+     * Driver on the benchmark characteristics, the queue sees it like any other driver
+     */
+    private static class BenchService extends BLEService {
+        @Override
+        protected void attached() {
+        }
+
+        GattFuture read() {
+            return updateField("chargestatus");
+        }
+
+        GattFuture write(byte[] value) {
+            return writeBytes(value, "chargestatus");
+        }
+
+        BluetoothGattCharacteristic chargeStatus() {
+            return getField(fieldIndex("chargestatus"));
+        }
+    }
+
+    /**
+     * Collects latencies, safe to use from several threads
+     */
+    private static class Recorder {
+        private long[] mQueue = new long[1 << 16];
+        private long[] mTotal = new long[1 << 16];
+        private int mCount;
+        private int mFailed;
+
+        synchronized void add(GattResult result) {
+            if (!result.isSuccess()) {
+                mFailed++;
+                return;
+            }
+            grow();
+            mQueue[mCount] = result.getDispatchNanos() - result.getEnqueueNanos();
+            mTotal[mCount] = result.getCompleteNanos() - result.getEnqueueNanos();
+            mCount++;
+        }
+
+        synchronized void add(long totalNanos) {
+            grow();
+            mQueue[mCount] = -1;
+            mTotal[mCount] = totalNanos;
+            mCount++;
+        }
+
+        private void grow() {
+            if (mCount == mTotal.length) {
+                mQueue = Arrays.copyOf(mQueue, mCount * 2);
+                mTotal = Arrays.copyOf(mTotal, mCount * 2);
+            }
+        }
+
+        synchronized Result finish(long elapsedNanos, long allocatedBytes) {
+            Result result = new Result();
+            result.ops = mCount;
+            result.failed = mFailed;
+            result.elapsedNanos = elapsedNanos;
+            result.allocatedBytes = allocatedBytes;
+            long[] queue = Arrays.copyOf(mQueue, mCount);
+            long[] total = Arrays.copyOf(mTotal, mCount);
+            Arrays.sort(queue);
+            Arrays.sort(total);
+            result.queue = queue.length > 0 && queue[0] >= 0 ? queue : null;
+            result.total = total;
+            return result;
+        }
+    }
+
+    static class Result {
+        long ops;
+        long failed;
+        long calls;
+        long elapsedNanos;
+        long allocatedBytes;
+        long[] queue;
+        long[] total;
+
+        double opsPerSecond() {
+            return ops * 1e9 / elapsedNanos;
+        }
+
+        void print(String name, PrintStream out) {
+            StringBuilder line = new StringBuilder();
+            line.append(String.format(Locale.US, "%-18s %10.1f ops/s", name, opsPerSecond()));
+            if (failed > 0)
+                line.append(", ").append(failed).append(" failed");
+            if (calls > 0)
+                line.append(String.format(Locale.US, ", %d calls (%.1f per write)", calls, (double) calls / Math.max(1, ops)));
+            if (queue != null)
+                line.append("\n      enqueue->dispatch ").append(percentiles(queue));
+            if (total != null)
+                line.append(queue != null ? "\n      enqueue->complete " : "\n      post->peripheral  ").append(percentiles(total));
+            line.append("\n      allocation        ").append(allocatedBytes < 0 ? "n/a"
+                    : String.format(Locale.US, "%.0f B/op", allocatedBytes / (double) Math.max(1, calls > 0 ? calls : ops)));
+            out.println(line);
+        }
+
+        private static String percentiles(long[] sorted) {
+            if (sorted.length == 0)
+                return "-";
+            return String.format(Locale.US, "p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f ms",
+                    at(sorted, 0.5), at(sorted, 0.9), at(sorted, 0.99), at(sorted, 0.999),
+                    sorted[sorted.length - 1] / 1e6);
+        }
+
+        private static double at(long[] sorted, double quantile) {
+            return sorted[(int) Math.min(sorted.length - 1, Math.floor(quantile * sorted.length))] / 1e6;
+        }
+    }
+
+    /**
+     * Bytes allocated by all threads, through HotSpot's ThreadMXBean. Looked up reflectively
+     * since java.lang.management does not exist on Android.
+     */
+    static class Allocation {
+        private static final Object sBean;
+        private static final Method sAllThreadIds;
+        private static final Method sAllocatedBytes;
+
+        static {
+            Object bean = null;
+            Method ids = null, bytes = null;
+            try {
+                bean = Class.forName("java.lang.management.ManagementFactory")
+                        .getMethod("getThreadMXBean").invoke(null);
+                Class<?> hotspot = Class.forName("com.sun.management.ThreadMXBean");
+                ids = hotspot.getMethod("getAllThreadIds");
+                bytes = hotspot.getMethod("getThreadAllocatedBytes", long[].class);
+            } catch (Exception e) {
+                bean = null;
+            }
+            sBean = bean;
+            sAllThreadIds = ids;
+            sAllocatedBytes = bytes;
+        }
+
+        /**
+         * @return bytes allocated so far by the live threads, -1 if unknown
+         */
+        static long total() {
+            if (sBean == null)
+                return -1;
+            try {
+                long[] allocated = (long[]) sAllocatedBytes.invoke(sBean, sAllThreadIds.invoke(sBean));
+                long sum = 0;
+                for (long a : allocated)
+                    sum += Math.max(0, a);
+                return sum;
+            } catch (Exception e) {
+                return -1;
+            }
+        }
+
+        static long since(long before) {
+            final long now = total();
+            return (before < 0 || now < 0) ? -1 : now - before;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package lib.smartlink.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import lib.smartlink.AdvertisementParser;
+import lib.smartlink.DeviceConfig;
+
+/**
+ * The server side of a simulated BLE peripheral: its services, the values of its
+ * characteristics and how it reacts to writes. Built from the same config as
+ * {@link lib.smartlink.BluetoothDevice}, so it offers exactly the services the library looks
+ * for. Every characteristic can be read, written (with or without response) and notified.
+ * <p/>
+ * Scripting happens through {@link #setValue}, {@link #notify(String, byte[])},
+ * {@link #setWriteHandler}, {@link #setNotificationSource} and {@link #dropConnections()}; all
+ * of them may be called from any thread.
+ */
+public class SimulatedPeripheral {
+
+    /**
+     * Reacts to a client writing a characteristic, e.g. to answer with a notification
+     */
+    public interface WriteHandler {
+        void onWrite(SimulatedPeripheral peripheral, String field, byte[] value);
+    }
+
+    /**
+     * Produces the values of periodic notifications
+     */
+    public interface ValueSource {
+        byte[] next();
+    }
+
+    static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final String mAddress;
+    private final String mName;
+    private final byte[] mAdvertisement;
+    private final List<UUID> mAdvertisedServices;
+    private volatile int mRssi = -50;
+    private volatile boolean mConnectable = true;
+
+    // service UUID -> its characteristics' UUIDs, in plist order
+    private final LinkedHashMap<UUID, List<UUID>> mServices = new LinkedHashMap<UUID, List<UUID>>();
+    // "service/field" -> UUID and back
+    private final HashMap<String, UUID> mFieldUuids = new HashMap<String, UUID>();
+    private final HashMap<UUID, String> mFieldNames = new HashMap<UUID, String>();
+    // guarded by itself
+    private final HashMap<UUID, byte[]> mValues = new HashMap<UUID, byte[]>();
+    private final HashMap<UUID, WriteHandler> mWriteHandlers = new HashMap<UUID, WriteHandler>();
+    private final HashMap<UUID, NotificationSource> mSources = new HashMap<UUID, NotificationSource>();
+
+    private final CopyOnWriteArrayList<SimulatedTransport.SimConnection> mConnections =
+            new CopyOnWriteArrayList<SimulatedTransport.SimConnection>();
+
+    static class NotificationSource {
+        final long periodNanos;
+        final ValueSource source;
+
+        NotificationSource(long periodNanos, ValueSource source) {
+            this.periodNanos = periodNanos;
+            this.source = source;
+        }
+    }
+
+    /**
+     * @param plistFile the .plist config file the library is configured with
+     * @param address   Bluetooth address to advertise with, e.g. "00:11:22:33:44:55"
+     */
+    public SimulatedPeripheral(InputStream plistFile, String address) {
+        this(DeviceConfig.parse(plistFile), address);
+    }
+
+    /**
+     * @param config  the config the library is configured with
+     * @param address Bluetooth address to advertise with, e.g. "00:11:22:33:44:55"
+     */
+    public SimulatedPeripheral(DeviceConfig config, String address) {
+        mAddress = address;
+        mName = config.getDeviceName();
+
+        List<UUID> primary = new ArrayList<UUID>();
+        for (int s = 0; s < config.getServiceCount(); s++) {
+            UUID serviceUuid = config.getServiceUuid(s);
+            if (config.isPrimary(s))
+                primary.add(serviceUuid);
+
+            List<UUID> chars = new ArrayList<UUID>();
+            for (int f = config.getFirstField(s); f < config.getFieldEnd(s); f++) {
+                UUID charUuid = config.getFieldUuid(f);
+                chars.add(charUuid);
+                mFieldUuids.put(config.getFieldPath(f), charUuid);
+                mFieldNames.put(charUuid, config.getFieldPath(f));
+                mValues.put(charUuid, new byte[0]);
+            }
+            mServices.put(serviceUuid, Collections.unmodifiableList(chars));
+        }
+        mAdvertisement = buildAdvertisement(primary, mName);
+        mAdvertisedServices = primary;
+    }
+
+    private static byte[] buildAdvertisement(List<UUID> primary, String name) {
+        ByteArrayOutputStream adv = new ByteArrayOutputStream(62);
+        adv.write(2);
+        adv.write(AdvertisementParser.AD_FLAGS);
+        adv.write(0x06); // general discoverable, no BR/EDR
+        for (UUID uuid : primary) {
+            // one UUID per structure, least significant byte first
+            ByteBuffer b = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            b.putLong(uuid.getLeastSignificantBits()).putLong(uuid.getMostSignificantBits());
+            adv.write(17);
+            adv.write(AdvertisementParser.AD_128BIT_UUID_ALL);
+            adv.write(b.array(), 0, 16);
+        }
+        if (name != null) {
+            byte[] n = name.getBytes();
+            adv.write(n.length + 1);
+            adv.write(AdvertisementParser.AD_FULLNAME);
+            adv.write(n, 0, n.length);
+        }
+        return adv.toByteArray();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    byte[] getAdvertisement() {
+        return mAdvertisement;
+    }
+
+    /**
+     * @return true if the advertisement lists any of <code>services</code>
+     */
+    boolean advertisesAny(UUID[] services) {
+        for (UUID service : services) {
+            if (mAdvertisedServices.contains(service))
+                return true;
+        }
+        return false;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * Signal strength reported for advertisements and RSSI reads
+     */
+    public void setRssi(int rssi) {
+        mRssi = rssi;
+    }
+
+    public boolean isConnectable() {
+        return mConnectable;
+    }
+
+    /**
+     * @param connectable false to fail connection attempts, and to stop advertising
+     */
+    public void setConnectable(boolean connectable) {
+        mConnectable = connectable;
+    }
+
+    Map<UUID, List<UUID>> getServices() {
+        return mServices;
+    }
+
+    private UUID uuidOf(String field) {
+        UUID uuid = mFieldUuids.get(field);
+        if (uuid == null)
+            throw new IllegalArgumentException("no such field: " + field);
+        return uuid;
+    }
+
+    String nameOf(UUID uuid) {
+        return mFieldNames.get(uuid);
+    }
+
+    /**
+     * @param field "service/field" as named in the plist
+     * @return current value of the characteristic
+     */
+    public byte[] getValue(String field) {
+        return getValue(uuidOf(field));
+    }
+
+    byte[] getValue(UUID uuid) {
+        synchronized (mValues) {
+            byte[] value = mValues.get(uuid);
+            return value == null ? null : value.clone();
+        }
+    }
+
+    /**
+     * Set the value clients read, without notifying them
+     *
+     * @param field "service/field" as named in the plist
+     */
+    public void setValue(String field, byte[] value) {
+        synchronized (mValues) {
+            mValues.put(uuidOf(field), value.clone());
+        }
+    }
+
+    /**
+     * Set the value and notify all clients which enabled notifications for it
+     *
+     * @param field "service/field" as named in the plist
+     */
+    public void notify(String field, byte[] value) {
+        notify(uuidOf(field), value);
+    }
+
+    void notify(UUID uuid, byte[] value) {
+        synchronized (mValues) {
+            mValues.put(uuid, value.clone());
+        }
+        for (SimulatedTransport.SimConnection connection : mConnections)
+            connection.notifyChanged(uuid, value);
+    }
+
+    /**
+     * @param field   "service/field" as named in the plist
+     * @param handler called on the simulator thread for every write, null to remove
+     */
+    public void setWriteHandler(String field, WriteHandler handler) {
+        synchronized (mValues) {
+            mWriteHandlers.put(uuidOf(field), handler);
+        }
+    }
+
+    /**
+     * Notify <code>rateHz</code> times a second with values from <code>source</code>, while a
+     * client has notifications for <code>field</code> enabled.
+     *
+     * @param field "service/field" as named in the plist
+     */
+    public void setNotificationSource(String field, float rateHz, ValueSource source) {
+        if (rateHz <= 0)
+            throw new IllegalArgumentException("rate must be positive");
+        synchronized (mValues) {
+            mSources.put(uuidOf(field), new NotificationSource((long) (1e9 / rateHz), source));
+        }
+    }
+
+    NotificationSource getNotificationSource(UUID uuid) {
+        synchronized (mValues) {
+            return mSources.get(uuid);
+        }
+    }
+
+    /**
+     * A client wrote <code>value</code>
+     */
+    void onWrite(UUID uuid, byte[] value) {
+        final WriteHandler handler;
+        synchronized (mValues) {
+            mValues.put(uuid, value);
+            handler = mWriteHandlers.get(uuid);
+        }
+        if (handler != null)
+            handler.onWrite(this, mFieldNames.get(uuid), value);
+    }
+
+    /**
+     * Drop all connections as if the peripheral went out of range. Clients get a disconnect
+     * with status 8 (connection timeout).
+     */
+    public void dropConnections() {
+        for (SimulatedTransport.SimConnection connection : mConnections)
+            connection.linkLost();
+    }
+
+    /**
+     * @return number of clients connected
+     */
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * @return the newest connection to the peripheral, null if none
+     */
+    SimulatedTransport.SimConnection getConnection() {
+        Object[] connections = mConnections.toArray();
+        return connections.length == 0 ? null : (SimulatedTransport.SimConnection) connections[connections.length - 1];
+    }
+
+    void onConnected(SimulatedTransport.SimConnection connection) {
+        mConnections.addIfAbsent(connection);
+    }
+
+    void onDisconnected(SimulatedTransport.SimConnection connection) {
+        mConnections.remove(connection);
+    }
+}
@@ -0,0 +1,617 @@
+package lib.smartlink.sim;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import lib.smartlink.BleTransport;
+import lib.smartlink.GattLayout;
+
+/**
+ * {@link BleTransport} connecting to {@link SimulatedPeripheral}s in the same process, so the
+ * library can be exercised and benchmarked without a radio.
+ * <p/>
+ * It behaves like the Android stack where the library depends on it: one GATT request at a
+ * time per connection (others are refused), a small buffer for writes without response,
+ * callbacks in order on a single thread. On top of that it adds configurable latency, jitter,
+ * MTU and loss of callbacks. Random behaviour is reproducible through the seed.
+ */
+public class SimulatedTransport implements BleTransport {
+    // GATT statuses the Android stack reports, not all of them are constants in API 18
+    static final int GATT_INVALID_HANDLE = 0x01;
+    static final int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0d;
+    static final int GATT_CONN_TIMEOUT = 0x08;
+    static final int GATT_ERROR = 0x85;
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final Random mRandom;
+    private final Map<String, SimulatedPeripheral> mPeripherals = new ConcurrentHashMap<String, SimulatedPeripheral>();
+    // guarded by itself
+    private final HashMap<Callback, List<ScheduledFuture<?>>> mScans = new HashMap<Callback, List<ScheduledFuture<?>>>();
+
+    private volatile boolean mEnabled = true;
+    private volatile long mLatencyNanos = 7500000L;
+    private volatile long mJitterNanos = 0;
+    private volatile int mMtu = 23;
+    private volatile double mCallbackLoss = 0;
+    private volatile long mAdvertisingIntervalNanos = 100000000L;
+    private volatile int mWriteBufferSize = 4;
+    private volatile boolean mConnectReturnsLate;
+
+    /**
+     * @param seed seed of the random latency, jitter and loss, for reproducible runs
+     */
+    public SimulatedTransport(long seed) {
+        mRandom = new Random(seed);
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "smartlink-sim");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Make <code>peripheral</code> advertise and accept connections
+     */
+    public void addPeripheral(SimulatedPeripheral peripheral) {
+        mPeripherals.put(peripheral.getAddress(), peripheral);
+    }
+
+    public void removePeripheral(SimulatedPeripheral peripheral) {
+        mPeripherals.remove(peripheral.getAddress());
+        peripheral.dropConnections();
+    }
+
+    /**
+     * @param enabled false to act as if Bluetooth were switched off
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Time from a request to its callback, 7.5 ms (one connection interval) by default
+     */
+    public void setLatency(long latencyMs) {
+        mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+    }
+
+    /**
+     * Standard deviation of the latency, 0 by default
+     */
+    public void setJitter(long jitterMs) {
+        mJitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMs);
+    }
+
+    /**
+     * ATT MTU, 23 by default. Longer writes fail, longer reads and notifications are cut off.
+     */
+    public void setMtu(int mtu) {
+        if (mtu < 23)
+            throw new IllegalArgumentException("MTU is at least 23");
+        mMtu = mtu;
+    }
+
+    /**
+     * @param probability chance that a GATT callback never arrives, 0 by default. The request
+     *                    itself still takes effect.
+     */
+    public void setCallbackLoss(double probability) {
+        mCallbackLoss = probability;
+    }
+
+    /**
+     * Time between two advertisements of a peripheral while scanning, 100 ms by default
+     */
+    public void setAdvertisingInterval(long intervalMs) {
+        mAdvertisingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+    }
+
+    /**
+     * How many writes without response the stack buffers before it refuses more, 4 by default
+     */
+    public void setWriteBufferSize(int size) {
+        mWriteBufferSize = size;
+    }
+
+    /**
+     * @param late true to report the outcome of a connection attempt before {@link #connect}
+     *             returns, as a stack calling back on another thread may
+     */
+    public void setConnectReturnsLate(boolean late) {
+        mConnectReturnsLate = late;
+    }
+
+    /**
+     * Stop the simulator thread. No callbacks are delivered afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private long nextDelayNanos() {
+        synchronized (mRandom) {
+            long delay = mLatencyNanos + (long) (mRandom.nextGaussian() * mJitterNanos);
+            return Math.max(0, delay);
+        }
+    }
+
+    private boolean lose() {
+        if (mCallbackLoss <= 0)
+            return false;
+        synchronized (mRandom) {
+            return mRandom.nextDouble() < mCallbackLoss;
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    @Override
+    public boolean canRestoreServices() {
+        return true;
+    }
+
+    @Override
+    public void startScan(final Callback callback, UUID[] services) {
+        stopScan(callback);
+        List<ScheduledFuture<?>> advertisers = new ArrayList<ScheduledFuture<?>>();
+        for (final SimulatedPeripheral peripheral : mPeripherals.values()) {
+            if (services != null && !peripheral.advertisesAny(services))
+                continue;
+            advertisers.add(mExecutor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    if (peripheral.isConnectable() && peripheral.getConnectionCount() == 0)
+                        callback.onScanResult(peripheral.getAddress(), peripheral.getName(),
+                                peripheral.getRssi(), peripheral.getAdvertisement());
+                }
+            }, nextDelayNanos(), mAdvertisingIntervalNanos, TimeUnit.NANOSECONDS));
+        }
+        synchronized (mScans) {
+            mScans.put(callback, advertisers);
+        }
+    }
+
+    @Override
+    public void stopScan(Callback callback) {
+        final List<ScheduledFuture<?>> advertisers;
+        synchronized (mScans) {
+            advertisers = mScans.remove(callback);
+        }
+        if (advertisers != null) {
+            for (ScheduledFuture<?> advertiser : advertisers)
+                advertiser.cancel(false);
+        }
+    }
+
+    @Override
+    public Connection connect(String address, Callback callback) {
+        if (!mEnabled)
+            return null;
+        final SimConnection connection = new SimConnection(address, mPeripherals.get(address), callback);
+        final CountDownLatch reported = new CountDownLatch(1);
+        connection.post(new Runnable() {
+            @Override
+            public void run() {
+                connection.onConnectResult();
+                reported.countDown();
+            }
+        });
+        if (mConnectReturnsLate) {
+            try {
+                reported.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Client side of a connection to a {@link SimulatedPeripheral}
+     */
+    class SimConnection implements Connection {
+        private final String mAddress;
+        private final SimulatedPeripheral mPeripheral;
+        private final Callback mCallback;
+        // client side copies of the peripheral's attributes, by UUID
+        private final List<BluetoothGattService> mClientServices;
+        private final HashMap<UUID, BluetoothGattCharacteristic> mClientChars = new HashMap<UUID, BluetoothGattCharacteristic>();
+
+        // guarded by this
+        private boolean mConnected;
+        private boolean mClosed;
+        private boolean mDiscovered;
+        private boolean mBusy;              // a request with response is outstanding
+        private int mBufferedWrites;        // writes without response not sent over the air yet
+        private long mLastDueNanos;         // keeps callbacks in order despite jitter
+        // setCharacteristicNotification on the client, CCC descriptor written on the peripheral
+        private final HashMap<UUID, Boolean> mNotifying = new HashMap<UUID, Boolean>();
+        private final HashMap<UUID, Boolean> mSubscribed = new HashMap<UUID, Boolean>();
+        private final HashMap<UUID, ScheduledFuture<?>> mSources = new HashMap<UUID, ScheduledFuture<?>>();
+
+        SimConnection(String address, SimulatedPeripheral peripheral, Callback callback) {
+            mAddress = address;
+            mPeripheral = peripheral;
+            mCallback = callback;
+            List<BluetoothGattService> services = new ArrayList<BluetoothGattService>();
+            if (peripheral != null) {
+                for (Map.Entry<UUID, List<UUID>> entry : peripheral.getServices().entrySet()) {
+                    BluetoothGattService service = new BluetoothGattService(entry.getKey(),
+                            BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                    for (UUID uuid : entry.getValue()) {
+                        BluetoothGattCharacteristic c = newClientCharacteristic(uuid);
+                        service.addCharacteristic(c);
+                        mClientChars.put(uuid, c);
+                    }
+                    services.add(service);
+                }
+            }
+            mClientServices = Collections.unmodifiableList(services);
+        }
+
+        private BluetoothGattCharacteristic newClientCharacteristic(UUID uuid) {
+            BluetoothGattCharacteristic c = new BluetoothGattCharacteristic(uuid,
+                    BluetoothGattCharacteristic.PROPERTY_READ
+                            | BluetoothGattCharacteristic.PROPERTY_WRITE
+                            | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+                            | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                    BluetoothGattCharacteristic.PERMISSION_READ
+                            | BluetoothGattCharacteristic.PERMISSION_WRITE);
+            c.addDescriptor(new BluetoothGattDescriptor(SimulatedPeripheral.CLIENT_CHARACTERISTIC_CONFIG,
+                    BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
+            return c;
+        }
+
+        /**
+         * @return false if <code>c</code> comes from an outdated layout, so the peripheral
+         * doesn't have it
+         */
+        private boolean exists(BluetoothGattCharacteristic c) {
+            return mClientChars.get(c.getUuid()) == c;
+        }
+
+        /**
+         * Run <code>callback</code> on the simulator thread after the link latency, in order
+         * with everything posted before
+         */
+        void post(final Runnable callback) {
+            final long delay;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                final long due = Math.max(now + nextDelayNanos(), mLastDueNanos);
+                mLastDueNanos = due;
+                delay = due - now;
+            }
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SimConnection.this) {
+                        if (mClosed)
+                            return;
+                    }
+                    callback.run();
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+
+        void onConnectResult() {
+            final boolean ok = mEnabled && mPeripheral != null && mPeripheral.isConnectable()
+                    && mPeripherals.containsKey(mAddress);
+            synchronized (this) {
+                mConnected = ok;
+            }
+            if (ok) {
+                mPeripheral.onConnected(this);
+                mCallback.onConnectionStateChange(this, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+            } else {
+                mCallback.onConnectionStateChange(this, GATT_ERROR, BluetoothProfile.STATE_DISCONNECTED);
+            }
+        }
+
+        /**
+         * Take the request slot, false if the stack would refuse the request
+         */
+        private synchronized boolean begin() {
+            if (!mConnected || mClosed || mBusy)
+                return false;
+            mBusy = true;
+            return true;
+        }
+
+        private synchronized void end() {
+            mBusy = false;
+        }
+
+        private int payloadLimit() {
+            return mMtu - 3;
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            if (!begin())
+                return false;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SimConnection.this) {
+                        mDiscovered = true;
+                    }
+                    end();
+                    mCallback.onServicesDiscovered(SimConnection.this, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public synchronized List<BluetoothGattService> getServices() {
+            return mDiscovered ? mClientServices : Collections.<BluetoothGattService>emptyList();
+        }
+
+        @Override
+        public List<BluetoothGattService> restoreServices(GattLayout layout) {
+            synchronized (this) {
+                if (!mConnected || mClosed)
+                    return null;
+                mDiscovered = true;
+            }
+            if (layout.matches(mClientServices))
+                return mClientServices;
+            // like a stack trusting its attribute cache: characteristics the peripheral lost fail
+            List<BluetoothGattService> services = new ArrayList<BluetoothGattService>();
+            for (int s = 0; s < layout.getServiceCount(); s++) {
+                BluetoothGattService service = new BluetoothGattService(layout.getServiceUuid(s),
+                        BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                for (int i = 0; i < layout.getCharacteristicCount(s); i++) {
+                    final UUID uuid = layout.getCharacteristicUuid(s, i);
+                    BluetoothGattCharacteristic c = mClientChars.get(uuid);
+                    service.addCharacteristic(c != null ? c : newClientCharacteristic(uuid));
+                }
+                services.add(service);
+            }
+            return services;
+        }
+
+        @Override
+        public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+            if (!begin())
+                return false;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!exists(characteristic)) {
+                        end();
+                        mCallback.onCharacteristicRead(SimConnection.this, characteristic, GATT_INVALID_HANDLE);
+                        return;
+                    }
+                    byte[] value = mPeripheral.getValue(characteristic.getUuid());
+                    if (value.length > payloadLimit() + 1)
+                        value = Arrays.copyOf(value, payloadLimit() + 1);
+                    characteristic.setValue(value);
+                    end();
+                    if (!lose())
+                        mCallback.onCharacteristicRead(SimConnection.this, characteristic, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+            final byte[] value = characteristic.getValue() == null ? new byte[0] : characteristic.getValue().clone();
+            final boolean withResponse = characteristic.getWriteType() != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+            if (withResponse) {
+                if (!begin())
+                    return false;
+            } else {
+                synchronized (this) {
+                    if (!mConnected || mClosed || mBufferedWrites >= mWriteBufferSize)
+                        return false;
+                    mBufferedWrites++;
+                }
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    final int status;
+                    if (!exists(characteristic)) {
+                        status = GATT_INVALID_HANDLE;
+                    } else if (value.length > payloadLimit()) {
+                        status = GATT_INVALID_ATTRIBUTE_LENGTH;
+                    } else {
+                        mPeripheral.onWrite(characteristic.getUuid(), value);
+                        status = BluetoothGatt.GATT_SUCCESS;
+                    }
+                    if (withResponse) {
+                        end();
+                    } else {
+                        synchronized (SimConnection.this) {
+                            mBufferedWrites--;
+                        }
+                    }
+                    if (!lose())
+                        mCallback.onCharacteristicWrite(SimConnection.this, characteristic, status);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public synchronized boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+            if (!mConnected || mClosed)
+                return false;
+            mNotifying.put(characteristic.getUuid(), enable);
+            return true;
+        }
+
+        @Override
+        public boolean writeDescriptor(final BluetoothGattDescriptor descriptor) {
+            if (!begin())
+                return false;
+            final byte[] value = descriptor.getValue();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!exists(descriptor.getCharacteristic())) {
+                        end();
+                        mCallback.onDescriptorWrite(SimConnection.this, descriptor, GATT_INVALID_HANDLE);
+                        return;
+                    }
+                    final UUID uuid = descriptor.getCharacteristic().getUuid();
+                    final boolean enable = value != null && value.length > 0 && value[0] != 0;
+                    subscribe(uuid, enable);
+                    end();
+                    if (!lose())
+                        mCallback.onDescriptorWrite(SimConnection.this, descriptor, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        /**
+         * The peripheral's side of (un)subscribing: start or stop its notification source
+         */
+        private synchronized void subscribe(final UUID uuid, boolean enable) {
+            mSubscribed.put(uuid, enable);
+            ScheduledFuture<?> running = mSources.remove(uuid);
+            if (running != null)
+                running.cancel(false);
+            if (!enable)
+                return;
+            final SimulatedPeripheral.NotificationSource source = mPeripheral.getNotificationSource(uuid);
+            if (source != null) {
+                mSources.put(uuid, mExecutor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPeripheral.notify(uuid, source.source.next());
+                    }
+                }, source.periodNanos, source.periodNanos, TimeUnit.NANOSECONDS));
+            }
+        }
+
+        /**
+         * The peripheral changed a value, deliver it if the client subscribed
+         */
+        void notifyChanged(UUID uuid, byte[] value) {
+            final BluetoothGattCharacteristic characteristic;
+            synchronized (this) {
+                if (!mConnected || mClosed || !isSet(mNotifying, uuid) || !isSet(mSubscribed, uuid))
+                    return;
+                characteristic = mClientChars.get(uuid);
+            }
+            final byte[] payload = value.length > payloadLimit() ? Arrays.copyOf(value, payloadLimit()) : value.clone();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    characteristic.setValue(payload);
+                    if (!lose())
+                        mCallback.onCharacteristicChanged(SimConnection.this, characteristic);
+                }
+            });
+        }
+
+        private boolean isSet(HashMap<UUID, Boolean> flags, UUID uuid) {
+            Boolean flag = flags.get(uuid);
+            return flag != null && flag;
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            if (!begin())
+                return false;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    end();
+                    if (!lose())
+                        mCallback.onReadRemoteRssi(SimConnection.this, mPeripheral.getRssi(), BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            synchronized (this) {
+                if (!mConnected || mClosed)
+                    return;
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    onDisconnected(BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+        }
+
+        /**
+         * The peripheral went away
+         */
+        void linkLost() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    onDisconnected(GATT_CONN_TIMEOUT);
+                }
+            });
+        }
+
+        private void onDisconnected(int status) {
+            synchronized (this) {
+                if (!mConnected)
+                    return;
+                mConnected = false;
+                mBusy = false;
+                mBufferedWrites = 0;
+                for (ScheduledFuture<?> source : mSources.values())
+                    source.cancel(false);
+                mSources.clear();
+                mNotifying.clear();
+                mSubscribed.clear();
+            }
+            mPeripheral.onDisconnected(this);
+            mCallback.onConnectionStateChange(this, status, BluetoothProfile.STATE_DISCONNECTED);
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                mClosed = true;
+                for (ScheduledFuture<?> source : mSources.values())
+                    source.cancel(false);
+                mSources.clear();
+            }
+            if (mPeripheral != null)
+                mPeripheral.onDisconnected(this);
+        }
+    }
+}
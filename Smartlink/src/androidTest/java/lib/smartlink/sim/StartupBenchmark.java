@@ -0,0 +1,117 @@
+package lib.smartlink.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+
+import lib.smartlink.BluetoothDevice;
+import lib.smartlink.DeviceConfig;
+
+/**
+ * Benchmarks of setting up a {@link BluetoothDevice}, e.g. when an activity is recreated:
+ * <ul>
+ * <li><b>xml</b>: compiling the .plist config, as on the first start</li>
+ * <li><b>binary</b>: compiling a config saved with {@link DeviceConfig#writeTo}</li>
+ * <li><b>cached</b>: the same .plist again, answered from the config cache</li>
+ * <li><b>device</b>: constructing a device from the .plist, cached</li>
+ * </ul>
+ * Usage: <code>StartupBenchmark [iterations]</code>
+ */
+public class StartupBenchmark {
+    // the services of a plane with firmware update, like the apps use
+    private static final String PLIST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<!DOCTYPE plist PUBLIC \"-//Apple//DTD PLIST 1.0//EN\" \"http://www.apple.com/DTDs/PropertyList-1.0.dtd\">\n"
+            + "<plist version=\"1.0\"><dict>"
+            + "<key>device name</key><string>TailorToys PowerUp</string>"
+            + "<key>rssi high</key><integer>0</integer>"
+            + "<key>rssi low</key><integer>-100</integer>"
+            + "<key>Services</key><dict>"
+            + "<key>smartplane</key><dict>"
+            + "<key>UUID</key><string>75B64E51-F181-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>Primary</key><true/>"
+            + "<key>DriverClass</key><string>BLESmartplaneService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>engine</key><string>75B64E51-F184-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>rudder</key><string>75B64E51-F185-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "<key>chargestatus</key><string>75B64E51-F188-4EFA-A7EA-3B5A0A5C0B0B</string>"
+            + "</dict></dict>"
+            + "<key>battery</key><dict>"
+            + "<key>UUID</key><string>180F</string>"
+            + "<key>DriverClass</key><string>BLEBatteryService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>level</key><string>2A19</string>"
+            + "</dict></dict>"
+            + "<key>devinfo</key><dict>"
+            + "<key>UUID</key><string>180A</string>"
+            + "<key>DriverClass</key><string>BLEDeviceInformationService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>serialnumber</key><string>2A25</string>"
+            + "<key>systemid</key><string>2A23</string>"
+            + "</dict></dict>"
+            + "<key>oad</key><dict>"
+            + "<key>UUID</key><string>F000FFC0-0451-4000-B000-000000000000</string>"
+            + "<key>DriverClass</key><string>BLEFirmwareUploadService</string>"
+            + "<key>Fields</key><dict>"
+            + "<key>imgidentify</key><string>F000FFC1-0451-4000-B000-000000000000</string>"
+            + "<key>blockrequest</key><string>F000FFC2-0451-4000-B000-000000000000</string>"
+            + "</dict></dict>"
+            + "</dict></dict></plist>";
+
+    private final int mIterations;
+    private final PrintStream mOut;
+    private final SimulatedTransport mTransport = new SimulatedTransport(1);
+
+    public StartupBenchmark(int iterations, PrintStream out) {
+        mIterations = iterations;
+        mOut = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        new StartupBenchmark(iterations, System.out).runAll();
+    }
+
+    public void runAll() throws Exception {
+        final byte[] xml = PLIST.getBytes("UTF-8");
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        DeviceConfig.parse(new ByteArrayInputStream(xml)).writeTo(binary);
+        mOut.println(String.format(Locale.US, "config: %d bytes as plist, %d bytes binary",
+                xml.length, binary.size()));
+        try {
+            for (int pass = 0; pass < 2; pass++) {
+                final String suffix = pass == 0 ? " (warmup)" : "";
+                run("xml" + suffix, xml, true, false);
+                run("binary" + suffix, binary.toByteArray(), true, false);
+                run("cached" + suffix, xml, false, false);
+                run("device" + suffix, xml, false, true);
+            }
+        } finally {
+            mTransport.shutdown();
+        }
+    }
+
+    /**
+     * @param uncached compile every time instead of using the cache
+     * @param device   construct a device rather than only the config
+     */
+    private void run(String name, byte[] config, boolean uncached, boolean device) {
+        final int iterations = name.endsWith("(warmup)") ? Math.max(1, mIterations / 4) : mIterations;
+        long compileNanos = 0;
+        final long allocatedBefore = QueueBenchmark.Allocation.total();
+        for (int i = 0; i < iterations; i++) {
+            if (uncached)
+                DeviceConfig.clearCache();
+            final long t0 = System.nanoTime();
+            if (device)
+                new BluetoothDevice(new ByteArrayInputStream(config), mTransport);
+            else
+                DeviceConfig.parse(new ByteArrayInputStream(config));
+            compileNanos += System.nanoTime() - t0;
+        }
+        final long allocated = QueueBenchmark.Allocation.since(allocatedBefore);
+        mOut.println(String.format(Locale.US, "%-18s %9.1f us/op, %s", name,
+                compileNanos / 1e3 / iterations, allocated < 0 ? "allocation n/a"
+                        : String.format(Locale.US, "%.0f B/op", allocated / (double) iterations)));
+    }
+}
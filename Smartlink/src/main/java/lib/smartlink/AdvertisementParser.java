@@ -0,0 +1,220 @@
+package lib.smartlink;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Looks for known services and a known device name in advertisements, without allocating.
+ * <p/>
+ * An advertisement (scan record) is a sequence of AD structures: a length byte, a type byte and
+ * <code>length - 1</code> bytes of data. Android pads the record with zeros up to 62 bytes. A
+ * zero length ends the record, and a structure running past the end of the array is ignored, so
+ * malformed records are never read out of bounds.
+ * <p/>
+ * Services may be advertised as 16, 32 or 128 bit UUID lists, or as the UUID of a service data
+ * structure. 16 and 32 bit UUIDs only match services on top of the Bluetooth base UUID. The
+ * static methods give access to other structures, e.g. manufacturer data.
+ */
+public final class AdvertisementParser {
+    public static final int AD_FLAGS = 0x01;
+    public static final int AD_16BIT_UUID_MORE = 0x02;
+    public static final int AD_16BIT_UUID_ALL = 0x03;
+    public static final int AD_32BIT_UUID_MORE = 0x04;
+    public static final int AD_32BIT_UUID_ALL = 0x05;
+    public static final int AD_128BIT_UUID_MORE = 0x06;
+    public static final int AD_128BIT_UUID_ALL = 0x07;
+    public static final int AD_SHORTNAME = 0x08;
+    public static final int AD_FULLNAME = 0x09;
+    public static final int AD_SERVICE_DATA_16BIT = 0x16;
+    public static final int AD_SERVICE_DATA_32BIT = 0x20;
+    public static final int AD_SERVICE_DATA_128BIT = 0x21;
+    public static final int AD_MANUFACTURER_DATA = 0xFF;
+
+    // results of match(), ordered so that a better match is a larger value
+    public static final int MATCH_NONE = 0;
+    public static final int MATCH_NAME = 1;
+    public static final int MATCH_SERVICE = 2;
+
+    // 0000xxxx-0000-1000-8000-00805F9B34FB
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private final long[] mMsb;
+    private final long[] mLsb;
+    // 16 or 32 bit alias of each service, -1 if it is not on top of the base UUID
+    private final long[] mAlias;
+    // null if there is no name to match
+    private final byte[] mName;
+
+    /**
+     * @param services   services which make an advertisement match
+     * @param deviceName name which makes an advertisement match, compared ignoring the case of
+     *                   ASCII letters. May be null.
+     */
+    public AdvertisementParser(UUID[] services, String deviceName) {
+        mMsb = new long[services.length];
+        mLsb = new long[services.length];
+        mAlias = new long[services.length];
+        for (int i = 0; i < services.length; i++) {
+            mMsb[i] = services[i].getMostSignificantBits();
+            mLsb[i] = services[i].getLeastSignificantBits();
+            mAlias[i] = (mLsb[i] == BASE_UUID_LSB && (mMsb[i] & 0xFFFFFFFFL) == BASE_UUID_MSB)
+                    ? mMsb[i] >>> 32 : -1;
+        }
+        mName = (deviceName == null || deviceName.length() == 0)
+                ? null : deviceName.getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * @param scanRecord the advertisement packet
+     * @return MATCH_SERVICE if it includes any of the services, otherwise MATCH_NAME if it
+     * includes the device name, otherwise MATCH_NONE
+     */
+    public int match(byte[] scanRecord) {
+        if (scanRecord == null)
+            return MATCH_NONE;
+        int result = MATCH_NONE;
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            final int len = scanRecord[offset] & 0xFF;
+            if (len == 0)
+                break; // padding after the last structure
+            final int end = offset + 1 + len;
+            if (end > scanRecord.length)
+                break; // truncated structure
+            final int data = offset + 2;
+            switch (scanRecord[offset + 1] & 0xFF) {
+                case AD_16BIT_UUID_MORE:
+                case AD_16BIT_UUID_ALL:
+                    for (int p = data; p + 2 <= end; p += 2) {
+                        if (matchesAlias(readUint(scanRecord, p, 2)))
+                            return MATCH_SERVICE;
+                    }
+                    break;
+                case AD_32BIT_UUID_MORE:
+                case AD_32BIT_UUID_ALL:
+                    for (int p = data; p + 4 <= end; p += 4) {
+                        if (matchesAlias(readUint(scanRecord, p, 4)))
+                            return MATCH_SERVICE;
+                    }
+                    break;
+                case AD_128BIT_UUID_MORE:
+                case AD_128BIT_UUID_ALL:
+                    for (int p = data; p + 16 <= end; p += 16) {
+                        if (matches128(scanRecord, p))
+                            return MATCH_SERVICE;
+                    }
+                    break;
+                case AD_SERVICE_DATA_16BIT:
+                    if (data + 2 <= end && matchesAlias(readUint(scanRecord, data, 2)))
+                        return MATCH_SERVICE;
+                    break;
+                case AD_SERVICE_DATA_32BIT:
+                    if (data + 4 <= end && matchesAlias(readUint(scanRecord, data, 4)))
+                        return MATCH_SERVICE;
+                    break;
+                case AD_SERVICE_DATA_128BIT:
+                    if (data + 16 <= end && matches128(scanRecord, data))
+                        return MATCH_SERVICE;
+                    break;
+                case AD_SHORTNAME:
+                case AD_FULLNAME:
+                    // keep looking, a service may follow the name
+                    if (matchesName(scanRecord, data, end))
+                        result = MATCH_NAME;
+                    break;
+                default:
+                    break;
+            }
+            offset = end;
+        }
+        return result;
+    }
+
+    private boolean matchesAlias(long alias) {
+        for (long a : mAlias) {
+            if (a == alias)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean matches128(byte[] b, int p) {
+        // least significant byte first
+        final long lsb = readLong(b, p);
+        final long msb = readLong(b, p + 8);
+        for (int i = 0; i < mMsb.length; i++) {
+            if (mMsb[i] == msb && mLsb[i] == lsb)
+                return true;
+        }
+        return false;
+    }
+
+    private boolean matchesName(byte[] b, int from, int to) {
+        if (mName == null || to - from != mName.length)
+            return false;
+        for (int i = 0; i < mName.length; i++) {
+            if (lowerCase(b[from + i]) != lowerCase(mName[i]))
+                return false;
+        }
+        return true;
+    }
+
+    private static int lowerCase(byte c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * @param scanRecord the advertisement packet
+     * @param type       one of the AD_ types
+     * @return offset of the data of the first structure of the given type, -1 if there is none
+     */
+    public static int find(byte[] scanRecord, int type) {
+        if (scanRecord == null)
+            return -1;
+        int offset = 0;
+        while (offset < scanRecord.length) {
+            final int len = scanRecord[offset] & 0xFF;
+            if (len == 0 || offset + 1 + len > scanRecord.length)
+                return -1;
+            if ((scanRecord[offset + 1] & 0xFF) == type)
+                return offset + 2;
+            offset += 1 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * @param scanRecord the advertisement packet
+     * @param dataOffset as returned by {@link #find(byte[], int)}
+     * @return number of data bytes of the structure
+     */
+    public static int dataLength(byte[] scanRecord, int dataOffset) {
+        return (scanRecord[dataOffset - 2] & 0xFF) - 1;
+    }
+
+    /**
+     * @param scanRecord the advertisement packet
+     * @return the company identifier of the manufacturer data, -1 if there is none
+     */
+    public static int manufacturerId(byte[] scanRecord) {
+        final int data = find(scanRecord, AD_MANUFACTURER_DATA);
+        if (data < 0 || dataLength(scanRecord, data) < 2)
+            return -1;
+        return (int) readUint(scanRecord, data, 2);
+    }
+
+    /**
+     * @return the <code>n</code> bytes at <code>p</code> as an unsigned little endian number
+     */
+    private static long readUint(byte[] b, int p, int n) {
+        long v = 0;
+        for (int i = n - 1; i >= 0; i--)
+            v = (v << 8) | (b[p + i] & 0xFF);
+        return v;
+    }
+
+    private static long readLong(byte[] b, int p) {
+        return readUint(b, p, 8);
+    }
+}
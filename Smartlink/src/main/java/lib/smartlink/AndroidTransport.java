@@ -0,0 +1,199 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link BleTransport} on top of the Android Bluetooth stack
+ */
+public class AndroidTransport implements BleTransport {
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+    // guarded by itself
+    private final HashMap<Callback, BluetoothAdapter.LeScanCallback> mScanCallbacks =
+            new HashMap<Callback, BluetoothAdapter.LeScanCallback>();
+
+    /**
+     * @param context any context, only its application context is kept
+     */
+    public AndroidTransport(Context context) {
+        mContext = context.getApplicationContext();
+        final BluetoothManager bluetoothManager =
+                (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        mAdapter = bluetoothManager.getAdapter();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mAdapter != null && mAdapter.isEnabled();
+    }
+
+    @Override
+    public boolean canRestoreServices() {
+        // see GattConnection.restoreServices
+        return false;
+    }
+
+    @Override
+    public void startScan(final Callback callback, UUID[] services) {
+        BluetoothAdapter.LeScanCallback scanCallback;
+        synchronized (mScanCallbacks) {
+            scanCallback = mScanCallbacks.get(callback);
+            if (scanCallback == null) {
+                scanCallback = new BluetoothAdapter.LeScanCallback() {
+                    @Override
+                    public void onLeScan(android.bluetooth.BluetoothDevice device, int rssi, byte[] scanRecord) {
+                        callback.onScanResult(device.getAddress(), device.getName(), rssi, scanRecord);
+                    }
+                };
+                mScanCallbacks.put(callback, scanCallback);
+            }
+        }
+        mAdapter.stopLeScan(scanCallback); // in case scan was already running
+        // Some Android 4.3/4.4 builds never match 128 bit UUIDs here, that's why filtering is opt-in
+        if (services == null)
+            mAdapter.startLeScan(scanCallback);
+        else
+            mAdapter.startLeScan(services, scanCallback);
+    }
+
+    @Override
+    public void stopScan(Callback callback) {
+        BluetoothAdapter.LeScanCallback scanCallback;
+        synchronized (mScanCallbacks) {
+            scanCallback = mScanCallbacks.get(callback);
+        }
+        if (scanCallback != null)
+            mAdapter.stopLeScan(scanCallback);
+    }
+
+    @Override
+    public Connection connect(String address, Callback callback) {
+        GattConnection connection = new GattConnection(address, callback);
+        connection.gatt = mAdapter.getRemoteDevice(address).connectGatt(mContext, false, connection);
+        return connection.gatt == null ? null : connection;
+    }
+
+    /**
+     * @return the BluetoothGatt behind <code>connection</code>, null if it is not an Android one
+     */
+    static BluetoothGatt gattOf(Connection connection) {
+        return connection instanceof GattConnection ? ((GattConnection) connection).gatt : null;
+    }
+
+    /**
+     * Forwards the callbacks of a BluetoothGatt, with itself as the connection
+     */
+    private static class GattConnection extends BluetoothGattCallback implements Connection {
+        private final String address;
+        private final Callback callback;
+        volatile BluetoothGatt gatt;
+
+        GattConnection(String address, Callback callback) {
+            this.address = address;
+            this.callback = callback;
+        }
+
+        @Override
+        public String getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return gatt.discoverServices();
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            return gatt.getServices();
+        }
+
+        @Override
+        public List<BluetoothGattService> restoreServices(GattLayout layout) {
+            // The stack only accepts characteristics of its own discovery. It answers that from
+            // its attribute cache where it has one, so discovering is cheap there anyway.
+            return null;
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return gatt.readCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return gatt.writeCharacteristic(characteristic);
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+            return gatt.setCharacteristicNotification(characteristic, enable);
+        }
+
+        @Override
+        public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+            return gatt.writeDescriptor(descriptor);
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            return gatt.readRemoteRssi();
+        }
+
+        @Override
+        public void disconnect() {
+            gatt.disconnect();
+        }
+
+        @Override
+        public void close() {
+            gatt.close();
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt g, int status, int newState) {
+            callback.onConnectionStateChange(this, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt g, int status) {
+            callback.onServicesDiscovered(this, status);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt g, BluetoothGattCharacteristic characteristic, int status) {
+            callback.onCharacteristicRead(this, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic characteristic, int status) {
+            callback.onCharacteristicWrite(this, characteristic, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic characteristic) {
+            callback.onCharacteristicChanged(this, characteristic);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor descriptor, int status) {
+            callback.onDescriptorWrite(this, descriptor, status);
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt g, int rssi, int status) {
+            callback.onReadRemoteRssi(this, rssi, status);
+        }
+    }
+}
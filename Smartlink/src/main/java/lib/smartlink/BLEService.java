@@ -33,6 +33,8 @@ import android.util.Log;
 
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Parent class of all BLE Services
@@ -45,12 +47,21 @@ import java.util.HashMap;
 public abstract class BLEService {
 
     private static final String TAG = "lib-smartlink-BLEService";
+    /** For {@link #cacheField}: the value stays valid as long as the firmware doesn't change */
+    public static final long CACHE_UNTIL_FIRMWARE_CHANGE = Long.MAX_VALUE;
     protected WeakReference<BluetoothDevice> mParent;
     protected HashMap<String, BluetoothGattCharacteristic> mFields;
-    protected BluetoothGatt mGatt;
-
-    public DataPool mEngineDP;
-    public DataPool mRudderDp;
+    protected BluetoothGatt mGatt; // null unless connected through AndroidTransport
+    // the fields by index, so updates are dispatched without looking up names
+    private String[] mFieldNames;
+    // the index of each field by name, so writes and getters by name don't scan mFieldNames
+    private HashMap<String, Integer> mFieldIndices;
+    private BluetoothGattCharacteristic[] mFieldChars;
+    // the last value handed to the driver per field, null until there is one. The stack keeps
+    // writing into the characteristics, this holds the value didUpdateValue reported.
+    private AtomicReferenceArray<byte[]> mValues;
+    // the control channel of each field, null for fields which aren't streamed
+    private ControlChannel[] mChannels;
 
     /** Since this class is loaded dynamically, the constructor won't be called.
      * We call this method when the object is created.
@@ -60,43 +71,226 @@ public abstract class BLEService {
      */
     public void attach(BluetoothGatt gatt, HashMap<String,
             BluetoothGattCharacteristic> fields, BluetoothDevice bluetoothDevice) {
+        bind(gatt, fields, bluetoothDevice);
+        attached();
+        Log.d(TAG, "Initialized service driver");
+    }
+
+    /**
+     * Take over the fields of a new connection, without starting the driver yet. Drivers are
+     * kept across reconnects, so this happens once per connection.
+     */
+    void bind(BluetoothGatt gatt, HashMap<String,
+            BluetoothGattCharacteristic> fields, BluetoothDevice bluetoothDevice) {
         this.mParent = new WeakReference<BluetoothDevice>(bluetoothDevice);
         this.mGatt = gatt;
         this.mFields = fields;
-        mEngineDP = new DataPool(1);
-        mRudderDp = new DataPool(1);
-        attached();
-        Log.d(TAG, "Initialized service driver");
+        mFieldNames = new String[fields.size()];
+        mFieldChars = new BluetoothGattCharacteristic[fields.size()];
+        mFieldIndices = new HashMap<String, Integer>(fields.size() * 2);
+        int index = 0;
+        for (Map.Entry<String, BluetoothGattCharacteristic> field : fields.entrySet()) {
+            mFieldNames[index] = field.getKey();
+            mFieldChars[index] = field.getValue();
+            mFieldIndices.put(field.getKey(), index);
+            index++;
+        }
+        mChannels = new ControlChannel[fields.size()];
+        mValues = new AtomicReferenceArray<byte[]>(fields.size());
     }
 
     protected abstract void attached();
 
-    protected abstract void didUpdateValueForCharacteristic(String c);
+    /**
+     * Called with the field name by the default {@link #didUpdateValue(int)}
+     * @param c name of the field which was read or notified
+     */
+    protected void didUpdateValueForCharacteristic(String c) {
+    }
+
+    /**
+     * Called when a field was read or notified. Override this instead of
+     * {@link #didUpdateValueForCharacteristic} and compare <code>field</code> against indices
+     * looked up once with {@link #fieldIndex}, so frequent notifications cost no string compares.
+     * @param field index of the field
+     */
+    protected void didUpdateValue(int field) {
+        didUpdateValueForCharacteristic(mFieldNames[field]);
+    }
+
+    /**
+     * Keep <code>value</code> as the current value of <code>field</code> and report it
+     */
+    void onValue(int field, byte[] value) {
+        mValues.set(field, value);
+        didUpdateValue(field);
+    }
+
+    /**
+     * @param field index of the field, as returned by {@link #fieldIndex}
+     * @return the last value read or notified, the characteristic's value if there was none
+     */
+    byte[] valueOf(int field) {
+        final byte[] value = mValues.get(field);
+        return value != null ? value : mFieldChars[field].getValue();
+    }
+
+    /**
+     * @return the last value read or notified of the field <code>name</code>, null if the
+     * peripheral doesn't have it
+     */
+    private byte[] valueOf(String name) {
+        final int index = fieldIndex(name);
+        return index < 0 ? null : valueOf(index);
+    }
+
+    /**
+     * @param name
+     * @return the index of the field <code>name</code>, -1 if the peripheral doesn't have it
+     */
+    protected int fieldIndex(String name) {
+        final Integer index = mFieldIndices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Resolve a field for typed access. Meant to be called once in {@link #attached()}, the
+     * handle is valid until the next connection.
+     * @param name
+     * @param format one of the integer FORMAT_ constants of {@link BluetoothGattCharacteristic},
+     *               FORMAT_SFLOAT or FORMAT_FLOAT, optionally with {@link FieldHandle#BIG_ENDIAN}
+     * @return the handle, null if the peripheral doesn't have the field
+     */
+    protected FieldHandle field(String name, int format) {
+        return field(name, format, 0);
+    }
+
+    /**
+     * Resolve a fixed-point field, see {@link #field(String, int)}
+     * @param fractionBits how many of the low bits are after the binary point
+     */
+    protected FieldHandle field(String name, int format, int fractionBits) {
+        final int index = fieldIndex(name);
+        if (index < 0)
+            return null;
+        return new FieldHandle(this, index, mFieldChars[index], format, fractionBits);
+    }
+
+    /**
+     * Stream values to a field through a {@link ControlChannel}. Meant to be called once in
+     * {@link #attached()}, the channel is valid until the next connection. From then on
+     * {@link #writeUint8Value} and {@link #writeInt8Value} on the field go through the channel.
+     * @param name
+     * @param defaults the spec the driver was written for, used unless the config declares a
+     *                 Control entry for the field
+     * @return the channel, null if the peripheral doesn't have the field
+     */
+    protected ControlChannel control(String name, ControlSpec defaults) {
+        final int index = fieldIndex(name);
+        final BluetoothDevice bDevice = mParent.get();
+        if (index < 0 || bDevice == null)
+            return null;
+        final BluetoothGattCharacteristic c = mFieldChars[index];
+        final ControlSpec spec = bDevice.controlSpecOf(c, defaults);
+        c.setWriteType(spec.getWriteType());
+        mChannels[index] = new ControlChannel(this, index, c, spec);
+        return mChannels[index];
+    }
+
+    /**
+     * @param field index of the field, as returned by {@link #fieldIndex}
+     * @return the characteristic of the field
+     */
+    protected BluetoothGattCharacteristic getField(int field) {
+        return mFieldChars[field];
+    }
+
+    /**
+     * @return the index of the field of characteristic <code>c</code>, -1 if it isn't one
+     */
+    int indexOf(BluetoothGattCharacteristic c) {
+        for (int i = 0; i < mFieldChars.length; i++) {
+            if (mFieldChars[i] == c)
+                return i;
+        }
+        return -1;
+    }
 
-    protected void updateField(String name) {
+    /**
+     * Read the characteristic <code>name</code> from the peripheral, or from the
+     * {@link ReadCache} if the field is cached
+     * @param name
+     * @return the result of the read, also reported via {@link #didUpdateValue}
+     */
+    protected GattFuture updateField(String name) {
         try {
-            mParent.get().enqueueOperation(BluetoothDevice.BleCommand.READ, mFields.get(name));
+            return mParent.get().readField(mFields.get(name));
         } catch (NullPointerException ex) {
             Log.w(TAG, "No delegate set");
+            return detached(BluetoothDevice.BleCommand.READ);
         }
     }
 
+    /**
+     * Keep the values of a field which rarely changes across connections, so
+     * {@link #updateField} hands the cached value to {@link #didUpdateValue} instead of reading
+     * it. Values are kept by peripheral address and dropped when it reports other firmware, see
+     * {@link #reportFirmwareVersion}. Meant to be called in {@link #attached()}, before reading
+     * the field.
+     * @param name
+     * @param maxAgeMs how old a cached value may be, or {@link #CACHE_UNTIL_FIRMWARE_CHANGE}
+     * @param revalidate read the field anyway after handing over the cached value, so a changed
+     *                   value arrives as a second update
+     */
+    protected void cacheField(String name, long maxAgeMs, boolean revalidate) {
+        if (maxAgeMs <= 0)
+            throw new IllegalArgumentException("invalid max age " + maxAgeMs);
+        final BluetoothDevice bDevice = mParent.get();
+        final BluetoothGattCharacteristic c = mFields.get(name);
+        if (bDevice != null && c != null)
+            bDevice.setCachePolicy(c, maxAgeMs, revalidate);
+    }
+
+    /**
+     * Hand the cached value of <code>name</code> to {@link #didUpdateValue}, without reading
+     * the field
+     * @param name
+     * @return false if no value is cached
+     */
+    protected boolean serveCachedField(String name) {
+        final BluetoothDevice bDevice = mParent.get();
+        final BluetoothGattCharacteristic c = mFields.get(name);
+        return bDevice != null && c != null && bDevice.serveCached(c) != null;
+    }
+
+    /**
+     * Forget the cached values of the peripheral, e.g. because new firmware is being flashed
+     */
+    protected void invalidateCachedFields() {
+        final BluetoothDevice bDevice = mParent.get();
+        if (bDevice != null)
+            bDevice.invalidateReadCache();
+    }
+
+    static GattFuture detached(int operationType) {
+        final long now = System.nanoTime();
+        return GattFuture.completed(new GattResult(operationType, GattResult.STATUS_DISCONNECTED,
+                null, now, now, now));
+    }
+
     /**
      * Enable or disable notifications for a characteristic
      * @param name
      * @param enable
      */
-    protected void setNotification(String name, boolean enable) {
+    protected GattFuture setNotification(String name, boolean enable) {
+        final int type = enable ? BluetoothDevice.BleCommand.ENABLE_NOTIFICATION
+                : BluetoothDevice.BleCommand.DISABLE_NOTIFICATION;
         try {
-            if (enable) {
-                mParent.get().enqueueOperation(BluetoothDevice.BleCommand.ENABLE_NOTIFICATION,
-                        mFields.get(name));
-            } else {
-                mParent.get().enqueueOperation(BluetoothDevice.BleCommand.DISABLE_NOTIFICATION,
-                        mFields.get(name));
-            }
+            return mParent.get().enqueueOperation(type, mFields.get(name));
         } catch (NullPointerException ex) {
             Log.w(TAG, "No delegate set");
+            return detached(type);
         }
     }
 
@@ -106,8 +300,8 @@ public abstract class BLEService {
      * @return the current value of the <code>characteristic</code>
      */
     protected String getStringValueForCharacteristic(String characteristic) {
-        BluetoothGattCharacteristic c = mFields.get(characteristic);
-        return c.getStringValue(0);
+        final byte[] value = valueOf(characteristic);
+        return value == null ? null : new String(value);
     }
 
     /**
@@ -116,11 +310,10 @@ public abstract class BLEService {
      * @return the current value of the <code>characteristic</code>
      */
     protected Integer getUint8ValueForCharacteristic(String characteristic) {
-        BluetoothGattCharacteristic c = mFields.get(characteristic);
-        if (c == null) {
+        if (!mFields.containsKey(characteristic)) {
             return -1;
         }
-        return c.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+        return intValue(characteristic, BluetoothGattCharacteristic.FORMAT_UINT8);
     }
 
     /**
@@ -129,8 +322,7 @@ public abstract class BLEService {
      * @return the current value of the <code>characteristic</code>
      */
     protected Integer getUin16ValueForCharacteristic(String characteristic) {
-        BluetoothGattCharacteristic c = mFields.get(characteristic);
-        return c.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT16, 0);
+        return intValue(characteristic, BluetoothGattCharacteristic.FORMAT_UINT16);
     }
 
     /**
@@ -139,8 +331,7 @@ public abstract class BLEService {
      * @return the current value of the <code>characteristic</code>
      */
     protected byte[] getBytesForCharacteristic(String characteristic) {
-        BluetoothGattCharacteristic c = mFields.get(characteristic);
-        return c.getValue();
+        return valueOf(characteristic);
     }
 
     /**
@@ -149,8 +340,17 @@ public abstract class BLEService {
      * @return the current value of the <code>characteristic</code>
      */
     protected Integer getInt8ValueForCharacteristic(String characteristic) {
-        BluetoothGattCharacteristic c = mFields.get(characteristic);
-        return c.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+        return intValue(characteristic, BluetoothGattCharacteristic.FORMAT_SINT8);
+    }
+
+    /**
+     * @return the value of the field decoded as <code>format</code>, null if it is too short
+     */
+    private Integer intValue(String characteristic, int format) {
+        final byte[] value = valueOf(characteristic);
+        if (value == null || value.length < FieldHandle.sizeOf(format))
+            return null;
+        return (int) FieldHandle.decode(value, 0, format);
     }
 
     /**
@@ -164,72 +364,79 @@ public abstract class BLEService {
     }
 
     /**
-     * Set the <code>characteristic</code> to <code>value</code>
+     * Set the <code>characteristic</code> to <code>value</code>, through its control channel if
+     * it has one
      * @param value
      * @param characteristic
      */
-    @SuppressWarnings("StringEquality")
-    protected void writeUint8Value(short value, String characteristic) {
-        BluetoothGattCharacteristic c = mFields.get(characteristic);
-        BluetoothDevice bDevice = mParent.get();
-        if (bDevice == null) {
-            Log.w(TAG, "No delegate set.");
-            return;
-        }
-        int extraOpt = BluetoothDevice.BleCommand.NO_EXTRA;
-        // intentional literal comparison with ==, for efficiency
-        if (characteristic == "engine") {
-            mEngineDP.postData(value);
-            extraOpt = BluetoothDevice.BleCommand.EXTRA_MOTOR;
-        } else if (characteristic == "rudder") {
-            mRudderDp.postData(value);
-            extraOpt = BluetoothDevice.BleCommand.EXTRA_RUDDER;
-        } else {
-            c.setValue(value, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-        }
-
-        mParent.get().enqueueOperation(BluetoothDevice.BleCommand.WRITE, c, extraOpt);
+    protected GattFuture writeUint8Value(short value, String characteristic) {
+        return writeIntValue(value, BluetoothGattCharacteristic.FORMAT_UINT8, characteristic);
     }
 
     /**
-     * Set the <code>characteristic</code> to <code>value</code>
+     * Set the <code>characteristic</code> to <code>value</code>, through its control channel if
+     * it has one
      * @param value
      * @param characteristic
      */
-    protected void writeInt8Value(byte value, String characteristic) {
-        BluetoothGattCharacteristic c = mFields.get(characteristic);
+    protected GattFuture writeInt8Value(byte value, String characteristic) {
+        return writeIntValue(value, BluetoothGattCharacteristic.FORMAT_SINT8, characteristic);
+    }
+
+    private GattFuture writeIntValue(int value, int format, String characteristic) {
         BluetoothDevice bDevice = mParent.get();
         if (bDevice == null) {
             Log.w(TAG, "No delegate set.");
-            return;
-        }
-        int extraOpt = BluetoothDevice.BleCommand.NO_EXTRA;
-        // intentional literal comparison with ==, for efficiency
-        if (characteristic == "engine") {
-            mEngineDP.postData(value);
-            extraOpt = BluetoothDevice.BleCommand.EXTRA_MOTOR;
-        } else if (characteristic == "rudder") {
-            mRudderDp.postData(value);
-            extraOpt = BluetoothDevice.BleCommand.EXTRA_RUDDER;
-        } else {
-            c.setValue(value, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
+            return detached(BluetoothDevice.BleCommand.WRITE);
         }
-
-        mParent.get().enqueueOperation(BluetoothDevice.BleCommand.WRITE, c, extraOpt);
+        final int index = fieldIndex(characteristic);
+        if (index >= 0 && mChannels[index] != null)
+            return mChannels[index].post(value);
+        final byte[] bytes = new byte[FieldHandle.sizeOf(format)];
+        FieldHandle.encode(value, bytes, 0, format);
+        return bDevice.enqueueWrite(mFields.get(characteristic), bytes);
     }
 
     /**
      * Set the <code>characteristic</code> to <code>value</code>
      * @param value
      * @param characteristic
+     * @return the result of the write, {@link GattFuture#isRejected()} if its traffic class is full
      */
-    protected void writeBytes(byte[] value, String characteristic) {
+    protected GattFuture writeBytes(byte[] value, String characteristic) {
         BluetoothGattCharacteristic c = mFields.get(characteristic);
-        c.setValue(value);
         try {
-            mParent.get().enqueueOperation(BluetoothDevice.BleCommand.WRITE, c);
+            return mParent.get().enqueueWrite(c, (value == null) ? new byte[0] : value.clone());
         } catch (NullPointerException ex) {
             Log.w(TAG, "No delegate set");
+            return detached(BluetoothDevice.BleCommand.WRITE);
+        }
+    }
+
+    /**
+     * Tell the device which firmware the peripheral runs, so a GATT layout or values cached
+     * for other firmware are not used
+     * @param version
+     */
+    protected void reportFirmwareVersion(String version) {
+        BluetoothDevice bDevice = mParent.get();
+        if (bDevice != null)
+            bDevice.onFirmwareVersion(version);
+    }
+
+    /**
+     * Put all operations on <code>characteristic</code> into a different traffic class than
+     * the default one for their type, e.g. {@link TrafficClass#BULK} for firmware blocks.
+     * @param characteristic
+     * @param trafficClass one of the {@link TrafficClass} classes
+     */
+    protected void setTrafficClass(String characteristic, int trafficClass) {
+        BluetoothGattCharacteristic c = mFields.get(characteristic);
+        BluetoothDevice bDevice = mParent.get();
+        if (c == null || bDevice == null) {
+            Log.w(TAG, "No such field or no delegate set");
+            return;
         }
+        bDevice.setTrafficClass(c, trafficClass);
     }
 }
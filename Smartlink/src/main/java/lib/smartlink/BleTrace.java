@@ -0,0 +1,343 @@
+package lib.smartlink;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size ring buffer of binary events from a device's command queue, scanner and GATT
+ * callbacks. Recording is lock-free and allocation free: a writer claims a slot with an atomic
+ * increment, marks it busy and fills in five longs. Once full, the oldest events are
+ * overwritten.
+ * <p/>
+ * A device only records while it has a trace, see {@link BluetoothDevice#startTrace(int)}, so
+ * the cost with tracing off is one volatile read per event. Take a {@link Snapshot} to dump the
+ * events to a compact file or to a readable timeline.
+ */
+public final class BleTrace {
+    // event types
+    public static final int ENQUEUE = 0;        // key: field, value: -
+    public static final int DISPATCH = 1;       // key: field, value: ns waited for the stack
+    public static final int COMPLETE = 2;       // key: field, value: ns since enqueue
+    public static final int CALLBACK = 3;       // key: field, value: -
+    public static final int LATE_CALLBACK = 4;  // key: field, value: -
+    public static final int TIMEOUT = 5;        // key: field, value: ns in flight
+    public static final int DEFER = 6;          // key: field, value: ns until due
+    public static final int NOTIFICATION = 7;   // key: field, value: -
+    public static final int SCAN_HIT = 8;       // key: -, value: rssi, status: SCAN_ outcome
+    public static final int CONNECTION_STATE = 9; // key: -, value: new state
+
+    static final String[] EVENT_NAMES = {"ENQUEUE", "DISPATCH", "COMPLETE", "CALLBACK",
+            "LATE_CALLBACK", "TIMEOUT", "DEFER", "NOTIFICATION", "SCAN_HIT", "CONNECTION_STATE"};
+
+    // outcome of a SCAN_HIT
+    public static final int SCAN_OUT_OF_RANGE = 0;
+    public static final int SCAN_NO_MATCH = 1;
+    public static final int SCAN_SERVICE_MATCH = 2;
+    public static final int SCAN_NAME_MATCH = 3;
+
+    private static final String[] SCAN_OUTCOMES = {"rssi out of range", "no match",
+            "primary service", "device name"};
+
+    // no operation type, traffic class or sequence
+    static final int NONE = -1;
+
+    private static final int RECORD_LONGS = 5;
+    // marks a slot while a writer fills it in
+    private static final long BUSY = -1;
+    private static final int FILE_MAGIC = 0x534c5452; // "SLTR"
+    private static final int FILE_VERSION = 1;
+
+    private final int mCapacity;
+    private final int mMask;
+    // volatile per element, so a reader which sees part of a newer event sees its slot busy
+    private final AtomicLongArray mRecords;
+    // per slot: index of the event it holds plus one, 0 if none yet, BUSY while being written
+    private final AtomicLongArray mPublished;
+    private final AtomicLong mCursor = new AtomicLong();
+    private final long mStartNanos = System.nanoTime();
+    // characteristic keys to names, for the timeline
+    private final HashMap<Long, String> mNames;
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     * @param names    characteristic name by {@link #keyOf(java.util.UUID)}
+     */
+    BleTrace(int capacity, Map<Long, String> names) {
+        if (capacity < 1 || capacity > (1 << 20))
+            throw new IllegalArgumentException("capacity must be in [1, 2^20]");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mCapacity = size;
+        mMask = size - 1;
+        mRecords = new AtomicLongArray(size * RECORD_LONGS);
+        mPublished = new AtomicLongArray(size);
+        mNames = new HashMap<Long, String>(names);
+    }
+
+    /**
+     * @return the key events use for a characteristic, its UUID's most significant bits
+     */
+    static long keyOf(java.util.UUID uuid) {
+        return uuid == null ? 0 : uuid.getMostSignificantBits();
+    }
+
+    /**
+     * Record an event. Safe to call from any thread. The event is lost if the writer of the
+     * event a whole lap earlier is still filling in its slot.
+     *
+     * @param event         one of the event types
+     * @param operationType GattResult OPERATION_ type or {@link #NONE}
+     * @param trafficClass  {@link TrafficClass} or {@link #NONE}
+     * @param status        GATT or {@link GattResult} status, attempt number for DISPATCH
+     * @param sequence      sequence number of the operation or {@link #NONE}
+     * @param key           characteristic key, see {@link #keyOf(java.util.UUID)}
+     * @param value         event specific, see the event types
+     */
+    void record(int event, int operationType, int trafficClass, int status, long sequence,
+                long key, long value) {
+        final long now = System.nanoTime();
+        final long index = mCursor.getAndIncrement();
+        final int slot = (int) index & mMask;
+        final int base = slot * RECORD_LONGS;
+        // readers skip the slot until it is complete again, other writers keep out of it
+        final long previous = mPublished.get(slot);
+        if (previous == BUSY || !mPublished.compareAndSet(slot, previous, BUSY))
+            return;
+        mRecords.set(base, now);
+        mRecords.set(base + 1, ((long) status << 32)
+                | ((trafficClass & 0xff) << 16) | ((operationType & 0xff) << 8) | (event & 0xff));
+        mRecords.set(base + 2, sequence);
+        mRecords.set(base + 3, key);
+        mRecords.set(base + 4, value);
+        mPublished.set(slot, index + 1);
+    }
+
+    /**
+     * @return number of events recorded so far, including overwritten ones
+     */
+    public long getEventCount() {
+        return mCursor.get();
+    }
+
+    /**
+     * @return number of events the buffer holds
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Copy the events currently in the buffer, oldest first. Events overwritten while being
+     * copied are left out. Recording carries on meanwhile.
+     */
+    public Snapshot snapshot() {
+        final long end = mCursor.get();
+        final long start = Math.max(0, end - mCapacity);
+        final long[] records = new long[(int) (end - start) * RECORD_LONGS];
+        int count = 0;
+        for (long index = start; index < end; index++) {
+            final int slot = (int) index & mMask;
+            if (mPublished.get(slot) != index + 1)
+                continue; // overwritten already, or still being written
+            for (int i = 0; i < RECORD_LONGS; i++)
+                records[count * RECORD_LONGS + i] = mRecords.get(slot * RECORD_LONGS + i);
+            if (mPublished.get(slot) != index + 1)
+                continue; // overwritten while copying
+            count++;
+        }
+        return new Snapshot(mStartNanos, mCursor.get() - count, records, count, mNames);
+    }
+
+    /**
+     * Events copied out of a {@link BleTrace}, or read back from a dump.
+     */
+    public static final class Snapshot {
+        private final long mStartNanos;
+        private final long mLost;
+        private final long[] mRecords;
+        private final int mCount;
+        private final Map<Long, String> mNames;
+
+        Snapshot(long startNanos, long lost, long[] records, int count, Map<Long, String> names) {
+            mStartNanos = startNanos;
+            mLost = lost;
+            mRecords = records;
+            mCount = count;
+            mNames = names;
+        }
+
+        /**
+         * @return number of events in the snapshot
+         */
+        public int size() {
+            return mCount;
+        }
+
+        /**
+         * @return number of events recorded but not in the snapshot, because they were
+         * overwritten or came in while it was taken
+         */
+        public long getLostCount() {
+            return mLost;
+        }
+
+        public long getTimestampNanos(int i) {
+            return mRecords[i * RECORD_LONGS];
+        }
+
+        public int getEvent(int i) {
+            return (int) (mRecords[i * RECORD_LONGS + 1] & 0xff);
+        }
+
+        public int getOperationType(int i) {
+            return (byte) (mRecords[i * RECORD_LONGS + 1] >> 8);
+        }
+
+        public int getTrafficClass(int i) {
+            return (byte) (mRecords[i * RECORD_LONGS + 1] >> 16);
+        }
+
+        public int getStatus(int i) {
+            return (int) (mRecords[i * RECORD_LONGS + 1] >> 32);
+        }
+
+        public long getSequence(int i) {
+            return mRecords[i * RECORD_LONGS + 2];
+        }
+
+        public long getValue(int i) {
+            return mRecords[i * RECORD_LONGS + 4];
+        }
+
+        /**
+         * @return name of the characteristic the event is about, null if none
+         */
+        public String getFieldName(int i) {
+            final long key = mRecords[i * RECORD_LONGS + 3];
+            if (key == 0)
+                return null;
+            String name = mNames.get(key);
+            return name != null ? name : Long.toHexString(key);
+        }
+
+        /**
+         * Write the events in binary form, big endian, 40 bytes per event plus the names of
+         * the characteristics. Read it back with {@link #readFrom(InputStream)}.
+         */
+        public void writeTo(OutputStream os) throws IOException {
+            DataOutputStream out = new DataOutputStream(os);
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(mStartNanos);
+            out.writeLong(mLost);
+            out.writeInt(mNames.size());
+            for (Map.Entry<Long, String> name : mNames.entrySet()) {
+                out.writeLong(name.getKey());
+                out.writeUTF(name.getValue());
+            }
+            out.writeInt(mCount);
+            for (int i = 0; i < mCount * RECORD_LONGS; i++)
+                out.writeLong(mRecords[i]);
+            out.flush();
+        }
+
+        /**
+         * Read a snapshot written by {@link #writeTo(OutputStream)}
+         */
+        public static Snapshot readFrom(InputStream is) throws IOException {
+            DataInputStream in = new DataInputStream(is);
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+                throw new IOException("not a trace dump");
+            final long startNanos = in.readLong();
+            final long lost = in.readLong();
+            final int nameCount = in.readInt();
+            HashMap<Long, String> names = new HashMap<Long, String>(nameCount * 2);
+            for (int i = 0; i < nameCount; i++)
+                names.put(in.readLong(), in.readUTF());
+            final int count = in.readInt();
+            long[] records = new long[count * RECORD_LONGS];
+            for (int i = 0; i < records.length; i++)
+                records[i] = in.readLong();
+            return new Snapshot(startNanos, lost, records, count, names);
+        }
+
+        /**
+         * Write one line per event, with times in ms relative to the start of the trace
+         */
+        public void writeTimeline(Writer out) throws IOException {
+            if (mLost > 0)
+                out.write("(" + mLost + " earlier events lost)\n");
+            StringBuilder line = new StringBuilder(96);
+            for (int i = 0; i < mCount; i++) {
+                line.setLength(0);
+                line.append(String.format(Locale.US, "%12.3f ms  %-16s",
+                        (getTimestampNanos(i) - mStartNanos) / 1e6, eventName(getEvent(i))));
+                describe(i, line);
+                line.append('\n');
+                out.write(line.toString());
+            }
+            out.flush();
+        }
+
+        private void describe(int i, StringBuilder line) {
+            final int event = getEvent(i);
+            if (event == SCAN_HIT) {
+                final int outcome = getStatus(i);
+                line.append("rssi ").append(getValue(i)).append(", ")
+                        .append(outcome >= 0 && outcome < SCAN_OUTCOMES.length ? SCAN_OUTCOMES[outcome] : "?");
+                return;
+            }
+            if (event == CONNECTION_STATE) {
+                line.append("state ").append(getValue(i)).append(", status ").append(getStatus(i));
+                return;
+            }
+            if (getSequence(i) != NONE)
+                line.append('#').append(getSequence(i)).append(' ');
+            if (getOperationType(i) != NONE)
+                line.append(PipelineStats.operationName(getOperationType(i))).append(' ');
+            final String field = getFieldName(i);
+            if (field != null)
+                line.append(field).append(' ');
+            switch (event) {
+                case ENQUEUE:
+                    if (getTrafficClass(i) != NONE)
+                        line.append(TrafficClass.NAMES[getTrafficClass(i)]);
+                    break;
+                case DISPATCH:
+                    line.append("attempt ").append(getStatus(i)).append(", waited ")
+                            .append(String.format(Locale.US, "%.3f ms", getValue(i) / 1e6));
+                    break;
+                case COMPLETE:
+                    line.append("status ").append(getStatus(i)).append(" after ")
+                            .append(String.format(Locale.US, "%.3f ms", getValue(i) / 1e6));
+                    break;
+                case TIMEOUT:
+                    line.append("after ").append(String.format(Locale.US, "%.3f ms", getValue(i) / 1e6));
+                    break;
+                case DEFER:
+                    line.append("due in ").append(String.format(Locale.US, "%.3f ms", getValue(i) / 1e6));
+                    break;
+                case CALLBACK:
+                case LATE_CALLBACK:
+                    line.append("status ").append(getStatus(i));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private static String eventName(int event) {
+            return event < EVENT_NAMES.length ? EVENT_NAMES[event] : "EVENT(" + event + ")";
+        }
+    }
+}
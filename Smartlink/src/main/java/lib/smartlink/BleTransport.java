@@ -0,0 +1,115 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * What {@link BluetoothDevice} needs from a Bluetooth stack: scanning, connecting and the GATT
+ * requests of a connection. {@link AndroidTransport} talks to the Android stack; the tests
+ * bring a simulator, <code>lib.smartlink.sim</code>, which talks to an in-process peripheral.
+ * <p/>
+ * Like the Android stack, requests only start an operation; its result arrives later on the
+ * {@link Callback}, on a thread of the transport's choosing.
+ */
+public interface BleTransport {
+
+    /**
+     * Results of scans and GATT requests. Mirrors BluetoothGattCallback and LeScanCallback.
+     */
+    interface Callback {
+        void onScanResult(String address, String name, int rssi, byte[] scanRecord);
+
+        void onConnectionStateChange(Connection connection, int status, int newState);
+
+        void onServicesDiscovered(Connection connection, int status);
+
+        void onCharacteristicRead(Connection connection, BluetoothGattCharacteristic characteristic, int status);
+
+        void onCharacteristicWrite(Connection connection, BluetoothGattCharacteristic characteristic, int status);
+
+        void onCharacteristicChanged(Connection connection, BluetoothGattCharacteristic characteristic);
+
+        void onDescriptorWrite(Connection connection, BluetoothGattDescriptor descriptor, int status);
+
+        void onReadRemoteRssi(Connection connection, int rssi, int status);
+    }
+
+    /**
+     * A GATT client connection to a single peripheral. The request methods return false if the
+     * stack refused the request, in which case no callback follows.
+     */
+    interface Connection {
+        String getAddress();
+
+        boolean discoverServices();
+
+        /**
+         * @return services found by the last service discovery
+         */
+        List<BluetoothGattService> getServices();
+
+        /**
+         * Make the services of an earlier connection to the same peripheral usable without
+         * discovering them again. The layout is trusted, if it is outdated requests on the
+         * services fail.
+         *
+         * @param layout what an earlier service discovery found
+         * @return the services, null if the transport can't restore them and they have to be
+         * discovered
+         */
+        List<BluetoothGattService> restoreServices(GattLayout layout);
+
+        boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+        /**
+         * Write the characteristic's current value, with its write type
+         */
+        boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+        boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable);
+
+        boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+
+        boolean readRemoteRssi();
+
+        void disconnect();
+
+        /**
+         * Release the connection. No callbacks follow.
+         */
+        void close();
+    }
+
+    /**
+     * @return false if Bluetooth is off or not available
+     */
+    boolean isEnabled();
+
+    /**
+     * @return false if {@link Connection#restoreServices} never restores, so the services of
+     * every connection have to be discovered
+     */
+    boolean canRestoreServices();
+
+    /**
+     * Report advertisements to <code>callback</code> until {@link #stopScan(Callback)}
+     *
+     * @param services if not null, only report devices advertising one of these services. A
+     *                 transport which can't filter reports all devices.
+     */
+    void startScan(Callback callback, UUID[] services);
+
+    void stopScan(Callback callback);
+
+    /**
+     * Start connecting to the peripheral with the given address. The outcome is reported
+     * through {@link Callback#onConnectionStateChange}.
+     *
+     * @return the connection, null if the attempt could not be started
+     */
+    Connection connect(String address, Callback callback);
+}
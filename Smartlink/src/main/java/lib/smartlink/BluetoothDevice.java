@@ -28,40 +28,41 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package lib.smartlink;
 
 import android.app.Activity;
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
-import android.content.Context;
 import android.util.Log;
 
-import com.dd.plist.NSDictionary;
-import com.dd.plist.NSNumber;
-import com.dd.plist.NSObject;
-import com.dd.plist.PropertyListFormatException;
-import com.dd.plist.PropertyListParser;
-
-import org.xml.sax.SAXException;
-
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
-import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class representing a BLE device
@@ -73,13 +74,17 @@ import javax.xml.parsers.ParserConfigurationException;
  */
 @SuppressWarnings({"ConstantConditions", "AccessStaticViaInstance"})
 // because we are already checking for null pointers for delegate
-public class BluetoothDevice extends BluetoothGattCallback implements BluetoothAdapter.LeScanCallback {
+public class BluetoothDevice implements BleTransport.Callback {
     private static final int MAX_QUEUE_SIZE = 20;
 
     /**
      * Delegate used to invoke callbacks
      */
     public interface Delegate {
+        /**
+         * Called on a library thread once per connection, after the driver was started. After a
+         * reconnect the same driver instance is started again.
+         */
         void didStartService(BluetoothDevice device, String serviceName, BLEService service);
 
         void didUpdateSignalStrength(BluetoothDevice device, float signalStrength);
@@ -88,16 +93,15 @@ public class BluetoothDevice extends BluetoothGattCallback implements BluetoothA
 
         void didStartConnectingTo(BluetoothDevice device, float signalStrength);
 
+        /**
+         * Called on a library thread, also when a connection attempt failed
+         */
         void didDisconnect(BluetoothDevice device);
 
         void didConnect(BluetoothDevice device);
     }
 
     private static final String TAG = "lib-smartlink-BluetoothDevice";
-    private static final int ADV_128BIT_UUID_ALL = 0x06;
-    private static final int ADV_128BIT_UUID_MORE = 0x07;
-    private static final int ADV_128BIT_UUID_SHORTNAME = 0x08;
-    private static final int ADV_128BIT_UUID_FULLNAME = 0x09;
 
     public WeakReference<Delegate> delegate;
     public boolean automaticallyReconnect = false;
@@ -105,19 +109,87 @@ public class BluetoothDevice extends BluetoothGattCallback implements BluetoothA
     private int rssiLow = -96;
 
     private final Activity mOwner;
-    private android.bluetooth.BluetoothDevice mDevice;
-    private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothGatt mBluetoothGatt;
-    private static final Object mBluetoothGattLock = new Object();
+    // address of the peripheral connected to, or being connected to
+    private volatile String mAddress;
+    // the Android stack unless given to the constructor, created by connect()
+    private BleTransport mTransport;
+    // only set to null under mConnectionLock
+    private volatile BleTransport.Connection mConnection;
+    // returned by BleTransport.connect, until the connection is up or given up on
+    private final AtomicReference<BleTransport.Connection> mConnecting = new AtomicReference<BleTransport.Connection>();
+    private final Object mConnectionLock = new Object();
 
     private UUID[] mPrimaryServices;
-    private String mDeviceName;
+    // matches advertisements against the primary services and the device name
+    private AdvertisementParser mAdvertisementParser;
+    private volatile ScanPolicy mScanPolicy = ScanPolicy.continuous(0);
+    private final ScanStats mScanStats = new ScanStats();
+    private final Object mScanLock = new Object();
+    // looking for a device to connect to, though the radio may be pausing
+    private volatile boolean mScanning;
+    // the transport is scanning, guarded by mScanLock
+    private boolean mRadioScanning;
+    // incremented whenever scanning starts or stops, so timers of an old scan do nothing
+    private int mScanSession;
+    // pause after the current window, guarded by mScanLock
+    private long mScanPauseMs;
+    // start or end of the next scan window, and the scan timeout; guarded by mScanLock
+    private ScheduledFuture<?> mScanCycle;
+    private ScheduledFuture<?> mScanTimeout;
+    // matches advertisements, so the transport's callback thread gets them off its hands quickly
+    private final ThreadPoolExecutor mScanWorker = newScanWorker();
+    // verdicts of mAdvertisementParser per device, most advertisements are repeats
+    private final ScanCache mScanCache = new ScanCache();
+    // how long to collect candidates before connecting to the best one, 0 to take the first
+    private volatile long mSelectionWindowMs = 0;
+    // connect to the best candidate so far after this long, even if none is stable yet
+    private volatile long mSelectionDeadlineMs = DEFAULT_SELECTION_DEADLINE_MS;
+    private static final long DEFAULT_SELECTION_DEADLINE_MS = 3000;
+    private final CandidateSelector mSelector = new CandidateSelector();
+    // when the current candidate window is decided, guarded by mSelector
+    private ScheduledFuture<?> mDecision;
+    // a CONNECT is queued or running, so further advertisements don't queue another one
+    private final AtomicBoolean mConnectQueued = new AtomicBoolean();
     private final Semaphore mSemaphore = new Semaphore(1); // single threaded access
-
-    boolean allowRudder = true;
-    boolean allowMotor = true;
-
-    private int lastSignalStrength = 0;
+    // The operation currently holding mSemaphore, null if the stack is idle
+    private final AtomicReference<BleCommand> mInFlight = new AtomicReference<BleCommand>();
+    private final WritePacer mPacer = new WritePacer();
+    private final WriteWindow mWindow = new WriteWindow();
+    // how long to wait before retrying a write without response the stack had no room for
+    private static final long REFUSED_RETRY_DELAY_NS = 10000000L;
+    private final PipelineStats mStats = new PipelineStats();
+    // null unless tracing, see startTrace()
+    private volatile BleTrace mTrace;
+    // null unless recording, see startRecording()
+    private volatile SessionRecorder mRecorder;
+
+    // How long an operation may stay in flight before the watchdog takes the stack back, by type
+    private final long[] mTimeoutsMs = {
+            2000,   // ENABLE_NOTIFICATION
+            2000,   // DISABLE_NOTIFICATION
+            1000,   // WRITE
+            1000,   // READ
+            3000,   // DISCONNECT
+            1000,   // UPDATE_RSSI
+            10000,  // DISCOVER_SERVICES
+            1000,   // SCAN
+            15000   // CONNECT
+    };
+    // An operation is sent at most this many times before it is failed
+    private static final int MAX_ATTEMPTS = 2;
+
+    // Per traffic class: operations waiting in the queue, and the limits on that
+    private final AtomicIntegerArray mQueuedPerClass = new AtomicIntegerArray(TrafficClass.COUNT);
+    private final int[] mClassBounds = TrafficClass.DEFAULT_BOUNDS.clone();
+    private final int[] mClassPolicies = TrafficClass.DEFAULT_POLICIES.clone();
+    // Characteristics whose operations don't go into the default class for their type
+    private final HashMap<BluetoothGattCharacteristic, Integer> mClassOverrides = new HashMap<BluetoothGattCharacteristic, Integer>();
+    // FIFO order within a traffic class
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private volatile int lastSignalStrength = 0;
+    // an update of the signal strength waits for the driver worker, which reports the latest
+    private final AtomicBoolean mRssiScheduled = new AtomicBoolean();
 
     /**
      * Class representing a BLE instruction to be serialised through the BLE
@@ -125,131 +197,211 @@ public class BluetoothDevice extends BluetoothGattCallback implements BluetoothA
      * time so we need to queue them up.
      */
     protected class BleCommand implements Comparable<BleCommand>, Runnable {
-        public static final int ENABLE_NOTIFICATION = 0;
-        public static final int DISABLE_NOTIFICATION = 1;
-        public static final int WRITE = 2;
-        public static final int READ = 3;
-        public static final int DISCONNECT = 4;
-        public static final int UPDATE_RSSI = 5;
-        public static final int DISCOVER_SERVICES = 6;
-        public static final int SCAN = 7;
-        public static final int CONNECT = 8;
-
-        public static final int NO_EXTRA = 0;
-        public static final int EXTRA_RUDDER = 1;
-        public static final int EXTRA_MOTOR = 2;
+        public static final int ENABLE_NOTIFICATION = GattResult.OPERATION_ENABLE_NOTIFICATION;
+        public static final int DISABLE_NOTIFICATION = GattResult.OPERATION_DISABLE_NOTIFICATION;
+        public static final int WRITE = GattResult.OPERATION_WRITE;
+        public static final int READ = GattResult.OPERATION_READ;
+        public static final int DISCONNECT = GattResult.OPERATION_DISCONNECT;
+        public static final int UPDATE_RSSI = GattResult.OPERATION_UPDATE_RSSI;
+        public static final int DISCOVER_SERVICES = GattResult.OPERATION_DISCOVER_SERVICES;
+        public static final int SCAN = GattResult.OPERATION_SCAN;
+        public static final int CONNECT = GattResult.OPERATION_CONNECT;
 
         private final int operationType;
-        private final int extraOpt;
+        // WRITE only: the channel whose value is resolved at dispatch time, null for plain writes
+        private final ControlChannel channel;
+        private final int trafficClass;
+        private final long sequence;
+        // System.nanoTime() after which the command is stale and dropped, 0 if it never expires
+        private final long deadlineNanos;
+        // notification setup, or a read of a driver being attached: the driver relies on it, so
+        // it never expires and is never dropped to make room
+        private final boolean setup;
 
         private final BluetoothGattCharacteristic field;
+        // WRITE only: the newest value for the field, replaced in place while the command waits
+        private byte[] value;
+        // WRITE only: a write of the other kind took its slot, see supersede(). Guarded by mWriteSlots
+        private boolean superseded;
+        // CONNECT only: the peripheral to connect to
+        private String address;
+
+        // completed with the outcome, shared by everyone whose write was coalesced into this one
+        private final GattFuture future = new GattFuture();
+        private final long enqueueNanos = System.nanoTime();
+
+        // in flight bookkeeping, see beginOperation()
+        private long dispatchNanos;
+        private int attempts;
+        private ScheduledFuture<?> watchdog;
 
         public BleCommand(int operationType, BluetoothGattCharacteristic field) {
-            this.operationType = operationType;
-            this.field = field;
-            this.extraOpt = NO_EXTRA;
+            this(operationType, field, null);
         }
 
-        public BleCommand(int operationType, BluetoothGattCharacteristic field, int extraOpt) {
+        public BleCommand(int operationType, BluetoothGattCharacteristic field, ControlChannel channel) {
             this.operationType = operationType;
             this.field = field;
-            this.extraOpt = extraOpt;
+            this.channel = channel;
+            this.trafficClass = trafficClassOf(operationType, field, channel);
+            this.sequence = mSequence.incrementAndGet();
+            this.setup = operationType == ENABLE_NOTIFICATION || operationType == DISABLE_NOTIFICATION
+                    || (operationType == READ && Thread.currentThread() == mAttaching);
+            if ((operationType == READ && !setup) || operationType == UPDATE_RSSI)
+                this.deadlineNanos = System.nanoTime() + TrafficClass.DATA_DEADLINE_MS * 1000000L;
+            else
+                this.deadlineNanos = 0;
         }
 
-        @Override
-        public boolean equals(Object another) {
-            if (this == another)
-                return true;
-            if (!(another instanceof BleCommand))
-                return false;
-            BleCommand that = (BleCommand) another;
-            return this.field == that.field && this.operationType == that.operationType;
-        }
+        private String name; // built on first use, commands are logged repeatedly
 
         @Override
         public String toString() {
-            String[] optype = {"NOTIF_ENABLE", "NOTIF_DISABLE", "WRITE", "READ", "DISCONNECT", "UPDATE_RSSI", "DISCOVER_SERVICES", "SCAN"};
-            String fieldname = (this.field == null) ? "--" : uuidToName.get(uuidHarmonize(this.field.getUuid().toString()));
-            return "{" + optype[this.operationType] + ": " + fieldname + "}";
+            if (name == null) {
+                String fieldname = (this.field == null) ? "--" : fieldPathOf(this.field);
+                name = "{" + PipelineStats.operationName(this.operationType) + ": " + fieldname + "}";
+            }
+            return name;
+        }
+
+        /**
+         * @return true for writes in the control class, which are paced
+         */
+        boolean isControlWrite() {
+            return operationType == WRITE && trafficClass == TrafficClass.CONTROL;
+        }
+
+        /**
+         * @return true for writes without response, which go through the credit window
+         */
+        boolean isPipelinedWrite() {
+            return operationType == WRITE
+                    && field.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
         }
 
         @SuppressWarnings("NullableProblems")
         @Override
         public int compareTo(BleCommand that) {
-            if (this.field == that.field && this.operationType == that.operationType)
-                return 0;
-            if (this.operationType < that.operationType)
-                return -1;
-            else
-                return 1;
+            // strict priority between classes, first come first served within a class
+            if (this.trafficClass != that.trafficClass)
+                return this.trafficClass < that.trafficClass ? -1 : 1;
+            if (this.sequence != that.sequence)
+                return this.sequence < that.sequence ? -1 : 1;
+            return 0;
         }
 
         @Override
         public void run() {
+            mQueuedPerClass.decrementAndGet(trafficClass);
+            if (deadlineNanos != 0 && System.nanoTime() - deadlineNanos > 0) {
+                Log.d(TAG, "Dropping stale " + this);
+                mStats.onExpired(trafficClass);
+                resolve(this, GattResult.STATUS_DROPPED, null);
+                return;
+            }
+            if (isControlWrite() || channel != null) {
+                final long now = System.nanoTime();
+                final long paced = isControlWrite() ? mPacer.delayNanos(now) : 0;
+                final long limited = channel == null ? 0 : channel.delayNanos(now);
+                if (paced > 0 || limited > 0) {
+                    // not due yet: let other operations through instead of sleeping on the queue.
+                    // Newer values keep coalescing into this command while it waits.
+                    defer(this, Math.max(paced, limited));
+                    return;
+                }
+            }
+            if (operationType == CONNECT) {
+                connectGatt(this);
+                return;
+            }
+            if (mConnection == null) { // got disconnected
+                discard(this, GattResult.STATUS_DISCONNECTED);
+                return;
+            }
             try {
-                // mBluetoothGatt can be set to null by another thread even after the null check
-                synchronized (mBluetoothGattLock) {
-                    if (mBluetoothGatt == null) // got disconnected
+                // Acquire permission first, outside the lock: a teardown takes the lock before
+                // it lets go of the operation in flight
+                beginOperation(this);
+                // mConnection can be set to null by another thread even after the null check
+                synchronized (mConnectionLock) {
+                    if (mConnection == null) { // got disconnected while waiting
+                        finishOperation(this);
+                        discard(this, GattResult.STATUS_DISCONNECTED);
                         return;
-                    // Acquire permission first
-                    mSemaphore.acquire();
+                    }
                     BluetoothGattCharacteristic c = this.field;
+                    if (!isPipelinedWrite()) {
+                        // needs the stack for itself, let outstanding writes without response finish
+                        drainWriteWindow();
+                    }
+                    // false if the stack refused the request, its callback will never come
+                    boolean sent = true;
 
                     switch (this.operationType) {
                         case READ:
-                            mBluetoothGatt.readCharacteristic(c);
+                            sent = mConnection.readCharacteristic(c);
                             break;
                         case WRITE:
-                            switch (extraOpt) {
-                                case NO_EXTRA:
-                                    mBluetoothGatt.writeCharacteristic(c);
-                                    break;
-                                case EXTRA_MOTOR:
-                                    BLEService smServM = charToDriver.get(c);
-                                    int valM = smServM.mEngineDP.fetchData();
-                                    c.setValue(valM, BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-                                    mBluetoothGatt.writeCharacteristic(c);
-                                    allowMotor = true;
-                                    break;
-                                case EXTRA_RUDDER:
-                                    BLEService smServR = charToDriver.get(c);
-                                    int valR = smServR.mRudderDp.fetchData();
-                                    c.setValue(valR, BluetoothGattCharacteristic.FORMAT_SINT8, 0);
-                                    mBluetoothGatt.writeCharacteristic(c);
-                                    allowRudder = true;
-                                    try {
-                                        Thread.sleep(85);
-                                    } catch (InterruptedException ex) {
-                                        Log.wtf("Sleeping: ", "Interrupt occurred");
-                                    }
-                                    break;
-                                default:
-                                    Log.wtf(TAG, "Unexpected EXTRA option");
-                                    break;
+                            byte[] value = takePendingWrite(this);
+                            if (superseded) {
+                                // the newer write completes its future
+                                finishOperation(this);
+                                return;
+                            }
+                            if (channel != null && channel.needsFollowUp()) {
+                                // its filters move on without new values, e.g. a slew limit
+                                writeControl(channel);
+                            }
+                            if (value == null) {
+                                // the peripheral already has this value, don't bother the stack
+                                finishOperation(this);
+                                resolve(this, BluetoothGatt.GATT_SUCCESS, this.value);
+                                return;
+                            }
+                            c.setValue(value);
+                            record(SessionRecorder.SEND, WRITE, c, 0, sequence, value);
+                            if (isPipelinedWrite()) {
+                                writeWithoutResponse(this, value);
+                                return;
+                            }
+                            if (isControlWrite())
+                                mPacer.onDispatch(System.nanoTime());
+                            sent = mConnection.writeCharacteristic(c);
+                            if (!sent) {
+                                synchronized (mWriteSlots) {
+                                    WriteSlot slot = mWriteSlots.get(c);
+                                    if (slot != null)
+                                        slot.inFlight = null;
+                                }
                             }
                             break;
                         case ENABLE_NOTIFICATION:
-                            writeNotificationDescriptor(c, true);
+                            sent = writeNotificationDescriptor(c, true);
                             break;
                         case DISABLE_NOTIFICATION:
-                            writeNotificationDescriptor(c, false);
+                            sent = writeNotificationDescriptor(c, false);
                             break;
                         case DISCONNECT:
-                            if (mBluetoothGatt != null) {
-                                mBluetoothGatt.disconnect();
-                            }
+                            mConnection.disconnect();
                             break;
                         case UPDATE_RSSI:
-                            if (mBluetoothGatt != null) {
-                                mBluetoothGatt.readRemoteRssi();
-                            }
+                            sent = mConnection.readRemoteRssi();
                             break;
                         case DISCOVER_SERVICES:
-                            mBluetoothGatt.discoverServices();
+                            sent = mConnection.discoverServices();
                             break;
                         case SCAN:
                             startScanning();
-                            break;
+                            finishOperation(this); // no callback for this one
+                            resolve(this, BluetoothGatt.GATT_SUCCESS, null);
+                            return;
+                    }
+
+                    if (!sent) {
+                        Log.w(TAG, "Stack refused " + this);
+                        mStats.onFailure();
+                        finishOperation(this);
+                        resolve(this, GattResult.STATUS_REFUSED, null);
                     }
                 }
             } catch (InterruptedException e) {
@@ -262,480 +414,2039 @@ public class BluetoothDevice extends BluetoothGattCallback implements BluetoothA
     }
 
     // For serializing access to Bluetooth stack
-    // Not using Executors.newSingleThreadExecutor because we want to use a priority queue
-    // XXX static - all the commands have to go through a single pool, even when multiple BluetoothDevices
-    private static ThreadPoolExecutor mCommandQueue = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
-
-    private HashMap<String, String> uuidToName;
-    private HashMap<String, String> mServiceNameToDriverClass;
-    private final HashMap<BluetoothGattCharacteristic, BLEService> charToDriver = new HashMap<BluetoothGattCharacteristic, BLEService>();
-
-    private static String uuidHarmonize(String old) {
-        // takes a 16 or 128 bit uuid string (with dashes) and harmonizes it into a 128 bit uuid
-        String uuid = old.toUpperCase();
-        if (uuid.length() == 4) {
-            // 16 bit UUID. Convert to 128 bit using Bluetooth base UUID.
-            uuid = "0000" + uuid + "-0000-1000-8000-00805F9B34FB";
-        }
-        return uuid;
-    }
+    // Not using Executors.newSingleThreadExecutor because we want to use a priority queue.
+    // Every BluetoothDevice gets its own queue, so a slow device never holds up the others.
+    private static final AtomicInteger sPipelineCount = new AtomicInteger();
+    private static final long IDLE_THREAD_KEEPALIVE_MS = 10000;
+    private static final AtomicInteger sScanWorkerCount = new AtomicInteger();
+    private static final AtomicInteger sDriverWorkerCount = new AtomicInteger();
+    // in the app's cache directory
+    private static final String LAYOUT_FILE = "smartlink-gatt-layouts";
+    private static final String READ_CACHE_FILE = "smartlink-read-cache";
+    // advertisements waiting to be matched, more are dropped
+    private static final int SCAN_BACKLOG = 32;
+    private final ThreadPoolExecutor mCommandQueue = newCommandQueue();
+    // Only hands deferred commands back to their device's queue, never touches the stack itself
+    private static final ScheduledThreadPoolExecutor sTimer = newTimer();
+
+    private final DeviceConfig mConfig;
+    // Creates, binds and starts drivers, so their code never runs on the binder thread
+    private final ThreadPoolExecutor mDriverWorker = newDriverWorker();
+    // the driver of every service of mConfig, null until first discovered, only touched by mDriverWorker
+    private final BLEService[] mDrivers;
+    // the value stream of every field of mConfig, created when first asked for
+    private final AtomicReferenceArray<ValueStream> mStreams;
+    // drivers bound to the current connection and their service names, only touched by mDriverWorker
+    private final ArrayList<BLEService> mBound = new ArrayList<BLEService>();
+    private final ArrayList<String> mBoundNames = new ArrayList<String>();
+    // the driver worker while it runs attached(), so the reads drivers start with are kept
+    private volatile Thread mAttaching;
+    // where the layouts of peripherals are kept between connections, null to always discover
+    private volatile GattLayoutCache mLayouts = GattLayoutCache.getShared();
+    // the current connection's services were restored from mLayouts, not discovered
+    private final AtomicBoolean mLayoutRestored = new AtomicBoolean();
+    // where values of fields which rarely change are kept between connections, null to always read
+    private volatile ReadCache mReadCache = ReadCache.getShared();
+    // per field of mConfig: how old a cached value may be, 0 if the field isn't cached, and
+    // whether to read it anyway. Set by the drivers when attached, before they read the field.
+    private final long[] mCacheMaxAgeMs;
+    private final boolean[] mCacheRevalidate;
 
     /**
-     * Create a <code>BluetoothDevice</code>
-     *
-     * @param plistFile .plist config file
-     *                  The .plist file is a standard Apple XML format property list which
-     *                  specifies the configuration parameters for this instance of the
-     *                  BluetoothDevice class. This includes the services and its fields that we
-     *                  want to interact with, which ones are primary (connection-triggering)
-     *                  services, signal level thresholds for connection etc.
-     * @param owner     activity that will use this device
+     * The characteristics of the connected peripheral which belong to a driver, numbered with
+     * dense handles in the order they were discovered. Built once per connection and replaced as
+     * a whole, so callbacks find their driver by comparing a handful of references, without
+     * hashing the characteristic or looking up its name.
      */
-    public BluetoothDevice(InputStream plistFile, Activity owner) {
-        mOwner = owner;
-        NSDictionary mPlist;
-
-        try {
-            mPlist = (NSDictionary) PropertyListParser.parse(plistFile);
-        } catch (PropertyListFormatException e) {
-            throw new IllegalArgumentException("invalid plistFile");
-        } catch (ParserConfigurationException e) {
-            throw new IllegalArgumentException("invalid plistFile");
-        } catch (ParseException e) {
-            throw new IllegalArgumentException("invalid plistFile");
-        } catch (SAXException e) {
-            throw new IllegalArgumentException("invalid plistFile");
-        } catch (IOException e) {
-            throw new IllegalArgumentException("invalid plistFile");
-        }
-        // Collect basic settings
-        rssiHigh = ((NSNumber) mPlist.objectForKey("rssi high")).intValue();
-        rssiLow = ((NSNumber) mPlist.objectForKey("rssi low")).intValue();
-        NSObject devName = mPlist.objectForKey("device name");
-        if (devName != null) {
-            mDeviceName = devName.toString();
-        }
-        Log.d(TAG, "Device name: " + mDeviceName);
-
-        // Build a list of all primary services to scan for
-        NSDictionary services = (NSDictionary) mPlist.objectForKey("Services");
-        List<UUID> uuidList = new ArrayList<UUID>();
-
-        for (String serviceName : services.allKeys()) { // enumerate over all keys
-
-            NSDictionary service = (NSDictionary) services.objectForKey(serviceName);
-
-            NSNumber isPrimary = ((NSNumber) service.objectForKey("Primary"));
-            if (isPrimary == null)
-                continue;
+    private static class HandleTable {
+        static final HandleTable EMPTY = new HandleTable(new BluetoothGattCharacteristic[0],
+                new BLEService[0], new int[0], new int[0]);
+
+        final BluetoothGattCharacteristic[] chars;
+        final BLEService[] drivers;
+        final int[] fields; // index of the field within its driver
+        final int[] configFields; // id of the field in the config, for its stream and caching
+        // the newest value not handed to the driver yet, non-null while its delivery is scheduled
+        final AtomicReferenceArray<byte[]> latest;
+
+        HandleTable(BluetoothGattCharacteristic[] chars, BLEService[] drivers, int[] fields,
+                    int[] configFields) {
+            this.chars = chars;
+            this.drivers = drivers;
+            this.fields = fields;
+            this.configFields = configFields;
+            this.latest = new AtomicReferenceArray<byte[]>(chars.length);
+        }
 
-            if (isPrimary.boolValue()) {
-                UUID uuid = UUID.fromString(service.objectForKey("UUID").toString());
-                uuidList.add(uuid);
-                Log.d(TAG, "Includes primary '" + serviceName + "' service: " + uuid);
+        /**
+         * @return the handle of <code>c</code>, -1 if no driver uses it
+         */
+        int handleOf(BluetoothGattCharacteristic c) {
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == c)
+                    return i;
             }
+            return -1;
         }
 
-        // Pre-convert to an array because it will be used quite often (on every scan start)
-        mPrimaryServices = new UUID[uuidList.size()]; // allocate array with just enough elements
-        uuidList.toArray(mPrimaryServices);
-
-        // Now build our HashMap of uuid -> name.
-        uuidToName = new HashMap<String, String>();
-        // And also one to store which driver handles a particular service
-        mServiceNameToDriverClass = new HashMap<String, String>();
-
-        for (String serviceName : services.allKeys()) {
-
-            // Get service information dictionary
-            NSDictionary service = (NSDictionary) services.objectForKey(serviceName);
-
-            // Add service name, its uuid and driver class
-            String uuid = uuidHarmonize(service.objectForKey("UUID").toString());
-            uuidToName.put(uuid, serviceName);
-            mServiceNameToDriverClass.put(serviceName, service.objectForKey("DriverClass").toString());
-
-            Log.i(TAG, "|--" + serviceName + " : " + uuid);
+    }
 
-            // Now iterate over its characteristics
-            NSDictionary fields = (NSDictionary) service.objectForKey("Fields");
-            for (String charName : fields.allKeys()) {
-                String charUuid = uuidHarmonize(fields.objectForKey(charName).toString());
-                uuidToName.put(charUuid, serviceName + "/" + charName);
-                Log.i(TAG, "|     " + charName + " : " + charUuid);
-            }
+    private volatile HandleTable mHandles = HandleTable.EMPTY;
 
+    /**
+     * @return the characteristic with this UUID which belongs to a driver, null if there is none
+     */
+    BluetoothGattCharacteristic characteristicOf(UUID uuid) {
+        for (BluetoothGattCharacteristic c : mHandles.chars) {
+            if (c.getUuid().equals(uuid))
+                return c;
         }
+        return null;
     }
 
     /**
-     * Start scanning for devices and attempt connecting.
-     *
-     * @throws BluetoothDisabledException
+     * Write state of a single characteristic. There is at most one queued write per
+     * characteristic; newer values replace the queued one instead of queueing up behind it.
      */
-    public void connect() throws BluetoothDisabledException {
-        final BluetoothManager bluetoothManager =
-                (BluetoothManager) mOwner.getSystemService(Context.BLUETOOTH_SERVICE);
-        mBluetoothAdapter = bluetoothManager.getAdapter();
-
-        if (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()) {
-            startScanning();
-        } else {
-            throw new BluetoothDisabledException("Bluetooth is disabled.");
-        }
+    private static class WriteSlot {
+        BleCommand pending;   // queued, not dispatched yet
+        byte[] inFlight;      // handed to the stack, waiting for onCharacteristicWrite
+        byte[] acknowledged;  // last value the stack confirmed, null if unknown
+        // writes without response sent but not confirmed yet, oldest first
+        final ArrayDeque<BleCommand> outstanding = new ArrayDeque<BleCommand>(2);
+        boolean control;      // written through the control class, completions feed the pacer
     }
 
-    public void disconnect() {
-        enqueueOperation(BleCommand.DISCONNECT);
+    // guarded by itself
+    private final HashMap<BluetoothGattCharacteristic, WriteSlot> mWriteSlots = new HashMap<BluetoothGattCharacteristic, WriteSlot>();
+
+    private static ThreadPoolExecutor newCommandQueue() {
+        final String name = "smartlink-ops-" + sPipelineCount.incrementAndGet();
+        ThreadPoolExecutor queue = new ThreadPoolExecutor(1, 1,
+                IDLE_THREAD_KEEPALIVE_MS, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // let idle devices give their thread back, it is recreated on the next operation
+        queue.allowCoreThreadTimeOut(true);
+        return queue;
     }
 
-    public void updateSignalStrength() {
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.readRemoteRssi();
-        }
+    private ThreadPoolExecutor newScanWorker() {
+        final String name = "smartlink-scan-" + sScanWorkerCount.incrementAndGet();
+        ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1,
+                IDLE_THREAD_KEEPALIVE_MS, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(SCAN_BACKLOG),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // the same devices advertise again soon enough
+                        mScanStats.onDropped();
+                    }
+                });
+        worker.allowCoreThreadTimeOut(true);
+        return worker;
     }
 
-    private void startScanning() {
-        mBluetoothAdapter.stopLeScan(this); // in case scan was already running
-        mBluetoothAdapter.startLeScan(this);
-        try {
-            delegate.get().didStartScanning(this);
-        } catch (NullPointerException ex) {
-            Log.w(TAG, "No delegate set");
-        }
+    private static ThreadPoolExecutor newDriverWorker() {
+        final String name = "smartlink-drivers-" + sDriverWorkerCount.incrementAndGet();
+        ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1,
+                IDLE_THREAD_KEEPALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        worker.allowCoreThreadTimeOut(true);
+        return worker;
     }
 
-    private static boolean uuidEqualToByteArray(UUID uuid, byte[] b) {
-        // http://stackoverflow.com/questions/18019161/startlescan-with-128-bit-uuids-doesnt-work-on-native-android-ble-implementation
-        final String s = uuid.toString().replace("-", "");
-        final String given = Util.bytesToHex(b);
-
-        return given.equalsIgnoreCase(s);
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "smartlink-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.setKeepAliveTime(IDLE_THREAD_KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        return timer;
     }
 
     /**
-     * Check whether <code>scanRecord</code> includes any primary (i.e.
-     * connection triggering)  service
-     *
-     * @param scanRecord the advertisement packet
-     * @return true if it includes primary services, false otherwise
+     * Put <code>op</code> back into the queue after <code>delayNanos</code>
      */
-    private boolean includesPrimaryService(byte[] scanRecord) {
-        if (scanRecord.length < 3)
-            return false; // cuz we need at least 3 bytes: len, type, data
+    private void defer(final BleCommand op, long delayNanos) {
+        mPacer.onDeferred();
+        trace(BleTrace.DEFER, op, 0, delayNanos);
+        requeueLater(op, delayNanos);
+    }
 
-        int offset = 0;
-        do {
-            final int len = scanRecord[offset++];
-            final int type = scanRecord[offset++];
-            if (type == ADV_128BIT_UUID_ALL || type == ADV_128BIT_UUID_MORE) {
-                byte[] uuidBytes = Util.subarray(scanRecord, offset, offset + len - 1);
-                Util.reverse(uuidBytes);
-
-                for (UUID primary : mPrimaryServices) {
-                    if (uuidEqualToByteArray(primary, uuidBytes))
-                        return true;
-                }
+    private void requeueLater(final BleCommand op, long delayNanos) {
+        sTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                requeue(op);
             }
-            offset += len - 1;
-        } while (offset < scanRecord.length - 1); // len-1 cuz each time we read at least 2 bytes
-        return false;
+        }, delayNanos, TimeUnit.NANOSECONDS);
     }
 
     /**
-     * Check whether <code>scanRecord</code> includes a known device name. Some phones don't send
-     * full advertising data including scan response payload, but only send the first advertising
-     * packet which might not contain the 128 bit service UUID. Or something like that.
-     *
-     * @param scanRecord the advertisement packet
-     * @return true if it includes preset device name
+     * @return the credit window of writes without response, to configure it and for its statistics
      */
-    // TODO: code smell: very similar to above function. refactor.
-    private boolean includesDeviceName(byte[] scanRecord) {
-        if (scanRecord.length < 3)
-            return false; // cuz we need at least 3 bytes: len, type, data
+    public WriteWindow getWriteWindow() {
+        return mWindow;
+    }
 
-        int offset = 0;
-        do {
-            final int len = scanRecord[offset++];
-            final int type = scanRecord[offset++];
-            if (type == ADV_128BIT_UUID_SHORTNAME || type == ADV_128BIT_UUID_FULLNAME) {
-                byte[] uuidBytes = Util.subarray(scanRecord, offset, offset + len - 1);
-                String name = new String(uuidBytes);
-                if (name.equalsIgnoreCase(mDeviceName))
-                    return true;
-            }
-            offset += len - 1;
-        } while (offset < scanRecord.length - 1); // len-1 cuz each time we read at least 2 bytes
-        return false;
+    private long creditTimeoutNanos() {
+        // well before the watchdog of the write waiting for the credit fires
+        return mTimeoutsMs[BleCommand.WRITE] * 1000000L / 2;
     }
 
-    @Override
-    public void onLeScan(android.bluetooth.BluetoothDevice d, int rssi, byte[] scanRecord) {
-        // When scan results are received
-        mDevice = d;
+    private void drainWriteWindow() throws InterruptedException {
+        if (!mWindow.awaitDrained(creditTimeoutNanos()))
+            reclaimCredits();
+    }
 
-        // Touch-n-Go
-        if (!(rssiLow <= rssi && rssi <= rssiHigh)) {
-            // rssi outside acceptable range, ignore this result.
-            Log.w(TAG, "Rssi " + rssi + " outside range [" + rssiLow + ", " + rssiHigh + "]");
+    /**
+     * Callbacks of outstanding writes without response did not come back in time, forget them
+     */
+    private void reclaimCredits() {
+        final int lost = mWindow.reclaim();
+        if (lost == 0)
             return;
-        }
-
-        if (mDevice.getName() == null) {
-            Log.i(TAG, "Unknown device found.");
-        } else {
-            Log.i(TAG, mDevice.getName() + " found");
-        }
-
-        if (!includesPrimaryService(scanRecord)) {
-            Log.i(TAG, "No primary services found. Checking for device name...");
-            if (!includesDeviceName(scanRecord)) {
-                Log.i(TAG, "Device name also doesn't match. Skipping...");
-                return;
-            } else {
-                Log.i(TAG, "Device name matched, will connect");
+        Log.w(TAG, lost + " writes without response never got their callback");
+        mStats.onTimeout(BleCommand.WRITE, creditTimeoutNanos());
+        synchronized (mWriteSlots) {
+            for (WriteSlot slot : mWriteSlots.values()) {
+                if (slot.outstanding.isEmpty())
+                    continue;
+                for (BleCommand op : slot.outstanding)
+                    resolve(op, GattResult.STATUS_TIMEOUT, null);
+                slot.outstanding.clear();
+                slot.inFlight = null;
+                slot.acknowledged = null;
             }
-        } else {
-            Log.i(TAG, "Primary services found.");
         }
+    }
 
-        Delegate delegRef = delegate.get();
-        if (delegRef != null) {
-                /* XXX: should be d, not this */
-            delegRef.didStartConnectingTo(this, rssi);
-        } else {
-            Log.i(TAG, "Delegate was not set");
-        }
-        // Connection is done on the command queue. Since this needs extra data (mDevice, mOwner etc.),
-        // we'll create a special-case subclass of BleCommand and override its run method.
-        // Using the command queue is necessary to work around Samsung bug. (check T4 on Phabricator).
-        mCommandQueue.execute(new BleCommand(BleCommand.CONNECT, null) {
-            @Override
-            public void run() {
-                try {
-                    Log.i(TAG, "Attempting to acquire BLE lock and start connecting (" + mCommandQueue.getQueue().size() + " ops pending)");
-                    mSemaphore.acquire();
-                    mDevice.connectGatt(mOwner.getApplicationContext(), false, BluetoothDevice.this);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "Thread interrupted while connecting");
+    /**
+     * Send a write without response as soon as the credit window allows, without waiting for its
+     * callback. Called with <code>op</code> in flight, which it finishes.
+     */
+    private void writeWithoutResponse(BleCommand op, byte[] value) throws InterruptedException {
+        final BluetoothGattCharacteristic c = op.field;
+        boolean tracked, sent;
+        int outstanding;
+        do {
+            if (!mWindow.acquire(creditTimeoutNanos()))
+                reclaimCredits();
+
+            if (op.isControlWrite())
+                mPacer.onDispatch(System.nanoTime());
+            // book the write before handing it over, its callback may come before writeCharacteristic returns
+            synchronized (mWriteSlots) {
+                WriteSlot slot = mWriteSlots.get(c);
+                tracked = slot != null;
+                mWindow.onSent(System.nanoTime());
+                if (tracked) {
+                    op.value = value;
+                    slot.outstanding.add(op);
                 }
             }
-        });
-
-    }
-
-    @Override
-    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-        Log.d(TAG, "Connection state changed to " + newState + " (status: " + status + ")");
-        switch (newState) {
-            case BluetoothProfile.STATE_CONNECTED:
-                Log.i(TAG, "Connected to device");
-                mBluetoothAdapter.stopLeScan(this);
-                mBluetoothGatt = gatt;
-                mSemaphore.release(); // because connection is also a queued operation
-                enqueueOperation(BleCommand.DISCOVER_SERVICES);
-                if (delegate.get() != null) {
-                    delegate.get().didConnect(this);
+            sent = mConnection.writeCharacteristic(c);
+            outstanding = 0;
+            if (!sent) {
+                synchronized (mWriteSlots) {
+                    outstanding = mWindow.onRefused();
+                    WriteSlot slot = mWriteSlots.get(c);
+                    if (slot != null)
+                        slot.outstanding.removeLastOccurrence(op);
                 }
-                break;
-            case BluetoothProfile.STATE_DISCONNECTED:
-                charToDriver.clear();
-                mSemaphore.release();
-
-                if (mBluetoothGatt != null) {
-                    mBluetoothGatt.close();
-                    // the queued commands rely on mbluetoothgatt not being null
-                    synchronized (mBluetoothGattLock) {
-                        mBluetoothGatt = null;
+            }
+            // the stack is full of our own writes: the window shrank, so the next acquire waits
+            // until one of them made room. Sending this one again right then keeps the order.
+        } while (!sent && outstanding > 0);
+        boolean retry = false;
+        if (!sent) {
+            synchronized (mWriteSlots) {
+                WriteSlot slot = mWriteSlots.get(c);
+                if (slot != null) {
+                    if (slot.outstanding.isEmpty())
+                        slot.inFlight = null;
+                    if (slot.pending == null && op.trafficClass != TrafficClass.BULK) {
+                        // try again shortly, with whatever the newest value is by then
+                        slot.pending = op;
+                        op.value = value;
+                        retry = true;
                     }
                 }
+            }
+        }
+        finishOperation(op);
 
-                if (delegate.get() != null) {
-                    delegate.get().didDisconnect(this);
-                }
-                if (automaticallyReconnect)
-                    startScanning();
-                break;
-            default:
-                break;
+        if (!sent) {
+            // the stack has no room, the window was shrunk
+            Log.d(TAG, "Stack refused " + op + ", backing off");
+            if (retry || op.trafficClass == TrafficClass.BULK)
+                requeueLater(op, REFUSED_RETRY_DELAY_NS);
+            else
+                resolve(op, GattResult.STATUS_REFUSED, null); // superseded by a newer value
+        } else if (!tracked) {
+            // nobody is tracking this write, consider it done once the stack took it
+            resolve(op, BluetoothGatt.GATT_SUCCESS, value);
         }
     }
 
-    @Override
-    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-        Log.i(TAG, "Services discovered on device:");
-        List<BluetoothGattService> gattServiceList = mBluetoothGatt.getServices();
-
-        charToDriver.clear(); // start afresh
-
-        for (BluetoothGattService s : gattServiceList) {
-            // Find service name corresponding to this service's UUID, as per plist file
-            String sName = uuidToName.get(uuidHarmonize(s.getUuid().toString()));
-
-            // If it was not found (in plist), just continue to next
-            if (sName == null)
-                continue;
+    /**
+     * Complete the future of <code>op</code>
+     */
+    private void resolve(BleCommand op, int status, byte[] value) {
+        if (op.operationType == BleCommand.CONNECT)
+            mConnectQueued.set(false);
+        final long now = System.nanoTime();
+        trace(BleTrace.COMPLETE, op, status, now - op.enqueueNanos);
+        op.future.complete(new GattResult(op.operationType, status, value,
+                op.enqueueNanos, op.dispatchNanos, now));
+    }
 
-            BLEService driver;
-            String driverClassName = this.getClass().getName().substring(0, this.getClass().getName().lastIndexOf(".")) + ".driver." + mServiceNameToDriverClass.get(sName);
-            try {
-                // Try to instantiate an instance of the driver's class (as specified in the plist)
-                Log.i(TAG, "Initializing driver " + driverClassName);
-                driver = (BLEService) Class.forName(driverClassName).newInstance();
-            } catch (InstantiationException e) {
-                e.printStackTrace();
-                continue; // to next service
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-                continue;
-            } catch (ClassNotFoundException e) {
-                Log.w(TAG, "|---" + sName + " ?? " + driverClassName + " ?? not found");
-                continue;
-            }
+    /**
+     * Start recording queue, callback and scan events into a new trace of <code>capacity</code>
+     * events. Replaces the current trace, if any.
+     *
+     * @return the new trace
+     */
+    public BleTrace startTrace(int capacity) {
+        HashMap<Long, String> names = new HashMap<Long, String>();
+        for (int s = 0; s < mConfig.getServiceCount(); s++)
+            names.put(BleTrace.keyOf(mConfig.getServiceUuid(s)), mConfig.getServiceName(s));
+        for (int f = 0; f < mConfig.getFieldCount(); f++)
+            names.put(BleTrace.keyOf(mConfig.getFieldUuid(f)), mConfig.getFieldPath(f));
+        BleTrace trace = new BleTrace(capacity, names);
+        mTrace = trace;
+        return trace;
+    }
 
-            // ----- Now that we created the driver, process this service's fields.
-            Log.d(TAG, "|---" + sName + " :: " + mServiceNameToDriverClass.get(sName));
+    /**
+     * Stop recording events
+     *
+     * @return the trace recorded so far, null if there was none
+     */
+    public BleTrace stopTrace() {
+        BleTrace trace = mTrace;
+        mTrace = null;
+        return trace;
+    }
 
-            // Create a hashmap to store the mapping of field names to chars.
-            // This will be sent to the driver so it can output data to chars directly.
-            HashMap<String, BluetoothGattCharacteristic> listOfFields = new HashMap<String, BluetoothGattCharacteristic>();
+    /**
+     * @return the trace being recorded, null if tracing is off
+     */
+    public BleTrace getTrace() {
+        return mTrace;
+    }
 
-            // Iterate over each char, and if it's in the plist, add it to our global
-            // and driver-specific lists.
-            for (BluetoothGattCharacteristic c : s.getCharacteristics()) {
-                // Find the name for this char based on its uuid, as specified in the plist
-                String cName = uuidToName.get(uuidHarmonize(c.getUuid().toString()));
-                if (cName == null) {
-                    // this field was not in plist so skip it
-                    continue;
-                }
-                Log.d(TAG, "|       " + cName);
+    /**
+     * Start recording the GATT traffic, values included, into <code>file</code>, so the session
+     * can be replayed with {@link SessionReplay}. Replaces the current recording, if any.
+     *
+     * @return the new recorder
+     * @throws IOException if the file can't be created
+     */
+    public SessionRecorder startRecording(File file) throws IOException {
+        SessionRecorder recorder = new SessionRecorder(file, mConfig);
+        SessionRecorder previous = mRecorder;
+        mRecorder = recorder;
+        if (previous != null)
+            previous.close();
+        return recorder;
+    }
 
-                // Remove the service name before sending to the driver, as they only get
-                // the field names
-                String cNameWithoutSname = cName.substring(cName.indexOf("/") + 1);
-                listOfFields.put(cNameWithoutSname, c);
+    /**
+     * Stop recording and close the log
+     *
+     * @return the recorder, null if there was none
+     */
+    public SessionRecorder stopRecording() {
+        SessionRecorder recorder = mRecorder;
+        mRecorder = null;
+        if (recorder != null)
+            recorder.close();
+        return recorder;
+    }
 
-                // Also store the mapping of char to its designated driver
-                charToDriver.put(c, driver);
-            }
+    /**
+     * @return the recorder in use, null if recording is off
+     */
+    public SessionRecorder getRecorder() {
+        return mRecorder;
+    }
 
-            // Attach this information to the driver instance, and notify the app
-            driver.attach(mBluetoothGatt, listOfFields, this);
-            try {
-                delegate.get().didStartService(this, sName, driver);
-            } catch (NullPointerException ex) {
-                Log.w(TAG, "No delegate set");
-            }
+    private void trace(int event, BleCommand op, int status, long value) {
+        final BleTrace trace = mTrace;
+        if (trace != null)
+            trace.record(event, op.operationType, op.trafficClass, status, op.sequence,
+                    op.field == null ? 0 : BleTrace.keyOf(op.field.getUuid()), value);
+        final SessionRecorder recorder = mRecorder;
+        if (recorder == null)
+            return;
+        switch (event) {
+            case BleTrace.ENQUEUE:
+                recorder.record(SessionRecorder.ENQUEUE, op.operationType, op.field, 0, op.sequence, null);
+                break;
+            case BleTrace.DISPATCH:
+                recorder.record(SessionRecorder.DISPATCH, op.operationType, op.field, status, op.sequence, null);
+                break;
+            case BleTrace.COMPLETE:
+                recorder.record(SessionRecorder.COMPLETE, op.operationType, op.field, status, op.sequence, null);
+                break;
+            case BleTrace.TIMEOUT:
+                recorder.record(SessionRecorder.TIMEOUT, op.operationType, op.field, status, op.sequence, null);
+                break;
+            default:
+                break;
         }
-
-        // now perform all queued up operations
-        mSemaphore.release();
     }
 
-    protected void enqueueOperation(int operation, BluetoothGattCharacteristic c) {
-        // Android ignores requests if any previous requests are pending. So we must serialize
-        // all read requests using a FIFO or priority queue.
-        final BleCommand op = new BleCommand(operation, c);
-        final int size = mCommandQueue.getQueue().size();
-        if (size >= 20 && size % 20 == 0)
-            Log.w(TAG, "op queue too large: " + mCommandQueue.getQueue().size());
-        // Sometimes for some reason, too many items get queued
-//        if (mCommandQueue.getQueue().size() > 20) {
-//            Log.w(TAG, "op queue nuked!!");
-//            mCommandQueue.getQueue().clear(); // nuke the queue
-//        }
-        mCommandQueue.execute(op); // actually queues the op, executes when BLE stack is free
+    private void record(int type, int operationType, BluetoothGattCharacteristic c, int status,
+                        long argument, byte[] value) {
+        final SessionRecorder recorder = mRecorder;
+        if (recorder != null)
+            recorder.record(type, operationType, c, status, argument, value);
     }
 
-    protected void enqueueOperation(int operation) {
-        // For operations that don't need a characteristic
-        enqueueOperation(operation, null);
+    private void traceCallback(int event, int operationType, BluetoothGattCharacteristic c, int status) {
+        final BleTrace trace = mTrace;
+        if (trace != null)
+            trace.record(event, operationType, BleTrace.NONE, status, BleTrace.NONE,
+                    c == null ? 0 : BleTrace.keyOf(c.getUuid()), 0);
     }
 
-    protected void enqueueOperation(int operation, BluetoothGattCharacteristic c, int extra) {
-        // This means that other write commands are being enqued,
-        // so they will set the desired value
-        final int qSize = mCommandQueue.getQueue().size();
-        if (qSize > MAX_QUEUE_SIZE) {
-            Log.e(TAG, "The queue size was too large. Had to nuke it, captain.");
-            mCommandQueue.getQueue().clear();
-            return;
-        }
-        if (extra == BleCommand.EXTRA_RUDDER) {
-            if (!allowRudder) return;
-            else allowRudder = false;
-        } else if (extra == BleCommand.EXTRA_MOTOR) {
-            if (!allowMotor) return;
-            else allowMotor = false;
-        }
-        final BleCommand op = new BleCommand(operation, c, extra);
-        try {
-            mCommandQueue.execute(op); // actually queues the op, executes when BLE stack is free
-        } catch (RejectedExecutionException ex) {
-            Log.i(TAG, "Rejected execution for command " + op.toString());
-        }
+    /**
+     * @return the controller pacing engine and rudder writes, and its statistics
+     */
+    public WritePacer getWritePacer() {
+        return mPacer;
     }
 
     /**
-     * Enable or disable notifications
+     * Instead of connecting to the first matching device, collect the matching devices seen
+     * during <code>windowMs</code> and connect to the one with the strongest and steadiest
+     * signal. A device needs a few advertisements before it is trusted; if none has that many
+     * by <code>deadlineMs</code> after the first one was seen, the best one so far is taken.
      *
-     * @param c      the characteristic for which we want notifications
-     * @param enable
+     * @param windowMs   how long to collect devices, 0 to connect to the first match
+     * @param deadlineMs upper bound on the time from the first match to connecting
      */
-    private void writeNotificationDescriptor(BluetoothGattCharacteristic c, boolean enable) {
-        // ALL HAIL GOOGLE
-        final UUID CCC = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-        mBluetoothGatt.setCharacteristicNotification(c, enable);
-        BluetoothGattDescriptor descriptor = c.getDescriptor(CCC);
-        descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : new byte[]{0x00, 0x00});
-        mBluetoothGatt.writeDescriptor(descriptor);
+    public void setCandidateSelection(long windowMs, long deadlineMs) {
+        if (windowMs < 0 || deadlineMs < windowMs)
+            throw new IllegalArgumentException("need 0 <= windowMs <= deadlineMs");
+        mSelectionWindowMs = windowMs;
+        mSelectionDeadlineMs = deadlineMs;
     }
 
-    @Override
-    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        String charName = uuidToName.get(uuidHarmonize(characteristic.getUuid().toString()));
+    /**
+     * Set how to scan from the next scan on, i.e. the next {@link #connect()} or reconnect.
+     * The default is to scan continuously until a device is found.
+     */
+    public void setScanPolicy(ScanPolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("policy must not be null");
+        mScanPolicy = policy;
+    }
 
-        // Find which driver handles it and send it a message
-        BLEService driver = charToDriver.get(characteristic);
-        //Log.i(TAG, "Received: " + charName + " -> " + driver.toString().substring(driver.toString().lastIndexOf(".")));
-        if (driver != null)
-            driver.didUpdateValueForCharacteristic(charName.substring(charName.indexOf("/") + 1));
-        mSemaphore.release();
+    public ScanPolicy getScanPolicy() {
+        return mScanPolicy;
     }
 
-    @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt,
-                                        BluetoothGattCharacteristic characteristic) {
-        // Happens on notification.
-        onCharacteristicRead(gatt, characteristic, 0);
+    /**
+     * @return true while looking for a device, even if the scan policy has the radio pausing
+     */
+    public boolean isScanning() {
+        return mScanning;
     }
 
-    @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt,
-                                      BluetoothGattCharacteristic characteristic, int status) {
-        mSemaphore.release();
+    /**
+     * @return scan-on time and advertisement counters
+     */
+    public ScanStats getScanStats() {
+        return mScanStats;
     }
 
-    @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
-                                  int status) {
-        mSemaphore.release();
+    /**
+     * @return the verdicts on devices seen while scanning, and the cache's hit counters
+     */
+    public ScanCache getScanCache() {
+        return mScanCache;
     }
 
-    public int getLastSignalStrength() {
-        return lastSignalStrength;
+    /**
+     * Reconnects bind the drivers to the services found on an earlier connection, skipping
+     * service discovery. A request failing on such services, or the peripheral reporting new
+     * firmware, falls back to discovering them.
+     *
+     * @param layouts where the layouts are kept, null to discover the services every time
+     */
+    public void setGattLayoutCache(GattLayoutCache layouts) {
+        mLayouts = layouts;
     }
 
-    @Override
-    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-        try {
-            lastSignalStrength = rssi;
-            delegate.get().didUpdateSignalStrength(this, rssi);
-        } catch (NullPointerException ex) {
-            Log.w(TAG, "No delegate set");
-        }
-        mSemaphore.release();
+    /**
+     * @return where the layouts of peripherals are kept, {@link GattLayoutCache#getShared()}
+     * unless set otherwise
+     */
+    public GattLayoutCache getGattLayoutCache() {
+        return mLayouts;
+    }
+
+    /**
+     * Reads of the fields drivers declared cacheable, see {@link BLEService#cacheField}, are
+     * served from <code>cache</code> while its values are young enough and the firmware is the
+     * same.
+     *
+     * @param cache where the values are kept, null to always read them
+     */
+    public void setReadCache(ReadCache cache) {
+        mReadCache = cache;
+    }
+
+    /**
+     * @return where values are kept, {@link ReadCache#getShared()} unless set otherwise
+     */
+    public ReadCache getReadCache() {
+        return mReadCache;
+    }
+
+    /**
+     * @param maxAgeMs 0 to stop caching the field of <code>c</code>
+     */
+    void setCachePolicy(BluetoothGattCharacteristic c, long maxAgeMs, boolean revalidate) {
+        final int field = mConfig.indexOfField(c.getUuid());
+        if (field < 0)
+            return;
+        mCacheMaxAgeMs[field] = maxAgeMs;
+        mCacheRevalidate[field] = revalidate;
+    }
+
+    /**
+     * Read a field, from the read cache if the field is cached and its value young enough.
+     * Cached values reach the driver on the driver worker, after the app heard about the
+     * drivers being started, like values read from the peripheral would.
+     */
+    GattFuture readField(BluetoothGattCharacteristic c) {
+        final byte[] value = serveCached(c);
+        if (value == null || mCacheRevalidate[mConfig.indexOfField(c.getUuid())])
+            return enqueueOperation(BleCommand.READ, c);
+        final long now = System.nanoTime();
+        return GattFuture.completed(new GattResult(BleCommand.READ, BluetoothGatt.GATT_SUCCESS,
+                value.clone(), now, now, now));
+    }
+
+    /**
+     * Hand the cached value of <code>c</code> to its driver, if there is one
+     *
+     * @return the value, null if none is cached
+     */
+    byte[] serveCached(final BluetoothGattCharacteristic c) {
+        final int field = mConfig.indexOfField(c.getUuid());
+        final ReadCache cache = mReadCache;
+        final BleTransport.Connection connection = mConnection;
+        if (field < 0 || mCacheMaxAgeMs[field] == 0 || cache == null || connection == null)
+            return null;
+        final byte[] value = cache.get(connection.getAddress(), mConfig.getFieldPath(field),
+                mCacheMaxAgeMs[field]);
+        if (value == null)
+            return null;
+        mDriverWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final HandleTable table = mHandles;
+                final int handle = table.handleOf(c);
+                if (connection != mConnection || handle < 0)
+                    return;
+                publish(table, handle, value);
+                table.drivers[handle].onValue(table.fields[handle], value.clone());
+            }
+        });
+        return value;
+    }
+
+    /**
+     * Keep a value read or notified if its field is cached
+     *
+     * @param field id of the field in the config, -1 if none
+     */
+    private void cacheValue(final int field, byte[] value) {
+        final ReadCache cache = mReadCache;
+        final BleTransport.Connection connection = mConnection;
+        if (field < 0 || mCacheMaxAgeMs[field] == 0 || cache == null || connection == null
+                || value == null)
+            return;
+        final byte[] copy = value.clone();
+        // the cache may write its file, not on the binder thread
+        mDriverWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                cache.put(connection.getAddress(), mConfig.getFieldPath(field), copy);
+            }
+        });
+    }
+
+    /**
+     * Forget the cached values of the connected peripheral, e.g. because it is being flashed
+     */
+    void invalidateReadCache() {
+        final ReadCache cache = mReadCache;
+        final BleTransport.Connection connection = mConnection;
+        if (cache != null && connection != null)
+            cache.invalidate(connection.getAddress());
+    }
+
+    /**
+     * @return timeout, retry and stall counters of this device's command queue
+     */
+    public PipelineStats getPipelineStats() {
+        return mStats;
+    }
+
+    /**
+     * Set how long an operation may wait for its callback before the watchdog gives the stack
+     * to the next operation.
+     *
+     * @param operationType one of the {@link GattResult} OPERATION_ types
+     * @param timeoutMs     deadline in ms
+     */
+    public void setOperationTimeout(int operationType, long timeoutMs) {
+        if (timeoutMs <= 0)
+            throw new IllegalArgumentException("timeout must be positive");
+        mTimeoutsMs[operationType] = timeoutMs;
+    }
+
+    /**
+     * Wait until the stack is free and mark <code>op</code> as the operation in flight.
+     * Must be called from the command queue thread.
+     */
+    private void beginOperation(final BleCommand op) throws InterruptedException {
+        final long waitStart = System.nanoTime();
+        mSemaphore.acquire();
+        op.attempts++;
+        op.dispatchNanos = System.nanoTime();
+        mInFlight.set(op);
+        trace(BleTrace.DISPATCH, op, op.attempts, op.dispatchNanos - waitStart);
+        op.watchdog = sTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onOperationTimeout(op);
+            }
+        }, mTimeoutsMs[op.operationType], TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Take <code>op</code> out of flight and let the next operation through.
+     *
+     * @return false if <code>op</code> was not in flight (anymore)
+     */
+    private boolean finishOperation(BleCommand op) {
+        if (!mInFlight.compareAndSet(op, null))
+            return false;
+        if (op.watchdog != null)
+            op.watchdog.cancel(false);
+        mSemaphore.release();
+        return true;
+    }
+
+    /**
+     * Called from the GATT callbacks when an operation has finished. Callbacks which don't
+     * belong to the operation in flight, e.g. a late reply to one the watchdog already gave up
+     * on, are ignored so they can't hand out a second permit.
+     *
+     * @param operationType type of operation the callback answers
+     * @param c             characteristic the callback is about, null if not applicable
+     * @param status        GATT status reported by the callback
+     * @param value         value read or written, null if not applicable
+     */
+    private void completeOperation(int operationType, BluetoothGattCharacteristic c, int status, byte[] value) {
+        final BleCommand op = mInFlight.get();
+        if (op == null || op.operationType != operationType || (c != null && op.field != c)) {
+            mStats.onLateCallback();
+            traceCallback(BleTrace.LATE_CALLBACK, operationType, c, status);
+            return;
+        }
+        traceCallback(BleTrace.CALLBACK, operationType, c, status);
+        if (c != null && status != BluetoothGatt.GATT_SUCCESS)
+            onRequestFailed();
+        if (finishOperation(op))
+            resolve(op, status, value);
+    }
+
+    /**
+     * The watchdog: <code>op</code> did not get its callback in time. Reclaim the stack and
+     * either send <code>op</code> again or give up on it.
+     */
+    private void onOperationTimeout(BleCommand op) {
+        if (!mInFlight.compareAndSet(op, null))
+            return; // the callback won the race
+        final long stallNs = System.nanoTime() - op.dispatchNanos;
+        mStats.onTimeout(op.operationType, stallNs);
+        trace(BleTrace.TIMEOUT, op, GattResult.STATUS_TIMEOUT, stallNs);
+        Log.w(TAG, "Operation " + op + " timed out after " + (stallNs / 1000000) + " ms (attempt " + op.attempts + ")");
+        mSemaphore.release();
+
+        switch (op.operationType) {
+            case BleCommand.CONNECT:
+                // scanning is still running, the next advertisement will trigger a new attempt
+                BleTransport.Connection connecting = mConnecting.getAndSet(null);
+                if (connecting != null)
+                    connecting.close();
+                mStats.onFailure();
+                resolve(op, GattResult.STATUS_TIMEOUT, null);
+                return;
+            case BleCommand.DISCONNECT:
+                // never heard back, consider it done
+                onDisconnected(mConnection);
+                mStats.onFailure();
+                resolve(op, GattResult.STATUS_TIMEOUT, null);
+                return;
+            case BleCommand.WRITE:
+                if (op.trafficClass == TrafficClass.BULK)
+                    break; // not coalesced, just send the same block again
+                synchronized (mWriteSlots) {
+                    WriteSlot slot = mWriteSlots.get(op.field);
+                    if (slot != null) {
+                        slot.inFlight = null;
+                        slot.acknowledged = null;
+                        if (slot.pending != null) {
+                            // a newer value is queued already, no point resending this one
+                            mStats.onFailure();
+                            resolve(op, GattResult.STATUS_TIMEOUT, null);
+                            return;
+                        }
+                        if (op.attempts < MAX_ATTEMPTS)
+                            slot.pending = op;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (op.attempts < MAX_ATTEMPTS && op.operationType != BleCommand.UPDATE_RSSI) {
+            mStats.onRetry();
+            requeue(op);
+        } else {
+            mStats.onFailure();
+            resolve(op, GattResult.STATUS_TIMEOUT, null);
+        }
+    }
+
+    /**
+     * @return number of operations waiting in this device's queue
+     */
+    public int getPendingOperationCount() {
+        return mCommandQueue.getQueue().size();
+    }
+
+    /**
+     * @return true if an operation has been handed to the stack and its callback is pending
+     */
+    public boolean isOperationInFlight() {
+        return mInFlight.get() != null;
+    }
+
+    /**
+     * @return "service/field" as named in the plist, null if the characteristic is not in it
+     */
+    private String fieldPathOf(BluetoothGattCharacteristic c) {
+        final int field = mConfig.indexOfField(c.getUuid());
+        return field < 0 ? null : mConfig.getFieldPath(field);
+    }
+
+    /**
+     * Create a <code>BluetoothDevice</code>
+     *
+     * @param plistFile .plist config file
+     *                  The .plist file is a standard Apple XML format property list which
+     *                  specifies the configuration parameters for this instance of the
+     *                  BluetoothDevice class. This includes the services and its fields that we
+     *                  want to interact with, which ones are primary (connection-triggering)
+     *                  services, signal level thresholds for connection etc. The optional
+     *                  "selection window" (ms) turns on picking the best of several
+     *                  devices, see {@link #setCandidateSelection(long, long)}.
+     * @param owner     activity that will use this device
+     */
+    public BluetoothDevice(InputStream plistFile, Activity owner) {
+        this(DeviceConfig.parse(plistFile), owner, null);
+    }
+
+    /**
+     * Create a <code>BluetoothDevice</code> which uses <code>transport</code> instead of the
+     * Android Bluetooth stack, e.g. a simulated peripheral
+     *
+     * @param plistFile .plist config file, see {@link #BluetoothDevice(InputStream, Activity)}
+     * @param transport the Bluetooth stack to use
+     */
+    public BluetoothDevice(InputStream plistFile, BleTransport transport) {
+        this(DeviceConfig.parse(plistFile), null, transport);
+    }
+
+    /**
+     * Create a <code>BluetoothDevice</code> from a config compiled earlier, e.g. kept across
+     * activity recreation
+     *
+     * @param owner activity that will use this device
+     */
+    public BluetoothDevice(DeviceConfig config, Activity owner) {
+        this(config, owner, null);
+    }
+
+    /**
+     * Create a <code>BluetoothDevice</code> from a config compiled earlier, which uses
+     * <code>transport</code> instead of the Android Bluetooth stack
+     */
+    public BluetoothDevice(DeviceConfig config, BleTransport transport) {
+        this(config, null, transport);
+    }
+
+    private BluetoothDevice(DeviceConfig config, Activity owner, BleTransport transport) {
+        mOwner = owner;
+        mTransport = transport;
+        mConfig = config;
+        mDrivers = new BLEService[config.getServiceCount()];
+        mStreams = new AtomicReferenceArray<ValueStream>(config.getFieldCount());
+        mCacheMaxAgeMs = new long[config.getFieldCount()];
+        mCacheRevalidate = new boolean[config.getFieldCount()];
+        if (owner != null && !mReadCache.hasStorage())
+            mReadCache.setStorage(new File(owner.getCacheDir(), READ_CACHE_FILE));
+        rssiHigh = config.getRssiHigh();
+        rssiLow = config.getRssiLow();
+        mSelectionWindowMs = config.getSelectionWindowMs();
+        mPrimaryServices = config.getPrimaryServices();
+        // Precompiled because it runs for every advertisement
+        mAdvertisementParser = new AdvertisementParser(mPrimaryServices, config.getDeviceName());
+    }
+
+    /**
+     * @return the compiled config of this device
+     */
+    public DeviceConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * Start scanning for devices and attempt connecting.
+     *
+     * @throws BluetoothDisabledException
+     */
+    public void connect() throws BluetoothDisabledException {
+        if (mTransport == null)
+            mTransport = new AndroidTransport(mOwner);
+        // layouts the transport can't restore are no use to a later run, keep them in memory only
+        final GattLayoutCache layouts = mLayouts;
+        if (mOwner != null && layouts != null && !layouts.hasStorage() && mTransport.canRestoreServices())
+            layouts.setStorage(new File(mOwner.getCacheDir(), LAYOUT_FILE));
+
+        if (mTransport.isEnabled()) {
+            startScanning();
+        } else {
+            throw new BluetoothDisabledException("Bluetooth is disabled.");
+        }
+    }
+
+    /**
+     * @return completes once the device is disconnected
+     */
+    public GattFuture disconnect() {
+        return enqueueOperation(BleCommand.DISCONNECT);
+    }
+
+    /**
+     * Read the RSSI of the connection. The delegate's didUpdateSignalStrength is called as well.
+     *
+     * @return completes with the RSSI as the single byte of the value
+     */
+    public GattFuture updateSignalStrength() {
+        // queued, since onReadRemoteRssi completes the operation in flight
+        return enqueueOperation(BleCommand.UPDATE_RSSI);
+    }
+
+    /**
+     * Start looking for a device to connect to, following the scan policy
+     */
+    private void startScanning() {
+        cancelCandidates(); // RSSI from a previous scan says little about now
+        final ScanPolicy policy = mScanPolicy;
+        synchronized (mScanLock) {
+            final int session = ++mScanSession;
+            cancelScanTimers();
+            mScanning = true;
+            mScanPauseMs = policy.getPauseMs();
+            mRadioScanning = false; // restart the transport's scan, even if it is running
+            startScanWindow(policy, session);
+            if (policy.getTimeoutMs() > 0) {
+                mScanTimeout = sTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onScanTimeout(session);
+                    }
+                }, policy.getTimeoutMs(), TimeUnit.MILLISECONDS);
+            }
+        }
+        try {
+            delegate.get().didStartScanning(this);
+        } catch (NullPointerException ex) {
+            Log.w(TAG, "No delegate set");
+        }
+    }
+
+    /**
+     * Turn the radio on and schedule the end of the window. Needs mScanLock.
+     */
+    private void startScanWindow(final ScanPolicy policy, final int session) {
+        if (!mRadioScanning) {
+            mTransport.startScan(this, policy.isFilterOffloaded() ? mPrimaryServices : null);
+            mRadioScanning = true;
+            mScanStats.onScanOn(System.nanoTime());
+        }
+        if (policy.getMode() == ScanPolicy.MODE_CONTINUOUS)
+            return;
+        mScanCycle = sTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                endScanWindow(policy, session);
+            }
+        }, policy.getWindowMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Turn the radio off for the pause between two windows
+     */
+    private void endScanWindow(final ScanPolicy policy, final int session) {
+        synchronized (mScanLock) {
+            if (session != mScanSession)
+                return;
+            stopRadio();
+            final long pause = mScanPauseMs;
+            if (policy.getMode() == ScanPolicy.MODE_BURST_BACKOFF)
+                mScanPauseMs = Math.min(pause * 2, policy.getMaxPauseMs());
+            mScanCycle = sTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mScanLock) {
+                        if (session == mScanSession)
+                            startScanWindow(policy, session);
+                    }
+                }
+            }, pause, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onScanTimeout(int session) {
+        synchronized (mScanLock) {
+            if (session != mScanSession)
+                return;
+            Log.i(TAG, "No device found within " + mScanPolicy.getTimeoutMs() + " ms, stopped scanning");
+            mScanStats.onTimeout();
+        }
+        stopScanning();
+    }
+
+    /**
+     * Stop looking for a device, e.g. because one was connected
+     */
+    private void stopScanning() {
+        synchronized (mScanLock) {
+            mScanSession++;
+            mScanning = false;
+            cancelScanTimers();
+            stopRadio();
+        }
+        cancelCandidates();
+    }
+
+    /**
+     * Needs mScanLock
+     */
+    private void stopRadio() {
+        if (!mRadioScanning)
+            return;
+        mTransport.stopScan(this);
+        mRadioScanning = false;
+        mScanStats.onScanOff(System.nanoTime());
+    }
+
+    /**
+     * Needs mScanLock
+     */
+    private void cancelScanTimers() {
+        if (mScanCycle != null) {
+            mScanCycle.cancel(false);
+            mScanCycle = null;
+        }
+        if (mScanTimeout != null) {
+            mScanTimeout.cancel(false);
+            mScanTimeout = null;
+        }
+    }
+
+    @Override
+    public void onScanResult(final String address, final String name, final int rssi, final byte[] scanRecord) {
+        // When scan results are received. Runs for every advertisement around, so the matching
+        // is left to the scan worker.
+        mScanStats.onCallback();
+        if (!mScanning)
+            return; // reported after scanning stopped
+
+        // Touch-n-Go
+        if (!(rssiLow <= rssi && rssi <= rssiHigh)) {
+            // rssi outside acceptable range, ignore this result.
+            traceScan(rssi, BleTrace.SCAN_OUT_OF_RANGE);
+            return;
+        }
+        mScanWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                matchAdvertisement(address, name, rssi, scanRecord);
+            }
+        });
+    }
+
+    /**
+     * Runs on the scan worker. Connect to the device if its advertisement matches the config.
+     */
+    private void matchAdvertisement(String address, String name, int rssi, byte[] scanRecord) {
+        mScanStats.onProcessed();
+        if (!mScanning)
+            return;
+        final int payloadHash = Arrays.hashCode(scanRecord);
+        final long now = System.nanoTime();
+        int match = mScanCache.lookup(address, payloadHash, now);
+        if (match == ScanCache.UNKNOWN) {
+            match = mAdvertisementParser.match(scanRecord);
+            mScanCache.put(address, payloadHash, match, now);
+        }
+        if (match == AdvertisementParser.MATCH_NONE) {
+            traceScan(rssi, BleTrace.SCAN_NO_MATCH);
+            return;
+        }
+        // Some phones only report the first advertising packet, without the scan response
+        // which might be the one carrying the 128 bit service UUID. Hence the name match.
+        traceScan(rssi, match == AdvertisementParser.MATCH_SERVICE
+                ? BleTrace.SCAN_SERVICE_MATCH : BleTrace.SCAN_NAME_MATCH);
+        if (mSelectionWindowMs > 0) {
+            offerCandidate(address, rssi, now);
+            return;
+        }
+        // Called for every advertisement, so only log the ones we act on
+        if (connectTo(address, rssi))
+            Log.i(TAG, (match == AdvertisementParser.MATCH_SERVICE ? "Primary services found on "
+                    + name : "Device name matched on " + address) + ", will connect");
+    }
+
+    /**
+     * Add a matching device to the current candidate window, opening one if there is none
+     */
+    private void offerCandidate(String address, int rssi, long now) {
+        synchronized (mSelector) {
+            if (!mSelector.offer(address, rssi, now))
+                return;
+            mDecision = sTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    decideCandidate();
+                }
+            }, mSelectionWindowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The candidate window is over: connect to the best stable candidate. If none is stable
+     * yet, wait for one until the selection deadline, then take the best there is.
+     */
+    private void decideCandidate() {
+        final CandidateSelector.Candidate best;
+        synchronized (mSelector) {
+            if (mSelector.isEmpty())
+                return; // cancelled in the meantime
+            final long waitedMs = (System.nanoTime() - mSelector.openedAt()) / 1000000L;
+            final boolean force = waitedMs >= mSelectionDeadlineMs;
+            best = mSelector.select(force);
+            if (best == null) {
+                mDecision = sTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        decideCandidate();
+                    }
+                }, Math.min(mSelectionWindowMs, mSelectionDeadlineMs - waitedMs), TimeUnit.MILLISECONDS);
+                return;
+            }
+            mDecision = null;
+        }
+        if (connectTo(best.address, Math.round(best.rssi)))
+            Log.i(TAG, "Picked " + best.address + " (rssi " + best.rssi + " +/- " + best.deviation
+                    + ", " + best.samples + " advertisements), will connect");
+    }
+
+    /**
+     * Forget the candidates collected so far
+     */
+    private void cancelCandidates() {
+        synchronized (mSelector) {
+            mSelector.clear();
+            if (mDecision != null) {
+                mDecision.cancel(false);
+                mDecision = null;
+            }
+        }
+    }
+
+    /**
+     * Queue a connection attempt to <code>address</code>, unless connected or connecting already
+     *
+     * @return false if there was no need to
+     */
+    private boolean connectTo(String address, int rssi) {
+        if (mConnection != null || !mConnectQueued.compareAndSet(false, true))
+            return false;
+
+        Delegate delegRef = delegate == null ? null : delegate.get();
+        if (delegRef != null) {
+                /* XXX: should be d, not this */
+            delegRef.didStartConnectingTo(this, rssi);
+        } else {
+            Log.i(TAG, "Delegate was not set");
+        }
+        // Connection is done on the command queue, see connectGatt().
+        // Using the command queue is necessary to work around Samsung bug. (check T4 on Phabricator).
+        BleCommand op = new BleCommand(BleCommand.CONNECT, null);
+        op.address = address;
+        submit(op);
+        return true;
+    }
+
+    private void traceScan(int rssi, int outcome) {
+        final BleTrace trace = mTrace;
+        if (trace != null)
+            trace.record(BleTrace.SCAN_HIT, BleCommand.SCAN, BleTrace.NONE, outcome, BleTrace.NONE, 0, rssi);
+    }
+
+    private void connectGatt(BleCommand op) {
+        try {
+            Log.i(TAG, "Attempting to acquire BLE lock and start connecting (" + mCommandQueue.getQueue().size() + " ops pending)");
+            beginOperation(op);
+            if (mConnection != null || mConnecting.get() != null) {
+                // raced with another attempt which got there first
+                finishOperation(op);
+                resolve(op, BluetoothGatt.GATT_SUCCESS, null);
+                return;
+            }
+            mAddress = op.address;
+            final BleTransport.Connection connecting = mTransport.connect(mAddress, this);
+            mConnecting.set(connecting);
+            // STATE_CONNECTED may have come before connect() returned, it couldn't clear the
+            // attempt then. It sets mConnection before clearing, so one of the two clears it.
+            if (connecting != null && mConnection == connecting)
+                mConnecting.compareAndSet(connecting, null);
+            if (connecting == null && finishOperation(op)) {
+                Log.w(TAG, "Could not start connecting to " + mAddress);
+                mStats.onFailure();
+                resolve(op, GattResult.STATUS_REFUSED, null);
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Thread interrupted while connecting");
+        }
+    }
+
+    @Override
+    public void onConnectionStateChange(final BleTransport.Connection connection, int status, int newState) {
+        Log.d(TAG, "Connection state changed to " + newState + " (status: " + status + ")");
+        final BleTrace trace = mTrace;
+        if (trace != null)
+            trace.record(BleTrace.CONNECTION_STATE, BleTrace.NONE, BleTrace.NONE, status, BleTrace.NONE, 0, newState);
+        record(SessionRecorder.CONNECTION_STATE, BleTrace.NONE, null, status, newState, null);
+        switch (newState) {
+            case BluetoothProfile.STATE_CONNECTED:
+                Log.i(TAG, "Connected to device");
+                stopScanning();
+                mPacer.reset(); // may be a different link from last time
+                mWindow.reset();
+                mConnection = connection;
+                mConnecting.compareAndSet(connection, null);
+                completeOperation(BleCommand.CONNECT, null, status, null); // because connection is also a queued operation
+                mDriverWorker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!restoreServices(connection))
+                            enqueueOperation(BleCommand.DISCOVER_SERVICES);
+                    }
+                });
+                if (delegate.get() != null) {
+                    delegate.get().didConnect(this);
+                }
+                break;
+            case BluetoothProfile.STATE_DISCONNECTED:
+                onDisconnected(connection);
+                final SessionRecorder recorder = mRecorder;
+                if (recorder != null)
+                    recorder.flush(); // the session may well end here
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * <code>connection</code> went down, or never came up. Handled on the driver worker, one at
+     * a time, so a late callback and the watchdog giving up on a DISCONNECT can't both tear the
+     * same connection down.
+     */
+    private void onDisconnected(final BleTransport.Connection connection) {
+        mDriverWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                handleDisconnected(connection);
+            }
+        });
+    }
+
+    /**
+     * Runs on the driver worker, see {@link #onDisconnected}
+     */
+    private void handleDisconnected(BleTransport.Connection connection) {
+        if (connection == null)
+            return; // nothing was connected
+        // a connection attempt which failed, don't leak its client interface
+        final boolean attempt = mConnecting.compareAndSet(connection, null);
+        if (!attempt && connection != mConnection) {
+            Log.d(TAG, "Connection was torn down already");
+            return;
+        }
+        mHandles = HandleTable.EMPTY;
+        synchronized (mWriteSlots) {
+            for (WriteSlot slot : mWriteSlots.values()) {
+                for (BleCommand outstanding : slot.outstanding)
+                    resolve(outstanding, GattResult.STATUS_DISCONNECTED, null);
+            }
+            mWriteSlots.clear(); // the peripheral's state is unknown from now on
+        }
+        synchronized (mClassOverrides) {
+            mClassOverrides.clear(); // drivers set them again when they are attached
+        }
+        // wakes a dispatch waiting for credits, it lets go of mConnectionLock then
+        mWindow.reset();
+        if (!attempt) {
+            // before the stack is let go, so the next command finds the connection gone
+            synchronized (mConnectionLock) {
+                mConnection = null;
+            }
+        }
+        // whatever was in flight won't get its callback anymore
+        BleCommand op = mInFlight.get();
+        if (op != null && finishOperation(op))
+            resolve(op, op.operationType == BleCommand.DISCONNECT ? BluetoothGatt.GATT_SUCCESS
+                    : GattResult.STATUS_DISCONNECTED, null);
+
+        connection.close();
+        final ReadCache values = mReadCache;
+        if (values != null)
+            values.flush(); // what was read during the connection, in one write
+
+        final Delegate d = delegate == null ? null : delegate.get();
+        if (d != null)
+            d.didDisconnect(this);
+        if (automaticallyReconnect)
+            startScanning();
+    }
+
+    @Override
+    public void onServicesDiscovered(final BleTransport.Connection connection, final int status) {
+        // Drivers are app code which queues operations and starts timers, don't run it on
+        // the binder thread
+        mDriverWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connection != mConnection)
+                    return; // disconnected in the meantime
+                final List<BluetoothGattService> services = connection.getServices();
+                mLayoutRestored.set(false);
+                final GattLayoutCache layouts = mLayouts;
+                if (layouts != null && status == BluetoothGatt.GATT_SUCCESS && !services.isEmpty())
+                    layouts.put(connection.getAddress(), GattLayout.of(services));
+                startDrivers(connection, services);
+                // now perform all queued up operations, the first driver's run while the others start
+                completeOperation(BleCommand.DISCOVER_SERVICES, null, status, null);
+                attachDrivers();
+            }
+        });
+    }
+
+    /**
+     * Bind the drivers to the services the peripheral had on the last connection, without
+     * discovering them. Runs on the driver worker.
+     *
+     * @return false if the services have to be discovered
+     */
+    private boolean restoreServices(BleTransport.Connection connection) {
+        final GattLayoutCache layouts = mLayouts;
+        if (connection != mConnection || layouts == null)
+            return false;
+        final GattLayout layout = layouts.get(connection.getAddress());
+        if (layout == null)
+            return false;
+        final List<BluetoothGattService> services = connection.restoreServices(layout);
+        if (services == null)
+            return false;
+        Log.i(TAG, "Restored " + layout + " of " + connection.getAddress());
+        mLayoutRestored.set(true);
+        startDrivers(connection, services);
+        attachDrivers();
+        return true;
+    }
+
+    /**
+     * A request on a characteristic failed. If the services were restored, their layout may be
+     * outdated: forget it and discover them after all.
+     */
+    private void onRequestFailed() {
+        if (!mLayoutRestored.compareAndSet(true, false))
+            return;
+        final BleTransport.Connection connection = mConnection;
+        if (connection == null)
+            return;
+        Log.w(TAG, "Request failed on a restored layout, discovering services");
+        mDriverWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final GattLayoutCache layouts = mLayouts;
+                if (layouts != null)
+                    layouts.invalidate(connection.getAddress());
+                if (connection == mConnection)
+                    enqueueOperation(BleCommand.DISCOVER_SERVICES);
+            }
+        });
+    }
+
+    /**
+     * A driver read the firmware version of the peripheral. If its layout belonged to another
+     * version, discover the services again; if its cached values did, read them again.
+     */
+    void onFirmwareVersion(final String version) {
+        final BleTransport.Connection connection = mConnection;
+        if (connection == null)
+            return;
+        mDriverWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final GattLayoutCache layouts = mLayouts;
+                final ReadCache values = mReadCache;
+                final boolean sameLayout = layouts == null
+                        || layouts.setFirmwareVersion(connection.getAddress(), version);
+                final boolean sameValues = values == null
+                        || values.setFirmwareVersion(connection.getAddress(), version);
+                if (values != null)
+                    values.flush();
+                if (connection != mConnection)
+                    return;
+                if (!sameLayout && mLayoutRestored.compareAndSet(true, false)) {
+                    // the drivers are bound again after discovery and read their fields then
+                    enqueueOperation(BleCommand.DISCOVER_SERVICES);
+                } else if (!sameValues) {
+                    rereadCachedFields();
+                }
+            }
+        });
+    }
+
+    /**
+     * The drivers may have been handed stale cached values, read the fields which weren't read
+     * anyway
+     */
+    private void rereadCachedFields() {
+        final HandleTable table = mHandles;
+        for (int h = 0; h < table.chars.length; h++) {
+            final int field = table.configFields[h];
+            if (mCacheMaxAgeMs[field] != 0 && !mCacheRevalidate[field])
+                enqueueOperation(BleCommand.READ, table.chars[h]);
+        }
+    }
+
+    /**
+     * Bind a driver to every configured service of the connection and publish their handles.
+     * The drivers are started by {@link #attachDrivers()}. Runs on the driver worker.
+     */
+    private void startDrivers(BleTransport.Connection connection, List<BluetoothGattService> gattServiceList) {
+        Log.i(TAG, "Services on device:");
+
+        mHandles = HandleTable.EMPTY; // start afresh
+        final ArrayList<BluetoothGattCharacteristic> handles = new ArrayList<BluetoothGattCharacteristic>();
+        final ArrayList<BLEService> drivers = new ArrayList<BLEService>();
+        final ArrayList<Integer> configFields = new ArrayList<Integer>();
+        mBound.clear();
+        mBoundNames.clear();
+
+        for (BluetoothGattService s : gattServiceList) {
+            // Find service corresponding to this service's UUID, as per plist file
+            final int service = mConfig.indexOfService(s.getUuid());
+
+            // If it was not found (in plist), just continue to next
+            if (service < 0)
+                continue;
+            String sName = mConfig.getServiceName(service);
+
+            // Drivers outlive their connection, so the app's references to them stay valid
+            BLEService driver = mDrivers[service];
+            if (driver == null) {
+                Log.i(TAG, "Initializing driver " + mConfig.getDriverName(service));
+                driver = DriverRegistry.create(mConfig, service);
+                if (driver == null) {
+                    Log.w(TAG, "|---" + sName + " ?? " + mConfig.getDriverClassName(service) + " ?? not found");
+                    continue;
+                }
+                mDrivers[service] = driver;
+            }
+
+            // ----- Now that we have the driver, process this service's fields.
+            Log.d(TAG, "|---" + sName + " :: " + mConfig.getDriverName(service));
+
+            // Create a hashmap to store the mapping of field names to chars.
+            // This will be sent to the driver so it can output data to chars directly.
+            HashMap<String, BluetoothGattCharacteristic> listOfFields = new HashMap<String, BluetoothGattCharacteristic>();
+
+            // Iterate over each char, and if it's in the plist, add it to our global
+            // and driver-specific lists.
+            for (BluetoothGattCharacteristic c : s.getCharacteristics()) {
+                // Find this char based on its uuid, as specified in the plist
+                final int field = mConfig.indexOfField(c.getUuid());
+                if (field < 0 || mConfig.getFieldService(field) != service) {
+                    // this field was not in plist so skip it
+                    continue;
+                }
+                Log.d(TAG, "|       " + mConfig.getFieldPath(field));
+
+                // Drivers only get the field names, without the service name
+                listOfFields.put(mConfig.getFieldName(field), c);
+
+                // Also give the char a handle, mapping it to its designated driver
+                handles.add(c);
+                drivers.add(driver);
+                configFields.add(field);
+            }
+
+            driver.bind(AndroidTransport.gattOf(connection), listOfFields, this);
+            mBound.add(driver);
+            mBoundNames.add(sName);
+        }
+
+        // drivers number their fields when bound, look those numbers up once for all callbacks
+        final int count = handles.size();
+        final int[] fields = new int[count];
+        final int[] ids = new int[count];
+        for (int handle = 0; handle < count; handle++) {
+            fields[handle] = drivers.get(handle).indexOf(handles.get(handle));
+            ids[handle] = configFields.get(handle);
+        }
+        mHandles = new HandleTable(handles.toArray(new BluetoothGattCharacteristic[count]),
+                drivers.toArray(new BLEService[count]), fields, ids);
+    }
+
+    /**
+     * Start the drivers bound by {@link #startDrivers} and tell the app. Runs on the driver worker.
+     */
+    private void attachDrivers() {
+        for (int i = 0; i < mBound.size(); i++) {
+            final BLEService driver = mBound.get(i);
+            mAttaching = Thread.currentThread();
+            try {
+                driver.attached();
+            } finally {
+                mAttaching = null;
+            }
+            Log.d(TAG, "Initialized service driver " + mBoundNames.get(i));
+            final Delegate d = delegate == null ? null : delegate.get();
+            if (d == null)
+                Log.w(TAG, "No delegate set");
+            else
+                d.didStartService(this, mBoundNames.get(i), driver);
+        }
+    }
+
+    protected GattFuture enqueueOperation(int operation) {
+        // For operations that don't need a characteristic
+        return enqueueOperation(operation, null);
+    }
+
+    /**
+     * Queue an operation for the device
+     *
+     * @return completes when the operation has finished, right away with
+     * {@link GattResult#STATUS_REJECTED} if its traffic class is full
+     */
+    protected GattFuture enqueueOperation(int operation, BluetoothGattCharacteristic c) {
+        // Android ignores requests if any previous requests are pending. So we must serialize
+        // all requests using a FIFO or priority queue.
+        if (operation == BleCommand.WRITE) {
+            byte[] current = c.getValue();
+            return enqueueWrite(c, (current == null) ? new byte[0] : current.clone());
+        }
+        return submit(new BleCommand(operation, c));
+    }
+
+    /**
+     * Queue a write of <code>value</code>, which the device takes over. The characteristic's
+     * own value is left alone: only the command queue sets it, right before handing it to the
+     * stack, so writes from other threads can't swap the value of one being dispatched.
+     */
+    GattFuture enqueueWrite(BluetoothGattCharacteristic c, byte[] value) {
+        if (trafficClassOf(BleCommand.WRITE, c, null) != TrafficClass.BULK)
+            return coalesceWrite(c, null, value);
+        // bulk data: every single write counts, so no coalescing
+        final BleCommand op = new BleCommand(BleCommand.WRITE, c);
+        op.value = value;
+        return submit(op);
+    }
+
+    private int trafficClassOf(int operation, BluetoothGattCharacteristic c, ControlChannel channel) {
+        if (c != null) {
+            synchronized (mClassOverrides) {
+                Integer override = mClassOverrides.get(c);
+                if (override != null)
+                    return override;
+            }
+        }
+        switch (operation) {
+            case BleCommand.WRITE:
+                return channel == null ? TrafficClass.DATA : channel.getSpec().getTrafficClass();
+            case BleCommand.CONNECT:
+            case BleCommand.DISCONNECT:
+            case BleCommand.DISCOVER_SERVICES:
+            case BleCommand.SCAN:
+                return TrafficClass.CONNECTION;
+            default:
+                return TrafficClass.DATA;
+        }
+    }
+
+    /**
+     * Put all future operations on <code>c</code> into <code>trafficClass</code> instead of the
+     * default class for their type. Operations already queued keep their class.
+     *
+     * @param c            the characteristic
+     * @param trafficClass one of the {@link TrafficClass} classes
+     */
+    void setTrafficClass(BluetoothGattCharacteristic c, int trafficClass) {
+        synchronized (mClassOverrides) {
+            mClassOverrides.put(c, trafficClass);
+        }
+    }
+
+    /**
+     * @return <code>defaults</code> with the Control entry of the field of <code>c</code>
+     * applied, if the config has one
+     */
+    ControlSpec controlSpecOf(BluetoothGattCharacteristic c, ControlSpec defaults) {
+        final int field = mConfig.indexOfField(c.getUuid());
+        return field < 0 ? defaults : mConfig.getControlSpec(field, defaults);
+    }
+
+    /**
+     * Change how many operations of a traffic class may wait in the queue, and what to do with
+     * new ones once that many are waiting.
+     *
+     * @param trafficClass one of the {@link TrafficClass} classes
+     * @param bound        maximum number of queued operations of the class
+     * @param policy       one of the {@link TrafficClass} OVERFLOW_ policies
+     */
+    public void setTrafficClassLimit(int trafficClass, int bound, int policy) {
+        if (bound < 1)
+            throw new IllegalArgumentException("bound must be at least 1");
+        synchronized (mClassBounds) {
+            mClassBounds[trafficClass] = bound;
+            mClassPolicies[trafficClass] = policy;
+        }
+    }
+
+    /**
+     * Queue a new operation, applying its traffic class' bound and overflow policy.
+     *
+     * @return the operation's future
+     */
+    private GattFuture submit(BleCommand op) {
+        final int size = mCommandQueue.getQueue().size();
+        if (size >= MAX_QUEUE_SIZE && size % MAX_QUEUE_SIZE == 0)
+            Log.w(TAG, "op queue too large: " + size);
+
+        final int cls = op.trafficClass;
+        final int bound, policy;
+        synchronized (mClassBounds) {
+            bound = mClassBounds[cls];
+            policy = mClassPolicies[cls];
+        }
+        // OVERFLOW_COALESCE already merged what it could in coalesceWrite(), so like
+        // OVERFLOW_DROP_OLDEST it makes room if it can
+        if (mQueuedPerClass.get(cls) >= bound
+                && (policy == TrafficClass.OVERFLOW_REJECT || !dropOldest(cls))) {
+            Log.w(TAG, TrafficClass.NAMES[cls] + " queue full, rejecting " + op);
+            mStats.onRejected(cls);
+            discard(op, GattResult.STATUS_REJECTED);
+            return op.future;
+        }
+        trace(BleTrace.ENQUEUE, op, 0, 0);
+        requeue(op);
+        return op.future;
+    }
+
+    /**
+     * Put an operation (back) into the queue without any bound checks, e.g. after it was
+     * deferred or timed out.
+     */
+    private boolean requeue(BleCommand op) {
+        mQueuedPerClass.incrementAndGet(op.trafficClass);
+        try {
+            mCommandQueue.execute(op); // actually queues the op, executes when BLE stack is free
+            return true;
+        } catch (RejectedExecutionException ex) {
+            Log.i(TAG, "Rejected execution for command " + op.toString());
+            mQueuedPerClass.decrementAndGet(op.trafficClass);
+            discard(op, GattResult.STATUS_REJECTED);
+            return false;
+        }
+    }
+
+    /**
+     * Drop the oldest queued operation of <code>trafficClass</code>. Coalesced writes are never
+     * dropped: each carries the latest value of its characteristic, which would not be sent
+     * until the app writes it again. Neither is notification setup or the reads of drivers
+     * being attached, which drivers issue once and don't repeat.
+     *
+     * @return false if there is nothing to drop
+     */
+    private boolean dropOldest(int trafficClass) {
+        BleCommand oldest = null;
+        for (Iterator<Runnable> it = mCommandQueue.getQueue().iterator(); it.hasNext(); ) {
+            BleCommand op = (BleCommand) it.next();
+            if (op.trafficClass == trafficClass && (oldest == null || op.sequence < oldest.sequence)
+                    && !op.setup && !isCoalescedWrite(op))
+                oldest = op;
+        }
+        if (oldest == null)
+            return false;
+        // it might have been dispatched in the meantime, then there is room anyway
+        if (mCommandQueue.remove(oldest)) {
+            mQueuedPerClass.decrementAndGet(trafficClass);
+            Log.w(TAG, TrafficClass.NAMES[trafficClass] + " queue full, dropped " + oldest);
+            mStats.onDropped(trafficClass);
+            discard(oldest, GattResult.STATUS_DROPPED);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if <code>op</code> is the queued write of its characteristic's slot
+     */
+    private boolean isCoalescedWrite(BleCommand op) {
+        if (op.operationType != BleCommand.WRITE)
+            return false;
+        synchronized (mWriteSlots) {
+            WriteSlot slot = mWriteSlots.get(op.field);
+            return slot != null && slot.pending == op;
+        }
+    }
+
+    /**
+     * Forget about an operation which will never run
+     *
+     * @param status what to complete its future with
+     */
+    private void discard(BleCommand op, int status) {
+        if (op.operationType == BleCommand.WRITE) {
+            synchronized (mWriteSlots) {
+                WriteSlot slot = mWriteSlots.get(op.field);
+                if (slot != null && slot.pending == op)
+                    slot.pending = null;
+            }
+        }
+        resolve(op, status, null);
+    }
+
+    /**
+     * Latest value wins: if a write for <code>c</code> is already queued, it is updated in place
+     * with the new value instead of queueing another one. Values identical to what the peripheral
+     * already has are dropped.
+     * <p/>
+     * Only writes of the same kind coalesce: a plain write carries its value, the write of a
+     * control channel fetches the channel's value at dispatch. A write of the other kind takes
+     * the queued one's place, see {@link #supersede}.
+     *
+     * @return future of the write which will carry the value
+     */
+    private GattFuture coalesceWrite(BluetoothGattCharacteristic c, ControlChannel channel,
+                                     byte[] value) {
+        final BleCommand op, superseded;
+        synchronized (mWriteSlots) {
+            WriteSlot slot = mWriteSlots.get(c);
+            if (slot == null) {
+                slot = new WriteSlot();
+                mWriteSlots.put(c, slot);
+            }
+            if (slot.pending != null && slot.pending.channel == channel) {
+                slot.pending.value = value;
+                return slot.pending.future;
+            }
+            // with a write in flight the outcome is unknown, so queue and decide at dispatch time
+            if (slot.pending == null && value != null && slot.inFlight == null
+                    && Arrays.equals(value, slot.acknowledged)) {
+                final long now = System.nanoTime();
+                return GattFuture.completed(new GattResult(BleCommand.WRITE, BluetoothGatt.GATT_SUCCESS,
+                        value, now, now, now));
+            }
+
+            op = new BleCommand(BleCommand.WRITE, c, channel);
+            op.value = value;
+            superseded = takeSlot(slot, op);
+        }
+        return supersede(superseded, submit(op));
+    }
+
+    /**
+     * Make <code>op</code> the queued write of <code>slot</code>. Called with mWriteSlots held.
+     *
+     * @return the write of the other kind it replaced, null if none was queued
+     */
+    private static BleCommand takeSlot(WriteSlot slot, BleCommand op) {
+        final BleCommand previous = slot.pending;
+        if (previous != null)
+            previous.superseded = true;
+        slot.pending = op;
+        return previous;
+    }
+
+    /**
+     * <code>old</code> was replaced by a newer write of the other kind, which carries the newest
+     * value: take it out of the queue, if it is still there, and complete it with the newer one.
+     * If it is dispatched after all, e.g. after being deferred, it is skipped.
+     *
+     * @param future of the newer write
+     * @return <code>future</code>
+     */
+    private GattFuture supersede(final BleCommand old, GattFuture future) {
+        if (old == null)
+            return future;
+        if (mCommandQueue.remove(old))
+            mQueuedPerClass.decrementAndGet(old.trafficClass);
+        future.addListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(GattResult result) {
+                old.future.complete(result);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Queue a write of the channel's value, unless one is queued already: that one goes out with
+     * the newest value when its turn comes.
+     */
+    GattFuture writeControl(ControlChannel channel) {
+        // the values of control channels are resolved when they are dispatched
+        return coalesceWrite(channel.getCharacteristic(), channel, null);
+    }
+
+    /**
+     * Write a typed field like {@link #coalesceWrite}. When a write to the field is still queued
+     * the new value is encoded into it in place, so a rapid series of writes allocates nothing.
+     */
+    GattFuture writeField(FieldHandle field, long value) {
+        final BluetoothGattCharacteristic c = field.getCharacteristic();
+        if (trafficClassOf(BleCommand.WRITE, c, null) == TrafficClass.BULK) {
+            final byte[] bytes = new byte[field.getSize()];
+            field.encode(value, bytes);
+            return enqueueWrite(c, bytes);
+        }
+        final BleCommand op, superseded;
+        synchronized (mWriteSlots) {
+            WriteSlot slot = mWriteSlots.get(c);
+            if (slot == null) {
+                slot = new WriteSlot();
+                mWriteSlots.put(c, slot);
+            }
+            field.encode(value);
+            final byte[] encoded = field.scratch;
+            if (slot.pending != null && slot.pending.channel == null) {
+                final byte[] pending = slot.pending.value;
+                if (pending != null && pending.length == encoded.length)
+                    System.arraycopy(encoded, 0, pending, 0, encoded.length);
+                else
+                    slot.pending.value = encoded.clone();
+                return slot.pending.future;
+            }
+            // with a write in flight the outcome is unknown, so queue and decide at dispatch time
+            if (slot.pending == null && slot.inFlight == null && Arrays.equals(encoded, slot.acknowledged)) {
+                final long now = System.nanoTime();
+                return GattFuture.completed(new GattResult(BleCommand.WRITE, BluetoothGatt.GATT_SUCCESS,
+                        encoded.clone(), now, now, now));
+            }
+            op = new BleCommand(BleCommand.WRITE, c);
+            op.value = encoded.clone();
+            superseded = takeSlot(slot, op);
+        }
+        return supersede(superseded, submit(op));
+    }
+
+    /**
+     * Take the newest value of a queued write out of its slot, right before it is dispatched.
+     *
+     * @return the bytes to write, or null if the peripheral already acknowledged this value or
+     * the write was superseded
+     */
+    private byte[] takePendingWrite(BleCommand op) {
+        final BluetoothGattCharacteristic c = op.field;
+        byte[] value = op.channel == null ? null : op.channel.fetch();
+
+        synchronized (mWriteSlots) {
+            if (op.superseded)
+                return null;
+            WriteSlot slot = mWriteSlots.get(c);
+            if (slot == null) {
+                // slots were reset by a disconnect while this was queued
+                slot = new WriteSlot();
+                mWriteSlots.put(c, slot);
+            }
+            if (slot.pending == op)
+                slot.pending = null;
+            if (value == null)
+                value = op.value;
+            if (value == null)
+                return null;
+            if (op.trafficClass != TrafficClass.BULK && Arrays.equals(value, slot.acknowledged))
+                return null;
+            slot.inFlight = value;
+            slot.control = op.isControlWrite();
+            if (op.channel != null)
+                op.channel.onDispatch(System.nanoTime());
+            return value;
+        }
+    }
+
+    /**
+     * Enable or disable notifications
+     *
+     * @param c      the characteristic for which we want notifications
+     * @param enable
+     */
+    private boolean writeNotificationDescriptor(BluetoothGattCharacteristic c, boolean enable) {
+        // ALL HAIL GOOGLE
+        final UUID CCC = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+        mConnection.setCharacteristicNotification(c, enable);
+        BluetoothGattDescriptor descriptor = c.getDescriptor(CCC);
+        if (descriptor == null) {
+            Log.w(TAG, "No CCC descriptor on " + c.getUuid());
+            return false;
+        }
+        descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : new byte[]{0x00, 0x00});
+        return mConnection.writeDescriptor(descriptor);
+    }
+
+    /**
+     * Hand the value of <code>characteristic</code> to its stream and its driver, if it has one,
+     * on the calling thread
+     *
+     * @return id of the field in the config, -1 if no driver handles it
+     */
+    int dispatchValue(BluetoothGattCharacteristic characteristic) {
+        // Find which driver handles it and send it a message
+        final HandleTable table = mHandles;
+        final int handle = table.handleOf(characteristic);
+        if (handle < 0)
+            return -1;
+        final byte[] value = characteristic.getValue();
+        publish(table, handle, value);
+        table.drivers[handle].onValue(table.fields[handle], value);
+        return table.configFields[handle];
+    }
+
+    /**
+     * Hand a value the stack reported to the stream of its field right away, and to its driver
+     * on the driver worker: drivers call the app's delegates, which must not hold up the binder
+     * thread. A driver which falls behind only gets the newest value of a field, so at most one
+     * delivery per field waits for the worker.
+     *
+     * @return id of the field in the config, -1 if no driver handles it
+     */
+    private int deliverValue(BluetoothGattCharacteristic characteristic, byte[] value) {
+        final HandleTable table = mHandles;
+        final int handle = table.handleOf(characteristic);
+        if (handle < 0 || value == null)
+            return -1;
+        publish(table, handle, value);
+        // the stack writes its next value into the same array
+        if (table.latest.getAndSet(handle, value.clone()) == null) {
+            final BleTransport.Connection connection = mConnection;
+            mDriverWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final byte[] latest = table.latest.getAndSet(handle, null);
+                    if (connection == mConnection)
+                        table.drivers[handle].onValue(table.fields[handle], latest);
+                }
+            });
+        }
+        return table.configFields[handle];
+    }
+
+    private void publish(HandleTable table, int handle, byte[] value) {
+        // subscribers only get a copy queued, so they never wait for the driver
+        final ValueStream stream = mStreams.get(table.configFields[handle]);
+        if (stream != null)
+            stream.publish(value);
+    }
+
+    /**
+     * The values of a field as they are notified or read, see {@link ValueStream}. Streams
+     * outlive connections, so subscribing before connecting is fine.
+     *
+     * @param path "service/field" as in the config
+     * @throws IllegalArgumentException if the config has no such field
+     */
+    public ValueStream getStream(String path) {
+        final int field = mConfig.indexOfField(path);
+        if (field < 0)
+            throw new IllegalArgumentException("no field " + path);
+        ValueStream stream = mStreams.get(field);
+        if (stream == null) {
+            mStreams.compareAndSet(field, null, new ValueStream(path));
+            stream = mStreams.get(field);
+        }
+        return stream;
+    }
+
+    @Override
+    public void onCharacteristicRead(BleTransport.Connection connection, BluetoothGattCharacteristic characteristic, int status) {
+        record(SessionRecorder.READ, BleCommand.READ, characteristic, status, 0,
+                status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null);
+        final byte[] value = characteristic.getValue();
+        completeOperation(BleCommand.READ, characteristic, status, value == null ? null : value.clone());
+        if (status == BluetoothGatt.GATT_SUCCESS) // no value otherwise
+            cacheValue(deliverValue(characteristic, value), value);
+    }
+
+    @Override
+    public void onCharacteristicChanged(BleTransport.Connection connection,
+                                        BluetoothGattCharacteristic characteristic) {
+        // Happens on notification. Not a reply to a queued read, so nothing to complete.
+        traceCallback(BleTrace.NOTIFICATION, BleTrace.NONE, characteristic, BluetoothGatt.GATT_SUCCESS);
+        record(SessionRecorder.NOTIFICATION, BleTrace.NONE, characteristic, BluetoothGatt.GATT_SUCCESS, 0,
+                characteristic.getValue());
+        final byte[] value = characteristic.getValue();
+        cacheValue(deliverValue(characteristic, value), value);
+    }
+
+    @Override
+    public void onCharacteristicWrite(BleTransport.Connection connection,
+                                      BluetoothGattCharacteristic characteristic, int status) {
+        record(SessionRecorder.WRITE, BleCommand.WRITE, characteristic, status, 0, null);
+        final boolean success = status == BluetoothGatt.GATT_SUCCESS;
+        if (characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            // a credit of the write window comes back
+            final long now = System.nanoTime();
+            final long latency = mWindow.onCompleted(now, success);
+            if (latency >= 0) {
+                traceCallback(BleTrace.CALLBACK, BleCommand.WRITE, characteristic, status);
+                boolean control = false;
+                BleCommand done = null;
+                byte[] value = null;
+                synchronized (mWriteSlots) {
+                    WriteSlot slot = mWriteSlots.get(characteristic);
+                    if (slot != null && !slot.outstanding.isEmpty()) {
+                        control = slot.control;
+                        done = slot.outstanding.poll();
+                        value = done.value;
+                        if (slot.outstanding.isEmpty()) {
+                            slot.acknowledged = success ? slot.inFlight : null;
+                            slot.inFlight = null;
+                        } else if (!success) {
+                            slot.acknowledged = null;
+                        }
+                    }
+                }
+                if (done != null)
+                    resolve(done, status, value);
+                if (control)
+                    mPacer.onComplete(now, latency, success);
+                return;
+            }
+        }
+
+        final BleCommand op = mInFlight.get();
+        if (op != null && op.isControlWrite())
+            mPacer.onComplete(System.nanoTime(), status == BluetoothGatt.GATT_SUCCESS);
+        byte[] value = null;
+        synchronized (mWriteSlots) {
+            WriteSlot slot = mWriteSlots.get(characteristic);
+            if (slot != null) {
+                value = slot.inFlight;
+                slot.acknowledged = (status == BluetoothGatt.GATT_SUCCESS) ? slot.inFlight : null;
+                slot.inFlight = null;
+            }
+        }
+        completeOperation(BleCommand.WRITE, characteristic, status, value);
+    }
+
+    @Override
+    public void onDescriptorWrite(BleTransport.Connection connection, BluetoothGattDescriptor descriptor,
+                                  int status) {
+        final BleCommand op = mInFlight.get();
+        final int type = (op != null && op.operationType == BleCommand.DISABLE_NOTIFICATION)
+                ? BleCommand.DISABLE_NOTIFICATION : BleCommand.ENABLE_NOTIFICATION;
+        completeOperation(type, descriptor.getCharacteristic(), status, null);
+    }
+
+    public int getLastSignalStrength() {
+        return lastSignalStrength;
+    }
+
+    @Override
+    public void onReadRemoteRssi(BleTransport.Connection connection, int rssi, int status) {
+        record(SessionRecorder.RSSI, BleCommand.UPDATE_RSSI, null, status, rssi, null);
+        onSignalStrength(rssi);
+        completeOperation(BleCommand.UPDATE_RSSI, null, status, new byte[]{(byte) rssi});
+    }
+
+    /**
+     * Report the signal strength to the delegate on the driver worker, only the latest one if
+     * the delegate falls behind
+     */
+    void onSignalStrength(int rssi) {
+        lastSignalStrength = rssi;
+        if (!mRssiScheduled.compareAndSet(false, true))
+            return;
+        mDriverWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                mRssiScheduled.set(false);
+                try {
+                    delegate.get().didUpdateSignalStrength(BluetoothDevice.this, lastSignalStrength);
+                } catch (NullPointerException ex) {
+                    Log.w(TAG, "No delegate set");
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,101 @@
+package lib.smartlink;
+
+import java.util.HashMap;
+
+/**
+ * Collects the devices matching the config over a short scan window and picks the best one to
+ * connect to. RSSI fluctuates a lot from one advertisement to the next, so each candidate's RSSI
+ * is smoothed with an exponentially weighted moving average, and its score is the average minus
+ * the average deviation from it: a steady -70 beats a flickering -65.
+ * <p/>
+ * Not thread safe, {@link BluetoothDevice} synchronizes on it.
+ */
+class CandidateSelector {
+    // weight of a new sample in the moving averages
+    static final float ALPHA = 0.3f;
+    // advertisements needed before a candidate counts as stable
+    static final int MIN_SAMPLES = 3;
+
+    static class Candidate {
+        final String address;
+        float rssi;
+        float deviation;
+        int samples;
+
+        Candidate(String address, int rssi) {
+            this.address = address;
+            this.rssi = rssi;
+            this.samples = 1;
+        }
+
+        void add(int sample) {
+            deviation += ALPHA * (Math.abs(sample - rssi) - deviation);
+            rssi += ALPHA * (sample - rssi);
+            samples++;
+        }
+
+        float score() {
+            return rssi - deviation;
+        }
+
+        boolean isStable() {
+            return samples >= MIN_SAMPLES;
+        }
+    }
+
+    private final HashMap<String, Candidate> mCandidates = new HashMap<String, Candidate>();
+    // System.nanoTime() of the first candidate of the window, only valid if there are candidates
+    private long mOpenedNanos;
+
+    /**
+     * Add an advertisement of a matching device
+     *
+     * @return true if this was the first candidate, i.e. it opened a new window
+     */
+    boolean offer(String address, int rssi, long now) {
+        Candidate candidate = mCandidates.get(address);
+        if (candidate != null) {
+            candidate.add(rssi);
+            return false;
+        }
+        mCandidates.put(address, new Candidate(address, rssi));
+        if (mCandidates.size() > 1)
+            return false;
+        mOpenedNanos = now;
+        return true;
+    }
+
+    /**
+     * @return System.nanoTime() the current window was opened at
+     */
+    long openedAt() {
+        return mOpenedNanos;
+    }
+
+    boolean isEmpty() {
+        return mCandidates.isEmpty();
+    }
+
+    /**
+     * Pick the candidate with the best score and close the window
+     *
+     * @param force also consider candidates which are not stable yet
+     * @return the best candidate, null if there is none, in which case the window stays open
+     */
+    Candidate select(boolean force) {
+        Candidate best = null;
+        for (Candidate candidate : mCandidates.values()) {
+            if (!force && !candidate.isStable())
+                continue;
+            if (best == null || candidate.score() > best.score())
+                best = candidate;
+        }
+        if (best != null)
+            mCandidates.clear();
+        return best;
+    }
+
+    void clear() {
+        mCandidates.clear();
+    }
+}
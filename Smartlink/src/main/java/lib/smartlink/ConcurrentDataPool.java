@@ -0,0 +1,264 @@
+package lib.smartlink;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link DataPool} that values can be posted to on one thread and averaged on another
+ * without locking, e.g. posted by the UI and fetched by the command queue when the write is
+ * dispatched. Reads never see half an update: {@link #fetchData()} always returns the average
+ * of a window that really existed.
+ * <ul>
+ * <li>{@link #singleWriter(int)}: one thread posts at a time. Posting and fetching the average
+ * are wait free, {@link #snapshot(int[])} retries while a post is in progress.</li>
+ * <li>{@link #multiWriter(int)}: any number of threads post at once. Each slot of the window
+ * keeps the newest value claimed for it, so a slow poster never overwrites a newer value.
+ * Readers retry while posts land under them, and yield to a poster stalled in the middle of
+ * a post until it finished.</li>
+ * </ul>
+ */
+public abstract class ConcurrentDataPool {
+    final int mSize;
+
+    ConcurrentDataPool(int size) {
+        if (size < 1)
+            throw new IllegalArgumentException("invalid size " + size);
+        mSize = size;
+    }
+
+    /**
+     * @param size number of values averaged
+     * @return a pool only one thread posts to at a time
+     */
+    public static ConcurrentDataPool singleWriter(int size) {
+        return new SingleWriter(size);
+    }
+
+    /**
+     * @param size number of values averaged
+     * @return a pool any number of threads may post to at once
+     */
+    public static ConcurrentDataPool multiWriter(int size) {
+        return new MultiWriter(size);
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Add <code>data</code> to the pool, replacing the oldest value
+     * @param data the payload
+     */
+    public abstract void postData(int data);
+
+    /**
+     * Set all elements to <code>val</code>
+     * @param val the future value of each element in the pool
+     */
+    public abstract void flood(int val);
+
+    /**
+     * Reset the pool to zeros
+     */
+    public void clear() {
+        flood(0);
+    }
+
+    /**
+     * Retrieve the average, safe to call from any thread
+     * @return the average
+     */
+    public int fetchData() {
+        return (int) (fetchSum() / mSize);
+    }
+
+    abstract long fetchSum();
+
+    /**
+     * Copy the window, oldest value first, safe to call from any thread
+     * @param dest at least {@link #getSize()} long
+     */
+    public abstract void snapshot(int[] dest);
+
+    /**
+     * Writer state is only touched by the posting thread. What readers see is published
+     * through ordered stores: the sum on its own, and the window bracketed by a sequence
+     * number which is odd while a post is in progress (a seqlock). Ordered stores need no
+     * fence on the posting thread, readers still see them in order.
+     */
+    private static final class SingleWriter extends ConcurrentDataPool {
+        // the posting thread's own copies
+        private final int[] mWindow;
+        private int mCurrElement = -1;
+        private long mWriterSum;
+        // published to readers
+        private final AtomicIntegerArray mBuffer;
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicInteger mHead; // slot of the newest value
+        private final AtomicInteger mSequence = new AtomicInteger();
+
+        SingleWriter(int size) {
+            super(size);
+            mWindow = new int[size];
+            mBuffer = new AtomicIntegerArray(size);
+            mHead = new AtomicInteger(size - 1);
+        }
+
+        @Override
+        public void postData(int data) {
+            if (++mCurrElement == mSize)
+                mCurrElement = 0;
+            mWriterSum += data - mWindow[mCurrElement];
+            mWindow[mCurrElement] = data;
+            final int sequence = mSequence.get();
+            mSequence.lazySet(sequence + 1);
+            mBuffer.lazySet(mCurrElement, data);
+            mHead.lazySet(mCurrElement);
+            mSum.lazySet(mWriterSum);
+            mSequence.lazySet(sequence + 2);
+        }
+
+        @Override
+        public void flood(int val) {
+            final int sequence = mSequence.get();
+            mSequence.lazySet(sequence + 1);
+            for (int i = 0; i < mSize; i++) {
+                mWindow[i] = val;
+                mBuffer.lazySet(i, val);
+            }
+            mCurrElement = mSize - 1;
+            mWriterSum = (long) mSize * val;
+            mHead.lazySet(mCurrElement);
+            mSum.lazySet(mWriterSum);
+            mSequence.lazySet(sequence + 2);
+        }
+
+        @Override
+        long fetchSum() {
+            return mSum.get();
+        }
+
+        @Override
+        public void snapshot(int[] dest) {
+            while (true) {
+                final int sequence = mSequence.get();
+                if ((sequence & 1) == 0) {
+                    final int head = mHead.get();
+                    for (int i = 0, slot = head + 1; i < mSize; i++, slot++)
+                        dest[i] = mBuffer.get(slot == mSize ? (slot = 0) : slot);
+                    if (mSequence.get() == sequence)
+                        return;
+                }
+                Thread.yield(); // the writer is in the middle of a post
+            }
+        }
+    }
+
+    /**
+     * Posts claim a sequence number and store it with the value, (sequence << 32) | value, in
+     * slot sequence % size, unless a value with a newer sequence number got there first; a
+     * flood is <code>size</code> posts of the same value. Readers sum the slots and check that
+     * their sequence numbers are consecutive, i.e. they read one window, and read again if not.
+     */
+    private static final class MultiWriter extends ConcurrentDataPool {
+        // reads retried right away before yielding, a poster stalled between claiming and
+        // storing keeps the window from being whole until it is scheduled again
+        private static final int SPINS = 16;
+
+        private final AtomicLongArray mSlots;
+        private final AtomicLong mNextSequence = new AtomicLong();
+
+        MultiWriter(int size) {
+            super(size);
+            mSlots = new AtomicLongArray(size);
+            // as if zeros had been posted with sequence numbers -size .. -1
+            for (int i = 0; i < size; i++)
+                mSlots.set(i, (long) (i - size) << 32);
+        }
+
+        @Override
+        public void postData(int data) {
+            final long sequence = mNextSequence.getAndIncrement();
+            store((int) (sequence % mSize), (int) sequence, data);
+        }
+
+        @Override
+        public void flood(int val) {
+            final long first = mNextSequence.getAndAdd(mSize);
+            for (long sequence = first; sequence < first + mSize; sequence++)
+                store((int) (sequence % mSize), (int) sequence, val);
+        }
+
+        private void store(int slot, int sequence, int data) {
+            final long update = ((long) sequence << 32) | (data & 0xffffffffL);
+            while (true) {
+                final long current = mSlots.get(slot);
+                // compared as a difference, so the 32 bit sequence may wrap
+                if ((int) (current >>> 32) - sequence > 0 || mSlots.compareAndSet(slot, current, update))
+                    return;
+            }
+        }
+
+        @Override
+        long fetchSum() {
+            for (int attempt = 1; ; attempt++) {
+                final int first = (int) (mSlots.get(0) >>> 32);
+                int oldest = 0, newest = 0; // sequence numbers relative to the first slot's
+                long sum = 0;
+                for (int i = 0; i < mSize; i++) {
+                    final long slot = mSlots.get(i);
+                    final int age = (int) (slot >>> 32) - first;
+                    if (age < oldest)
+                        oldest = age;
+                    else if (age > newest)
+                        newest = age;
+                    sum += (int) slot;
+                }
+                if (newest - oldest == mSize - 1)
+                    return sum;
+                if (attempt >= SPINS)
+                    Thread.yield();
+            }
+        }
+
+        @Override
+        public void snapshot(int[] dest) {
+            int oldestSlot = 0;
+            for (int attempt = 1; ; attempt++) {
+                final int first = (int) (mSlots.get(0) >>> 32);
+                int oldest = 0, newest = 0;
+                oldestSlot = 0;
+                for (int i = 0; i < mSize; i++) {
+                    final long slot = mSlots.get(i);
+                    final int age = (int) (slot >>> 32) - first;
+                    if (age < oldest) {
+                        oldest = age;
+                        oldestSlot = i;
+                    } else if (age > newest) {
+                        newest = age;
+                    }
+                    dest[i] = (int) slot;
+                }
+                if (newest - oldest == mSize - 1)
+                    break;
+                if (attempt >= SPINS)
+                    Thread.yield();
+            }
+            // rotate the oldest value to the front
+            reverse(dest, 0, oldestSlot);
+            reverse(dest, oldestSlot, mSize);
+            reverse(dest, 0, mSize);
+        }
+
+        private static void reverse(int[] a, int from, int to) {
+            for (to--; from < to; from++, to--) {
+                final int t = a[from];
+                a[from] = a[to];
+                a[to] = t;
+            }
+        }
+    }
+}
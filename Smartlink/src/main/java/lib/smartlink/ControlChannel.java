@@ -0,0 +1,196 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * A stream of values to one field, e.g. a motor or a servo position. Values are posted as fast
+ * as the app produces them; at most one write per channel is queued, and it carries the average
+ * of the latest values when it is dispatched, so the peripheral always gets the freshest value
+ * the link has room for. With filters in the spec values run through them first, and a value
+ * the filters leave unchanged causes no write at all. Resolved once with
+ * {@link BLEService#control} when the driver is attached, see {@link ControlSpec} for what can
+ * be tuned.
+ */
+public final class ControlChannel {
+    // how often filters which haven't settled are written without new values, at most
+    private static final long FOLLOW_UP_INTERVAL_NANOS = 10000000L;
+
+    private final BLEService mDriver;
+    private final int mIndex;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final ControlSpec mSpec;
+    private final int mSize;
+    private final long mMinIntervalNanos;
+
+    // posted to by the app, from any thread, and fetched from by the command queue
+    private final ConcurrentDataPool mPool;
+    // null without filters, guarded by itself like mPosted
+    private final FilterPipeline mFilters;
+    private boolean mPosted;
+
+    // guarded by this
+    private long mLastDispatchNanos;
+    private boolean mDispatched;
+    // the filters still move, the write queued is only for them
+    private boolean mFollowUp;
+
+    ControlChannel(BLEService driver, int index, BluetoothGattCharacteristic characteristic,
+                   ControlSpec spec) {
+        mDriver = driver;
+        mIndex = index;
+        mCharacteristic = characteristic;
+        mSpec = spec;
+        mSize = FieldHandle.sizeOf(spec.getFormat());
+        mMinIntervalNanos = spec.getMinIntervalNanos();
+        mPool = ConcurrentDataPool.multiWriter(spec.getSmoothing());
+        mFilters = spec.hasFilters() ? new FilterPipeline(spec.getFilters()) : null;
+    }
+
+    /**
+     * @return index of the field in its driver, as passed to
+     * {@link BLEService#didUpdateValue(int)}
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    /**
+     * @return the spec in effect, the config's if it declares one for the field
+     */
+    public ControlSpec getSpec() {
+        return mSpec;
+    }
+
+    /**
+     * Add a value to the stream
+     *
+     * @return completes when the write carrying this value, or a newer one, has finished
+     */
+    public GattFuture post(int value) {
+        if (mFilters != null) {
+            final long now = System.nanoTime();
+            final boolean changed, settled;
+            synchronized (mFilters) {
+                final int before = mFilters.getOutput();
+                value = mFilters.filter(value, now);
+                changed = value != before || !mPosted;
+                settled = mFilters.isSettled();
+                mPosted = true;
+            }
+            synchronized (this) {
+                mFollowUp = !changed;
+            }
+            if (!changed) {
+                if (settled)
+                    return unchanged();
+                // nothing new to send, but the filters will move on their own
+                return write();
+            }
+        }
+        mPool.postData(value);
+        return write();
+    }
+
+    /**
+     * Replace the whole smoothing window with <code>value</code>, e.g. to stop a motor at once
+     */
+    public GattFuture reset(int value) {
+        if (mFilters != null) {
+            synchronized (mFilters) {
+                mFilters.reset(value, System.nanoTime());
+                mPosted = true;
+            }
+            synchronized (this) {
+                mFollowUp = false;
+            }
+        }
+        mPool.flood(value);
+        return write();
+    }
+
+    /**
+     * @return the value the next write would carry
+     */
+    public int getValue() {
+        return mPool.fetchData();
+    }
+
+    private static GattFuture unchanged() {
+        final long now = System.nanoTime();
+        return GattFuture.completed(new GattResult(BluetoothDevice.BleCommand.WRITE,
+                BluetoothGatt.GATT_SUCCESS, null, now, now, now));
+    }
+
+    private GattFuture write() {
+        final BluetoothDevice device = mDriver.mParent == null ? null : mDriver.mParent.get();
+        if (device == null)
+            return BLEService.detached(BluetoothDevice.BleCommand.WRITE);
+        return device.writeControl(this);
+    }
+
+    /**
+     * @return the smoothed value, encoded for the peripheral
+     */
+    byte[] fetch() {
+        if (mFilters != null) {
+            // time based filters moved on since the last value was posted
+            synchronized (mFilters) {
+                if (!mFilters.isSettled()) {
+                    final int before = mFilters.getOutput();
+                    final int value = mFilters.update(System.nanoTime());
+                    if (value != before)
+                        mPool.postData(value);
+                }
+            }
+        }
+        final byte[] value = new byte[mSize];
+        FieldHandle.encode(getValue(), value, 0, mSpec.getFormat());
+        return value;
+    }
+
+    /**
+     * @return how long the next write has to wait for the rate limit, 0 if it may go now
+     */
+    synchronized long delayNanos(long now) {
+        final long interval = mFollowUp ? Math.max(mMinIntervalNanos, FOLLOW_UP_INTERVAL_NANOS)
+                : mMinIntervalNanos;
+        if (!mDispatched || interval == 0)
+            return 0;
+        final long due = mLastDispatchNanos + interval;
+        return due - now > 0 ? due - now : 0;
+    }
+
+    /**
+     * Called when a write was dispatched: if the filters haven't settled, e.g. a slew limit is
+     * still on its way to the last value posted, another write is needed without a new value
+     *
+     * @return true if it should be queued
+     */
+    boolean needsFollowUp() {
+        if (mFilters == null)
+            return false;
+        final boolean settled;
+        synchronized (mFilters) {
+            settled = mFilters.isSettled();
+        }
+        synchronized (this) {
+            mFollowUp = !settled;
+        }
+        return !settled;
+    }
+
+    synchronized void onDispatch(long now) {
+        mLastDispatchNanos = now;
+        mDispatched = true;
+    }
+
+    @Override
+    public String toString() {
+        return "{control " + mIndex + ", " + mSpec + "}";
+    }
+}
@@ -0,0 +1,159 @@
+package lib.smartlink;
+
+/**
+ * One stage of the filters a {@link ControlChannel} runs its values through before they are
+ * sent, see {@link ControlSpec#withFilters}. Immutable, the channel keeps the state of each
+ * stage in its {@link FilterPipeline}.
+ * <p/>
+ * Time based stages go on moving towards the last value posted when no new values come, e.g.
+ * a slew limit reaches the value the app stopped at; the channel writes until they settle.
+ */
+public final class ControlFilter {
+    // types
+    public static final int TIME_AVERAGE = 0;
+    public static final int EMA = 1;
+    public static final int MEDIAN = 2;
+    public static final int SLEW_RATE = 3;
+    public static final int DEADBAND = 4;
+    public static final int CHANGE_THRESHOLD = 5;
+
+    // as in the Type entry of a config's Filters
+    static final String[] NAMES = {"average", "ema", "median", "slew", "deadband", "threshold"};
+
+    /** Longest median, it is sorted on every value */
+    public static final int MAX_MEDIAN = 31;
+    /** Most values a time average holds, older ones are dropped early when more arrive */
+    public static final int MAX_AVERAGED = 64;
+
+    private final int mType;
+    private final long mA;
+    private final long mB;
+
+    private ControlFilter(int type, long a, long b) {
+        mType = type;
+        mA = a;
+        mB = b;
+    }
+
+    /**
+     * Average of the values posted during the last <code>windowMs</code>, the latest one is
+     * always included
+     */
+    public static ControlFilter timeAverage(long windowMs) {
+        if (windowMs <= 0)
+            throw new IllegalArgumentException("invalid window " + windowMs);
+        return new ControlFilter(TIME_AVERAGE, windowMs, 0);
+    }
+
+    /**
+     * Exponential moving average over time: after <code>timeConstantMs</code> the output has
+     * moved 63% of the way to a new value, whatever the rate values are posted at
+     */
+    public static ControlFilter ema(long timeConstantMs) {
+        if (timeConstantMs <= 0)
+            throw new IllegalArgumentException("invalid time constant " + timeConstantMs);
+        return new ControlFilter(EMA, timeConstantMs, 0);
+    }
+
+    /**
+     * Median of the latest <code>samples</code> values, drops single spikes
+     */
+    public static ControlFilter median(int samples) {
+        if (samples < 1 || samples > MAX_MEDIAN)
+            throw new IllegalArgumentException("invalid median of " + samples);
+        return new ControlFilter(MEDIAN, samples, 0);
+    }
+
+    /**
+     * The output changes by at most <code>perSecond</code> a second, e.g. to spare a motor
+     * sudden jumps
+     */
+    public static ControlFilter slewRate(long perSecond) {
+        if (perSecond <= 0)
+            throw new IllegalArgumentException("invalid rate " + perSecond);
+        return new ControlFilter(SLEW_RATE, perSecond, 0);
+    }
+
+    /**
+     * Values within <code>width</code> of <code>center</code> become center, e.g. so a stick at
+     * rest sends exactly zero
+     */
+    public static ControlFilter deadband(int center, int width) {
+        if (width < 0)
+            throw new IllegalArgumentException("invalid width " + width);
+        return new ControlFilter(DEADBAND, center, width);
+    }
+
+    /**
+     * The output follows changes of at least <code>step</code> at once and smaller ones only
+     * once the input rested on them for <code>settleMs</code>, so jitter doesn't cause writes
+     * but the final value still goes out
+     *
+     * @param settleMs 0 to never pass on smaller changes
+     */
+    public static ControlFilter changeThreshold(int step, long settleMs) {
+        if (step < 1 || settleMs < 0)
+            throw new IllegalArgumentException("invalid threshold " + step + ", " + settleMs + " ms");
+        return new ControlFilter(CHANGE_THRESHOLD, step, settleMs);
+    }
+
+    /**
+     * @return the filter of <code>type</code> with the parameters as returned by
+     * {@link #getParameter(int)}
+     */
+    static ControlFilter of(int type, long a, long b) {
+        switch (type) {
+            case TIME_AVERAGE:
+                return timeAverage(a);
+            case EMA:
+                return ema(a);
+            case MEDIAN:
+                return median((int) a);
+            case SLEW_RATE:
+                return slewRate(a);
+            case DEADBAND:
+                return deadband((int) a, (int) b);
+            case CHANGE_THRESHOLD:
+                return changeThreshold((int) a, b);
+            default:
+                throw new IllegalArgumentException("invalid filter type " + type);
+        }
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @param index 0 or 1, in the order the factory method takes them
+     */
+    public long getParameter(int index) {
+        return index == 0 ? mA : mB;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ControlFilter))
+            return false;
+        final ControlFilter other = (ControlFilter) o;
+        return mType == other.mType && mA == other.mA && mB == other.mB;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = mType;
+        h = 31 * h + (int) (mA ^ (mA >>> 32));
+        return 31 * h + (int) (mB ^ (mB >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        switch (mType) {
+            case DEADBAND:
+            case CHANGE_THRESHOLD:
+                return NAMES[mType] + "(" + mA + ", " + mB + ")";
+            default:
+                return NAMES[mType] + "(" + mA + ")";
+        }
+    }
+}
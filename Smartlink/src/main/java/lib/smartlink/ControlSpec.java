@@ -0,0 +1,183 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Arrays;
+
+/**
+ * How a {@link ControlChannel} streams its values: which filters they run through, how many of
+ * the latest values are averaged, how often at most one goes out, how it is encoded, in which
+ * traffic class and with which write type. Immutable, start from {@link #DEFAULT} and change
+ * what differs.
+ * <p/>
+ * Drivers pass the spec they were written for to {@link BLEService#control}; a Control entry
+ * for the field in the config overrides the settings it names, so a channel can be tuned
+ * without touching the driver, see {@link DeviceConfig}.
+ */
+public final class ControlSpec {
+    private static final ControlFilter[] NO_FILTERS = new ControlFilter[0];
+
+    /**
+     * One value at a time, as fast as the pacer allows, uint8 in the control class, written
+     * without response
+     */
+    public static final ControlSpec DEFAULT = new ControlSpec(1, 0,
+            BluetoothGattCharacteristic.FORMAT_UINT8, TrafficClass.CONTROL,
+            BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, NO_FILTERS);
+
+    private final int mSmoothing;
+    private final float mMaxRateHz;
+    private final int mFormat;
+    private final int mTrafficClass;
+    private final int mWriteType;
+    private final ControlFilter[] mFilters;
+
+    private ControlSpec(int smoothing, float maxRateHz, int format, int trafficClass, int writeType,
+                        ControlFilter[] filters) {
+        if (smoothing < 1)
+            throw new IllegalArgumentException("smoothing must be at least 1");
+        if (maxRateHz < 0 || Float.isNaN(maxRateHz))
+            throw new IllegalArgumentException("invalid rate " + maxRateHz);
+        FieldHandle.sizeOf(format); // throws for formats the channel can't encode
+        // newer values replace queued ones, which bulk writes never do
+        if (trafficClass < 0 || trafficClass >= TrafficClass.BULK)
+            throw new IllegalArgumentException("invalid traffic class " + trafficClass);
+        if (writeType != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+                && writeType != BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                && writeType != BluetoothGattCharacteristic.WRITE_TYPE_SIGNED)
+            throw new IllegalArgumentException("invalid write type " + writeType);
+        mSmoothing = smoothing;
+        mMaxRateHz = maxRateHz;
+        mFormat = format;
+        mTrafficClass = trafficClass;
+        mWriteType = writeType;
+        mFilters = filters;
+    }
+
+    /**
+     * @param samples how many of the latest values are averaged into the one sent, 1 to send
+     *                the latest value as is
+     * @return a copy of this spec with that smoothing window
+     */
+    public ControlSpec withSmoothing(int samples) {
+        return new ControlSpec(samples, mMaxRateHz, mFormat, mTrafficClass, mWriteType, mFilters);
+    }
+
+    /**
+     * @param hz the most values per second the channel sends, 0 to leave it to the pacer of
+     *           the control class alone
+     * @return a copy of this spec with that rate limit
+     */
+    public ControlSpec withMaxRate(float hz) {
+        return new ControlSpec(mSmoothing, hz, mFormat, mTrafficClass, mWriteType, mFilters);
+    }
+
+    /**
+     * @param format one of the integer FORMAT_ constants of {@link BluetoothGattCharacteristic},
+     *               optionally with {@link FieldHandle#BIG_ENDIAN}
+     * @return a copy of this spec with that format
+     */
+    public ControlSpec withFormat(int format) {
+        return new ControlSpec(mSmoothing, mMaxRateHz, format, mTrafficClass, mWriteType, mFilters);
+    }
+
+    /**
+     * @param trafficClass one of the {@link TrafficClass} classes except BULK. Only the control
+     *                     class is paced to the link.
+     * @return a copy of this spec with that priority
+     */
+    public ControlSpec withTrafficClass(int trafficClass) {
+        return new ControlSpec(mSmoothing, mMaxRateHz, mFormat, trafficClass, mWriteType, mFilters);
+    }
+
+    /**
+     * @param writeType one of the WRITE_TYPE_ constants of {@link BluetoothGattCharacteristic}
+     * @return a copy of this spec with that write type
+     */
+    public ControlSpec withWriteType(int writeType) {
+        return new ControlSpec(mSmoothing, mMaxRateHz, mFormat, mTrafficClass, writeType, mFilters);
+    }
+
+    /**
+     * @param filters the stages values run through, in order, before they are averaged; none
+     *                to send values as posted. See {@link ControlFilter}.
+     * @return a copy of this spec with those filters
+     */
+    public ControlSpec withFilters(ControlFilter... filters) {
+        for (ControlFilter filter : filters) {
+            if (filter == null)
+                throw new IllegalArgumentException("null filter");
+        }
+        return new ControlSpec(mSmoothing, mMaxRateHz, mFormat, mTrafficClass, mWriteType,
+                filters.length == 0 ? NO_FILTERS : filters.clone());
+    }
+
+    public int getSmoothing() {
+        return mSmoothing;
+    }
+
+    /**
+     * @return the most values per second, 0 if only the pacer limits the channel
+     */
+    public float getMaxRateHz() {
+        return mMaxRateHz;
+    }
+
+    /**
+     * @return shortest time between two values going out, 0 if there is no limit
+     */
+    public long getMinIntervalNanos() {
+        return mMaxRateHz == 0 ? 0 : (long) (1e9 / mMaxRateHz);
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getTrafficClass() {
+        return mTrafficClass;
+    }
+
+    public int getWriteType() {
+        return mWriteType;
+    }
+
+    /**
+     * @return the filters, empty if there are none
+     */
+    public ControlFilter[] getFilters() {
+        return mFilters.length == 0 ? mFilters : mFilters.clone();
+    }
+
+    boolean hasFilters() {
+        return mFilters.length != 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ControlSpec))
+            return false;
+        final ControlSpec other = (ControlSpec) o;
+        return mSmoothing == other.mSmoothing && mMaxRateHz == other.mMaxRateHz
+                && mFormat == other.mFormat && mTrafficClass == other.mTrafficClass
+                && mWriteType == other.mWriteType && Arrays.equals(mFilters, other.mFilters);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = mSmoothing;
+        h = 31 * h + Float.floatToIntBits(mMaxRateHz);
+        h = 31 * h + mFormat;
+        h = 31 * h + mTrafficClass;
+        h = 31 * h + mWriteType;
+        return 31 * h + Arrays.hashCode(mFilters);
+    }
+
+    @Override
+    public String toString() {
+        return "{smoothing: " + mSmoothing + ", max rate: " + mMaxRateHz + " Hz, format: 0x"
+                + Integer.toHexString(mFormat) + ", class: " + TrafficClass.NAMES[mTrafficClass]
+                + ", write type: " + mWriteType
+                + (mFilters.length == 0 ? "}" : ", filters: " + Arrays.toString(mFilters) + "}");
+    }
+}
@@ -1,7 +1,8 @@
 package lib.smartlink;
 
 /**
- * Class in charge of maintaining the average of the most recently used values
+ * Class in charge of maintaining the average of the most recently used values.
+ * Not thread safe, use a {@link ConcurrentDataPool} to post and fetch on different threads.
  * @author Radu Hambasan
  * @date 08 Jul, 2014
  */
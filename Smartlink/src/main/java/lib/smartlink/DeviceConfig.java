@@ -0,0 +1,742 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import com.dd.plist.NSArray;
+import com.dd.plist.NSDictionary;
+import com.dd.plist.NSNumber;
+import com.dd.plist.NSObject;
+import com.dd.plist.PropertyListParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The .plist configuration of a {@link BluetoothDevice}, compiled into an immutable model:
+ * services and their fields get integer ids in plist order, UUIDs are kept as long pairs and
+ * looked up without allocating, and every service is bound to its driver class.
+ * <p/>
+ * {@link #parse(InputStream)} caches what it compiled by file content, so constructing a device
+ * again, e.g. when an activity is recreated, skips the XML parser. A config can also be saved in
+ * a compact binary form with {@link #writeTo(OutputStream)}, which parse() reads as well.
+ * <p/>
+ * A field is either given by its UUID string, or by a dictionary with the UUID and an optional
+ * Control dictionary tuning the field's {@link ControlChannel}. Its entries override the spec
+ * the driver asks for, each one is optional:
+ * <pre>
+ * &lt;key&gt;Control&lt;/key&gt;
+ * &lt;dict&gt;
+ *     &lt;key&gt;Smoothing&lt;/key&gt;&lt;integer&gt;4&lt;/integer&gt;          values averaged
+ *     &lt;key&gt;MaxRate&lt;/key&gt;&lt;real&gt;50&lt;/real&gt;               values per second at most
+ *     &lt;key&gt;Format&lt;/key&gt;&lt;string&gt;sint16&lt;/string&gt;         uint8 to sint32
+ *     &lt;key&gt;BigEndian&lt;/key&gt;&lt;true/&gt;
+ *     &lt;key&gt;Priority&lt;/key&gt;&lt;string&gt;control&lt;/string&gt;     control, connection or data
+ *     &lt;key&gt;WriteType&lt;/key&gt;&lt;string&gt;default&lt;/string&gt;    no response, default or signed
+ *     &lt;key&gt;Filters&lt;/key&gt;                                  applied in order, see below
+ *     &lt;array&gt;
+ *         &lt;dict&gt;
+ *             &lt;key&gt;Type&lt;/key&gt;&lt;string&gt;deadband&lt;/string&gt;
+ *             &lt;key&gt;Width&lt;/key&gt;&lt;integer&gt;3&lt;/integer&gt;
+ *         &lt;/dict&gt;
+ *     &lt;/array&gt;
+ * &lt;/dict&gt;
+ * </pre>
+ * Filter types and their entries, times in ms: average (Window), ema (TimeConstant), median
+ * (Samples), slew (Rate, per second), deadband (Width, optional Center) and threshold (Step,
+ * optional Settle). See {@link ControlFilter}.
+ */
+public final class DeviceConfig {
+    private static final String TAG = "lib-smartlink-DeviceConfig";
+    private static final int FILE_MAGIC = 0x534c4346; // "SLCF"
+    private static final int FILE_VERSION = 3;
+    // version 1 had no control entries, version 2 no filters in them
+    private static final int FILE_VERSION_NO_CONTROL = 1;
+    private static final int FILE_VERSION_NO_FILTERS = 2;
+    private static final String DRIVER_PACKAGE = "lib.smartlink.driver.";
+    // 0000xxxx-0000-1000-8000-00805F9B34FB
+    private static final String BASE_UUID_SUFFIX = "-0000-1000-8000-00805F9B34FB";
+    // configs compiled so far, by file content. An app has a handful at most.
+    private static final int CACHE_SIZE = 8;
+    private static final LinkedHashMap<ByteBuffer, DeviceConfig> sCache =
+            new LinkedHashMap<ByteBuffer, DeviceConfig>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, DeviceConfig> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final String mDeviceName;
+    private final int mRssiHigh;
+    private final int mRssiLow;
+    private final long mSelectionWindowMs;
+
+    // per service, in plist order
+    private final String[] mServiceNames;
+    private final long[] mServiceMsb;
+    private final long[] mServiceLsb;
+    private final boolean[] mPrimary;
+    private final String[] mDriverClasses;
+    // fields of service s are mFirstField[s] up to mFirstField[s + 1]
+    private final int[] mFirstField;
+
+    // per field, grouped by service
+    private final String[] mFieldNames;
+    private final String[] mFieldPaths;
+    private final long[] mFieldMsb;
+    private final long[] mFieldLsb;
+    private final int[] mFieldService;
+    private final Control[] mFieldControls; // null for fields without a Control entry
+
+    /**
+     * The Control entry of a field, with every setting the config leaves out unset
+     */
+    private static class Control {
+        static final int UNSET = -1;
+
+        int smoothing = UNSET;
+        float maxRateHz = UNSET;
+        int format = UNSET;
+        int trafficClass = UNSET;
+        int writeType = UNSET;
+        ControlFilter[] filters; // null if unset
+
+        /**
+         * @return <code>defaults</code> with the settings of this entry
+         */
+        ControlSpec applyTo(ControlSpec defaults) {
+            ControlSpec spec = defaults;
+            if (smoothing != UNSET)
+                spec = spec.withSmoothing(smoothing);
+            if (maxRateHz != UNSET)
+                spec = spec.withMaxRate(maxRateHz);
+            if (format != UNSET)
+                spec = spec.withFormat(format);
+            if (trafficClass != UNSET)
+                spec = spec.withTrafficClass(trafficClass);
+            if (writeType != UNSET)
+                spec = spec.withWriteType(writeType);
+            if (filters != null)
+                spec = spec.withFilters(filters);
+            return spec;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(smoothing);
+            out.writeFloat(maxRateHz);
+            out.writeInt(format);
+            out.writeInt(trafficClass);
+            out.writeInt(writeType);
+            out.writeInt(filters == null ? UNSET : filters.length);
+            if (filters != null) {
+                for (ControlFilter filter : filters) {
+                    out.writeInt(filter.getType());
+                    out.writeLong(filter.getParameter(0));
+                    out.writeLong(filter.getParameter(1));
+                }
+            }
+        }
+
+        static Control readFrom(DataInputStream in, int version) throws IOException {
+            Control control = new Control();
+            control.smoothing = in.readInt();
+            control.maxRateHz = in.readFloat();
+            control.format = in.readInt();
+            control.trafficClass = in.readInt();
+            control.writeType = in.readInt();
+            final int filters = version == FILE_VERSION_NO_FILTERS ? UNSET : in.readInt();
+            if (filters != UNSET) {
+                control.filters = new ControlFilter[filters];
+                for (int i = 0; i < filters; i++)
+                    control.filters[i] = ControlFilter.of(in.readInt(), in.readLong(), in.readLong());
+            }
+            return control;
+        }
+
+        @Override
+        public String toString() {
+            return applyTo(ControlSpec.DEFAULT).toString();
+        }
+    }
+
+    /**
+     * Collects a config while it is being read
+     */
+    private static class Builder {
+        String deviceName;
+        int rssiHigh;
+        int rssiLow;
+        long selectionWindowMs;
+        final List<String> serviceNames = new ArrayList<String>();
+        final List<UUID> serviceUuids = new ArrayList<UUID>();
+        final List<Boolean> primary = new ArrayList<Boolean>();
+        final List<String> driverClasses = new ArrayList<String>();
+        final List<Integer> firstField = new ArrayList<Integer>();
+        final List<String> fieldNames = new ArrayList<String>();
+        final List<UUID> fieldUuids = new ArrayList<UUID>();
+        final List<Control> fieldControls = new ArrayList<Control>();
+
+        void addService(String name, UUID uuid, boolean isPrimary, String driverClass) {
+            serviceNames.add(name);
+            serviceUuids.add(uuid);
+            primary.add(isPrimary);
+            driverClasses.add(driverClass);
+            firstField.add(fieldNames.size());
+        }
+
+        void addField(String name, UUID uuid, Control control) {
+            fieldNames.add(name);
+            fieldUuids.add(uuid);
+            fieldControls.add(control);
+        }
+    }
+
+    private DeviceConfig(Builder b) {
+        mDeviceName = b.deviceName;
+        mRssiHigh = b.rssiHigh;
+        mRssiLow = b.rssiLow;
+        mSelectionWindowMs = b.selectionWindowMs;
+
+        final int services = b.serviceNames.size();
+        mServiceNames = b.serviceNames.toArray(new String[services]);
+        mDriverClasses = b.driverClasses.toArray(new String[services]);
+        mServiceMsb = new long[services];
+        mServiceLsb = new long[services];
+        mPrimary = new boolean[services];
+        mFirstField = new int[services + 1];
+        for (int s = 0; s < services; s++) {
+            mServiceMsb[s] = b.serviceUuids.get(s).getMostSignificantBits();
+            mServiceLsb[s] = b.serviceUuids.get(s).getLeastSignificantBits();
+            mPrimary[s] = b.primary.get(s);
+            mFirstField[s] = b.firstField.get(s);
+        }
+        final int fields = b.fieldNames.size();
+        mFirstField[services] = fields;
+        mFieldNames = b.fieldNames.toArray(new String[fields]);
+        mFieldControls = b.fieldControls.toArray(new Control[fields]);
+        mFieldPaths = new String[fields];
+        mFieldMsb = new long[fields];
+        mFieldLsb = new long[fields];
+        mFieldService = new int[fields];
+        for (int s = 0; s < services; s++) {
+            for (int f = mFirstField[s]; f < mFirstField[s + 1]; f++) {
+                mFieldPaths[f] = mServiceNames[s] + "/" + mFieldNames[f];
+                mFieldMsb[f] = b.fieldUuids.get(f).getMostSignificantBits();
+                mFieldLsb[f] = b.fieldUuids.get(f).getLeastSignificantBits();
+                mFieldService[f] = s;
+            }
+        }
+    }
+
+    /**
+     * Compile a config, or return the one compiled earlier from the same content
+     *
+     * @param configFile a .plist file, see {@link BluetoothDevice#BluetoothDevice(InputStream,
+     *                   android.app.Activity)}, or a config written by {@link #writeTo(OutputStream)}
+     * @throws IllegalArgumentException if the file can't be read or is not a valid config
+     */
+    public static DeviceConfig parse(InputStream configFile) {
+        final byte[] content;
+        try {
+            content = readFully(configFile);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("could not read config: " + e.getMessage(), e);
+        }
+        final ByteBuffer key = ByteBuffer.wrap(content);
+        synchronized (sCache) {
+            DeviceConfig cached = sCache.get(key);
+            if (cached != null)
+                return cached;
+        }
+        final DeviceConfig config;
+        if (content.length >= 4 && ByteBuffer.wrap(content).getInt() == FILE_MAGIC)
+            config = readBinary(content);
+        else
+            config = readPlist(content);
+        config.log();
+        synchronized (sCache) {
+            sCache.put(key, config);
+        }
+        return config;
+    }
+
+    /**
+     * Forget the configs compiled so far, e.g. when memory runs low. Devices keep theirs.
+     */
+    public static void clearCache() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    private static DeviceConfig readPlist(byte[] content) {
+        final NSDictionary plist;
+        try {
+            plist = (NSDictionary) PropertyListParser.parse(content);
+        } catch (Exception e) {
+            // dd-plist throws a handful of unrelated checked exceptions, and the root may not
+            // be a dictionary
+            throw new IllegalArgumentException("invalid plistFile: " + e, e);
+        }
+
+        Builder b = new Builder();
+        b.rssiHigh = intValue(plist, "rssi high");
+        b.rssiLow = intValue(plist, "rssi low");
+        NSObject selectionWindow = plist.objectForKey("selection window");
+        if (selectionWindow instanceof NSNumber)
+            b.selectionWindowMs = ((NSNumber) selectionWindow).longValue();
+        NSObject devName = plist.objectForKey("device name");
+        if (devName != null)
+            b.deviceName = devName.toString();
+
+        NSDictionary services = dictionary(plist, "Services", "plist");
+        for (String serviceName : services.allKeys()) { // in plist order
+            NSDictionary service = dictionary(services, serviceName, "Services");
+            NSNumber isPrimary = (NSNumber) service.objectForKey("Primary");
+            NSObject driverClass = service.objectForKey("DriverClass");
+            if (driverClass == null)
+                throw new IllegalArgumentException("invalid plistFile: no DriverClass for " + serviceName);
+            b.addService(serviceName, uuid(service.objectForKey("UUID"), serviceName),
+                    isPrimary != null && isPrimary.boolValue(), driverClass.toString());
+
+            NSDictionary fields = dictionary(service, "Fields", serviceName);
+            for (String fieldName : fields.allKeys()) {
+                final String path = serviceName + "/" + fieldName;
+                NSObject field = fields.objectForKey(fieldName);
+                if (field instanceof NSDictionary) {
+                    NSDictionary entry = (NSDictionary) field;
+                    NSObject control = entry.objectForKey("Control");
+                    if (control != null && !(control instanceof NSDictionary))
+                        throw new IllegalArgumentException("invalid plistFile: Control of " + path + " is no dictionary");
+                    b.addField(fieldName, uuid(entry.objectForKey("UUID"), path),
+                            control == null ? null : control((NSDictionary) control, path));
+                } else {
+                    b.addField(fieldName, uuid(field, path), null);
+                }
+            }
+        }
+        return new DeviceConfig(b);
+    }
+
+    private static Control control(NSDictionary dict, String where) {
+        Control control = new Control();
+        try {
+            NSObject value = dict.objectForKey("Smoothing");
+            if (value != null)
+                control.smoothing = number(value, "Smoothing").intValue();
+            value = dict.objectForKey("MaxRate");
+            if (value != null)
+                control.maxRateHz = (float) number(value, "MaxRate").doubleValue();
+            value = dict.objectForKey("Format");
+            if (value != null) {
+                control.format = format(value.toString());
+                value = dict.objectForKey("BigEndian");
+                if (value != null && number(value, "BigEndian").boolValue())
+                    control.format |= FieldHandle.BIG_ENDIAN;
+            }
+            value = dict.objectForKey("Priority");
+            if (value != null)
+                control.trafficClass = trafficClass(value.toString());
+            value = dict.objectForKey("WriteType");
+            if (value != null)
+                control.writeType = writeType(value.toString());
+            value = dict.objectForKey("Filters");
+            if (value != null)
+                control.filters = filters(value);
+            // reject what no driver could use now rather than on connecting
+            control.applyTo(ControlSpec.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid plistFile: bad Control for " + where + ": "
+                    + e.getMessage(), e);
+        }
+        return control;
+    }
+
+    private static NSNumber number(NSObject value, String key) {
+        if (!(value instanceof NSNumber))
+            throw new IllegalArgumentException(key + " is not a number");
+        return (NSNumber) value;
+    }
+
+    private static int format(String name) {
+        if (name.equals("uint8"))
+            return BluetoothGattCharacteristic.FORMAT_UINT8;
+        if (name.equals("sint8"))
+            return BluetoothGattCharacteristic.FORMAT_SINT8;
+        if (name.equals("uint16"))
+            return BluetoothGattCharacteristic.FORMAT_UINT16;
+        if (name.equals("sint16"))
+            return BluetoothGattCharacteristic.FORMAT_SINT16;
+        if (name.equals("uint32"))
+            return BluetoothGattCharacteristic.FORMAT_UINT32;
+        if (name.equals("sint32"))
+            return BluetoothGattCharacteristic.FORMAT_SINT32;
+        throw new IllegalArgumentException("unknown Format " + name);
+    }
+
+    private static ControlFilter[] filters(NSObject value) {
+        if (!(value instanceof NSArray))
+            throw new IllegalArgumentException("Filters is no array");
+        final NSObject[] entries = ((NSArray) value).getArray();
+        final ControlFilter[] filters = new ControlFilter[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            if (!(entries[i] instanceof NSDictionary))
+                throw new IllegalArgumentException("filter " + i + " is no dictionary");
+            filters[i] = filter((NSDictionary) entries[i]);
+        }
+        return filters;
+    }
+
+    private static ControlFilter filter(NSDictionary dict) {
+        final NSObject type = dict.objectForKey("Type");
+        final String name = type == null ? null : type.toString();
+        if ("average".equals(name))
+            return ControlFilter.timeAverage(number(dict.objectForKey("Window"), "Window").longValue());
+        if ("ema".equals(name))
+            return ControlFilter.ema(number(dict.objectForKey("TimeConstant"), "TimeConstant").longValue());
+        if ("median".equals(name))
+            return ControlFilter.median(number(dict.objectForKey("Samples"), "Samples").intValue());
+        if ("slew".equals(name))
+            return ControlFilter.slewRate(number(dict.objectForKey("Rate"), "Rate").longValue());
+        if ("deadband".equals(name)) {
+            final NSObject center = dict.objectForKey("Center");
+            return ControlFilter.deadband(center == null ? 0 : number(center, "Center").intValue(),
+                    number(dict.objectForKey("Width"), "Width").intValue());
+        }
+        if ("threshold".equals(name)) {
+            final NSObject settle = dict.objectForKey("Settle");
+            return ControlFilter.changeThreshold(number(dict.objectForKey("Step"), "Step").intValue(),
+                    settle == null ? 0 : number(settle, "Settle").longValue());
+        }
+        throw new IllegalArgumentException("unknown filter Type " + name);
+    }
+
+    private static int trafficClass(String name) {
+        for (int cls = 0; cls < TrafficClass.NAMES.length; cls++) {
+            if (TrafficClass.NAMES[cls].equalsIgnoreCase(name))
+                return cls;
+        }
+        throw new IllegalArgumentException("unknown Priority " + name);
+    }
+
+    private static int writeType(String name) {
+        if (name.equals("no response"))
+            return BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        if (name.equals("default"))
+            return BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        if (name.equals("signed"))
+            return BluetoothGattCharacteristic.WRITE_TYPE_SIGNED;
+        throw new IllegalArgumentException("unknown WriteType " + name);
+    }
+
+    private static int intValue(NSDictionary dict, String key) {
+        NSObject value = dict.objectForKey(key);
+        if (!(value instanceof NSNumber))
+            throw new IllegalArgumentException("invalid plistFile: '" + key + "' missing or not a number");
+        return ((NSNumber) value).intValue();
+    }
+
+    private static NSDictionary dictionary(NSDictionary dict, String key, String where) {
+        NSObject value = dict.objectForKey(key);
+        if (!(value instanceof NSDictionary))
+            throw new IllegalArgumentException("invalid plistFile: no '" + key + "' dictionary in " + where);
+        return (NSDictionary) value;
+    }
+
+    private static UUID uuid(NSObject value, String where) {
+        if (value == null)
+            throw new IllegalArgumentException("invalid plistFile: no UUID for " + where);
+        try {
+            return toUuid(value.toString());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid plistFile: bad UUID for " + where + ": " + value, e);
+        }
+    }
+
+    /**
+     * @param uuid a 128 bit UUID, or a 16 bit one on top of the Bluetooth base UUID
+     */
+    static UUID toUuid(String uuid) {
+        if (uuid.length() == 4)
+            uuid = "0000" + uuid + BASE_UUID_SUFFIX;
+        return UUID.fromString(uuid);
+    }
+
+    /**
+     * Save the config in binary form, big endian. {@link #parse(InputStream)} reads it back
+     * without involving the XML parser.
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeBoolean(mDeviceName != null);
+        if (mDeviceName != null)
+            out.writeUTF(mDeviceName);
+        out.writeInt(mRssiHigh);
+        out.writeInt(mRssiLow);
+        out.writeLong(mSelectionWindowMs);
+        out.writeInt(mServiceNames.length);
+        for (int s = 0; s < mServiceNames.length; s++) {
+            out.writeUTF(mServiceNames[s]);
+            out.writeLong(mServiceMsb[s]);
+            out.writeLong(mServiceLsb[s]);
+            out.writeBoolean(mPrimary[s]);
+            out.writeUTF(mDriverClasses[s]);
+            out.writeInt(mFirstField[s + 1] - mFirstField[s]);
+            for (int f = mFirstField[s]; f < mFirstField[s + 1]; f++) {
+                out.writeUTF(mFieldNames[f]);
+                out.writeLong(mFieldMsb[f]);
+                out.writeLong(mFieldLsb[f]);
+                out.writeBoolean(mFieldControls[f] != null);
+                if (mFieldControls[f] != null)
+                    mFieldControls[f].writeTo(out);
+            }
+        }
+        out.flush();
+    }
+
+    private static DeviceConfig readBinary(byte[] content) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        try {
+            in.readInt(); // magic, checked by the caller
+            final int version = in.readInt();
+            if (version != FILE_VERSION && version != FILE_VERSION_NO_FILTERS
+                    && version != FILE_VERSION_NO_CONTROL)
+                throw new IllegalArgumentException("unsupported config version");
+            Builder b = new Builder();
+            b.deviceName = in.readBoolean() ? in.readUTF() : null;
+            b.rssiHigh = in.readInt();
+            b.rssiLow = in.readInt();
+            b.selectionWindowMs = in.readLong();
+            final int services = in.readInt();
+            for (int s = 0; s < services; s++) {
+                final String name = in.readUTF();
+                final UUID uuid = new UUID(in.readLong(), in.readLong());
+                final boolean primary = in.readBoolean();
+                b.addService(name, uuid, primary, in.readUTF());
+                final int fields = in.readInt();
+                for (int f = 0; f < fields; f++) {
+                    final String field = in.readUTF();
+                    final UUID fieldUuid = new UUID(in.readLong(), in.readLong());
+                    final boolean control = version != FILE_VERSION_NO_CONTROL && in.readBoolean();
+                    b.addField(field, fieldUuid, control ? Control.readFrom(in, version) : null);
+                }
+            }
+            return new DeviceConfig(b);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("truncated config file", e);
+        }
+    }
+
+    private void log() {
+        Log.d(TAG, "Device name: " + mDeviceName);
+        for (int s = 0; s < mServiceNames.length; s++) {
+            Log.i(TAG, "|--" + mServiceNames[s] + " : " + getServiceUuid(s)
+                    + (mPrimary[s] ? " (primary)" : "") + " -> " + mDriverClasses[s]);
+            for (int f = mFirstField[s]; f < mFirstField[s + 1]; f++)
+                Log.i(TAG, "|     " + mFieldNames[f] + " : " + getFieldUuid(f)
+                        + (mFieldControls[f] == null ? "" : " control " + mFieldControls[f]));
+        }
+    }
+
+    /**
+     * @return the name devices advertise, null if the config has none
+     */
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    public int getRssiHigh() {
+        return mRssiHigh;
+    }
+
+    public int getRssiLow() {
+        return mRssiLow;
+    }
+
+    /**
+     * @return the "selection window" in ms, 0 if the config has none
+     */
+    public long getSelectionWindowMs() {
+        return mSelectionWindowMs;
+    }
+
+    public int getServiceCount() {
+        return mServiceNames.length;
+    }
+
+    /**
+     * @param service service id, 0 up to {@link #getServiceCount()}
+     */
+    public String getServiceName(int service) {
+        return mServiceNames[service];
+    }
+
+    public UUID getServiceUuid(int service) {
+        return new UUID(mServiceMsb[service], mServiceLsb[service]);
+    }
+
+    /**
+     * @return true if advertising the service makes a device connection-worthy
+     */
+    public boolean isPrimary(int service) {
+        return mPrimary[service];
+    }
+
+    /**
+     * @return DriverClass of the service as written in the config
+     */
+    public String getDriverName(int service) {
+        return mDriverClasses[service];
+    }
+
+    /**
+     * @return fully qualified name of the class driving the service, in the driver package
+     * unless the config names a qualified class
+     */
+    public String getDriverClassName(int service) {
+        final String name = mDriverClasses[service];
+        return name.indexOf('.') < 0 ? DRIVER_PACKAGE + name : name;
+    }
+
+    /**
+     * @return UUIDs of the primary services
+     */
+    public UUID[] getPrimaryServices() {
+        List<UUID> primary = new ArrayList<UUID>();
+        for (int s = 0; s < mServiceNames.length; s++) {
+            if (mPrimary[s])
+                primary.add(getServiceUuid(s));
+        }
+        return primary.toArray(new UUID[primary.size()]);
+    }
+
+    /**
+     * @return id of the service with this UUID, -1 if it is not in the config
+     */
+    public int indexOfService(UUID uuid) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        for (int s = 0; s < mServiceMsb.length; s++) {
+            if (mServiceMsb[s] == msb && mServiceLsb[s] == lsb)
+                return s;
+        }
+        return -1;
+    }
+
+    /**
+     * @return total number of fields, over all services
+     */
+    public int getFieldCount() {
+        return mFieldNames.length;
+    }
+
+    /**
+     * @return id of the first field of <code>service</code>. Its fields have consecutive ids up
+     * to {@link #getFieldEnd(int)}.
+     */
+    public int getFirstField(int service) {
+        return mFirstField[service];
+    }
+
+    /**
+     * @return one more than the id of the last field of <code>service</code>
+     */
+    public int getFieldEnd(int service) {
+        return mFirstField[service + 1];
+    }
+
+    /**
+     * @param field field id, 0 up to {@link #getFieldCount()}
+     * @return the field's name within its service
+     */
+    public String getFieldName(int field) {
+        return mFieldNames[field];
+    }
+
+    /**
+     * @return "service/field"
+     */
+    public String getFieldPath(int field) {
+        return mFieldPaths[field];
+    }
+
+    public UUID getFieldUuid(int field) {
+        return new UUID(mFieldMsb[field], mFieldLsb[field]);
+    }
+
+    /**
+     * @return true if the config has a Control entry for the field
+     */
+    public boolean hasControl(int field) {
+        return mFieldControls[field] != null;
+    }
+
+    /**
+     * @param defaults the spec the field's driver asks for
+     * @return <code>defaults</code> with what the field's Control entry sets, if it has one
+     */
+    public ControlSpec getControlSpec(int field, ControlSpec defaults) {
+        return mFieldControls[field] == null ? defaults : mFieldControls[field].applyTo(defaults);
+    }
+
+    /**
+     * @return id of the service the field belongs to
+     */
+    public int getFieldService(int field) {
+        return mFieldService[field];
+    }
+
+    /**
+     * @return id of the field with this UUID, -1 if it is not in the config
+     */
+    public int indexOfField(UUID uuid) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        for (int f = 0; f < mFieldMsb.length; f++) {
+            if (mFieldMsb[f] == msb && mFieldLsb[f] == lsb)
+                return f;
+        }
+        return -1;
+    }
+
+    /**
+     * @param path "service/field"
+     * @return id of the field, -1 if it is not in the config
+     */
+    public int indexOfField(String path) {
+        for (int f = 0; f < mFieldPaths.length; f++) {
+            if (mFieldPaths[f].equals(path))
+                return f;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "{device: " + mDeviceName + ", services: " + Arrays.toString(mServiceNames)
+                + ", fields: " + mFieldNames.length + "}";
+    }
+}
@@ -0,0 +1,129 @@
+package lib.smartlink;
+
+import android.util.Log;
+
+import java.util.HashMap;
+
+import lib.smartlink.driver.BLEBatteryService;
+import lib.smartlink.driver.BLEDeviceInformationService;
+import lib.smartlink.driver.BLEFirmwareUploadService;
+import lib.smartlink.driver.BLESmartplaneService;
+
+/**
+ * Creates the drivers named by the DriverClass entries of the configs. The drivers of this
+ * library are registered up front, apps can register their own with {@link #register}, so no
+ * driver needs to be looked up by reflection. Any other name is resolved as a class once, in
+ * {@link DeviceConfig#getDriverClassName(int) the driver package} unless it is fully qualified,
+ * and its factory is kept for the next connection.
+ */
+public final class DriverRegistry {
+    private static final String TAG = "lib-smartlink-DriverRegistry";
+
+    public interface Factory {
+        /**
+         * @return a new, unattached driver
+         */
+        BLEService create();
+    }
+
+    // stands in for names which could not be resolved, so they are only tried once
+    private static final Factory UNRESOLVED = new Factory() {
+        @Override
+        public BLEService create() {
+            return null;
+        }
+    };
+
+    private static final HashMap<String, Factory> sFactories = new HashMap<String, Factory>();
+
+    static {
+        register("BLEBatteryService", new Factory() {
+            @Override
+            public BLEService create() {
+                return new BLEBatteryService();
+            }
+        });
+        register("BLEDeviceInformationService", new Factory() {
+            @Override
+            public BLEService create() {
+                return new BLEDeviceInformationService();
+            }
+        });
+        register("BLEFirmwareUploadService", new Factory() {
+            @Override
+            public BLEService create() {
+                return new BLEFirmwareUploadService();
+            }
+        });
+        register("BLESmartplaneService", new Factory() {
+            @Override
+            public BLEService create() {
+                return new BLESmartplaneService();
+            }
+        });
+    }
+
+    private DriverRegistry() {
+    }
+
+    /**
+     * Create the drivers called <code>name</code> with <code>factory</code> from now on
+     *
+     * @param name    DriverClass as written in the config, e.g. "BLEBatteryService"
+     * @param factory null to go back to resolving the name as a class
+     */
+    public static void register(String name, Factory factory) {
+        synchronized (sFactories) {
+            if (factory == null)
+                sFactories.remove(name);
+            else
+                sFactories.put(name, factory);
+        }
+    }
+
+    /**
+     * Create the driver of a service
+     *
+     * @param config  the config naming the driver
+     * @param service index of the service in <code>config</code>
+     * @return a new driver, null if there is no driver of that name
+     */
+    public static BLEService create(DeviceConfig config, int service) {
+        final String name = config.getDriverName(service);
+        Factory factory;
+        synchronized (sFactories) {
+            factory = sFactories.get(name);
+            if (factory == null) {
+                factory = resolve(config.getDriverClassName(service));
+                sFactories.put(name, factory);
+            }
+        }
+        return factory.create();
+    }
+
+    private static Factory resolve(String className) {
+        final Class<? extends BLEService> driverClass;
+        try {
+            driverClass = Class.forName(className).asSubclass(BLEService.class);
+        } catch (ClassNotFoundException e) {
+            Log.w(TAG, className + " not found");
+            return UNRESOLVED;
+        } catch (ClassCastException e) {
+            Log.w(TAG, className + " is no BLEService");
+            return UNRESOLVED;
+        }
+        return new Factory() {
+            @Override
+            public BLEService create() {
+                try {
+                    return driverClass.newInstance();
+                } catch (InstantiationException e) {
+                    e.printStackTrace();
+                } catch (IllegalAccessException e) {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,306 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * Typed access to one field of a driver, resolved once with
+ * {@link BLEService#field(String, int)} when the driver is attached. Values are decoded from
+ * and encoded into byte arrays directly, so reading and writing a field neither looks up its
+ * name nor boxes the value, and a write replacing one still queued allocates nothing.
+ * <p/>
+ * The format is one of the integer <code>FORMAT_</code> constants of
+ * {@link BluetoothGattCharacteristic}, optionally combined with {@link #BIG_ENDIAN}. Fields
+ * with fraction bits hold fixed-point numbers, see {@link #getFloat()}. FORMAT_SFLOAT and
+ * FORMAT_FLOAT fields hold IEEE 11073 decimal floats, a mantissa times a power of ten; use
+ * {@link #getFloat()} and {@link #setFloat(float)} with them.
+ */
+public final class FieldHandle {
+    /** Combine with the format for fields sent most significant byte first */
+    public static final int BIG_ENDIAN = 0x100;
+
+    private static final int SIZE_MASK = 0x0f;
+    // kinds of formats, FORMAT_SFLOAT and FORMAT_FLOAT are DECIMAL
+    private static final int UNSIGNED = 0x10;
+    private static final int SIGNED = 0x20;
+    private static final int DECIMAL = 0x30;
+
+    // IEEE 11073 special values, as mantissas with a zero exponent
+    private static final int SFLOAT_NAN = 0x07ff;
+    private static final int SFLOAT_POSITIVE_INFINITY = 0x07fe;
+    private static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    private static final int FLOAT_NAN = 0x007fffff;
+    private static final int FLOAT_POSITIVE_INFINITY = 0x007ffffe;
+    private static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+
+    private final BLEService mDriver;
+    private final int mIndex;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final int mFormat;
+    private final int mSize;
+    private final float mScale;
+    private final boolean mDecimal;
+    // encoding buffer of writes, only used under the device's write lock
+    final byte[] scratch;
+
+    FieldHandle(BLEService driver, int index, BluetoothGattCharacteristic characteristic,
+                int format, int fractionBits) {
+        mDecimal = isDecimal(format);
+        final int size = mDecimal ? format & SIZE_MASK : sizeOf(format);
+        if (fractionBits < 0 || fractionBits >= 8 * size || (mDecimal && fractionBits != 0))
+            throw new IllegalArgumentException("invalid fraction bits " + fractionBits);
+        mDriver = driver;
+        mIndex = index;
+        mCharacteristic = characteristic;
+        mFormat = format;
+        mSize = size;
+        mScale = 1f / (1 << fractionBits);
+        scratch = new byte[size];
+    }
+
+    /**
+     * @return index of the field in its driver, as passed to
+     * {@link BLEService#didUpdateValue(int)}
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    /**
+     * @return the format the handle was resolved with
+     */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * @return the field's size in bytes
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the last value read or notified, 0 if there is none. Decimal floats are rounded
+     * towards zero.
+     */
+    public long getLong() {
+        if (mDecimal)
+            return (long) getFloat();
+        return decode(mDriver.valueOf(mIndex), 0, mFormat);
+    }
+
+    /**
+     * @return the last value read or notified, truncated to an int for UINT32 fields
+     */
+    public int getInt() {
+        return (int) getLong();
+    }
+
+    /**
+     * @return the last value read or notified, scaled down by the fraction bits
+     */
+    public float getFloat() {
+        if (mDecimal)
+            return decodeFloat(mDriver.valueOf(mIndex), 0, mFormat);
+        return getLong() * mScale;
+    }
+
+    /**
+     * Write <code>value</code>, replacing a write to this field which is still queued
+     */
+    public GattFuture setLong(long value) {
+        if (mDecimal)
+            return setFloat(value);
+        return write(value);
+    }
+
+    /**
+     * @param bits the value as it is encoded, see {@link #encode(long, byte[])}
+     */
+    private GattFuture write(long bits) {
+        final BluetoothDevice device = mDriver.mParent == null ? null : mDriver.mParent.get();
+        if (device == null)
+            return BLEService.detached(BluetoothDevice.BleCommand.WRITE);
+        return device.writeField(this, bits);
+    }
+
+    public GattFuture setInt(int value) {
+        return setLong(value);
+    }
+
+    /**
+     * Write <code>value</code> scaled up by the fraction bits, rounded to the nearest step
+     */
+    public GattFuture setFloat(float value) {
+        if (mDecimal)
+            return write(decimalBits(value, mFormat));
+        return setLong(Math.round(value / mScale));
+    }
+
+    /**
+     * Read the field from the peripheral, or from the read cache if the driver cached it. The
+     * result is reported like any other read.
+     */
+    public GattFuture read() {
+        final BluetoothDevice device = mDriver.mParent == null ? null : mDriver.mParent.get();
+        if (device == null)
+            return BLEService.detached(BluetoothDevice.BleCommand.READ);
+        return device.readField(mCharacteristic);
+    }
+
+    /**
+     * Encode <code>value</code> into {@link #scratch}
+     */
+    void encode(long value) {
+        encode(value, scratch);
+    }
+
+    /**
+     * Encode a value passed to {@link BluetoothDevice#writeField}. For decimal floats that is
+     * their bits as they are sent, the mantissa in the low bits and the exponent above it.
+     */
+    void encode(long value, byte[] dest) {
+        encode(value, dest, 0, mDecimal ? (mFormat & ~DECIMAL) | UNSIGNED : mFormat);
+    }
+
+    private static boolean isDecimal(int format) {
+        final int size = format & SIZE_MASK;
+        return (format & ~(BIG_ENDIAN | SIZE_MASK)) == DECIMAL && (size == 2 || size == 4);
+    }
+
+    /**
+     * @return size in bytes of the integer <code>format</code>
+     * @throws IllegalArgumentException for formats which can't be encoded, including the
+     *                                  decimal floats
+     */
+    static int sizeOf(int format) {
+        final int size = format & SIZE_MASK;
+        final int kind = format & ~(BIG_ENDIAN | SIZE_MASK);
+        if ((kind != UNSIGNED && kind != SIGNED) || (size != 1 && size != 2 && size != 4))
+            throw new IllegalArgumentException("unsupported format " + format);
+        return size;
+    }
+
+    /**
+     * @param format one of the FORMAT_ constants, optionally with {@link #BIG_ENDIAN}
+     * @return the value at <code>offset</code>, sign extended for signed formats, 0 if
+     * <code>value</code> is too short
+     */
+    public static long decode(byte[] value, int offset, int format) {
+        final int size = format & SIZE_MASK;
+        if (value == null || offset < 0 || value.length - offset < size)
+            return 0;
+        long bits = 0;
+        if ((format & BIG_ENDIAN) != 0) {
+            for (int i = 0; i < size; i++)
+                bits = (bits << 8) | (value[offset + i] & 0xff);
+        } else {
+            for (int i = size - 1; i >= 0; i--)
+                bits = (bits << 8) | (value[offset + i] & 0xff);
+        }
+        if ((format & ~(BIG_ENDIAN | SIZE_MASK)) == SIGNED) {
+            final int unused = 64 - 8 * size;
+            bits = (bits << unused) >> unused;
+        }
+        return bits;
+    }
+
+    /**
+     * @param format FORMAT_SFLOAT or FORMAT_FLOAT, optionally with {@link #BIG_ENDIAN}
+     * @return the decimal float at <code>offset</code>, NaN for NaN and NRes, 0 if
+     * <code>value</code> is too short
+     */
+    public static float decodeFloat(byte[] value, int offset, int format) {
+        if (!isDecimal(format))
+            throw new IllegalArgumentException("unsupported format " + format);
+        final int size = format & SIZE_MASK;
+        if (value == null || offset < 0 || value.length - offset < size)
+            return 0;
+        final int bits = (int) decode(value, offset, (format & ~DECIMAL) | UNSIGNED);
+        final int mantissaBits = size == 2 ? 12 : 24;
+        final int mantissa = (bits << (32 - mantissaBits)) >> (32 - mantissaBits);
+        final int exponent = (bits << (32 - 8 * size)) >> (32 - 8 * size + mantissaBits);
+        // the two largest mantissas of either sign are special values
+        final int special = (1 << (mantissaBits - 1)) - 2;
+        if (exponent == 0 && (mantissa >= special || mantissa <= -special)) {
+            if (mantissa == special)
+                return Float.POSITIVE_INFINITY;
+            return mantissa == -special ? Float.NEGATIVE_INFINITY : Float.NaN;
+        }
+        return (float) (mantissa * Math.pow(10, exponent));
+    }
+
+    /**
+     * Store <code>value</code> at <code>offset</code> as a decimal float, with as many digits as
+     * its mantissa holds
+     *
+     * @param format FORMAT_SFLOAT or FORMAT_FLOAT, optionally with {@link #BIG_ENDIAN}
+     */
+    public static void encodeFloat(float value, byte[] dest, int offset, int format) {
+        encode(decimalBits(value, format), dest, offset, (format & ~DECIMAL) | UNSIGNED);
+    }
+
+    /**
+     * @return <code>value</code> as a decimal float of <code>format</code>, the mantissa in
+     * the low bits and the exponent above it
+     */
+    private static long decimalBits(float value, int format) {
+        if (!isDecimal(format))
+            throw new IllegalArgumentException("unsupported format " + format);
+        final boolean sfloat = (format & SIZE_MASK) == 2;
+        final int mantissaBits = sfloat ? 12 : 24;
+        final int maxMantissa = (1 << (mantissaBits - 1)) - 3; // below the special values
+        final int maxExponent = sfloat ? 7 : 127;
+        if (Float.isNaN(value))
+            return sfloat ? SFLOAT_NAN : FLOAT_NAN;
+
+        double mantissa = value;
+        int exponent = 0;
+        // compared rounded, a float just above the largest value still encodes as it
+        while (Math.abs(Math.round(mantissa)) > maxMantissa && exponent < maxExponent) {
+            mantissa /= 10;
+            exponent++;
+        }
+        if (Float.isInfinite(value) || Math.abs(Math.round(mantissa)) > maxMantissa) {
+            if (value > 0)
+                return sfloat ? SFLOAT_POSITIVE_INFINITY : FLOAT_POSITIVE_INFINITY;
+            return sfloat ? SFLOAT_NEGATIVE_INFINITY : FLOAT_NEGATIVE_INFINITY;
+        }
+        // keep as many digits as fit
+        while (mantissa != 0 && Math.abs(mantissa * 10) <= maxMantissa && exponent > -maxExponent - 1) {
+            mantissa *= 10;
+            exponent--;
+        }
+        return (Math.round(mantissa) & ((1L << mantissaBits) - 1))
+                | ((long) (exponent & (sfloat ? 0xf : 0xff)) << mantissaBits);
+    }
+
+    /**
+     * Store the low bytes of <code>value</code> at <code>offset</code>
+     *
+     * @param format one of the FORMAT_ constants, optionally with {@link #BIG_ENDIAN}
+     */
+    public static void encode(long value, byte[] dest, int offset, int format) {
+        final int size = format & SIZE_MASK;
+        if ((format & BIG_ENDIAN) != 0) {
+            for (int i = size - 1; i >= 0; i--) {
+                dest[offset + i] = (byte) value;
+                value >>= 8;
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                dest[offset + i] = (byte) value;
+                value >>= 8;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "{field " + mIndex + ", format 0x" + Integer.toHexString(mFormat) + "}";
+    }
+}
@@ -0,0 +1,371 @@
+package lib.smartlink;
+
+/**
+ * The state of a chain of {@link ControlFilter}s: values go in with their time and come out
+ * filtered. Everything is allocated up front, filtering a value allocates nothing. Not thread
+ * safe, a {@link ControlChannel} locks its pipeline.
+ */
+public final class FilterPipeline {
+    private final Stage[] mStages;
+    private int mOutput;
+
+    public FilterPipeline(ControlFilter[] filters) {
+        mStages = new Stage[filters.length];
+        for (int i = 0; i < filters.length; i++)
+            mStages[i] = stageOf(filters[i]);
+    }
+
+    private static Stage stageOf(ControlFilter f) {
+        switch (f.getType()) {
+            case ControlFilter.TIME_AVERAGE:
+                return new TimeAverage(f.getParameter(0) * 1000000L);
+            case ControlFilter.EMA:
+                return new Ema(f.getParameter(0) * 1000000L);
+            case ControlFilter.MEDIAN:
+                return new Median((int) f.getParameter(0));
+            case ControlFilter.SLEW_RATE:
+                return new SlewRate(f.getParameter(0));
+            case ControlFilter.DEADBAND:
+                return new Deadband((int) f.getParameter(0), (int) f.getParameter(1));
+            case ControlFilter.CHANGE_THRESHOLD:
+                return new ChangeThreshold((int) f.getParameter(0), f.getParameter(1) * 1000000L);
+            default:
+                throw new IllegalArgumentException("invalid filter " + f);
+        }
+    }
+
+    /**
+     * Run a new value through all stages
+     *
+     * @param nanos System.nanoTime() of the value
+     * @return the filtered value
+     */
+    public int filter(int value, long nanos) {
+        for (Stage stage : mStages)
+            value = stage.output = stage.filter(value, nanos);
+        return mOutput = value;
+    }
+
+    /**
+     * Let time based stages move on without a new value
+     *
+     * @return the filtered value at <code>nanos</code>
+     */
+    public int update(long nanos) {
+        boolean changed = false;
+        int value = 0;
+        for (Stage stage : mStages) {
+            if (changed) {
+                // what came before moved, that's a new value for this stage
+                value = stage.output = stage.filter(value, nanos);
+            } else {
+                final int before = stage.output;
+                value = stage.output = stage.update(nanos);
+                changed = value != before;
+            }
+        }
+        return changed ? (mOutput = value) : mOutput;
+    }
+
+    /**
+     * @return false while {@link #update(long)} may still change the output
+     */
+    public boolean isSettled() {
+        for (Stage stage : mStages) {
+            if (!stage.isSettled())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forget the past, as if <code>value</code> had been posted forever
+     */
+    public void reset(int value, long nanos) {
+        for (Stage stage : mStages) {
+            stage.reset(value, nanos);
+            stage.output = value;
+        }
+        mOutput = value;
+    }
+
+    /**
+     * @return the last filtered value, 0 before the first
+     */
+    public int getOutput() {
+        return mOutput;
+    }
+
+    public int getStageCount() {
+        return mStages.length;
+    }
+
+    private static int round(double value) {
+        return (int) Math.round(value);
+    }
+
+    private abstract static class Stage {
+        int output;
+
+        /**
+         * @return the output with the new value
+         */
+        abstract int filter(int value, long nanos);
+
+        /**
+         * @return the output at a later time, with no new value
+         */
+        int update(long nanos) {
+            return output;
+        }
+
+        boolean isSettled() {
+            return true;
+        }
+
+        void reset(int value, long nanos) {
+        }
+    }
+
+    private static final class TimeAverage extends Stage {
+        private final long mWindowNanos;
+        private final int[] mValues = new int[ControlFilter.MAX_AVERAGED];
+        private final long[] mTimes = new long[ControlFilter.MAX_AVERAGED];
+        private int mFirst; // oldest value
+        private int mCount;
+        private long mSum;
+
+        TimeAverage(long windowNanos) {
+            mWindowNanos = windowNanos;
+        }
+
+        @Override
+        int filter(int value, long nanos) {
+            if (mCount == mValues.length)
+                drop();
+            final int slot = (mFirst + mCount++) % mValues.length;
+            mValues[slot] = value;
+            mTimes[slot] = nanos;
+            mSum += value;
+            return update(nanos);
+        }
+
+        @Override
+        int update(long nanos) {
+            // the newest value stays however old it is
+            while (mCount > 1 && nanos - mTimes[mFirst] > mWindowNanos)
+                drop();
+            return mCount == 0 ? output : round((double) mSum / mCount);
+        }
+
+        private void drop() {
+            mSum -= mValues[mFirst];
+            mFirst = (mFirst + 1) % mValues.length;
+            mCount--;
+        }
+
+        @Override
+        boolean isSettled() {
+            return mCount <= 1;
+        }
+
+        @Override
+        void reset(int value, long nanos) {
+            mFirst = 0;
+            mCount = 1;
+            mValues[0] = value;
+            mTimes[0] = nanos;
+            mSum = value;
+        }
+    }
+
+    private static final class Ema extends Stage {
+        private final double mTimeConstantNanos;
+        private double mValue;
+        private int mTarget;
+        private long mLastNanos;
+        private boolean mStarted;
+
+        Ema(long timeConstantNanos) {
+            mTimeConstantNanos = timeConstantNanos;
+        }
+
+        @Override
+        int filter(int value, long nanos) {
+            mTarget = value;
+            if (!mStarted) {
+                // nothing to average with yet
+                mStarted = true;
+                reset(value, nanos);
+                return value;
+            }
+            return update(nanos);
+        }
+
+        @Override
+        int update(long nanos) {
+            final long dt = nanos - mLastNanos;
+            if (dt > 0) {
+                mValue += (1 - Math.exp(-dt / mTimeConstantNanos)) * (mTarget - mValue);
+                mLastNanos = nanos;
+            }
+            final int out = round(mValue);
+            if (out == mTarget)
+                mValue = mTarget; // close enough, settle exactly
+            return out;
+        }
+
+        @Override
+        boolean isSettled() {
+            return output == mTarget;
+        }
+
+        @Override
+        void reset(int value, long nanos) {
+            mStarted = true;
+            mValue = value;
+            mTarget = value;
+            mLastNanos = nanos;
+        }
+    }
+
+    private static final class Median extends Stage {
+        private final int[] mValues; // ring, newest at mNext - 1
+        private final int[] mSorted;
+        private int mNext;
+        private int mCount;
+
+        Median(int samples) {
+            mValues = new int[samples];
+            mSorted = new int[samples];
+        }
+
+        @Override
+        int filter(int value, long nanos) {
+            mValues[mNext] = value;
+            mNext = (mNext + 1) % mValues.length;
+            if (mCount < mValues.length)
+                mCount++;
+            // insertion sort, the window is short
+            for (int i = 0; i < mCount; i++) {
+                final int v = mValues[i];
+                int j = i - 1;
+                while (j >= 0 && mSorted[j] > v) {
+                    mSorted[j + 1] = mSorted[j];
+                    j--;
+                }
+                mSorted[j + 1] = v;
+            }
+            return mSorted[(mCount - 1) / 2];
+        }
+
+        @Override
+        void reset(int value, long nanos) {
+            for (int i = 0; i < mValues.length; i++)
+                mValues[i] = value;
+            mCount = mValues.length;
+            mNext = 0;
+        }
+    }
+
+    private static final class SlewRate extends Stage {
+        private final double mPerNano;
+        private double mPosition;
+        private int mTarget;
+        private long mLastNanos;
+
+        SlewRate(long perSecond) {
+            mPerNano = perSecond / 1e9;
+        }
+
+        @Override
+        int filter(int value, long nanos) {
+            if (isSettled())
+                mLastNanos = nanos; // at rest until now, the move starts here
+            mTarget = value;
+            return update(nanos);
+        }
+
+        @Override
+        int update(long nanos) {
+            final long dt = nanos - mLastNanos;
+            if (dt <= 0)
+                return output;
+            mLastNanos = nanos;
+            final double step = dt * mPerNano;
+            final double distance = mTarget - mPosition;
+            mPosition = Math.abs(distance) <= step ? mTarget : mPosition + Math.signum(distance) * step;
+            return round(mPosition);
+        }
+
+        @Override
+        boolean isSettled() {
+            return mPosition == mTarget;
+        }
+
+        @Override
+        void reset(int value, long nanos) {
+            mPosition = value;
+            mTarget = value;
+            mLastNanos = nanos;
+        }
+    }
+
+    private static final class Deadband extends Stage {
+        private final int mCenter;
+        private final int mWidth;
+
+        Deadband(int center, int width) {
+            mCenter = center;
+            mWidth = width;
+        }
+
+        @Override
+        int filter(int value, long nanos) {
+            return Math.abs((long) value - mCenter) <= mWidth ? mCenter : value;
+        }
+    }
+
+    private static final class ChangeThreshold extends Stage {
+        private final int mStep;
+        private final long mSettleNanos;
+        private int mPending; // the latest input
+        private long mPendingSince;
+
+        ChangeThreshold(int step, long settleNanos) {
+            mStep = step;
+            mSettleNanos = settleNanos;
+        }
+
+        @Override
+        int filter(int value, long nanos) {
+            if (Math.abs((long) value - output) >= mStep) {
+                mPending = value;
+                return value;
+            }
+            if (value != mPending) {
+                mPending = value;
+                mPendingSince = nanos;
+            }
+            return update(nanos);
+        }
+
+        @Override
+        int update(long nanos) {
+            if (mPending != output && mSettleNanos > 0 && nanos - mPendingSince >= mSettleNanos)
+                return mPending;
+            return output;
+        }
+
+        @Override
+        boolean isSettled() {
+            return mPending == output || mSettleNanos == 0;
+        }
+
+        @Override
+        void reset(int value, long nanos) {
+            mPending = value;
+            mPendingSince = nanos;
+        }
+    }
+}
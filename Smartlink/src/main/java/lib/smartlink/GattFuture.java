@@ -0,0 +1,184 @@
+package lib.smartlink;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending result of a queued GATT operation. Completes exactly once, with a {@link GattResult}
+ * carrying the GATT status, so failures show up as results rather than exceptions. Queued
+ * operations can't be cancelled.
+ * <p/>
+ * Listeners run on the thread which completes the future (usually a Binder thread or the
+ * device's queue thread) unless an executor is given, so they must not block.
+ */
+public class GattFuture implements Future<GattResult> {
+
+    public interface Listener {
+        void onComplete(GattResult result);
+    }
+
+    /**
+     * Next step of a chain, see {@link #then(Continuation)}
+     */
+    public interface Continuation {
+        GattFuture then(GattResult previous);
+    }
+
+    private GattResult mResult;
+    private List<Listener> mListeners;
+
+    GattFuture() {
+    }
+
+    static GattFuture completed(GattResult result) {
+        GattFuture future = new GattFuture();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * @return false if the future was already complete
+     */
+    boolean complete(GattResult result) {
+        final List<Listener> listeners;
+        synchronized (this) {
+            if (mResult != null)
+                return false;
+            mResult = result;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        if (listeners != null) {
+            for (Listener l : listeners)
+                l.onComplete(result);
+        }
+        return true;
+    }
+
+    /**
+     * Call <code>listener</code> once the operation has finished, right away if it already has
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (mResult == null) {
+                if (mListeners == null)
+                    mListeners = new ArrayList<Listener>(1);
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(mResult);
+    }
+
+    /**
+     * Call <code>listener</code> on <code>executor</code> once the operation has finished
+     */
+    public void addListener(final Listener listener, final Executor executor) {
+        addListener(new Listener() {
+            @Override
+            public void onComplete(final GattResult result) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onComplete(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Chain another operation after this one. <code>next</code> is only started if this
+     * operation succeeded; otherwise the returned future completes with this one's result.
+     *
+     * @return future of the operation started by <code>next</code>
+     */
+    public GattFuture then(final Continuation next) {
+        final GattFuture chained = new GattFuture();
+        addListener(new Listener() {
+            @Override
+            public void onComplete(GattResult result) {
+                if (!result.isSuccess()) {
+                    chained.complete(result);
+                    return;
+                }
+                next.then(result).addListener(new Listener() {
+                    @Override
+                    public void onComplete(GattResult nextResult) {
+                        chained.complete(nextResult);
+                    }
+                });
+            }
+        });
+        return chained;
+    }
+
+    /**
+     * @return the result if the operation has finished, null otherwise
+     */
+    public synchronized GattResult peek() {
+        return mResult;
+    }
+
+    /**
+     * @return true if the operation never made it into the queue because its class was full
+     */
+    public synchronized boolean isRejected() {
+        return mResult != null && mResult.getStatus() == GattResult.STATUS_REJECTED;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mResult != null;
+    }
+
+    @Override
+    public synchronized GattResult get() throws InterruptedException {
+        while (mResult == null)
+            wait();
+        return mResult;
+    }
+
+    @Override
+    public synchronized GattResult get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mResult == null) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return mResult;
+    }
+
+    /**
+     * Wait for a whole batch of operations
+     *
+     * @return the results, in the order of <code>futures</code>
+     * @throws TimeoutException if not all of them finished within <code>timeout</code>
+     */
+    public static List<GattResult> awaitAll(Collection<GattFuture> futures, long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<GattResult> results = new ArrayList<GattResult>(futures.size());
+        for (GattFuture f : futures)
+            results.add(f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+        return results;
+    }
+}
@@ -0,0 +1,154 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The services and characteristics a peripheral showed on service discovery, in discovery
+ * order. Immutable, UUIDs are kept as long pairs.
+ */
+public final class GattLayout {
+    // per service: its UUID, then the index of its first characteristic
+    private final long[] mServiceUuids;
+    private final int[] mFirstChar;
+    private final long[] mCharUuids;
+
+    private GattLayout(long[] serviceUuids, int[] firstChar, long[] charUuids) {
+        mServiceUuids = serviceUuids;
+        mFirstChar = firstChar;
+        mCharUuids = charUuids;
+    }
+
+    /**
+     * @param services as returned by {@link BleTransport.Connection#getServices()}
+     */
+    public static GattLayout of(List<BluetoothGattService> services) {
+        int chars = 0;
+        for (BluetoothGattService s : services)
+            chars += s.getCharacteristics().size();
+        final long[] serviceUuids = new long[2 * services.size()];
+        final int[] firstChar = new int[services.size() + 1];
+        final long[] charUuids = new long[2 * chars];
+        int service = 0;
+        int c = 0;
+        for (BluetoothGattService s : services) {
+            put(serviceUuids, service, s.getUuid());
+            firstChar[service++] = c;
+            for (BluetoothGattCharacteristic characteristic : s.getCharacteristics())
+                put(charUuids, c++, characteristic.getUuid());
+        }
+        firstChar[service] = c;
+        return new GattLayout(serviceUuids, firstChar, charUuids);
+    }
+
+    private static void put(long[] uuids, int index, UUID uuid) {
+        uuids[2 * index] = uuid.getMostSignificantBits();
+        uuids[2 * index + 1] = uuid.getLeastSignificantBits();
+    }
+
+    public int getServiceCount() {
+        return mFirstChar.length - 1;
+    }
+
+    public UUID getServiceUuid(int service) {
+        return new UUID(mServiceUuids[2 * service], mServiceUuids[2 * service + 1]);
+    }
+
+    public int getCharacteristicCount(int service) {
+        return mFirstChar[service + 1] - mFirstChar[service];
+    }
+
+    /**
+     * @param index index of the characteristic within the service
+     */
+    public UUID getCharacteristicUuid(int service, int index) {
+        final int c = mFirstChar[service] + index;
+        return new UUID(mCharUuids[2 * c], mCharUuids[2 * c + 1]);
+    }
+
+    /**
+     * @return true if <code>services</code> have exactly this layout
+     */
+    public boolean matches(List<BluetoothGattService> services) {
+        if (services.size() != getServiceCount())
+            return false;
+        int service = 0;
+        for (BluetoothGattService s : services) {
+            if (!equals(mServiceUuids, service, s.getUuid())
+                    || s.getCharacteristics().size() != getCharacteristicCount(service))
+                return false;
+            int c = mFirstChar[service++];
+            for (BluetoothGattCharacteristic characteristic : s.getCharacteristics()) {
+                if (!equals(mCharUuids, c++, characteristic.getUuid()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(long[] uuids, int index, UUID uuid) {
+        return uuids[2 * index] == uuid.getMostSignificantBits()
+                && uuids[2 * index + 1] == uuid.getLeastSignificantBits();
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(getServiceCount());
+        for (int service = 0; service < getServiceCount(); service++) {
+            out.writeLong(mServiceUuids[2 * service]);
+            out.writeLong(mServiceUuids[2 * service + 1]);
+            out.writeInt(getCharacteristicCount(service));
+        }
+        for (long uuid : mCharUuids)
+            out.writeLong(uuid);
+    }
+
+    static GattLayout readFrom(DataInput in) throws IOException {
+        final int services = in.readInt();
+        if (services < 0 || services > 0xff)
+            throw new IOException("invalid service count " + services);
+        final long[] serviceUuids = new long[2 * services];
+        final int[] firstChar = new int[services + 1];
+        int chars = 0;
+        for (int service = 0; service < services; service++) {
+            serviceUuids[2 * service] = in.readLong();
+            serviceUuids[2 * service + 1] = in.readLong();
+            firstChar[service] = chars;
+            final int count = in.readInt();
+            if (count < 0 || count > 0xff)
+                throw new IOException("invalid characteristic count " + count);
+            chars += count;
+        }
+        firstChar[services] = chars;
+        final long[] charUuids = new long[2 * chars];
+        for (int i = 0; i < charUuids.length; i++)
+            charUuids[i] = in.readLong();
+        return new GattLayout(serviceUuids, firstChar, charUuids);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof GattLayout))
+            return false;
+        final GattLayout other = (GattLayout) o;
+        return Arrays.equals(mServiceUuids, other.mServiceUuids)
+                && Arrays.equals(mFirstChar, other.mFirstChar)
+                && Arrays.equals(mCharUuids, other.mCharUuids);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(mServiceUuids) + Arrays.hashCode(mCharUuids);
+    }
+
+    @Override
+    public String toString() {
+        return "{" + getServiceCount() + " services, " + mCharUuids.length / 2 + " characteristics}";
+    }
+}
@@ -0,0 +1,241 @@
+package lib.smartlink;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The GATT layouts of the peripherals connected to before, by address, so a reconnect can bind
+ * the drivers without discovering the services again. Each layout belongs to the firmware
+ * version it was discovered with, once that is known: a peripheral reporting another version
+ * loses its layout.
+ * <p/>
+ * Kept in memory and, once {@link #setStorage(File)} was called, in a file, so the layouts
+ * survive the process. Thread safe.
+ */
+public class GattLayoutCache {
+    private static final String TAG = "lib-smartlink-GattLayoutCache";
+    private static final int FILE_MAGIC = 0x534c474c; // "SLGL"
+    private static final int FILE_VERSION = 1;
+    private static final int DEFAULT_CAPACITY = 32;
+
+    private static final GattLayoutCache sShared = new GattLayoutCache(DEFAULT_CAPACITY);
+
+    private static class Layout {
+        final GattLayout layout;
+        final String firmware; // null if unknown
+
+        Layout(GattLayout layout, String firmware) {
+            this.layout = layout;
+            this.firmware = firmware;
+        }
+    }
+
+    private final int mCapacity;
+    private final LinkedHashMap<String, Layout> mLayouts;
+    private File mFile;
+    private boolean mLoaded;
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    public GattLayoutCache(final int capacity) {
+        mCapacity = capacity;
+        mLayouts = new LinkedHashMap<String, Layout>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Layout> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cache devices use unless given another one
+     */
+    public static GattLayoutCache getShared() {
+        return sShared;
+    }
+
+    /**
+     * Keep the layouts in <code>file</code> too, loading the ones saved there before
+     *
+     * @param file null to keep them in memory only
+     */
+    public synchronized void setStorage(File file) {
+        mFile = file;
+        mLoaded = false;
+    }
+
+    public synchronized boolean hasStorage() {
+        return mFile != null;
+    }
+
+    /**
+     * @return the layout of the peripheral, null if unknown
+     */
+    public synchronized GattLayout get(String address) {
+        load();
+        final Layout entry = mLayouts.get(address);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.layout;
+    }
+
+    /**
+     * Remember the layout the peripheral showed on service discovery
+     */
+    public synchronized void put(String address, GattLayout layout) {
+        load();
+        final Layout entry = mLayouts.get(address);
+        if (entry != null && entry.layout.equals(layout))
+            return;
+        // a new layout comes with firmware which hasn't reported its version yet
+        mLayouts.put(address, new Layout(layout, null));
+        save();
+    }
+
+    /**
+     * The peripheral reported its firmware version
+     *
+     * @return false if its layout belonged to another version and was dropped
+     */
+    public synchronized boolean setFirmwareVersion(String address, String firmware) {
+        load();
+        final Layout entry = mLayouts.get(address);
+        if (entry == null || firmware == null || firmware.equals(entry.firmware))
+            return true;
+        if (entry.firmware == null) {
+            // first time the version is known, the layout was discovered with it
+            mLayouts.put(address, new Layout(entry.layout, firmware));
+            save();
+            return true;
+        }
+        Log.i(TAG, address + " changed firmware from " + entry.firmware + " to " + firmware);
+        invalidate(address);
+        return false;
+    }
+
+    /**
+     * Forget the layout of the peripheral, e.g. because it didn't fit
+     */
+    public synchronized void invalidate(String address) {
+        load();
+        if (mLayouts.remove(address) != null) {
+            mInvalidations++;
+            save();
+        }
+    }
+
+    public synchronized void clear() {
+        mLayouts.clear();
+        mLoaded = true;
+        save();
+    }
+
+    public synchronized int size() {
+        load();
+        return mLayouts.size();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized int getInvalidationCount() {
+        return mInvalidations;
+    }
+
+    private void load() {
+        if (mLoaded)
+            return;
+        mLoaded = true;
+        if (mFile == null || !mFile.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+                throw new IOException("not a layout file");
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String address = in.readUTF();
+                final String firmware = in.readBoolean() ? in.readUTF() : null;
+                final GattLayout layout = GattLayout.readFrom(in);
+                if (!mLayouts.containsKey(address))
+                    mLayouts.put(address, new Layout(layout, firmware));
+            }
+        } catch (IOException e) {
+            // only a cache, discovering the services again is always fine
+            Log.w(TAG, "Could not load " + mFile + ": " + e.getMessage());
+        } finally {
+            close(in);
+        }
+    }
+
+    private void save() {
+        if (mFile == null)
+            return;
+        // write a new file and swap it in, so a crash never leaves half a file behind
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mLayouts.size());
+            for (Map.Entry<String, Layout> entry : mLayouts.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(entry.getValue().firmware != null);
+                if (entry.getValue().firmware != null)
+                    out.writeUTF(entry.getValue().firmware);
+                entry.getValue().layout.writeTo(out);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile))
+                throw new IOException("rename failed");
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save " + mFile + ": " + e.getMessage());
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable stream) {
+        if (stream == null)
+            return;
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{layouts: " + mLayouts.size() + "/" + mCapacity + ", hits: " + mHits
+                + ", misses: " + mMisses + ", invalidations: " + mInvalidations
+                + (mFile == null ? "}" : ", file: " + mFile + "}");
+    }
+}
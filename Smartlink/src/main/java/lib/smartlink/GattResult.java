@@ -0,0 +1,108 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Outcome of a single queued GATT operation: its status, the value it read or wrote and how
+ * long it took.
+ */
+public class GattResult {
+    /** The watchdog gave up on the operation after its last attempt */
+    public static final int STATUS_TIMEOUT = -1;
+    /** The operation's traffic class was full and it was never queued */
+    public static final int STATUS_REJECTED = -2;
+    /** The operation was dropped from the queue, because it went stale or to make room */
+    public static final int STATUS_DROPPED = -3;
+    /** The Android stack refused to start the operation */
+    public static final int STATUS_REFUSED = -4;
+    /** The device disconnected before the operation finished */
+    public static final int STATUS_DISCONNECTED = -5;
+
+    // operation types, see getOperationType()
+    public static final int OPERATION_ENABLE_NOTIFICATION = 0;
+    public static final int OPERATION_DISABLE_NOTIFICATION = 1;
+    public static final int OPERATION_WRITE = 2;
+    public static final int OPERATION_READ = 3;
+    public static final int OPERATION_DISCONNECT = 4;
+    public static final int OPERATION_UPDATE_RSSI = 5;
+    public static final int OPERATION_DISCOVER_SERVICES = 6;
+    public static final int OPERATION_SCAN = 7;
+    public static final int OPERATION_CONNECT = 8;
+
+    private static final long NS_PER_MS = 1000000L;
+
+    private final int mOperationType;
+    private final int mStatus;
+    private final byte[] mValue;
+    private final long mEnqueueNanos;
+    private final long mDispatchNanos;
+    private final long mCompleteNanos;
+
+    GattResult(int operationType, int status, byte[] value, long enqueueNanos, long dispatchNanos, long completeNanos) {
+        mOperationType = operationType;
+        mStatus = status;
+        mValue = value;
+        mEnqueueNanos = enqueueNanos;
+        mDispatchNanos = dispatchNanos;
+        mCompleteNanos = completeNanos;
+    }
+
+    /**
+     * @return one of the OPERATION_ types
+     */
+    public int getOperationType() {
+        return mOperationType;
+    }
+
+    /**
+     * @return the GATT status reported by the stack, or one of the negative STATUS_ codes
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public boolean isSuccess() {
+        return mStatus == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * @return the value read, the value written, or for RSSI reads a single byte holding the
+     * RSSI. May be null, e.g. for failed operations.
+     */
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return time spent waiting in the queue, in ms. 0 if the operation was never dispatched.
+     */
+    public float getQueueMs() {
+        return mDispatchNanos == 0 ? 0 : (float) (mDispatchNanos - mEnqueueNanos) / NS_PER_MS;
+    }
+
+    /**
+     * @return time from enqueueing the operation to its completion, in ms
+     */
+    public float getTotalMs() {
+        return (float) (mCompleteNanos - mEnqueueNanos) / NS_PER_MS;
+    }
+
+    public long getEnqueueNanos() {
+        return mEnqueueNanos;
+    }
+
+    public long getDispatchNanos() {
+        return mDispatchNanos;
+    }
+
+    public long getCompleteNanos() {
+        return mCompleteNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "{" + PipelineStats.operationName(mOperationType) + ": status " + mStatus
+                + ", " + (mValue == null ? "no value" : mValue.length + " bytes")
+                + ", queued " + getQueueMs() + " ms, total " + getTotalMs() + " ms}";
+    }
+}
@@ -0,0 +1,161 @@
+package lib.smartlink;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Health counters of a device's command queue. Updated from the queue thread, the GATT
+ * callbacks and the watchdog, readable from anywhere.
+ */
+public class PipelineStats {
+    static final String[] OPERATION_NAMES = {"NOTIF_ENABLE", "NOTIF_DISABLE", "WRITE", "READ",
+            "DISCONNECT", "UPDATE_RSSI", "DISCOVER_SERVICES", "SCAN", "CONNECT"};
+
+    private static final long NS_PER_MS = 1000000L;
+
+    private final AtomicLongArray mTimeouts = new AtomicLongArray(OPERATION_NAMES.length);
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mLateCallbacks = new AtomicLong();
+    private final AtomicLongArray mRejected = new AtomicLongArray(TrafficClass.COUNT);
+    private final AtomicLongArray mDropped = new AtomicLongArray(TrafficClass.COUNT);
+    private final AtomicLongArray mExpired = new AtomicLongArray(TrafficClass.COUNT);
+    private final AtomicLong mStallNs = new AtomicLong();
+    private final AtomicLong mMaxStallNs = new AtomicLong();
+
+    /**
+     * @param operationType one of the {@link GattResult} OPERATION_ types
+     * @return printable name of the operation type
+     */
+    public static String operationName(int operationType) {
+        if (operationType < 0 || operationType >= OPERATION_NAMES.length)
+            return "UNKNOWN(" + operationType + ")";
+        return OPERATION_NAMES[operationType];
+    }
+
+    void onTimeout(int operationType, long stallNs) {
+        mTimeouts.incrementAndGet(operationType);
+        mStallNs.addAndGet(stallNs);
+        long max;
+        do {
+            max = mMaxStallNs.get();
+        } while (stallNs > max && !mMaxStallNs.compareAndSet(max, stallNs));
+    }
+
+    void onRetry() {
+        mRetries.incrementAndGet();
+    }
+
+    void onFailure() {
+        mFailures.incrementAndGet();
+    }
+
+    void onLateCallback() {
+        mLateCallbacks.incrementAndGet();
+    }
+
+    void onRejected(int trafficClass) {
+        mRejected.incrementAndGet(trafficClass);
+    }
+
+    void onDropped(int trafficClass) {
+        mDropped.incrementAndGet(trafficClass);
+    }
+
+    void onExpired(int trafficClass) {
+        mExpired.incrementAndGet(trafficClass);
+    }
+
+    /**
+     * @param operationType one of the {@link GattResult} OPERATION_ types
+     * @return how many operations of this type were reclaimed by the watchdog
+     */
+    public long getTimeoutCount(int operationType) {
+        return mTimeouts.get(operationType);
+    }
+
+    /**
+     * @return how many operations of any type were reclaimed by the watchdog
+     */
+    public long getTimeoutCount() {
+        long total = 0;
+        for (int i = 0; i < mTimeouts.length(); i++)
+            total += mTimeouts.get(i);
+        return total;
+    }
+
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+
+    /**
+     * @return operations given up on after their last attempt timed out
+     */
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    /**
+     * @return callbacks that arrived for an operation which was no longer in flight
+     */
+    public long getLateCallbackCount() {
+        return mLateCallbacks.get();
+    }
+
+    /**
+     * @param trafficClass one of the {@link TrafficClass} classes
+     * @return operations refused because their class was full
+     */
+    public long getRejectedCount(int trafficClass) {
+        return mRejected.get(trafficClass);
+    }
+
+    /**
+     * @param trafficClass one of the {@link TrafficClass} classes
+     * @return queued operations dropped to make room for newer ones
+     */
+    public long getDroppedCount(int trafficClass) {
+        return mDropped.get(trafficClass);
+    }
+
+    /**
+     * @param trafficClass one of the {@link TrafficClass} classes
+     * @return operations which were past their deadline by the time they got their turn
+     */
+    public long getExpiredCount(int trafficClass) {
+        return mExpired.get(trafficClass);
+    }
+
+    /**
+     * @return total time the queue was stuck behind operations which timed out, in ms
+     */
+    public float getTotalStallMs() {
+        return (float) mStallNs.get() / NS_PER_MS;
+    }
+
+    public float getMaxStallMs() {
+        return (float) mMaxStallNs.get() / NS_PER_MS;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{timeouts: [");
+        for (int i = 0; i < OPERATION_NAMES.length; i++) {
+            if (mTimeouts.get(i) == 0)
+                continue;
+            sb.append(OPERATION_NAMES[i]).append('=').append(mTimeouts.get(i)).append(' ');
+        }
+        sb.append("], rejected/dropped/expired: [");
+        for (int i = 0; i < TrafficClass.COUNT; i++) {
+            if (mRejected.get(i) + mDropped.get(i) + mExpired.get(i) == 0)
+                continue;
+            sb.append(TrafficClass.NAMES[i]).append('=').append(mRejected.get(i)).append('/')
+                    .append(mDropped.get(i)).append('/').append(mExpired.get(i)).append(' ');
+        }
+        return sb.append("], retries: ").append(getRetryCount())
+                .append(", failures: ").append(getFailureCount())
+                .append(", late callbacks: ").append(getLateCallbackCount())
+                .append(", stall: ").append(getTotalStallMs())
+                .append(" ms (max ").append(getMaxStallMs()).append(" ms)}").toString();
+    }
+}
@@ -0,0 +1,289 @@
+package lib.smartlink;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Values of fields which rarely change, e.g. serial numbers and firmware versions, by
+ * peripheral address and field path, so a reconnect can hand them to the drivers without
+ * reading them again. Drivers declare which of their fields are cached and for how long with
+ * {@link BLEService#cacheField}. The values of a peripheral belong to the firmware version it
+ * reported last: reporting another one drops them all.
+ * <p/>
+ * Kept in memory and, once {@link #setStorage(File)} was called, in a file, so the values
+ * survive the process. New values reach the file in batches, on {@link #flush()}, which devices
+ * call when the peripheral disconnects or reports its firmware version. Thread safe.
+ */
+public class ReadCache {
+    private static final String TAG = "lib-smartlink-ReadCache";
+    private static final int FILE_MAGIC = 0x534c5243; // "SLRC"
+    private static final int FILE_VERSION = 1;
+    private static final int DEFAULT_CAPACITY = 32;
+
+    private static final ReadCache sShared = new ReadCache(DEFAULT_CAPACITY);
+
+    private static class Value {
+        final byte[] value;
+        final long storedMs; // System.currentTimeMillis()
+
+        Value(byte[] value, long storedMs) {
+            this.value = value;
+            this.storedMs = storedMs;
+        }
+    }
+
+    private static class Peripheral {
+        String firmware; // null if unknown
+        final HashMap<String, Value> values = new HashMap<String, Value>();
+    }
+
+    private final int mCapacity;
+    private final LinkedHashMap<String, Peripheral> mPeripherals;
+    private File mFile;
+    private boolean mLoaded;
+    private boolean mDirty; // values were put since the file was last saved
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    public ReadCache(final int capacity) {
+        mCapacity = capacity;
+        mPeripherals = new LinkedHashMap<String, Peripheral>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Peripheral> eldest) {
+                return size() > mCapacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cache devices use unless given another one
+     */
+    public static ReadCache getShared() {
+        return sShared;
+    }
+
+    /**
+     * Keep the values in <code>file</code> too, loading the ones saved there before
+     *
+     * @param file null to keep them in memory only
+     */
+    public synchronized void setStorage(File file) {
+        mFile = file;
+        mLoaded = false;
+    }
+
+    public synchronized boolean hasStorage() {
+        return mFile != null;
+    }
+
+    /**
+     * @param path   "service/field"
+     * @param maxAgeMs how old the value may be, {@link BLEService#CACHE_UNTIL_FIRMWARE_CHANGE}
+     *                 if it stays valid as long as the firmware doesn't change
+     * @return a copy of the value, null if there is none young enough
+     */
+    public synchronized byte[] get(String address, String path, long maxAgeMs) {
+        load();
+        final Peripheral peripheral = mPeripherals.get(address);
+        final Value entry = peripheral == null ? null : peripheral.values.get(path);
+        if (entry == null || System.currentTimeMillis() - entry.storedMs > maxAgeMs) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.value.clone();
+    }
+
+    /**
+     * Remember the value read from the peripheral. It is saved with the next {@link #flush()}.
+     */
+    public synchronized void put(String address, String path, byte[] value) {
+        load();
+        Peripheral peripheral = mPeripherals.get(address);
+        if (peripheral == null) {
+            peripheral = new Peripheral();
+            mPeripherals.put(address, peripheral);
+        }
+        final Value entry = peripheral.values.get(path);
+        // the same value again only makes it younger, which isn't worth writing the file
+        mDirty |= entry == null || !Arrays.equals(entry.value, value);
+        peripheral.values.put(path, new Value(value.clone(), System.currentTimeMillis()));
+    }
+
+    /**
+     * Save the values put since the last save, if any
+     */
+    public synchronized void flush() {
+        if (mDirty)
+            save();
+    }
+
+    /**
+     * The peripheral reported its firmware version
+     *
+     * @return false if its values belonged to another version and were dropped
+     */
+    public synchronized boolean setFirmwareVersion(String address, String firmware) {
+        load();
+        final Peripheral peripheral = mPeripherals.get(address);
+        if (peripheral == null || firmware == null || firmware.equals(peripheral.firmware))
+            return true;
+        if (peripheral.firmware == null) {
+            // first time the version is known, the values were read from it
+            peripheral.firmware = firmware;
+            save();
+            return true;
+        }
+        Log.i(TAG, address + " changed firmware from " + peripheral.firmware + " to " + firmware);
+        peripheral.values.clear();
+        peripheral.firmware = firmware;
+        mInvalidations++;
+        save();
+        return false;
+    }
+
+    /**
+     * Forget the values of the peripheral, e.g. because it is being flashed
+     */
+    public synchronized void invalidate(String address) {
+        load();
+        if (mPeripherals.remove(address) != null) {
+            mInvalidations++;
+            save();
+        }
+    }
+
+    public synchronized void clear() {
+        mPeripherals.clear();
+        mLoaded = true;
+        save();
+    }
+
+    /**
+     * @return number of peripherals with values
+     */
+    public synchronized int size() {
+        load();
+        return mPeripherals.size();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized int getInvalidationCount() {
+        return mInvalidations;
+    }
+
+    private void load() {
+        if (mLoaded)
+            return;
+        mLoaded = true;
+        if (mFile == null || !mFile.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION)
+                throw new IOException("not a read cache file");
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String address = in.readUTF();
+                final Peripheral peripheral = new Peripheral();
+                peripheral.firmware = in.readBoolean() ? in.readUTF() : null;
+                final int values = in.readInt();
+                for (int v = 0; v < values; v++) {
+                    final String path = in.readUTF();
+                    final long storedMs = in.readLong();
+                    final int length = in.readUnsignedShort();
+                    final byte[] value = new byte[length];
+                    in.readFully(value);
+                    peripheral.values.put(path, new Value(value, storedMs));
+                }
+                if (!mPeripherals.containsKey(address))
+                    mPeripherals.put(address, peripheral);
+            }
+        } catch (IOException e) {
+            // only a cache, reading the values again is always fine
+            Log.w(TAG, "Could not load " + mFile + ": " + e.getMessage());
+        } finally {
+            close(in);
+        }
+    }
+
+    private void save() {
+        mDirty = false;
+        if (mFile == null)
+            return;
+        // write a new file and swap it in, so a crash never leaves half a file behind
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(mPeripherals.size());
+            for (Map.Entry<String, Peripheral> entry : mPeripherals.entrySet()) {
+                final Peripheral peripheral = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(peripheral.firmware != null);
+                if (peripheral.firmware != null)
+                    out.writeUTF(peripheral.firmware);
+                out.writeInt(peripheral.values.size());
+                for (Map.Entry<String, Value> value : peripheral.values.entrySet()) {
+                    out.writeUTF(value.getKey());
+                    out.writeLong(value.getValue().storedMs);
+                    out.writeShort(value.getValue().value.length);
+                    out.write(value.getValue().value);
+                }
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile))
+                throw new IOException("rename failed");
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save " + mFile + ": " + e.getMessage());
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(Closeable stream) {
+        if (stream == null)
+            return;
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{peripherals: " + mPeripherals.size() + "/" + mCapacity + ", hits: " + mHits
+                + ", misses: " + mMisses + ", invalidations: " + mInvalidations
+                + (mFile == null ? "}" : ", file: " + mFile + "}");
+    }
+}
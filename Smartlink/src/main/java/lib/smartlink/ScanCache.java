@@ -0,0 +1,166 @@
+package lib.smartlink;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers whether the advertisements of a device matched the config, so repeated
+ * advertisements only cost a hash lookup. Entries are keyed by device address and checked
+ * against a hash of the advertisement, so a device changing what it advertises is parsed again.
+ * <p/>
+ * The cache holds at most <code>capacity</code> devices, dropping the least recently seen one
+ * when full, and forgets a verdict after its time to live.
+ */
+public class ScanCache {
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_TTL_MS = 10000;
+    // returned by lookup() if the advertisement has to be parsed
+    static final int UNKNOWN = -1;
+
+    private static final long NS_PER_MS = 1000000L;
+
+    private final int mCapacity;
+    private volatile long mTtlNanos = DEFAULT_TTL_MS * NS_PER_MS;
+    // least recently seen first, guarded by itself
+    private final LinkedHashMap<String, Verdict> mEntries;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mExpirations = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    private static class Verdict {
+        int payloadHash;
+        int verdict;
+        long seenNanos;
+    }
+
+    public ScanCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of devices to remember
+     */
+    public ScanCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        mCapacity = capacity;
+        mEntries = new LinkedHashMap<String, Verdict>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+                if (size() <= mCapacity)
+                    return false;
+                mEvictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param address     address of the advertising device
+     * @param payloadHash hash of the advertisement
+     * @param now         System.nanoTime()
+     * @return the verdict stored for this advertisement, UNKNOWN if there is none or it expired
+     */
+    int lookup(String address, int payloadHash, long now) {
+        synchronized (mEntries) {
+            final Verdict entry = mEntries.get(address);
+            if (entry != null && entry.payloadHash == payloadHash) {
+                if (now - entry.seenNanos <= mTtlNanos) {
+                    mHits.incrementAndGet();
+                    return entry.verdict;
+                }
+                mExpirations.incrementAndGet();
+            }
+        }
+        mMisses.incrementAndGet();
+        return UNKNOWN;
+    }
+
+    /**
+     * Remember the verdict for an advertisement, replacing the previous one of the device
+     */
+    void put(String address, int payloadHash, int verdict, long now) {
+        synchronized (mEntries) {
+            Verdict entry = mEntries.get(address);
+            if (entry == null) {
+                entry = new Verdict();
+                mEntries.put(address, entry);
+            }
+            entry.payloadHash = payloadHash;
+            entry.verdict = verdict;
+            entry.seenNanos = now;
+        }
+    }
+
+    /**
+     * Forget all verdicts, the counters are kept
+     */
+    public void clear() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * @param ttlMs how long a verdict is trusted, in ms
+     */
+    public void setTtl(long ttlMs) {
+        mTtlNanos = ttlMs * NS_PER_MS;
+    }
+
+    public long getTtl() {
+        return mTtlNanos / NS_PER_MS;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return number of devices remembered
+     */
+    public int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * @return advertisements answered from the cache
+     */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return advertisements which had to be parsed
+     */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return misses because the verdict was older than the time to live
+     */
+    public long getExpirationCount() {
+        return mExpirations.get();
+    }
+
+    /**
+     * @return devices forgotten to make room for others
+     */
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "{devices: " + size() + "/" + mCapacity
+                + ", hits: " + getHitCount()
+                + ", misses: " + getMissCount()
+                + ", expired: " + getExpirationCount()
+                + ", evicted: " + getEvictionCount() + "}";
+    }
+}
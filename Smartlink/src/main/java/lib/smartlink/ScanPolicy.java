@@ -0,0 +1,127 @@
+package lib.smartlink;
+
+/**
+ * How {@link BluetoothDevice} scans while it looks for a device to connect to. Scanning keeps
+ * the radio busy, so on long sessions it pays to scan only part of the time, trading discovery
+ * latency for battery.
+ * <p/>
+ * Every policy can have a timeout after which scanning stops for good, until the next
+ * {@link BluetoothDevice#connect()} or automatic reconnect.
+ */
+public final class ScanPolicy {
+    /** Scan all the time */
+    public static final int MODE_CONTINUOUS = 0;
+    /** Scan for a window at the start of every interval */
+    public static final int MODE_DUTY_CYCLE = 1;
+    /** Scan for a burst, then pause for twice as long after every fruitless burst */
+    public static final int MODE_BURST_BACKOFF = 2;
+
+    private final int mMode;
+    private final long mOnMs;
+    private final long mOffMs;
+    private final long mMaxOffMs;
+    private final long mTimeoutMs;
+    private final boolean mOffloadFilter;
+
+    private ScanPolicy(int mode, long onMs, long offMs, long maxOffMs, long timeoutMs, boolean offloadFilter) {
+        if (onMs < 0 || offMs < 0 || maxOffMs < offMs || timeoutMs < 0)
+            throw new IllegalArgumentException("invalid scan timing");
+        if (mode != MODE_CONTINUOUS && onMs == 0)
+            throw new IllegalArgumentException("scan window must be positive");
+        mMode = mode;
+        mOnMs = onMs;
+        mOffMs = offMs;
+        mMaxOffMs = maxOffMs;
+        mTimeoutMs = timeoutMs;
+        mOffloadFilter = offloadFilter;
+    }
+
+    /**
+     * Scan until a device is found, like the library always did
+     *
+     * @param timeoutMs stop after this long, 0 to scan until connected
+     */
+    public static ScanPolicy continuous(long timeoutMs) {
+        return new ScanPolicy(MODE_CONTINUOUS, 0, 0, 0, timeoutMs, false);
+    }
+
+    /**
+     * @param windowMs   how long to scan at the start of every interval
+     * @param intervalMs time between the starts of two windows
+     * @param timeoutMs  stop after this long, 0 to scan until connected
+     */
+    public static ScanPolicy dutyCycle(long windowMs, long intervalMs, long timeoutMs) {
+        if (intervalMs < windowMs)
+            throw new IllegalArgumentException("interval shorter than window");
+        return new ScanPolicy(MODE_DUTY_CYCLE, windowMs, intervalMs - windowMs,
+                intervalMs - windowMs, timeoutMs, false);
+    }
+
+    /**
+     * @param burstMs      how long every burst scans
+     * @param firstPauseMs pause after the first burst, doubled after each further one
+     * @param maxPauseMs   upper bound of the pause
+     * @param timeoutMs    stop after this long, 0 to scan until connected
+     */
+    public static ScanPolicy burstThenBackoff(long burstMs, long firstPauseMs, long maxPauseMs, long timeoutMs) {
+        return new ScanPolicy(MODE_BURST_BACKOFF, burstMs, firstPauseMs, maxPauseMs, timeoutMs, false);
+    }
+
+    /**
+     * Let the Bluetooth stack filter advertisements by primary service, where the transport
+     * supports it, so the app isn't woken up for every other device around. Devices only
+     * matching by name, because their advertisement lacks the service UUID, are not found
+     * this way.
+     *
+     * @return a copy of this policy with filtering offloaded
+     */
+    public ScanPolicy withOffloadedFilter() {
+        return new ScanPolicy(mMode, mOnMs, mOffMs, mMaxOffMs, mTimeoutMs, true);
+    }
+
+    /**
+     * @return one of the MODE_ constants
+     */
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return how long one scan window or burst lasts, 0 for continuous scanning
+     */
+    public long getWindowMs() {
+        return mOnMs;
+    }
+
+    /**
+     * @return pause after the first window or burst
+     */
+    public long getPauseMs() {
+        return mOffMs;
+    }
+
+    /**
+     * @return the longest pause, equal to {@link #getPauseMs()} unless backing off
+     */
+    public long getMaxPauseMs() {
+        return mMaxOffMs;
+    }
+
+    /**
+     * @return time after which scanning gives up, 0 if it never does
+     */
+    public long getTimeoutMs() {
+        return mTimeoutMs;
+    }
+
+    public boolean isFilterOffloaded() {
+        return mOffloadFilter;
+    }
+
+    @Override
+    public String toString() {
+        final String[] modes = {"continuous", "duty cycle", "burst then backoff"};
+        return "{" + modes[mMode] + ", window: " + mOnMs + " ms, pause: " + mOffMs + "-" + mMaxOffMs
+                + " ms, timeout: " + mTimeoutMs + " ms" + (mOffloadFilter ? ", offloaded filter}" : "}");
+    }
+}
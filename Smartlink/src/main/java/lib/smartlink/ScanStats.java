@@ -0,0 +1,106 @@
+package lib.smartlink;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost counters of scanning: how long the radio scanned and how many advertisements the app had
+ * to look at. Updated from the scan callback, the scan worker and the timer, readable from
+ * anywhere.
+ */
+public class ScanStats {
+    private static final long NS_PER_MS = 1000000L;
+
+    private final AtomicLong mCallbacks = new AtomicLong();
+    private final AtomicLong mProcessed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mStarts = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mOnNanos = new AtomicLong();
+    // System.nanoTime() the radio started scanning, 0 while it is not
+    private volatile long mOnSinceNanos;
+
+    void onCallback() {
+        mCallbacks.incrementAndGet();
+    }
+
+    void onProcessed() {
+        mProcessed.incrementAndGet();
+    }
+
+    void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    void onTimeout() {
+        mTimeouts.incrementAndGet();
+    }
+
+    /**
+     * The radio started scanning. Calls to this and {@link #onScanOff(long)} must alternate.
+     */
+    void onScanOn(long now) {
+        mStarts.incrementAndGet();
+        mOnSinceNanos = now == 0 ? 1 : now;
+    }
+
+    void onScanOff(long now) {
+        final long since = mOnSinceNanos;
+        if (since == 0)
+            return;
+        mOnSinceNanos = 0;
+        mOnNanos.addAndGet(now - since);
+    }
+
+    /**
+     * @return advertisements reported by the transport
+     */
+    public long getCallbackCount() {
+        return mCallbacks.get();
+    }
+
+    /**
+     * @return advertisements matched against the config, i.e. within the RSSI range
+     */
+    public long getProcessedCount() {
+        return mProcessed.get();
+    }
+
+    /**
+     * @return advertisements skipped because matching fell behind
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return how often the radio started scanning
+     */
+    public long getScanStartCount() {
+        return mStarts.get();
+    }
+
+    /**
+     * @return how often scanning gave up without connecting
+     */
+    public long getTimeoutCount() {
+        return mTimeouts.get();
+    }
+
+    /**
+     * @return total time the radio spent scanning, including the current window, in ms
+     */
+    public float getScanOnMs() {
+        final long since = mOnSinceNanos;
+        final long current = since == 0 ? 0 : System.nanoTime() - since;
+        return (float) (mOnNanos.get() + current) / NS_PER_MS;
+    }
+
+    @Override
+    public String toString() {
+        return "{scan on: " + getScanOnMs() + " ms in " + getScanStartCount() + " windows"
+                + ", callbacks: " + getCallbackCount()
+                + ", processed: " + getProcessedCount()
+                + ", dropped: " + getDroppedCount()
+                + ", timeouts: " + getTimeoutCount() + "}";
+    }
+}
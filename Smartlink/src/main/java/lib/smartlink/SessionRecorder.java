@@ -0,0 +1,307 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the GATT traffic of a device into an append-only binary log: every value notified,
+ * read, sent and acknowledged, RSSI readings, connection state changes and the life of every
+ * queued operation, with nanosecond timestamps. Unlike a {@link BleTrace}, the log keeps the
+ * values, so a session can be replayed through the drivers with {@link SessionReplay}.
+ * <p/>
+ * Events are encoded into one of two direct buffers, so recording allocates nothing per event.
+ * When the buffer fills up, recording goes on in the other one while a background thread
+ * appends the full one to the file: the Bluetooth callbacks recording never wait for the disk.
+ * Should the other buffer still be on its way out, events are dropped and counted instead.
+ * Only whole events are written, a log cut short by a crash ends with the last buffer that
+ * made it out. Start recording with {@link BluetoothDevice#startRecording(File)}.
+ * <p/>
+ * File layout, big endian: magic, version, wall clock ms and field count, then per field its
+ * UUID and path; then the events, each with ns since the start, type, operation type, field
+ * index, status, argument and the value's length followed by the value.
+ */
+public final class SessionRecorder {
+    private static final String TAG = "lib-smartlink-SessionRecorder";
+    static final int FILE_MAGIC = 0x534c5352; // "SLSR"
+    static final int FILE_VERSION = 1;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // event types
+    public static final int NOTIFICATION = 0;     // value: notified value
+    public static final int READ = 1;             // status, value: value read
+    public static final int WRITE = 2;            // status of the write callback
+    public static final int SEND = 3;             // value: bytes handed to the stack
+    public static final int RSSI = 4;             // status, argument: rssi
+    public static final int CONNECTION_STATE = 5; // status, argument: new state
+    public static final int ENQUEUE = 6;          // argument: sequence of the operation
+    public static final int DISPATCH = 7;         // status: attempt, argument: sequence
+    public static final int COMPLETE = 8;         // status, argument: sequence
+    public static final int TIMEOUT = 9;          // argument: sequence
+
+    static final String[] EVENT_NAMES = {"NOTIFICATION", "READ", "WRITE", "SEND", "RSSI",
+            "CONNECTION_STATE", "ENQUEUE", "DISPATCH", "COMPLETE", "TIMEOUT"};
+
+    // time, type, operation, field, status, argument, length
+    static final int EVENT_HEADER = 8 + 1 + 1 + 2 + 4 + 8 + 2;
+    // longest value kept, ATT values can't be longer
+    static final int MAX_VALUE = 512;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // appends full buffers to the files, shared by all recorders
+    private static final ExecutorService sWriter = new ThreadPoolExecutor(1, 1,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "smartlink-recorder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        ((ThreadPoolExecutor) sWriter).allowCoreThreadTimeOut(true);
+    }
+
+    private final DeviceConfig mConfig;
+    private final File mFile;
+    private final long mStartNanos = System.nanoTime();
+    // guarded by this
+    private ByteBuffer mBuffer; // events are recorded into this one
+    private ByteBuffer mSpare;  // empty, null while sWriter writes it out
+    private FileChannel mChannel;
+    private long mEvents;
+    private long mBytes;
+    private long mTruncated;
+    private long mDropped;
+
+    /**
+     * Create <code>file</code>, replacing what was there, and write the header
+     *
+     * @param config the config of the device recorded, so fields are logged by index
+     */
+    SessionRecorder(File file, DeviceConfig config) throws IOException {
+        this(file, config, DEFAULT_BUFFER_SIZE);
+    }
+
+    SessionRecorder(File file, DeviceConfig config, int bufferSize) throws IOException {
+        if (bufferSize < EVENT_HEADER + MAX_VALUE)
+            throw new IllegalArgumentException("buffer too small");
+        mConfig = config;
+        mFile = file;
+        mBuffer = ByteBuffer.allocateDirect(bufferSize);
+        mSpare = ByteBuffer.allocateDirect(bufferSize);
+        mChannel = new FileOutputStream(file).getChannel();
+
+        mBuffer.putInt(FILE_MAGIC);
+        mBuffer.putInt(FILE_VERSION);
+        mBuffer.putLong(System.currentTimeMillis());
+        mBuffer.putInt(config.getFieldCount());
+        for (int f = 0; f < config.getFieldCount(); f++) {
+            if (mBuffer.remaining() < 16 + 2 + 3 * config.getFieldPath(f).length())
+                drain();
+            mBuffer.putLong(config.getFieldUuid(f).getMostSignificantBits());
+            mBuffer.putLong(config.getFieldUuid(f).getLeastSignificantBits());
+            final byte[] path = config.getFieldPath(f).getBytes(UTF8);
+            mBuffer.putShort((short) path.length);
+            mBuffer.put(path);
+        }
+        drain();
+    }
+
+    /**
+     * Record an event. Safe to call from any thread.
+     *
+     * @param type          one of the event types
+     * @param operationType GattResult OPERATION_ type, -1 if none
+     * @param c             the characteristic, null if none
+     * @param status        see the event types
+     * @param argument      see the event types
+     * @param value         null if the event has no value
+     */
+    void record(int type, int operationType, BluetoothGattCharacteristic c, int status,
+                long argument, byte[] value) {
+        final long now = System.nanoTime();
+        final int field = c == null ? -1 : mConfig.indexOfField(c.getUuid());
+        int length = value == null ? 0 : value.length;
+        synchronized (this) {
+            if (mChannel == null)
+                return;
+            if (length > MAX_VALUE) {
+                length = MAX_VALUE;
+                mTruncated++;
+            }
+            if (mBuffer.remaining() < EVENT_HEADER + length && !swap()) {
+                mDropped++;
+                return;
+            }
+            mBuffer.putLong(now - mStartNanos);
+            mBuffer.put((byte) type);
+            mBuffer.put((byte) operationType);
+            mBuffer.putShort((short) field);
+            mBuffer.putInt(status);
+            mBuffer.putLong(argument);
+            mBuffer.putShort((short) length);
+            if (length > 0)
+                mBuffer.put(value, 0, length);
+            mEvents++;
+        }
+    }
+
+    /**
+     * Have the buffered events appended to the file, without waiting for them to be written.
+     * If the other buffer is still being written, they go out with the next one.
+     */
+    public synchronized void flush() {
+        if (mChannel != null && mBuffer.position() > 0)
+            swap();
+    }
+
+    /**
+     * Write what is buffered and close the file, later events are ignored. Waits for the
+     * background write, if one is going on.
+     */
+    public synchronized void close() {
+        while (mChannel != null && mSpare == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (mChannel == null)
+            return;
+        drain();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not close " + mFile + ": " + e.getMessage());
+        }
+        mChannel = null;
+    }
+
+    public synchronized boolean isClosed() {
+        return mChannel == null;
+    }
+
+    /**
+     * Go on recording into the spare buffer and have sWriter append the full one
+     *
+     * @return false if the spare buffer is still being written
+     */
+    private boolean swap() {
+        if (mSpare == null)
+            return false;
+        final ByteBuffer full = mBuffer;
+        final FileChannel channel = mChannel;
+        mBuffer = mSpare;
+        mSpare = null;
+        sWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean written = write(channel, full);
+                synchronized (SessionRecorder.this) {
+                    if (!written)
+                        stop(channel);
+                    mSpare = full;
+                    SessionRecorder.this.notifyAll();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Append the current buffer to the file right away, on the calling thread
+     *
+     * @return false if writing failed, recording stops then
+     */
+    private boolean drain() {
+        if (write(mChannel, mBuffer))
+            return true;
+        stop(mChannel);
+        return false;
+    }
+
+    /**
+     * Append <code>buffer</code> to the file and clear it. Not synchronized, the buffer belongs to
+     * the caller.
+     */
+    private boolean write(FileChannel channel, ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            long written = 0;
+            while (buffer.hasRemaining())
+                written += channel.write(buffer);
+            synchronized (this) {
+                mBytes += written;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mFile + ", recording stopped: " + e.getMessage());
+            return false;
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private void stop(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (mChannel == channel)
+            mChannel = null;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return number of events recorded so far
+     */
+    public synchronized long getEventCount() {
+        return mEvents;
+    }
+
+    /**
+     * @return number of bytes written to the file so far, not counting the buffered events
+     */
+    public synchronized long getByteCount() {
+        return mBytes;
+    }
+
+    /**
+     * @return number of events lost because both buffers were full
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * @return number of values cut to {@value #MAX_VALUE} bytes
+     */
+    public synchronized long getTruncatedCount() {
+        return mTruncated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{file: " + mFile + ", events: " + mEvents + ", bytes: " + mBytes
+                + (mDropped == 0 ? "" : ", dropped: " + mDropped)
+                + (mChannel == null ? ", closed}" : "}");
+    }
+}
@@ -0,0 +1,301 @@
+package lib.smartlink;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a log written by a {@link SessionRecorder} and plays it back. The file is memory
+ * mapped and walked one event at a time with {@link #next()}, so reading allocates nothing.
+ * <p/>
+ * {@link #replay(BluetoothDevice, float)} feeds the recorded values into the drivers of a
+ * device, in the recorded order and, unless asked to go faster, with the recorded timing. The
+ * device has to be connected to a peripheral with the same fields, e.g. a simulated one built
+ * from the same config, so its drivers are bound. Only what reaches the drivers is replayed:
+ * notified and read values and RSSI readings. Queue and connection events are left to
+ * analysis.
+ */
+public final class SessionReplay {
+    private final File mFile;
+    private final ByteBuffer mLog;
+    private final long mWallClockMs;
+    private final UUID[] mFieldUuids;
+    private final String[] mFieldPaths;
+    private final int mFirstEvent;
+
+    // the current event
+    private long mTime;
+    private int mType;
+    private int mOperationType;
+    private int mField;
+    private int mStatus;
+    private long mArgument;
+    private int mValueOffset;
+    private int mValueLength;
+
+    /**
+     * Outcome of a {@link #replay}
+     */
+    public static final class Result {
+        private final int mDispatched;
+        private final int mSkipped;
+        private final long mDurationNanos;
+        private final long mMaxLagNanos;
+
+        Result(int dispatched, int skipped, long durationNanos, long maxLagNanos) {
+            mDispatched = dispatched;
+            mSkipped = skipped;
+            mDurationNanos = durationNanos;
+            mMaxLagNanos = maxLagNanos;
+        }
+
+        /**
+         * @return number of values and RSSI readings handed to the device
+         */
+        public int getDispatchedCount() {
+            return mDispatched;
+        }
+
+        /**
+         * @return number of values of fields the device's drivers don't have
+         */
+        public int getSkippedCount() {
+            return mSkipped;
+        }
+
+        public long getDurationNanos() {
+            return mDurationNanos;
+        }
+
+        /**
+         * @return how far the replay fell behind the recorded timing at worst
+         */
+        public long getMaxLagNanos() {
+            return mMaxLagNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "{dispatched: " + mDispatched + ", skipped: " + mSkipped + ", duration: "
+                    + mDurationNanos / 1e6 + " ms, max lag: " + mMaxLagNanos / 1e6 + " ms}";
+        }
+    }
+
+    /**
+     * @throws IOException if the file is no session log
+     */
+    public SessionReplay(File file) throws IOException {
+        mFile = file;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("log too large");
+            mLog = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close(); // the mapping stays valid
+        }
+        try {
+            if (mLog.getInt() != SessionRecorder.FILE_MAGIC
+                    || mLog.getInt() != SessionRecorder.FILE_VERSION)
+                throw new IOException("not a session log");
+            mWallClockMs = mLog.getLong();
+            final int fields = mLog.getInt();
+            if (fields < 0 || fields > 0xffff)
+                throw new IOException("invalid field count " + fields);
+            mFieldUuids = new UUID[fields];
+            mFieldPaths = new String[fields];
+            for (int f = 0; f < fields; f++) {
+                mFieldUuids[f] = new UUID(mLog.getLong(), mLog.getLong());
+                final byte[] path = new byte[mLog.getShort() & 0xffff];
+                mLog.get(path);
+                mFieldPaths[f] = new String(path, SessionRecorder.UTF8);
+            }
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("truncated session log");
+        }
+        mFirstEvent = mLog.position();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return System.currentTimeMillis() when recording started
+     */
+    public long getWallClockMs() {
+        return mWallClockMs;
+    }
+
+    public int getFieldCount() {
+        return mFieldPaths.length;
+    }
+
+    /**
+     * @return "service/field"
+     */
+    public String getFieldPath(int field) {
+        return mFieldPaths[field];
+    }
+
+    public UUID getFieldUuid(int field) {
+        return mFieldUuids[field];
+    }
+
+    /**
+     * Go back to before the first event
+     */
+    public void rewind() {
+        mLog.position(mFirstEvent);
+    }
+
+    /**
+     * Move on to the next event
+     *
+     * @return false at the end of the log
+     */
+    public boolean next() {
+        if (mLog.remaining() < SessionRecorder.EVENT_HEADER)
+            return false;
+        final int start = mLog.position();
+        mTime = mLog.getLong();
+        mType = mLog.get();
+        mOperationType = mLog.get();
+        mField = mLog.getShort();
+        mStatus = mLog.getInt();
+        mArgument = mLog.getLong();
+        mValueLength = mLog.getShort() & 0xffff;
+        mValueOffset = mLog.position();
+        if (mLog.remaining() < mValueLength || mField >= mFieldPaths.length) {
+            mLog.position(start); // cut short, or not a log after all
+            return false;
+        }
+        mLog.position(mValueOffset + mValueLength);
+        return true;
+    }
+
+    /**
+     * @return ns since recording started
+     */
+    public long getTimestampNanos() {
+        return mTime;
+    }
+
+    /**
+     * @return one of the {@link SessionRecorder} event types
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return GattResult OPERATION_ type, -1 if none
+     */
+    public int getOperationType() {
+        return mOperationType;
+    }
+
+    /**
+     * @return index of the field, see {@link #getFieldPath(int)}, -1 if none
+     */
+    public int getField() {
+        return mField;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public long getArgument() {
+        return mArgument;
+    }
+
+    public int getValueLength() {
+        return mValueLength;
+    }
+
+    /**
+     * Copy the value of the event into <code>dest</code>, which must be long enough
+     *
+     * @return the value's length
+     */
+    public int getValue(byte[] dest) {
+        for (int i = 0; i < mValueLength; i++)
+            dest[i] = mLog.get(mValueOffset + i);
+        return mValueLength;
+    }
+
+    /**
+     * Play the log back into the drivers of <code>device</code> on the calling thread, from the
+     * first event. Each field's value array is reused from one event to the next as long as its
+     * length doesn't change, so drivers have to copy what they keep, as they should anyway.
+     *
+     * @param speed 1 for the recorded timing, 10 for ten times as fast, 0 for as fast as the
+     *              drivers take the values
+     */
+    public Result replay(BluetoothDevice device, float speed) throws InterruptedException {
+        if (speed < 0 || Float.isNaN(speed))
+            throw new IllegalArgumentException("invalid speed " + speed);
+        final BluetoothGattCharacteristic[] chars = new BluetoothGattCharacteristic[mFieldPaths.length];
+        final byte[][] values = new byte[mFieldPaths.length][];
+        for (int f = 0; f < chars.length; f++)
+            chars[f] = device.characteristicOf(mFieldUuids[f]);
+
+        int dispatched = 0;
+        int skipped = 0;
+        long maxLag = 0;
+        long firstEvent = -1;
+        final long start = System.nanoTime();
+        rewind();
+        while (next()) {
+            final boolean value = (mType == SessionRecorder.NOTIFICATION || mType == SessionRecorder.READ)
+                    && mStatus == BluetoothGatt.GATT_SUCCESS;
+            final boolean rssi = mType == SessionRecorder.RSSI && mStatus == BluetoothGatt.GATT_SUCCESS;
+            if (!value && !rssi)
+                continue;
+            if (value && (mField < 0 || chars[mField] == null)) {
+                skipped++;
+                continue;
+            }
+            if (firstEvent < 0)
+                firstEvent = mTime;
+            if (speed > 0) {
+                final long due = start + (long) ((mTime - firstEvent) / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.interrupted())
+                        throw new InterruptedException();
+                }
+                if (-wait > maxLag)
+                    maxLag = -wait;
+            }
+            if (rssi) {
+                device.onSignalStrength((int) mArgument);
+            } else {
+                byte[] bytes = values[mField];
+                if (bytes == null || bytes.length != mValueLength)
+                    bytes = values[mField] = new byte[mValueLength];
+                getValue(bytes);
+                chars[mField].setValue(bytes);
+                device.dispatchValue(chars[mField]);
+            }
+            dispatched++;
+        }
+        return new Result(dispatched, skipped, System.nanoTime() - start, maxLag);
+    }
+
+    @Override
+    public String toString() {
+        return "{log: " + mFile + ", fields: " + mFieldPaths.length + ", "
+                + (mLog.limit() - mFirstEvent) + " bytes of events}";
+    }
+}
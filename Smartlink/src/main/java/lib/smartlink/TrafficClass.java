@@ -0,0 +1,48 @@
+package lib.smartlink;
+
+/**
+ * Traffic classes of the command queue. Every queued operation belongs to exactly one class.
+ * Classes are served in strict priority order (lower value first) and first in, first out
+ * within a class, so flight control never waits behind a firmware block burst or a read
+ * backlog. Every class has its own bound on queued operations and a policy for what happens
+ * when the bound is reached.
+ */
+public final class TrafficClass {
+    /** Real-time control writes, e.g. {@link ControlChannel}s, paced and latest value wins */
+    public static final int CONTROL = 0;
+    /** Connecting, service discovery and disconnecting */
+    public static final int CONNECTION = 1;
+    /** Reads, notification setup, RSSI and ordinary writes */
+    public static final int DATA = 2;
+    /** Bulk transfers such as firmware image blocks. Never coalesced. */
+    public static final int BULK = 3;
+
+    static final int COUNT = 4;
+
+    /**
+     * Writes merge into the queued write for their characteristic, so the class holds at most
+     * one per characteristic. When full, like {@link #OVERFLOW_DROP_OLDEST}.
+     */
+    public static final int OVERFLOW_COALESCE = 0;
+    /**
+     * When full, drop the oldest queued operation of the class to make room. Coalesced writes
+     * carry the latest value of their characteristic and are never dropped, nor are notification
+     * setup and the reads drivers issue when attached; if the class holds nothing else, the new
+     * operation is rejected.
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    /** When full, refuse the new operation and tell the caller */
+    public static final int OVERFLOW_REJECT = 2;
+
+    static final String[] NAMES = {"CONTROL", "CONNECTION", "DATA", "BULK"};
+
+    // Reads and RSSI requests older than this are stale and dropped instead of sent
+    static final long DATA_DEADLINE_MS = 2000;
+
+    static final int[] DEFAULT_BOUNDS = {8, 8, 32, 16};
+    static final int[] DEFAULT_POLICIES = {OVERFLOW_COALESCE, OVERFLOW_REJECT,
+            OVERFLOW_DROP_OLDEST, OVERFLOW_REJECT};
+
+    private TrafficClass() {
+    }
+}
@@ -0,0 +1,261 @@
+package lib.smartlink;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The values of one field as they are notified or read, for any number of subscribers. Get it
+ * with {@link BluetoothDevice#getStream(String)}; it lives as long as the device, across
+ * reconnects.
+ * <p/>
+ * Publishing never waits for a subscriber: the GATT callback only hands a copy of the value to
+ * each subscription's queue, and the values are delivered on the subscription's executor, one
+ * at a time and only as far as the subscriber {@link Subscription#request requested} them. A
+ * subscriber that can't keep up loses values according to its mode instead of building up a
+ * backlog, and can see how many it lost.
+ */
+public final class ValueStream {
+    private static final String TAG = "lib-smartlink-ValueStream";
+
+    /** Keep only the newest value not delivered yet */
+    public static final int LATEST = 0;
+    /** Keep up to the capacity of values not delivered yet, dropping the oldest when full */
+    public static final int BUFFER = 1;
+    /** Keep up to the capacity of values not delivered yet, dropping new ones when full */
+    public static final int DROP = 2;
+
+    public interface Subscriber {
+        /**
+         * Called once, before any value, on the thread subscribing
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called on the subscription's executor, never concurrently
+         *
+         * @param value shared with the other subscribers, don't modify it
+         */
+        void onNext(byte[] value);
+    }
+
+    public interface Subscription {
+        /**
+         * Ask for <code>n</code> more values, Long.MAX_VALUE for all of them
+         */
+        void request(long n);
+
+        /**
+         * Stop delivering values, the ones queued are discarded
+         */
+        void cancel();
+
+        /**
+         * @return number of values the subscription lost so far, because the subscriber didn't
+         * take them in time
+         */
+        long getDroppedCount();
+    }
+
+    private static final AtomicInteger sDeliveryThreads = new AtomicInteger();
+    private static final ExecutorService sDefaultExecutor = new ThreadPoolExecutor(1, 1,
+            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "smartlink-streams-" + sDeliveryThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        ((ThreadPoolExecutor) sDefaultExecutor).allowCoreThreadTimeOut(true);
+    }
+
+    private static final Sub[] NO_SUBSCRIBERS = new Sub[0];
+
+    private final String mPath;
+    // copied on write, so publishing doesn't lock
+    private volatile Sub[] mSubscribers = NO_SUBSCRIBERS;
+
+    ValueStream(String path) {
+        mPath = path;
+    }
+
+    /**
+     * @return "service/field"
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Subscribe for the latest value only, delivered on a library thread
+     */
+    public Subscription subscribe(Subscriber subscriber) {
+        return subscribe(subscriber, LATEST, 1, sDefaultExecutor);
+    }
+
+    /**
+     * @param mode     {@link #LATEST}, {@link #BUFFER} or {@link #DROP}
+     * @param capacity how many values may wait for the subscriber, 1 for LATEST
+     * @param executor where values are delivered, e.g. one posting to the main thread
+     */
+    public Subscription subscribe(Subscriber subscriber, int mode, int capacity, Executor executor) {
+        if (mode != LATEST && mode != BUFFER && mode != DROP)
+            throw new IllegalArgumentException("invalid mode " + mode);
+        if (capacity < 1 || (mode == LATEST && capacity != 1))
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        final Sub sub = new Sub(subscriber, mode, capacity, executor);
+        subscriber.onSubscribe(sub);
+        synchronized (this) {
+            if (!sub.cancelled) {
+                final Sub[] subs = new Sub[mSubscribers.length + 1];
+                System.arraycopy(mSubscribers, 0, subs, 0, mSubscribers.length);
+                subs[subs.length - 1] = sub;
+                mSubscribers = subs;
+            }
+        }
+        return sub;
+    }
+
+    private synchronized void remove(Sub sub) {
+        final Sub[] current = mSubscribers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == sub) {
+                final Sub[] subs = new Sub[current.length - 1];
+                System.arraycopy(current, 0, subs, 0, i);
+                System.arraycopy(current, i + 1, subs, i, subs.length - i);
+                mSubscribers = subs;
+                return;
+            }
+        }
+    }
+
+    public int getSubscriberCount() {
+        return mSubscribers.length;
+    }
+
+    /**
+     * Hand a value to every subscription. Called on the GATT callback thread.
+     */
+    void publish(byte[] value) {
+        final Sub[] subs = mSubscribers;
+        if (subs.length == 0 || value == null)
+            return;
+        final byte[] copy = value.clone(); // the stack may reuse its array
+        for (Sub sub : subs)
+            sub.offer(copy);
+    }
+
+    @Override
+    public String toString() {
+        return "{stream " + mPath + ", subscribers: " + mSubscribers.length + "}";
+    }
+
+    private final class Sub implements Subscription, Runnable {
+        final Subscriber subscriber;
+        final int mode;
+        final int capacity;
+        final Executor executor;
+        final ArrayDeque<byte[]> queue; // guarded by itself
+        final AtomicLong demand = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        // scheduled drains minus finished ones, so at most one drain runs at a time
+        final AtomicInteger wip = new AtomicInteger();
+        volatile boolean cancelled;
+
+        Sub(Subscriber subscriber, int mode, int capacity, Executor executor) {
+            this.subscriber = subscriber;
+            this.mode = mode;
+            this.capacity = capacity;
+            this.executor = executor;
+            this.queue = new ArrayDeque<byte[]>(Math.min(capacity, 16));
+        }
+
+        void offer(byte[] value) {
+            synchronized (queue) {
+                if (queue.size() == capacity) {
+                    dropped.incrementAndGet();
+                    if (mode == DROP)
+                        return;
+                    queue.poll();
+                }
+                queue.add(value);
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0)
+                throw new IllegalArgumentException("request must be positive");
+            long current, next;
+            do {
+                current = demand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            remove(this);
+            synchronized (queue) {
+                queue.clear();
+            }
+        }
+
+        @Override
+        public long getDroppedCount() {
+            return dropped.get();
+        }
+
+        private void schedule() {
+            if (cancelled || wip.getAndIncrement() != 0)
+                return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Executor of a subscriber to " + mPath + " is gone, cancelling");
+                cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                while (!cancelled && demand.get() > 0) {
+                    final byte[] value;
+                    synchronized (queue) {
+                        value = queue.poll();
+                    }
+                    if (value == null)
+                        break;
+                    if (demand.get() != Long.MAX_VALUE)
+                        demand.decrementAndGet();
+                    try {
+                        subscriber.onNext(value);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Subscriber to " + mPath + " failed, cancelling", e);
+                        cancel();
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package lib.smartlink;
+
+/**
+ * Decides how fast control writes (control channels) may go out, based on how fast the link
+ * actually absorbs them. The gap between two control writes follows the measured write
+ * completion latency and the cadence of the write callbacks, which arrive on connection
+ * events. It backs off on failed writes and never gets slower than the fixed
+ * {@value #LEGACY_INTERVAL_MS} ms sleep it replaces.
+ */
+public class WritePacer {
+    /** Fixed gap the command queue used to sleep after every rudder write */
+    public static final long LEGACY_INTERVAL_MS = 85;
+
+    private static final long NS_PER_MS = 1000000L;
+    // 7.5 ms is the shortest connection interval allowed by the spec
+    private static final long MIN_INTERVAL_NS = 7500000L;
+    private static final long MAX_INTERVAL_NS = LEGACY_INTERVAL_MS * NS_PER_MS;
+    // weight of new samples in the moving averages is 1/2^EWMA_SHIFT
+    private static final int EWMA_SHIFT = 3;
+
+    private long mIntervalNs = MAX_INTERVAL_NS;
+    private long mLatencyNs;
+    private long mCadenceNs;
+    private long mMinLatencyNs = Long.MAX_VALUE;
+    private long mMaxLatencyNs;
+
+    private long mFirstDispatchNs;
+    private long mLastDispatchNs;
+    private long mInFlightSinceNs;
+    private long mLastCompletionNs;
+
+    private long mWrites;
+    private long mFailures;
+    private long mDeferrals;
+
+    /**
+     * @param now current {@link System#nanoTime()}
+     * @return how long the next control write has to wait, 0 if it can go right away
+     */
+    synchronized long delayNanos(long now) {
+        if (mLastDispatchNs == 0)
+            return 0;
+        final long due = mLastDispatchNs + mIntervalNs;
+        return due > now ? due - now : 0;
+    }
+
+    synchronized void onDeferred() {
+        mDeferrals++;
+    }
+
+    synchronized void onDispatch(long now) {
+        if (mFirstDispatchNs == 0)
+            mFirstDispatchNs = now;
+        mLastDispatchNs = now;
+        mInFlightSinceNs = now;
+        mWrites++;
+    }
+
+    synchronized void onComplete(long now, boolean success) {
+        onComplete(now, mInFlightSinceNs != 0 ? now - mInFlightSinceNs : -1, success);
+    }
+
+    /**
+     * @param latency dispatch to callback time of the completed write, -1 if unknown
+     */
+    synchronized void onComplete(long now, long latency, boolean success) {
+        mInFlightSinceNs = 0;
+        if (latency >= 0) {
+            mLatencyNs = (mLatencyNs == 0) ? latency : ewma(mLatencyNs, latency);
+            mMinLatencyNs = Math.min(mMinLatencyNs, latency);
+            mMaxLatencyNs = Math.max(mMaxLatencyNs, latency);
+        }
+
+        if (mLastCompletionNs != 0) {
+            // only count the time the link had the write: time spent waiting for the pacer or
+            // with the link idle before the write was dispatched would feed our own gap back
+            final long dispatched = latency >= 0 ? now - latency : mLastDispatchNs;
+            final long gap = now - Math.max(mLastCompletionNs, dispatched);
+            mCadenceNs = (mCadenceNs == 0) ? gap : ewma(mCadenceNs, gap);
+        }
+        mLastCompletionNs = now;
+
+        if (success) {
+            // converge on what the link takes to absorb a write
+            final long target = clamp(Math.max(mLatencyNs, mCadenceNs));
+            mIntervalNs = clamp(ewma(mIntervalNs, target));
+        } else {
+            mFailures++;
+            mIntervalNs = clamp(mIntervalNs * 2);
+        }
+    }
+
+    /**
+     * Forget everything learned about the link, e.g. after a reconnect
+     */
+    public synchronized void reset() {
+        mIntervalNs = MAX_INTERVAL_NS;
+        mLatencyNs = mCadenceNs = mMaxLatencyNs = 0;
+        mMinLatencyNs = Long.MAX_VALUE;
+        mFirstDispatchNs = mLastDispatchNs = mInFlightSinceNs = mLastCompletionNs = 0;
+        mWrites = mFailures = mDeferrals = 0;
+    }
+
+    /**
+     * @return current gap between two control writes, in ms
+     */
+    public synchronized float getIntervalMs() {
+        return (float) mIntervalNs / NS_PER_MS;
+    }
+
+    /**
+     * @return smoothed time between dispatching a control write and its callback, in ms
+     */
+    public synchronized float getAverageLatencyMs() {
+        return (float) mLatencyNs / NS_PER_MS;
+    }
+
+    public synchronized float getMinLatencyMs() {
+        return mMinLatencyNs == Long.MAX_VALUE ? 0 : (float) mMinLatencyNs / NS_PER_MS;
+    }
+
+    public synchronized float getMaxLatencyMs() {
+        return (float) mMaxLatencyNs / NS_PER_MS;
+    }
+
+    /**
+     * @return smoothed gap between consecutive write callbacks, an estimate of the connection
+     * interval, in ms
+     */
+    public synchronized float getCadenceMs() {
+        return (float) mCadenceNs / NS_PER_MS;
+    }
+
+    /**
+     * @return control writes actually sent per second since the first one
+     */
+    public synchronized float getEffectiveRateHz() {
+        final long span = mLastDispatchNs - mFirstDispatchNs;
+        if (mWrites < 2 || span <= 0)
+            return 0;
+        return (mWrites - 1) * 1e9f / span;
+    }
+
+    /**
+     * @return the control write rate of the old fixed sleep, for comparison
+     */
+    public static float getLegacyRateHz() {
+        return 1000f / LEGACY_INTERVAL_MS;
+    }
+
+    public synchronized long getWriteCount() {
+        return mWrites;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailures;
+    }
+
+    /**
+     * @return how many times a control write was put back because it was not due yet
+     */
+    public synchronized long getDeferralCount() {
+        return mDeferrals;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{interval: " + getIntervalMs() + " ms, latency: " + getAverageLatencyMs()
+                + " ms, cadence: " + getCadenceMs() + " ms, rate: " + getEffectiveRateHz()
+                + " Hz (legacy " + getLegacyRateHz() + " Hz), writes: " + mWrites
+                + ", failures: " + mFailures + ", deferrals: " + mDeferrals + "}";
+    }
+
+    private static long ewma(long average, long sample) {
+        return average - (average >> EWMA_SHIFT) + (sample >> EWMA_SHIFT);
+    }
+
+    private static long clamp(long interval) {
+        return Math.max(MIN_INTERVAL_NS, Math.min(MAX_INTERVAL_NS, interval));
+    }
+}
@@ -0,0 +1,256 @@
+package lib.smartlink;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Credit window for write-without-response characteristics. Instead of waiting for the
+ * callback of every write, up to {@link #getWindow()} writes may be outstanding at once; every
+ * onCharacteristicWrite hands a credit back. The window grows by one after a window's worth of
+ * successful writes and is halved whenever the stack refuses a write, reports a failure or
+ * loses callbacks.
+ * <p/>
+ * A refused write also tells how many writes the stack buffers. The window stays within that
+ * ceiling and only probes one beyond it after many windows' worth of successful writes, so it
+ * finds out when the stack has more room without running into a full one over and over.
+ */
+public class WriteWindow {
+    /** Upper limit for {@link #setMaxWindow(int)} */
+    public static final int MAX_WINDOW_LIMIT = 16;
+    private static final int DEFAULT_MAX_WINDOW = 4;
+
+    private static final long NS_PER_MS = 1000000L;
+    // weight of new samples in the latency average is 1/2^EWMA_SHIFT
+    private static final int EWMA_SHIFT = 3;
+    // windows' worth of successful writes at the ceiling before trying one more
+    private static final int PROBE_ROUNDS = 16;
+
+    private int mMaxWindow = DEFAULT_MAX_WINDOW;
+    private int mWindow = 1;
+    private int mOutstanding;
+    private int mSuccessStreak;
+    // most writes the stack took at once before it refused one, MAX_WINDOW_LIMIT until it did
+    private int mCeiling = MAX_WINDOW_LIMIT;
+
+    // dispatch times of the outstanding writes, oldest first. Completions arrive in order.
+    private final long[] mSentAt = new long[MAX_WINDOW_LIMIT];
+    private int mHead;
+
+    private long mSent;
+    private long mCompleted;
+    private long mCongestions;
+    private long mLost;
+    private int mPeakOutstanding;
+    private long mLatencyNs;
+    private long mFirstCompletionNs;
+    private long mLastCompletionNs;
+
+    /**
+     * Wait for a credit.
+     *
+     * @param timeoutNs how long to wait at most
+     * @return false if no credit came back in time, i.e. callbacks got lost
+     */
+    synchronized boolean acquire(long timeoutNs) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNs;
+        while (mOutstanding >= mWindow) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until every outstanding write got its callback, before an operation which needs
+     * the stack for itself.
+     *
+     * @param timeoutNs how long to wait at most
+     * @return false if some callbacks did not come back in time
+     */
+    synchronized boolean awaitDrained(long timeoutNs) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutNs;
+        while (mOutstanding > 0) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * A write is about to be handed to the stack. Called before the stack gets it, since the
+     * callback may arrive before the request returns.
+     */
+    synchronized void onSent(long now) {
+        mSentAt[(mHead + mOutstanding) % MAX_WINDOW_LIMIT] = now;
+        mOutstanding++;
+        mSent++;
+        mPeakOutstanding = Math.max(mPeakOutstanding, mOutstanding);
+    }
+
+    /**
+     * A credit came back.
+     *
+     * @return latency of the completed write in ns, or -1 if no write was outstanding
+     */
+    synchronized long onCompleted(long now, boolean success) {
+        if (mOutstanding == 0)
+            return -1;
+        final long latency = now - mSentAt[mHead];
+        mHead = (mHead + 1) % MAX_WINDOW_LIMIT;
+        mOutstanding--;
+        mCompleted++;
+        mLatencyNs = (mLatencyNs == 0) ? latency : mLatencyNs - (mLatencyNs >> EWMA_SHIFT) + (latency >> EWMA_SHIFT);
+        if (mFirstCompletionNs == 0)
+            mFirstCompletionNs = now;
+        mLastCompletionNs = now;
+
+        if (success) {
+            ++mSuccessStreak;
+            if (mWindow >= mMaxWindow) {
+                mSuccessStreak = 0;
+            } else if (mWindow < mCeiling ? mSuccessStreak >= mWindow
+                    : mSuccessStreak >= mWindow * PROBE_ROUNDS) {
+                mWindow++;
+                mCeiling = Math.max(mCeiling, mWindow);
+                mSuccessStreak = 0;
+            }
+        } else {
+            congestion();
+        }
+        notifyAll();
+        return latency;
+    }
+
+    /**
+     * The stack refused the write last announced with {@link #onSent(long)}, it has no room for
+     * more. Takes its credit back.
+     *
+     * @return number of writes still outstanding, which make room in the stack as they complete
+     */
+    synchronized int onRefused() {
+        if (mOutstanding > 0) {
+            mOutstanding--;
+            mSent--;
+        }
+        mCeiling = Math.max(1, mOutstanding);
+        congestion();
+        notifyAll();
+        return mOutstanding;
+    }
+
+    /**
+     * Give up on all outstanding writes, their callbacks are not coming
+     *
+     * @return number of credits reclaimed
+     */
+    synchronized int reclaim() {
+        final int lost = mOutstanding;
+        mLost += lost;
+        mOutstanding = 0;
+        mHead = 0;
+        if (lost > 0)
+            congestion();
+        notifyAll();
+        return lost;
+    }
+
+    /**
+     * Start from scratch on a new connection
+     */
+    synchronized void reset() {
+        mOutstanding = 0;
+        mHead = 0;
+        mWindow = 1;
+        mSuccessStreak = 0;
+        mCeiling = MAX_WINDOW_LIMIT;
+        notifyAll();
+    }
+
+    private void congestion() {
+        mCongestions++;
+        mWindow = Math.max(1, Math.min(mWindow / 2, mCeiling));
+        mSuccessStreak = 0;
+    }
+
+    /**
+     * Set how many writes without response may be outstanding at most. 1 sends them one by one.
+     *
+     * @param maxWindow between 1 and {@value #MAX_WINDOW_LIMIT}
+     */
+    public synchronized void setMaxWindow(int maxWindow) {
+        if (maxWindow < 1 || maxWindow > MAX_WINDOW_LIMIT)
+            throw new IllegalArgumentException("window must be between 1 and " + MAX_WINDOW_LIMIT);
+        mMaxWindow = maxWindow;
+        mWindow = Math.min(mWindow, maxWindow);
+        notifyAll();
+    }
+
+    public synchronized int getMaxWindow() {
+        return mMaxWindow;
+    }
+
+    /**
+     * @return number of writes which may currently be outstanding
+     */
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    public synchronized int getOutstanding() {
+        return mOutstanding;
+    }
+
+    public synchronized int getPeakOutstanding() {
+        return mPeakOutstanding;
+    }
+
+    public synchronized long getSentCount() {
+        return mSent;
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    /**
+     * @return how many times the window was shrunk because of refused or failed writes
+     */
+    public synchronized long getCongestionCount() {
+        return mCongestions;
+    }
+
+    /**
+     * @return writes whose callback never came and whose credit was reclaimed
+     */
+    public synchronized long getLostCount() {
+        return mLost;
+    }
+
+    /**
+     * @return smoothed time between sending a write and getting its credit back, in ms
+     */
+    public synchronized float getAverageLatencyMs() {
+        return (float) mLatencyNs / NS_PER_MS;
+    }
+
+    /**
+     * @return completed writes per second since the first completion
+     */
+    public synchronized float getThroughputHz() {
+        final long span = mLastCompletionNs - mFirstCompletionNs;
+        if (mCompleted < 2 || span <= 0)
+            return 0;
+        return (mCompleted - 1) * 1e9f / span;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{window: " + mWindow + "/" + mMaxWindow + " (ceiling " + mCeiling + "), outstanding: "
+                + mOutstanding + " (peak " + mPeakOutstanding + "), sent: " + mSent + ", completed: " + mCompleted
+                + ", throughput: " + getThroughputHz() + " Hz, latency: " + getAverageLatencyMs()
+                + " ms, congestions: " + mCongestions + ", lost: " + mLost + "}";
+    }
+}
@@ -27,9 +27,11 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package lib.smartlink.driver;
 
+import android.bluetooth.BluetoothGattCharacteristic;
 import android.util.Log;
 
 import lib.smartlink.BLEService;
+import lib.smartlink.FieldHandle;
 
 import java.lang.ref.WeakReference;
 
@@ -46,16 +48,18 @@ public class BLEBatteryService extends BLEService {
 
     public WeakReference<Delegate> delegate;
     private int lastBatteryLevel = 0;
+    private FieldHandle mLevel;
 
     protected void attached() {
+        mLevel = field("level", BluetoothGattCharacteristic.FORMAT_UINT8);
         updateField("level"); // initially
         setNotification("level", true);
     }
 
     @Override
-    protected void didUpdateValueForCharacteristic(String c) {
-        if (c.equalsIgnoreCase("level")) {
-            int level = getUint8ValueForCharacteristic("level");
+    protected void didUpdateValue(int field) {
+        if (mLevel != null && field == mLevel.getIndex()) {
+            int level = mLevel.getInt();
             try {
                 lastBatteryLevel = level;
                 delegate.get().didUpdateBatteryLevel(level);
@@ -49,6 +49,8 @@ public class BLEDeviceInformationService
 
     private String mSerialNumber;
     private String mSystemID;
+    private int mSerialNumberField;
+    private int mSystemIDField;
     public WeakReference<Delegate> delegate;
 
     public String getSerialNumber() {
@@ -61,13 +63,18 @@ public class BLEDeviceInformationService
 
     @Override
     public void attached() {
+        mSerialNumberField = fieldIndex("serialnumber");
+        mSystemIDField = fieldIndex("systemid");
+        // both are burnt in, a reconnect gets them from the read cache
+        cacheField("serialnumber", CACHE_UNTIL_FIRMWARE_CHANGE, false);
+        cacheField("systemid", CACHE_UNTIL_FIRMWARE_CHANGE, false);
         updateField("serialnumber");
         updateField("systemid");
     }
 
     @Override
-    protected void didUpdateValueForCharacteristic(String c) {
-        if (c.equalsIgnoreCase("serialnumber")) {
+    protected void didUpdateValue(int field) {
+        if (field == mSerialNumberField) {
             mSerialNumber = getStringValueForCharacteristic("serialnumber").trim();
             Log.i("lib-smartlink-devinfo", "Serial number updated: " + mSerialNumber + " (len=" + mSerialNumber.length() + ")");
             try {
@@ -75,7 +82,7 @@ public class BLEDeviceInformationService
             } catch (NullPointerException ex) {
                 Log.w("lib-smartlink-devinfo", "No delegate set");
             }
-        } else if (c.equalsIgnoreCase("systemid")) {
+        } else if (field == mSystemIDField) {
             byte[] sysIDBytes = getBytesForCharacteristic("systemid");
 
             byte[] newSysIDBytes = new byte[6];
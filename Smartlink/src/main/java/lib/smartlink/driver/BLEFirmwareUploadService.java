@@ -27,9 +27,12 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package lib.smartlink.driver;
 
+import android.bluetooth.BluetoothGattCharacteristic;
 import android.util.Log;
 
 import lib.smartlink.BLEService;
+import lib.smartlink.FieldHandle;
+import lib.smartlink.TrafficClass;
 import lib.smartlink.Util;
 
 import java.io.FileNotFoundException;
@@ -73,6 +76,8 @@ public class BLEFirmwareUploadService extends BLEService {
     private boolean _canceled;
     private Timer _programmingTimer;
     private int _imgVersion;
+    private FieldHandle _imgIdentify;
+    private int _blockRequest;
     private byte[] _imageData;
     private int _nBlocks;
     private int _iBlocks;
@@ -131,6 +136,11 @@ public class BLEFirmwareUploadService extends BLEService {
         final byte[] one = new byte[1];
         one[0] = 1;
 
+        // image blocks must not hold up flight control, and must not be coalesced
+        setTrafficClass("blockrequest", TrafficClass.BULK);
+
+        // the image header is never cached: the A/B check and the firmware version reported to
+        // the device must come from the image the peripheral runs now
         Log.d(TAG, "imgidentify notif enabled");
         setNotification("imgidentify", true);
         setNotification("blockrequest", true);
@@ -243,7 +253,10 @@ public class BLEFirmwareUploadService extends BLEService {
 
         b.putShort((short) (_iBlocks & 0xffff));
         b.put(Util.subarray(_imageData, _iBytes, _iBytes + OAD_BLOCK_SIZE));
-        writeBytes(requestData, "blockrequest");
+        if (writeBytes(requestData, "blockrequest").isRejected()) {
+            Log.w(TAG, "Block " + _iBlocks + " rejected, will resend on next request");
+            return;
+        }
 
         _iBlocks++;
         _iBytes += OAD_BLOCK_SIZE;
@@ -258,6 +271,8 @@ public class BLEFirmwareUploadService extends BLEService {
         writeNextBlock();
 
         if (_iBlocks == _nBlocks) {
+            // the device boots the new image, nothing cached about it holds anymore
+            invalidateCachedFields();
             try {
                 delegate.get().didFinishUploadingFirmware(this);
             } catch (NullPointerException e) {
@@ -297,18 +312,22 @@ public class BLEFirmwareUploadService extends BLEService {
 
     @Override
     protected void attached() {
+        _imgIdentify = field("imgidentify", BluetoothGattCharacteristic.FORMAT_UINT16);
+        _blockRequest = fieldIndex("blockrequest");
         initialize();
     }
 
     @Override
-    protected void didUpdateValueForCharacteristic(String c) {
-        Log.d(TAG, "received " + c);
-        if (c.equalsIgnoreCase("imgidentify")) {
+    protected void didUpdateValue(int field) {
+        // block requests arrive for every block, so don't log those
+        if (_imgIdentify != null && field == _imgIdentify.getIndex()) {
+            Log.d(TAG, "received imgidentify");
             if (_imgVersion == 0xffff) {
-                _imgVersion = getUin16ValueForCharacteristic("imgidentify");
+                _imgVersion = _imgIdentify.getInt();
                 Log.i(TAG, "self.imgVersion: " + _imgVersion);
                 ImageHeader hdr = new ImageHeader(getBytesForCharacteristic("imgidentify"));
                 fwVersionOnDevice = hdr.toString();
+                reportFirmwareVersion(fwVersionOnDevice);
                 Log.i(TAG, "Current fw on device: " + fwVersionOnDevice);
                 try {
                     delegate.get().didReceiveFirmwareVersion(this, fwVersionOnDevice);
@@ -316,7 +335,7 @@ public class BLEFirmwareUploadService extends BLEService {
                     Log.w(TAG, "Delegate not set");
                 }
             }
-        } else if (c.equalsIgnoreCase("blockrequest")) {
+        } else if (field == _blockRequest) {
             //Log.i(TAG, "Block request received");
             if (!_canceled)
                 programmingTimerTick();
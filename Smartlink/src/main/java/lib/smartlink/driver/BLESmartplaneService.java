@@ -27,11 +27,15 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package lib.smartlink.driver;
 
+import android.bluetooth.BluetoothGattCharacteristic;
 import android.util.Log;
 
 import java.lang.ref.WeakReference;
 
 import lib.smartlink.BLEService;
+import lib.smartlink.ControlChannel;
+import lib.smartlink.ControlSpec;
+import lib.smartlink.FieldHandle;
 
 /**
  * Driver class for Smartplane interaction
@@ -51,6 +55,9 @@ public class BLESmartplaneService
 
     private short lastEngine = 0;
     private short lastRudder = 0;
+    private FieldHandle mChargeStatus;
+    private ControlChannel mEngine;
+    private ControlChannel mRudder;
 
     public void setMotor(short value) {
         if (value == lastEngine)
@@ -59,7 +66,8 @@ public class BLESmartplaneService
             value = 254;
         if (value < 0)
             value = 0;
-        writeUint8Value(value, "engine");
+        if (mEngine != null)
+            mEngine.post(value);
         lastEngine = value;
     }
 
@@ -70,7 +78,8 @@ public class BLESmartplaneService
             value = 126;
         if (value < -126)
             value = -126;
-        writeInt8Value((byte) value, "rudder");
+        if (mRudder != null)
+            mRudder.post(value);
         lastRudder = value;
     }
 
@@ -80,20 +89,26 @@ public class BLESmartplaneService
 
     @Override
     protected void attached() {
+        mChargeStatus = field("chargestatus", BluetoothGattCharacteristic.FORMAT_UINT8);
+        mEngine = control("engine", ControlSpec.DEFAULT);
+        mRudder = control("rudder",
+                ControlSpec.DEFAULT.withFormat(BluetoothGattCharacteristic.FORMAT_SINT8));
         // Reset to zero
-        setWriteNeedsResponse(false, "engine");
-        setWriteNeedsResponse(false, "rudder");
-        writeUint8Value((short) 0, "engine");
-        writeInt8Value((byte) 0, "rudder");
+        lastEngine = 0;
+        lastRudder = 0;
+        if (mEngine != null)
+            mEngine.reset(0);
+        if (mRudder != null)
+            mRudder.reset(0);
     }
 
     @Override
-    protected void didUpdateValueForCharacteristic(String c) {
+    protected void didUpdateValue(int field) {
         if (delegate.get() == null)
             return;
 
-        if (c.equalsIgnoreCase("chargestatus")) {
-            int status = getUint8ValueForCharacteristic("chargestatus");
+        if (mChargeStatus != null && field == mChargeStatus.getIndex()) {
+            int status = mChargeStatus.getInt();
             try {
                 if (status == 0) {
                     delegate.get().didStopChargingBattery();